@@ -0,0 +1,142 @@
+package casereality.precisiontest;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import caseengine.function.LinearFunction;
+import caseengine.function.SigmoidFunction;
+import caseengine.neural.network.LayeredNetwork;
+import caseengine.neural.network.LayeredNetwork.ConnectionScheme;
+import caseengine.neural.node.ConnectableNode;
+import caseengine.neural.node.DifferentiableNode;
+import caseengine.neural.node.Node;
+import caseengine.neural.train.ErrorBackpropagator;
+
+/**
+ * Checks the accuracy of single-precision networks against double-precision
+ * networks on the workload of a {@code QNetwork}: two 12-24-6 networks are
+ * built from identical weights, one in each precision, and trained with the
+ * same single samples and replay-sized batches. The check fails if their
+ * outputs ever differ by more than {@link #MAX_DEVIATION}, or if a batched
+ * pull of the single-precision network is not bit-equal to single pulls.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public class PrecisionTest {
+
+	private static final int INPUTS = 12, HIDDEN = 24, OUTPUTS = 6;
+
+	private static final int STEPS = 20000, BATCH_SIZE = 32,
+			CHECK_INTERVAL = 100, PULLS = 1000;
+
+	private static final double LEARNING_RATE = 0.01;
+
+	private static final double MAX_DEVIATION = 1e-5;
+
+	public static void main(String[] args) {
+		LayeredNetwork doubleNetwork = initNetwork(false);
+		LayeredNetwork singleNetwork = initNetwork(true);
+		ErrorBackpropagator trainer = new ErrorBackpropagator();
+		Random random = new Random(9);
+		double[][] inputs = new double[BATCH_SIZE][INPUTS];
+		int[][] actions = new int[BATCH_SIZE][1];
+		double[][] targets = new double[BATCH_SIZE][1];
+		double maxDeviation = 0;
+		for (int step = 0; step < STEPS; step++) {
+			for (int i = 0; i < BATCH_SIZE; i++)
+				sample(random, inputs[i], actions[i], targets[i]);
+			// Alternate between the single samples of experience and the
+			// mini-batches of replay
+			if (step % 2 == 0) {
+				trainer.trainNetwork(doubleNetwork, inputs[0], 1, actions[0],
+						targets[0], LEARNING_RATE);
+				trainer.trainNetwork(singleNetwork, inputs[0], 1, actions[0],
+						targets[0], LEARNING_RATE);
+			} else {
+				trainer.trainNetworkBatch(doubleNetwork, inputs, 1, actions,
+						targets, LEARNING_RATE);
+				trainer.trainNetworkBatch(singleNetwork, inputs, 1, actions,
+						targets, LEARNING_RATE);
+			}
+			if (step % CHECK_INTERVAL == 0)
+				maxDeviation = Math.max(maxDeviation, deviation(
+						doubleNetwork.pullOutputs(inputs[0]),
+						singleNetwork.pullOutputs(inputs[0])));
+		}
+		System.out.println("Training deviation: " + maxDeviation);
+		check(maxDeviation <= MAX_DEVIATION, "training deviation");
+
+		double[][] pullInputs = new double[PULLS][INPUTS];
+		for (double[] pullInput : pullInputs)
+			for (int i = 0; i < INPUTS; i++)
+				pullInput[i] = random.nextDouble();
+		double[][] batchOutputs = new double[PULLS][OUTPUTS];
+		singleNetwork.pullOutputsBatch(pullInputs, batchOutputs);
+		int mismatches = 0;
+		maxDeviation = 0;
+		for (int k = 0; k < PULLS; k++) {
+			double[] outputs = singleNetwork.pullOutputs(pullInputs[k]);
+			if (!Arrays.equals(outputs, batchOutputs[k]))
+				mismatches++;
+			maxDeviation = Math.max(maxDeviation, deviation(
+					doubleNetwork.pullOutputs(pullInputs[k]), outputs));
+		}
+		System.out.println("Inference deviation: " + maxDeviation
+				+ ", Batch mismatches: " + mismatches);
+		check(maxDeviation <= MAX_DEVIATION, "inference deviation");
+		check(mismatches == 0, "batched and single pulls");
+		System.out.println("Passed");
+	}
+
+	/**
+	 * Fills in a random transition: the input values of a state, the action
+	 * taken and the reinforcement it received.
+	 */
+	private static void sample(Random random, double[] inputs, int[] action,
+			double[] target) {
+		for (int i = 0; i < INPUTS; i++)
+			inputs[i] = random.nextDouble();
+		action[0] = random.nextInt(OUTPUTS);
+		target[0] = Math.sin(3 * inputs[0] + action[0]) + inputs[action[0]];
+	}
+
+	private static double deviation(double[] expected, double[] actual) {
+		double deviation = 0;
+		for (int i = 0; i < expected.length; i++)
+			deviation = Math.max(deviation,
+					Math.abs(expected[i] - actual[i]));
+		return deviation;
+	}
+
+	private static void check(boolean passed, String name) {
+		if (!passed) {
+			System.out.println("Failed: " + name);
+			System.exit(1);
+		}
+	}
+
+	/**
+	 * Builds a network shaped like a {@code QNetwork}'s, whose weights are
+	 * generated from the same seed whatever its precision.
+	 */
+	private static LayeredNetwork initNetwork(boolean singlePrecision) {
+		final Random random = new Random(3);
+		ConnectionScheme scheme = new ConnectionScheme() {
+			@Override
+			public double generateWeight(Node input, ConnectableNode output) {
+				return random.nextDouble() - 0.5;
+			}
+		};
+		LayeredNetwork network = new LayeredNetwork(2, singlePrecision);
+		for (int i = 0; i < INPUTS; i++)
+			network.addInput(scheme);
+		SigmoidFunction hiddenFunction = new SigmoidFunction();
+		for (int i = 0; i < HIDDEN; i++)
+			network.addNode(new DifferentiableNode(hiddenFunction), 0, scheme);
+		LinearFunction outputFunction = new LinearFunction(1, 0);
+		for (int i = 0; i < OUTPUTS; i++)
+			network.addNode(new DifferentiableNode(outputFunction), 1, scheme);
+		return network;
+	}
+}
@@ -13,6 +13,10 @@ import java.util.EnumSet;
  * An actuator to be integrated in an intelligence system must be able to list
  * the set of actions currently able to be performed by the actuator, as well as
  * perform specific actions when prompted by the intelligence system.
+ * <p>
+ * Actuators that are consulted every tick of an intelligence system may also
+ * override {@link #fetchAvailableActions(int[])} to list their available
+ * actions without creating a set.
  * 
  * @author Charlie Morley
  *
@@ -26,6 +30,32 @@ public interface Actuator<ActionType extends Enum<ActionType>> {
 	 */
 	public EnumSet<ActionType> getActionSet();
 
+	/**
+	 * Stores the {@link Enum#ordinal() ordinals} of the actions currently
+	 * available to this actuator in the specified buffer, in ascending order,
+	 * and returns their number. If the buffer is too short to hold them all,
+	 * -1 is returned and the contents of the buffer are unspecified.
+	 * <p>
+	 * The default implementation copies the set returned by
+	 * {@link #getActionSet()}. Actuators consulted frequently should override
+	 * this method to list their actions without allocating.
+	 * 
+	 * @param ordinals
+	 *            the buffer in which the ordinals of the available actions are
+	 *            stored
+	 * @return the number of available actions, or -1 if {@code ordinals} is
+	 *         too short to hold them
+	 */
+	public default int fetchAvailableActions(int[] ordinals) {
+		EnumSet<ActionType> actions = getActionSet();
+		if (actions.size() > ordinals.length)
+			return -1;
+		int count = 0;
+		for (ActionType action : actions)
+			ordinals[count++] = action.ordinal();
+		return count;
+	}
+
 	/**
 	 * Performs the specified action, if the action is able to be performed by
 	 * this actuator (that is, if the action appears in the set returned by
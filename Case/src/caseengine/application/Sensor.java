@@ -1,6 +1,7 @@
 package caseengine.application;
 
 import java.util.EnumMap;
+import java.util.Map.Entry;
 
 /**
  * A {@code Sensor} provides an input link to intelligence systems from their
@@ -10,6 +11,10 @@ import java.util.EnumMap;
  * A sensor to be integrated in an intelligence system must be able to return an
  * ordered set of all or some of the sensor's available sensations when prompted
  * by the intelligence system.
+ * <p>
+ * Sensors that are fetched from every tick of an intelligence system may also
+ * override {@link #fetchSensations(double[], int[])} to write their sensations
+ * directly into the system's input buffer, without creating a map.
  * 
  * @author Charlie Morley
  *
@@ -26,4 +31,41 @@ public interface Sensor<InputChannelType extends Enum<InputChannelType>> {
 	 * @return the current ordered inputs of this sensor
 	 */
 	public EnumMap<InputChannelType, Double> fetchSensations();
+
+	/**
+	 * Writes all or some of this sensor's available sensations into the
+	 * specified input buffer. The index at which each sensation is written is
+	 * found in {@code indices} at the {@link Enum#ordinal() ordinal} of the
+	 * sensation's channel. Sensation slots without available sensations are
+	 * left unchanged.
+	 * <p>
+	 * If a channel with an available sensation has no index - because its
+	 * ordinal is not less than the length of {@code indices}, or the index
+	 * there is negative - this method returns {@code false}, and the sensations
+	 * written to the buffer so far are incomplete. The caller is then expected
+	 * to map the new channel using {@link #fetchSensations()}.
+	 * <p>
+	 * The default implementation copies the sensations returned by
+	 * {@link #fetchSensations()}. Sensors fetched frequently should override
+	 * this method to write their sensations without allocating.
+	 * 
+	 * @param inputs
+	 *            the buffer into which the sensations are written
+	 * @param indices
+	 *            the index in {@code inputs} of each channel's sensation, by
+	 *            channel ordinal
+	 * @return {@code true} if every available sensation was written,
+	 *         {@code false} if an available sensation's channel has no index
+	 */
+	public default boolean fetchSensations(double[] inputs, int[] indices) {
+		for (Entry<InputChannelType, Double> sensation : fetchSensations()
+				.entrySet()) {
+			int ordinal = sensation.getKey().ordinal();
+			if (ordinal >= indices.length || indices[ordinal] < 0)
+				return false;
+			if (sensation.getValue() != null)
+				inputs[indices[ordinal]] = sensation.getValue();
+		}
+		return true;
+	}
 }
@@ -10,7 +10,11 @@ import caseengine.application.Actuator;
 import caseengine.application.Sensor;
 import caseengine.cognition.executive.BoltzmannExecutive;
 import caseengine.cognition.executive.BoltzmannExecutive.DynamicImpulseController;
+import caseengine.cognition.memory.AsynchronousLearner;
 import caseengine.cognition.memory.QNetwork;
+import caseengine.cognition.memory.ReplayBuffer;
+import caseengine.neural.network.InferenceContext;
+import caseengine.neural.train.Optimizer;
 
 /**
  * 
@@ -20,6 +24,13 @@ import caseengine.cognition.memory.QNetwork;
 public final class CaseMind {
 
 	private QNetwork memory = new QNetwork(1);
+
+	/**
+	 * The most recent transitions of this mind, replayed in every training
+	 * update.
+	 */
+	private ReplayBuffer experience = new ReplayBuffer(REPLAY_CAPACITY, 0, 0,
+			false, 0.6, 0.4);
 	private DynamicImpulseController impulseController = new DynamicImpulseController(
 			1);
 	private BoltzmannExecutive executive = new BoltzmannExecutive(
@@ -39,6 +50,18 @@ public final class CaseMind {
 
 	private static final double LEARNING_RATE = 0.01;
 	private static final double GREEDY_RATE = 0.0001;
+	private static final int REPLAY_CAPACITY = 10000;
+	private static final int REPLAY_BATCH_SIZE = 32;
+	private static final int LEARNER_QUEUE_CAPACITY = 1024;
+	private static final int LEARNER_PUBLISH_INTERVAL = 10;
+
+	/**
+	 * Constructs a mind with no sensors or actuators, whose memory is trained
+	 * with the {@link Optimizer.Adam Adam} optimizer.
+	 */
+	public CaseMind() {
+		memory.setOptimizer(new Optimizer.Adam());
+	}
 
 	public void addActuator(Actuator<? extends Enum<?>> actuator) {
 		if (actuator == null)
@@ -47,6 +70,7 @@ public final class CaseMind {
 		if (trackedActuators.containsKey(actuator))
 			return;
 		trackedActuators.put(actuator, new HashMap<Enum<?>, Integer>());
+		plan = null;
 	}
 
 	public void addSensor(Sensor<? extends Enum<?>> sensor) {
@@ -56,84 +80,251 @@ public final class CaseMind {
 		if (trackedSensors.containsKey(sensor))
 			return;
 		trackedSensors.put(sensor, new HashMap<Enum<?>, Integer>());
+		plan = null;
 	}
 
 	private double[] previousInputs;
 	private int[] previouslyPerformedActions;
 
-	public void act() {
-		double[] inputs = new double[memory.getInputCount()];
-		for (Entry<Sensor<? extends Enum<?>>, HashMap<Enum<?>, Integer>> sensorMap : trackedSensors
-				.entrySet()) {
-			EnumMap<? extends Enum<?>, Double> sensations = sensorMap.getKey()
-					.fetchSensations();
-			for (Entry<? extends Enum<?>, Double> sensation : sensations
-					.entrySet()) {
-				if (!sensorMap.getValue().containsKey(sensation.getKey())) {
-					sensorMap.getValue().put(sensation.getKey(),
-							memory.addInput());
-					memory.addHiddenNode();
-					inputs = Arrays.copyOf(inputs, inputs.length + 1);
-				}
-				inputs[sensorMap.getValue().get(sensation.getKey())] = sensation
-						.getValue();
-			}
+	/**
+	 * The compiled plan of the tracked sensors, actuators and channels, or null
+	 * if it must be compiled before the next tick.
+	 */
+	private TickPlan plan;
+
+	/**
+	 * The learner training the memory in the background, or null if the
+	 * memory is trained synchronously by {@link #reinforce(double)}.
+	 */
+	private AsynchronousLearner learner;
+
+	/**
+	 * The network action reinforcements were last predicted with: the memory,
+	 * or one of the learner's policies.
+	 */
+	private QNetwork predictor = memory;
+
+	/**
+	 * The context in which the predictor predicts action reinforcements.
+	 */
+	private InferenceContext context = memory.newInferenceContext();
+
+	/**
+	 * The network action reinforcements were predicted with before the
+	 * predictor, and its context. The learner publishes its two policies in
+	 * turn, so keeping the context of both avoids creating one per policy.
+	 */
+	private QNetwork previousPredictor;
+	private InferenceContext previousContext;
+
+	/**
+	 * The telemetry recording the ticks of this mind, or null if telemetry is
+	 * disabled.
+	 */
+	private Telemetry telemetry;
+
+	/**
+	 * Returns the telemetry recording the ticks of this mind.
+	 * 
+	 * @return this mind's telemetry, or null if telemetry is disabled
+	 */
+	public Telemetry getTelemetry() {
+		return telemetry;
+	}
+
+	/**
+	 * Sets the telemetry recording the ticks of this mind. While telemetry is
+	 * disabled, ticks are neither timed nor recorded.
+	 * 
+	 * @param telemetry
+	 *            the telemetry recording this mind's ticks, or null to disable
+	 *            telemetry
+	 */
+	public void setTelemetry(Telemetry telemetry) {
+		this.telemetry = telemetry;
+	}
+
+	/**
+	 * Returns whether this mind's memory is trained in the background.
+	 * 
+	 * @return true if training is asynchronous
+	 * @see #setAsynchronous(boolean)
+	 */
+	public boolean isAsynchronous() {
+		return learner != null;
+	}
+
+	/**
+	 * Sets whether this mind's memory is trained in the background. While
+	 * training is asynchronous, {@link #reinforce(double)} only queues the
+	 * reinforced transition for an {@link AsynchronousLearner}, which trains
+	 * the memory on its own thread, and {@link #act()} predicts with the
+	 * learner's latest published copy of the memory. The time taken to act and
+	 * be reinforced is then independent of the cost of training, at the cost
+	 * of acting on weights up to {@value #LEARNER_PUBLISH_INTERVAL} training
+	 * updates old.
+	 * <p>
+	 * Making training synchronous again stops the learner, once it has
+	 * finished its current training update.
+	 * 
+	 * @param asynchronous
+	 *            whether training is asynchronous
+	 * @throws IllegalStateException
+	 *             if training is made synchronous after the learner was
+	 *             stopped by an error, which is the cause of the exception
+	 */
+	public void setAsynchronous(boolean asynchronous)
+			throws IllegalStateException {
+		if (asynchronous == (learner != null))
+			return;
+		if (asynchronous)
+			learner = new AsynchronousLearner(memory, experience,
+					LEARNER_QUEUE_CAPACITY, REPLAY_BATCH_SIZE, 0,
+					LEARNING_RATE, LEARNER_PUBLISH_INTERVAL);
+		else {
+			AsynchronousLearner learner = this.learner;
+			this.learner = null;
+			learner.close();
 		}
-		previousInputs = inputs;
+	}
 
-		for (Entry<Actuator<? extends Enum<?>>, HashMap<Enum<?>, Integer>> actuatorMap : trackedActuators
-				.entrySet()) {
-			ArrayList<Enum<?>> availableActions = new ArrayList<Enum<?>>();
-			availableActions.addAll(actuatorMap.getKey().getActionSet());
-			if (availableActions.size() == 0)
-				continue;
-			for (int i = 0; i < availableActions.size(); i++) {
-				if (!actuatorMap.getValue()
-						.containsKey(availableActions.get(i))) {
-					actuatorMap.getValue().put(availableActions.get(i),
-							memory.addAction());
-					memory.addHiddenNode();
-				}
-			}
+	/**
+	 * The buffer the sensations of each tick are written into, holding one
+	 * value per input of the memory.
+	 */
+	private double[] inputs = new double[0];
+
+	/**
+	 * The buffer the predicted reinforcements of each tick are stored in,
+	 * holding one value per action of the memory.
+	 */
+	private double[] outputs = new double[0];
+
+	/**
+	 * Fetches sensations from every tracked sensor, selects an action for
+	 * every tracked actuator that has actions available, and performs the
+	 * selected actions.
+	 * <p>
+	 * Sensations are written straight into a reused input buffer according to
+	 * a compiled {@link TickPlan}, which is only rebuilt when a sensor or
+	 * actuator is added or reports a channel or action it has not reported
+	 * before. A tick that does not rebuild the plan allocates nothing in this
+	 * mind, provided that the sensors and actuators override
+	 * {@link Sensor#fetchSensations(double[], int[])} and
+	 * {@link Actuator#fetchAvailableActions(int[])}.
+	 * <p>
+	 * If telemetry is enabled, the tick is recorded once its actions have been
+	 * selected, before they are performed.
+	 * 
+	 * @throws IllegalStateException
+	 *             if an actuator's available actions include an action that is
+	 *             not in its {@link Actuator#getActionSet() action set}
+	 */
+	public void act() throws IllegalStateException {
+		Telemetry telemetry = this.telemetry;
+		long start = (telemetry == null) ? 0 : System.nanoTime();
+		TickPlan plan = this.plan;
+		if (plan == null || !plan.fetchSensations(inputs))
+			plan = compile(true);
+		previousInputs = inputs;
 
+		if (!plan.fetchAvailableActions()) {
+			plan = compile(false);
+			if (!plan.fetchAvailableActions())
+				throw new IllegalStateException();
 		}
 
-		HashMap<Actuator<? extends Enum<?>>, Enum<?>> selectedActions = new HashMap<Actuator<? extends Enum<?>>, Enum<?>>();
-		previouslyPerformedActions = new int[0];
-		double[] outputs = memory.predictActionReinforcements(inputs);
-		System.out.print("<");
-		for (double output : outputs)
-			System.out.print(output + ", ");
-		System.out.println(">");
-		for (Entry<Actuator<? extends Enum<?>>, HashMap<Enum<?>, Integer>> actuatorMap : trackedActuators
-				.entrySet()) {
-			ArrayList<Enum<?>> availableActions = new ArrayList<Enum<?>>();
-			availableActions.addAll(actuatorMap.getKey().getActionSet());
-			if (availableActions.size() == 0)
-				continue;
-			double[] predictedReinforcements = new double[availableActions
-					.size()];
-			for (int i = 0; i < availableActions.size(); i++) {
-				predictedReinforcements[i] = outputs[actuatorMap.getValue()
-						.get(availableActions.get(i))];
+		AsynchronousLearner learner = this.learner;
+		QNetwork predictor = (learner == null) ? memory : learner
+				.acquirePolicy();
+		try {
+			if (predictor != this.predictor) {
+				InferenceContext predictorContext = previousContext;
+				if (predictor != previousPredictor)
+					predictorContext = predictor.newInferenceContext();
+				previousPredictor = this.predictor;
+				previousContext = context;
+				this.predictor = predictor;
+				context = predictorContext;
 			}
-			Enum<?> selectedAction = availableActions.get(executive
-					.selectAction(predictedReinforcements));
-			selectedActions.put(actuatorMap.getKey(), selectedAction);
-			previouslyPerformedActions = Arrays.copyOf(
-					previouslyPerformedActions,
-					previouslyPerformedActions.length + 1);
-			previouslyPerformedActions[previouslyPerformedActions.length - 1] = actuatorMap
-					.getValue().get(selectedAction);
+			predictor.predictActionReinforcements(context, inputs, outputs);
+		} finally {
+			if (learner != null)
+				learner.releasePolicy(predictor);
 		}
-
-		for (Entry<Actuator<? extends Enum<?>>, Enum<?>> action : selectedActions
-				.entrySet())
-			action.getKey().performAction(action.getValue());
+		previouslyPerformedActions = plan.selectActions(executive, outputs);
+		if (telemetry != null)
+			telemetry.recordTick(inputs, outputs, outputs.length,
+					previouslyPerformedActions,
+					previouslyPerformedActions.length, System.nanoTime()
+							- start);
+		plan.performActions();
 
 		impulseController.setImpulseResistance(impulseController
 				.getImpulseResistance() * (1.0 - GREEDY_RATE));
-		System.out.println(impulseController.getImpulseResistance());
+	}
+
+	/**
+	 * Compiles a new tick plan from the tracked sensors and actuators, first
+	 * tracking any channels and actions they report that are not yet tracked.
+	 * The input and output buffers are resized to match the memory.
+	 * 
+	 * @param fetchSensations
+	 *            whether the sensations of the current tick are fetched from
+	 *            the sensors' maps into the input buffer while compiling
+	 * @return the new plan, which replaces the current plan
+	 */
+	private TickPlan compile(boolean fetchSensations) {
+		int sensorCount = trackedSensors.size();
+		ArrayList<EnumMap<? extends Enum<?>, Double>> sensations = new ArrayList<EnumMap<? extends Enum<?>, Double>>(
+				sensorCount);
+		// The learner, if any, trains the memory while holding its monitor
+		synchronized (memory) {
+			if (fetchSensations)
+				for (Entry<Sensor<? extends Enum<?>>, HashMap<Enum<?>, Integer>> sensorMap : trackedSensors
+						.entrySet()) {
+					EnumMap<? extends Enum<?>, Double> sensorSensations = sensorMap
+							.getKey().fetchSensations();
+					for (Enum<?> channel : sensorSensations.keySet())
+						if (!sensorMap.getValue().containsKey(channel)) {
+							sensorMap.getValue()
+									.put(channel, memory.addInput());
+							memory.addHiddenNode();
+						}
+					sensations.add(sensorSensations);
+				}
+
+			for (Entry<Actuator<? extends Enum<?>>, HashMap<Enum<?>, Integer>> actuatorMap : trackedActuators
+					.entrySet())
+				for (Enum<?> action : actuatorMap.getKey().getActionSet())
+					if (!actuatorMap.getValue().containsKey(action)) {
+						actuatorMap.getValue().put(action,
+								memory.addAction());
+						memory.addHiddenNode();
+					}
+
+			if (inputs.length != memory.getInputCount())
+				inputs = Arrays.copyOf(inputs, memory.getInputCount());
+			if (outputs.length != memory.getActionCount())
+				outputs = new double[memory.getActionCount()];
+		}
+		if (fetchSensations) {
+			Arrays.fill(inputs, 0);
+			int s = 0;
+			for (HashMap<Enum<?>, Integer> channels : trackedSensors.values())
+				for (Entry<? extends Enum<?>, Double> sensation : sensations
+						.get(s++).entrySet())
+					if (sensation.getValue() != null)
+						inputs[channels.get(sensation.getKey())] = sensation
+								.getValue();
+		}
+
+		if (learner != null)
+			learner.publish();
+		if (telemetry != null)
+			telemetry.increment(Telemetry.Counter.PLAN_COMPILES, 1);
+		plan = new TickPlan(trackedSensors, trackedActuators);
+		return plan;
 	}
 
 	/**
@@ -145,9 +336,22 @@ public final class CaseMind {
 	public void reinforce(double reinforcement) throws IllegalStateException {
 		if (previousInputs == null)
 			throw new IllegalStateException();
-		double[] targetReinforcements = new double[previouslyPerformedActions.length];
-		Arrays.fill(targetReinforcements, reinforcement);
-		memory.trainActionReinforcements(previousInputs,
-				previouslyPerformedActions, targetReinforcements, LEARNING_RATE);
+		// Each reinforcement is predicted for its own state, so transitions are
+		// recorded as final and replayed without discounting
+		Telemetry telemetry = this.telemetry;
+		long start = (telemetry == null) ? 0 : System.nanoTime();
+		int trainedCount = 0;
+		if (learner != null)
+			learner.offer(previousInputs, previouslyPerformedActions,
+					reinforcement, null);
+		else {
+			experience.record(previousInputs, previouslyPerformedActions,
+					reinforcement, null);
+			trainedCount = memory.trainFromReplay(experience,
+					REPLAY_BATCH_SIZE, 0, LEARNING_RATE);
+		}
+		if (telemetry != null)
+			telemetry.recordReinforcement(reinforcement, trainedCount,
+					System.nanoTime() - start);
 	}
 }
@@ -0,0 +1,392 @@
+package caseengine.application.mind;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map.Entry;
+
+import caseengine.application.Actuator;
+import caseengine.application.Sensor;
+import caseengine.cognition.executive.BoltzmannExecutive;
+import caseengine.cognition.executive.BoltzmannExecutive.DynamicImpulseController;
+import caseengine.cognition.memory.QNetwork;
+import caseengine.cognition.memory.ReplayBuffer;
+import caseengine.neural.network.InferenceContext;
+import caseengine.neural.train.Optimizer;
+
+/**
+ * A mind shared by a number of agents, each with its own sensors and
+ * actuators, that act together in ticks. All agents predict with and learn in
+ * one {@link QNetwork}: in each tick, the sensations of every agent are pulled
+ * through the network as a single batch, and the transitions of every agent
+ * are recorded in one replay buffer, from which the network is trained once
+ * per tick.
+ * <p>
+ * The agents are expected to be alike. The {@code i}th sensor of every agent
+ * shares its inputs with the {@code i}th sensor of every other agent, and so
+ * must report the same type of channels; likewise the {@code i}th actuator of
+ * every agent shares its actions. An agent with fewer sensors or actuators
+ * than others simply leaves the remaining inputs at 0 and actions unused.
+ * <p>
+ * Like {@link CaseMind}, a multi-agent mind compiles each agent's sensors and
+ * actuators into a tick plan, which is only rebuilt when the agent's sensors,
+ * actuators, channels or actions change.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class MultiAgentMind {
+
+	private QNetwork memory = new QNetwork(1);
+
+	/**
+	 * The most recent transitions of every agent, replayed in every training
+	 * update.
+	 */
+	private ReplayBuffer experience = new ReplayBuffer(REPLAY_CAPACITY, 0, 0,
+			false, 0.6, 0.4);
+	private DynamicImpulseController impulseController = new DynamicImpulseController(
+			1);
+	private BoltzmannExecutive executive = new BoltzmannExecutive(
+			impulseController);
+
+	/**
+	 * The input index of each tracked channel of the sensors at each position
+	 * of the agents.
+	 */
+	private final ArrayList<HashMap<Enum<?>, Integer>> trackedChannels = new ArrayList<HashMap<Enum<?>, Integer>>();
+
+	/**
+	 * The output index of each tracked action of the actuators at each
+	 * position of the agents.
+	 */
+	private final ArrayList<HashMap<Enum<?>, Integer>> trackedActions = new ArrayList<HashMap<Enum<?>, Integer>>();
+
+	/**
+	 * The agents of this mind.
+	 */
+	private final ArrayList<Agent> agents = new ArrayList<Agent>();
+
+	/**
+	 * The context in which the memory predicts action reinforcements.
+	 */
+	private final InferenceContext context = memory.newInferenceContext();
+
+	/**
+	 * The input buffer of each agent.
+	 */
+	private double[][] inputs = new double[0][];
+
+	/**
+	 * The predicted reinforcements buffer of each agent.
+	 */
+	private double[][] outputs = new double[0][];
+
+	/**
+	 * The number of reinforcements recorded since the last training update.
+	 */
+	private int reinforcementCount;
+
+	private static final double LEARNING_RATE = 0.01;
+	private static final double GREEDY_RATE = 0.0001;
+	private static final int REPLAY_CAPACITY = 100000;
+	private static final int REPLAY_BATCH_SIZE = 32;
+	private static final int MAXIMUM_BATCH_SIZE = 1024;
+
+	/**
+	 * Constructs a mind with no agents, whose memory is trained with the
+	 * {@link Optimizer.Adam Adam} optimizer.
+	 */
+	public MultiAgentMind() {
+		memory.setOptimizer(new Optimizer.Adam());
+	}
+
+	/**
+	 * Adds a new agent, with no sensors or actuators, to this mind.
+	 * 
+	 * @return the new agent
+	 */
+	public Agent addAgent() {
+		Agent agent = new Agent(agents.size());
+		agents.add(agent);
+		inputs = Arrays.copyOf(inputs, agents.size());
+		inputs[agent.index] = new double[memory.getInputCount()];
+		outputs = Arrays.copyOf(outputs, agents.size());
+		outputs[agent.index] = new double[memory.getActionCount()];
+		return agent;
+	}
+
+	/**
+	 * Returns the number of agents of this mind.
+	 * 
+	 * @return the agent count
+	 */
+	public int getAgentCount() {
+		return agents.size();
+	}
+
+	/**
+	 * Returns the agent with the specified index.
+	 * 
+	 * @param index
+	 *            the index of the agent, in the order the agents were added
+	 * @return the agent
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code index} is not in the range
+	 *             {@code [0, getAgentCount())}
+	 */
+	public Agent getAgent(int index) throws IndexOutOfBoundsException {
+		return agents.get(index);
+	}
+
+	/**
+	 * Fetches sensations from the sensors of every agent, predicts the
+	 * reinforcements of every agent's actions in one batch, selects an action
+	 * for every actuator that has actions available, and performs the
+	 * selected actions agent by agent. If any agent has been reinforced since
+	 * the last tick, the memory is then trained on a batch replayed from the
+	 * experience of all agents, with {@value #REPLAY_BATCH_SIZE} transitions
+	 * per reinforcement (up to {@value #MAXIMUM_BATCH_SIZE}).
+	 * 
+	 * @throws IllegalStateException
+	 *             if an actuator's available actions include an action that is
+	 *             not in its {@link Actuator#getActionSet() action set}, or if
+	 *             the sensors or actuators at the same position of two agents
+	 *             report different types of channels or actions
+	 */
+	public void act() throws IllegalStateException {
+		for (Agent agent : agents) {
+			if (agent.plan == null
+					|| !agent.plan.fetchSensations(inputs[agent.index]))
+				compile(agent, true);
+			agent.previousInputs = inputs[agent.index];
+		}
+		for (Agent agent : agents)
+			if (!agent.plan.fetchAvailableActions()) {
+				compile(agent, false);
+				if (!agent.plan.fetchAvailableActions())
+					throw new IllegalStateException();
+			}
+
+		memory.predictActionReinforcementsBatch(context, inputs, outputs);
+		for (Agent agent : agents)
+			agent.previouslyPerformedActions = agent.plan.selectActions(
+					executive, outputs[agent.index]);
+		for (Agent agent : agents)
+			agent.plan.performActions();
+
+		impulseController.setImpulseResistance(impulseController
+				.getImpulseResistance() * (1.0 - GREEDY_RATE));
+		if (reinforcementCount > 0) {
+			memory.trainFromReplay(experience, Math.min(REPLAY_BATCH_SIZE
+					* reinforcementCount, MAXIMUM_BATCH_SIZE), 0,
+					LEARNING_RATE);
+			reinforcementCount = 0;
+		}
+	}
+
+	/**
+	 * Compiles a new tick plan for the specified agent, first tracking any
+	 * channels and actions its sensors and actuators report that are not yet
+	 * tracked. The input and output buffers of every agent are resized to
+	 * match the memory, keeping their values.
+	 * 
+	 * @param agent
+	 *            the agent whose plan is compiled
+	 * @param fetchSensations
+	 *            whether the sensations of the current tick are fetched from
+	 *            the sensors' maps into the agent's input buffer while
+	 *            compiling
+	 * @throws IllegalStateException
+	 *             if a sensor or actuator reports a different type of channel
+	 *             or action than the sensors or actuators at the same position
+	 *             of other agents
+	 */
+	private void compile(Agent agent, boolean fetchSensations)
+			throws IllegalStateException {
+		while (trackedChannels.size() < agent.sensors.size())
+			trackedChannels.add(new HashMap<Enum<?>, Integer>());
+		while (trackedActions.size() < agent.actuators.size())
+			trackedActions.add(new HashMap<Enum<?>, Integer>());
+
+		ArrayList<EnumMap<? extends Enum<?>, Double>> sensations = new ArrayList<EnumMap<? extends Enum<?>, Double>>(
+				agent.sensors.size());
+		if (fetchSensations)
+			for (int s = 0; s < agent.sensors.size(); s++) {
+				EnumMap<? extends Enum<?>, Double> sensorSensations = agent.sensors
+						.get(s).fetchSensations();
+				for (Enum<?> channel : sensorSensations.keySet())
+					track(trackedChannels.get(s), channel, true);
+				sensations.add(sensorSensations);
+			}
+		for (int a = 0; a < agent.actuators.size(); a++)
+			for (Enum<?> action : agent.actuators.get(a).getActionSet())
+				track(trackedActions.get(a), action, false);
+
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i].length != memory.getInputCount())
+				inputs[i] = Arrays.copyOf(inputs[i], memory.getInputCount());
+			if (outputs[i].length != memory.getActionCount())
+				outputs[i] = new double[memory.getActionCount()];
+		}
+		if (fetchSensations) {
+			double[] agentInputs = inputs[agent.index];
+			Arrays.fill(agentInputs, 0);
+			for (int s = 0; s < sensations.size(); s++)
+				for (Entry<? extends Enum<?>, Double> sensation : sensations
+						.get(s).entrySet())
+					if (sensation.getValue() != null)
+						agentInputs[trackedChannels.get(s).get(
+								sensation.getKey())] = sensation.getValue();
+		}
+
+		LinkedHashMap<Sensor<? extends Enum<?>>, HashMap<Enum<?>, Integer>> sensorMaps = new LinkedHashMap<Sensor<? extends Enum<?>>, HashMap<Enum<?>, Integer>>();
+		for (int s = 0; s < agent.sensors.size(); s++)
+			sensorMaps.put(agent.sensors.get(s), trackedChannels.get(s));
+		LinkedHashMap<Actuator<? extends Enum<?>>, HashMap<Enum<?>, Integer>> actuatorMaps = new LinkedHashMap<Actuator<? extends Enum<?>>, HashMap<Enum<?>, Integer>>();
+		for (int a = 0; a < agent.actuators.size(); a++)
+			actuatorMaps.put(agent.actuators.get(a), trackedActions.get(a));
+		agent.plan = new TickPlan(sensorMaps, actuatorMaps);
+	}
+
+	/**
+	 * Tracks the specified channel or action, if it is not already tracked,
+	 * by adding an input or action to the memory.
+	 * 
+	 * @param tracked
+	 *            the tracked channels or actions at a position of the agents
+	 * @param constant
+	 *            the channel or action
+	 * @param input
+	 *            whether {@code constant} is a channel, rather than an action
+	 * @throws IllegalStateException
+	 *             if {@code constant} is of a different type than those
+	 *             already tracked
+	 */
+	private void track(HashMap<Enum<?>, Integer> tracked, Enum<?> constant,
+			boolean input) throws IllegalStateException {
+		if (tracked.containsKey(constant))
+			return;
+		for (Enum<?> trackedConstant : tracked.keySet())
+			if (trackedConstant.getDeclaringClass() != constant
+					.getDeclaringClass())
+				throw new IllegalStateException();
+		tracked.put(constant, input ? memory.addInput() : memory.addAction());
+		memory.addHiddenNode();
+	}
+
+	/**
+	 * An agent of a {@link MultiAgentMind}, with its own sensors and
+	 * actuators.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public final class Agent {
+
+		/**
+		 * The index of this agent in its mind.
+		 */
+		private final int index;
+
+		/**
+		 * The sensors of this agent, in the order they were added.
+		 */
+		private final ArrayList<Sensor<? extends Enum<?>>> sensors = new ArrayList<Sensor<? extends Enum<?>>>();
+
+		/**
+		 * The actuators of this agent, in the order they were added.
+		 */
+		private final ArrayList<Actuator<? extends Enum<?>>> actuators = new ArrayList<Actuator<? extends Enum<?>>>();
+
+		/**
+		 * The compiled plan of this agent's sensors and actuators, or null if
+		 * it must be compiled before the next tick.
+		 */
+		private TickPlan plan;
+
+		private double[] previousInputs;
+		private int[] previouslyPerformedActions;
+
+		/**
+		 * Constructs an agent with the specified index.
+		 * 
+		 * @param index
+		 *            the index of the agent in its mind
+		 */
+		private Agent(int index) {
+			this.index = index;
+		}
+
+		/**
+		 * Returns the index of this agent in its mind.
+		 * 
+		 * @return the index of this agent, in the order the agents were added
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		/**
+		 * Adds the specified sensor to this agent, sharing its inputs with the
+		 * sensors at the same position of the other agents.
+		 * 
+		 * @param sensor
+		 *            the sensor
+		 * @throws NullPointerException
+		 *             if {@code sensor} is null
+		 */
+		public void addSensor(Sensor<? extends Enum<?>> sensor)
+				throws NullPointerException {
+			if (sensor == null)
+				throw new NullPointerException();
+
+			if (sensors.contains(sensor))
+				return;
+			sensors.add(sensor);
+			plan = null;
+		}
+
+		/**
+		 * Adds the specified actuator to this agent, sharing its actions with
+		 * the actuators at the same position of the other agents.
+		 * 
+		 * @param actuator
+		 *            the actuator
+		 * @throws NullPointerException
+		 *             if {@code actuator} is null
+		 */
+		public void addActuator(Actuator<? extends Enum<?>> actuator)
+				throws NullPointerException {
+			if (actuator == null)
+				throw new NullPointerException();
+
+			if (actuators.contains(actuator))
+				return;
+			actuators.add(actuator);
+			plan = null;
+		}
+
+		/**
+		 * Records the reinforcement of the actions this agent performed in the
+		 * last tick. The memory is trained on it, together with the rest of the
+		 * agents' experience, at the end of the tick (or of the next tick, if
+		 * the reinforcement is received after the tick).
+		 * 
+		 * @param reinforcement
+		 *            the reinforcement received
+		 * @throws IllegalStateException
+		 *             if the mind has not yet acted since this agent was added
+		 */
+		public void reinforce(double reinforcement)
+				throws IllegalStateException {
+			if (previousInputs == null)
+				throw new IllegalStateException();
+			experience.record(previousInputs, previouslyPerformedActions,
+					reinforcement, null);
+			reinforcementCount++;
+		}
+	}
+}
@@ -0,0 +1,718 @@
+package caseengine.application.mind;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A record of the recent ticks of a mind, with counters and latency
+ * histograms, that can be read while the mind is running.
+ * <p>
+ * The ticks are kept in a ring of fixed capacity, each slot holding a
+ * {@link Record} of a tick: a hash of the tick's inputs, the predicted
+ * reinforcement of each action (up to the ring's value width), the actions
+ * performed (up to its action width), the reinforcement received and the
+ * latency of the tick. Once the ring is full, each tick overwrites the oldest.
+ * <p>
+ * Telemetry is written by the single thread running its mind, without locks
+ * or allocation, and may be read by any number of other threads at the same
+ * time. Each slot carries the number of the tick it holds, which is
+ * invalidated while the slot is being written, so a reader copying a slot can
+ * tell whether its copy is complete and consistent.
+ * <p>
+ * A mind without telemetry does not measure or record its ticks, so telemetry
+ * costs nothing unless it is enabled.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class Telemetry {
+
+	/**
+	 * The events counted by telemetry.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public enum Counter {
+
+		/**
+		 * The compilations of a mind's tick plan, which happen when sensors,
+		 * actuators, channels or actions are added.
+		 */
+		PLAN_COMPILES,
+
+		/**
+		 * The reinforcements received.
+		 */
+		REINFORCEMENTS,
+
+		/**
+		 * The samples trained on from replayed experience.
+		 */
+		TRAINED_SAMPLES;
+	}
+
+	/**
+	 * The number of ticks held in the ring.
+	 */
+	private final int capacity;
+
+	/**
+	 * The number of predicted reinforcements held in each record.
+	 */
+	private final int valueWidth;
+
+	/**
+	 * The number of performed actions held in each record.
+	 */
+	private final int actionWidth;
+
+	/**
+	 * The number of the tick held in each slot, or -1 if the slot is empty or
+	 * being written.
+	 */
+	private final AtomicLongArray ticks;
+
+	/**
+	 * The inputs hash, value count, action count, latency and reinforcement
+	 * bits of each slot, {@link #FIELD_COUNT} per slot.
+	 */
+	private final AtomicLongArray fields;
+
+	/**
+	 * The predicted reinforcement bits of each slot, {@link #valueWidth} per
+	 * slot.
+	 */
+	private final AtomicLongArray values;
+
+	/**
+	 * The performed actions of each slot, {@link #actionWidth} per slot.
+	 */
+	private final AtomicLongArray actions;
+
+	/**
+	 * The number of ticks recorded.
+	 */
+	private final AtomicLong tickCount = new AtomicLong();
+
+	/**
+	 * The value of each counter, by ordinal.
+	 */
+	private final AtomicLongArray counters = new AtomicLongArray(
+			Counter.values().length);
+
+	/**
+	 * The latencies of ticks.
+	 */
+	private final Histogram tickLatencies = new Histogram();
+
+	/**
+	 * The latencies of reinforcements, including training.
+	 */
+	private final Histogram reinforcementLatencies = new Histogram();
+
+	/**
+	 * The number of fields of each slot, and the position of each field.
+	 */
+	private static final int FIELD_COUNT = 5;
+	private static final int INPUTS_HASH = 0;
+	private static final int VALUE_COUNT = 1;
+	private static final int ACTION_COUNT = 2;
+	private static final int LATENCY = 3;
+	private static final int REINFORCEMENT = 4;
+
+	/**
+	 * Constructs telemetry that holds the specified number of ticks.
+	 * 
+	 * @param capacity
+	 *            the number of most recent ticks held
+	 * @param valueWidth
+	 *            the number of predicted reinforcements held for each tick -
+	 *            those of further actions are not recorded
+	 * @param actionWidth
+	 *            the number of performed actions held for each tick - further
+	 *            actions are not recorded
+	 * @throws IllegalArgumentException
+	 *             if {@code capacity} is less than 1 or either width is
+	 *             negative
+	 */
+	public Telemetry(int capacity, int valueWidth, int actionWidth)
+			throws IllegalArgumentException {
+		if (capacity < 1 || valueWidth < 0 || actionWidth < 0)
+			throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.valueWidth = valueWidth;
+		this.actionWidth = actionWidth;
+		ticks = new AtomicLongArray(capacity);
+		for (int slot = 0; slot < capacity; slot++)
+			ticks.set(slot, -1);
+		fields = new AtomicLongArray(capacity * FIELD_COUNT);
+		values = new AtomicLongArray(capacity * valueWidth);
+		actions = new AtomicLongArray(capacity * actionWidth);
+	}
+
+	/**
+	 * Returns the number of ticks held by this telemetry.
+	 * 
+	 * @return the capacity of the ring
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of predicted reinforcements held for each tick.
+	 * 
+	 * @return the value width of the records
+	 */
+	public int getValueWidth() {
+		return valueWidth;
+	}
+
+	/**
+	 * Returns the number of performed actions held for each tick.
+	 * 
+	 * @return the action width of the records
+	 */
+	public int getActionWidth() {
+		return actionWidth;
+	}
+
+	/**
+	 * Returns the number of ticks recorded. The most recent tick is numbered
+	 * one less than this.
+	 * 
+	 * @return the number of ticks recorded
+	 */
+	public long getTickCount() {
+		return tickCount.get();
+	}
+
+	/**
+	 * Returns the value of the specified counter.
+	 * 
+	 * @param counter
+	 *            the counter
+	 * @return the number of events counted
+	 */
+	public long getCount(Counter counter) {
+		return counters.get(counter.ordinal());
+	}
+
+	/**
+	 * Returns the histogram of the latencies of ticks, measured from fetching
+	 * sensations to selecting actions.
+	 * 
+	 * @return the tick latencies in nanoseconds
+	 */
+	public Histogram getTickLatencies() {
+		return tickLatencies;
+	}
+
+	/**
+	 * Returns the histogram of the latencies of reinforcements, including
+	 * training.
+	 * 
+	 * @return the reinforcement latencies in nanoseconds
+	 */
+	public Histogram getReinforcementLatencies() {
+		return reinforcementLatencies;
+	}
+
+	/**
+	 * Creates a record large enough to hold any tick of this telemetry.
+	 * 
+	 * @return a new record to be filled by {@link #read(long, Record)}
+	 */
+	public Record newRecord() {
+		return new Record(valueWidth, actionWidth);
+	}
+
+	/**
+	 * Copies the record of the specified tick, if it is still held.
+	 * 
+	 * @param tick
+	 *            the number of the tick
+	 * @param record
+	 *            the record the tick is copied into, created by
+	 *            {@link #newRecord()}
+	 * @return {@code true} if the tick was copied, {@code false} if it has not
+	 *         been recorded or has been overwritten (in which case the
+	 *         contents of {@code record} are unspecified)
+	 * @throws NullPointerException
+	 *             if {@code record} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code record} is too small for the widths of this
+	 *             telemetry
+	 */
+	public boolean read(long tick, Record record) throws NullPointerException,
+			IllegalArgumentException {
+		if (record.values.length < valueWidth
+				|| record.actions.length < actionWidth)
+			throw new IllegalArgumentException();
+		if (tick < 0)
+			return false;
+		int slot = (int) (tick % capacity);
+		if (ticks.get(slot) != tick)
+			return false;
+		int field = slot * FIELD_COUNT;
+		record.tick = tick;
+		record.inputsHash = (int) fields.get(field + INPUTS_HASH);
+		record.valueCount = (int) fields.get(field + VALUE_COUNT);
+		record.actionCount = (int) fields.get(field + ACTION_COUNT);
+		record.latency = fields.get(field + LATENCY);
+		record.reinforcement = Double.longBitsToDouble(fields.get(field
+				+ REINFORCEMENT));
+		int valueCount = Math.min(Math.max(record.valueCount, 0), valueWidth);
+		for (int i = 0; i < valueCount; i++)
+			record.values[i] = Double.longBitsToDouble(values.get(slot
+					* valueWidth + i));
+		int actionCount = Math.min(Math.max(record.actionCount, 0),
+				actionWidth);
+		for (int i = 0; i < actionCount; i++)
+			record.actions[i] = (int) actions.get(slot * actionWidth + i);
+		return ticks.get(slot) == tick;
+	}
+
+	/**
+	 * Writes a summary of the counters and histograms of this telemetry, and
+	 * the records of the specified number of most recent ticks, to the
+	 * specified output.
+	 * 
+	 * @param out
+	 *            the output the summary is written to
+	 * @param recordCount
+	 *            the number of most recent ticks written
+	 * @throws NullPointerException
+	 *             if {@code out} is null
+	 * @throws IOException
+	 *             if an I/O error occurs while writing
+	 */
+	public void dump(Appendable out, int recordCount)
+			throws NullPointerException, IOException {
+		out.append("ticks: ").append(Long.toString(getTickCount()))
+				.append('\n');
+		for (Counter counter : Counter.values())
+			out.append(counter.name().toLowerCase(Locale.ROOT)).append(": ")
+					.append(Long.toString(getCount(counter))).append('\n');
+		out.append("tick latency: ").append(tickLatencies.toString())
+				.append('\n');
+		out.append("reinforcement latency: ")
+				.append(reinforcementLatencies.toString()).append('\n');
+		Record record = newRecord();
+		long last = getTickCount();
+		for (long tick = Math.max(last - recordCount, 0); tick < last; tick++)
+			if (read(tick, record))
+				out.append(record.toString()).append('\n');
+	}
+
+	/**
+	 * Records a tick of a mind.
+	 * 
+	 * @param inputs
+	 *            the inputs of the tick
+	 * @param reinforcements
+	 *            the predicted reinforcement of each action
+	 * @param reinforcementCount
+	 *            the number of actions
+	 * @param performedActions
+	 *            the actions performed
+	 * @param performedCount
+	 *            the number of actions performed
+	 * @param latency
+	 *            the latency of the tick in nanoseconds
+	 */
+	void recordTick(double[] inputs, double[] reinforcements,
+			int reinforcementCount, int[] performedActions, int performedCount,
+			long latency) {
+		long tick = tickCount.get();
+		int slot = (int) (tick % capacity);
+		ticks.set(slot, -1);
+		int field = slot * FIELD_COUNT;
+		fields.lazySet(field + INPUTS_HASH, Arrays.hashCode(inputs));
+		fields.lazySet(field + VALUE_COUNT, reinforcementCount);
+		fields.lazySet(field + ACTION_COUNT, performedCount);
+		fields.lazySet(field + LATENCY, latency);
+		fields.lazySet(field + REINFORCEMENT,
+				Double.doubleToRawLongBits(Double.NaN));
+		int valueCount = Math.min(reinforcementCount, valueWidth);
+		for (int i = 0; i < valueCount; i++)
+			values.lazySet(slot * valueWidth + i,
+					Double.doubleToRawLongBits(reinforcements[i]));
+		int actionCount = Math.min(performedCount, actionWidth);
+		for (int i = 0; i < actionCount; i++)
+			actions.lazySet(slot * actionWidth + i, performedActions[i]);
+		ticks.lazySet(slot, tick);
+		tickCount.lazySet(tick + 1);
+		tickLatencies.record(latency);
+	}
+
+	/**
+	 * Records a reinforcement of the most recent tick of a mind.
+	 * 
+	 * @param reinforcement
+	 *            the reinforcement received
+	 * @param trainedCount
+	 *            the number of samples trained on
+	 * @param latency
+	 *            the latency of the reinforcement in nanoseconds
+	 */
+	void recordReinforcement(double reinforcement, int trainedCount,
+			long latency) {
+		long tick = tickCount.get() - 1;
+		if (tick >= 0) {
+			int slot = (int) (tick % capacity);
+			ticks.set(slot, -1);
+			fields.lazySet(slot * FIELD_COUNT + REINFORCEMENT,
+					Double.doubleToRawLongBits(reinforcement));
+			ticks.lazySet(slot, tick);
+		}
+		increment(Counter.REINFORCEMENTS, 1);
+		increment(Counter.TRAINED_SAMPLES, trainedCount);
+		reinforcementLatencies.record(latency);
+	}
+
+	/**
+	 * Adds to the specified counter.
+	 * 
+	 * @param counter
+	 *            the counter
+	 * @param count
+	 *            the number of events counted
+	 */
+	void increment(Counter counter, long count) {
+		int index = counter.ordinal();
+		counters.lazySet(index, counters.get(index) + count);
+	}
+
+	/**
+	 * A copy of the record of a tick.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class Record {
+
+		/**
+		 * The number of the tick.
+		 */
+		long tick;
+
+		/**
+		 * The hash of the tick's inputs.
+		 */
+		int inputsHash;
+
+		/**
+		 * The number of actions whose reinforcement was predicted.
+		 */
+		int valueCount;
+
+		/**
+		 * The number of actions performed.
+		 */
+		int actionCount;
+
+		/**
+		 * The latency of the tick in nanoseconds.
+		 */
+		long latency;
+
+		/**
+		 * The reinforcement received after the tick, or NaN.
+		 */
+		double reinforcement;
+
+		/**
+		 * The predicted reinforcement of each action held.
+		 */
+		final double[] values;
+
+		/**
+		 * The index of each performed action held.
+		 */
+		final int[] actions;
+
+		/**
+		 * Constructs a record with room for the specified numbers of values
+		 * and actions.
+		 * 
+		 * @param valueWidth
+		 *            the number of predicted reinforcements held
+		 * @param actionWidth
+		 *            the number of performed actions held
+		 */
+		Record(int valueWidth, int actionWidth) {
+			values = new double[valueWidth];
+			actions = new int[actionWidth];
+		}
+
+		/**
+		 * Returns the number of the tick.
+		 * 
+		 * @return the tick number
+		 */
+		public long getTick() {
+			return tick;
+		}
+
+		/**
+		 * Returns the hash of the tick's inputs, by which ticks in the same
+		 * state can be recognised.
+		 * 
+		 * @return the {@link Arrays#hashCode(double[]) hash} of the inputs
+		 */
+		public int getInputsHash() {
+			return inputsHash;
+		}
+
+		/**
+		 * Returns the number of actions whose reinforcement was predicted,
+		 * which may exceed the number held.
+		 * 
+		 * @return the number of predicted reinforcements
+		 */
+		public int getValueCount() {
+			return valueCount;
+		}
+
+		/**
+		 * Returns the predicted reinforcement of the specified action.
+		 * 
+		 * @param action
+		 *            the index of the action
+		 * @return the predicted reinforcement
+		 * @throws IndexOutOfBoundsException
+		 *             if the reinforcement of {@code action} is not held
+		 */
+		public double getValue(int action) throws IndexOutOfBoundsException {
+			if (action < 0 || action >= Math.min(valueCount, values.length))
+				throw new IndexOutOfBoundsException();
+			return values[action];
+		}
+
+		/**
+		 * Returns the number of actions performed, which may exceed the number
+		 * held.
+		 * 
+		 * @return the number of performed actions
+		 */
+		public int getActionCount() {
+			return actionCount;
+		}
+
+		/**
+		 * Returns the index of the specified performed action.
+		 * 
+		 * @param index
+		 *            the position of the action among those performed
+		 * @return the index of the performed action
+		 * @throws IndexOutOfBoundsException
+		 *             if the action at {@code index} is not held
+		 */
+		public int getAction(int index) throws IndexOutOfBoundsException {
+			if (index < 0 || index >= Math.min(actionCount, actions.length))
+				throw new IndexOutOfBoundsException();
+			return actions[index];
+		}
+
+		/**
+		 * Returns the reinforcement received after the tick.
+		 * 
+		 * @return the reinforcement, or NaN if none has been received
+		 */
+		public double getReinforcement() {
+			return reinforcement;
+		}
+
+		/**
+		 * Returns the latency of the tick, from fetching sensations to
+		 * selecting actions.
+		 * 
+		 * @return the latency in nanoseconds
+		 */
+		public long getLatency() {
+			return latency;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder string = new StringBuilder();
+			string.append(tick).append(": inputs ")
+					.append(Integer.toHexString(inputsHash)).append(" values [");
+			for (int i = 0; i < Math.min(valueCount, values.length); i++)
+				string.append((i == 0) ? "" : ", ").append(values[i]);
+			string.append("] actions [");
+			for (int i = 0; i < Math.min(actionCount, actions.length); i++)
+				string.append((i == 0) ? "" : ", ").append(actions[i]);
+			return string.append("] reinforcement ").append(reinforcement)
+					.append(" latency ").append(latency).append("ns")
+					.toString();
+		}
+	}
+
+	/**
+	 * A histogram of non-negative values, such as latencies, in buckets whose
+	 * bounds are powers of 2. Bucket 0 counts the value 0, and each bucket
+	 * {@code i > 0} counts the values from {@code 2^(i-1)} to
+	 * {@code 2^i - 1}. A histogram is written by a single thread and may be
+	 * read by any thread.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class Histogram {
+
+		/**
+		 * The number of buckets of a histogram.
+		 */
+		public static final int BUCKET_COUNT = 64;
+
+		/**
+		 * The number of values recorded in each bucket.
+		 */
+		private final AtomicLongArray buckets = new AtomicLongArray(
+				BUCKET_COUNT);
+
+		/**
+		 * The number of values recorded.
+		 */
+		private final AtomicLong count = new AtomicLong();
+
+		/**
+		 * The sum of the values recorded.
+		 */
+		private final AtomicLong sum = new AtomicLong();
+
+		/**
+		 * The largest value recorded.
+		 */
+		private final AtomicLong maximum = new AtomicLong();
+
+		/**
+		 * Constructs an empty histogram.
+		 */
+		Histogram() {
+		}
+
+		/**
+		 * Records a value. Negative values are recorded as 0.
+		 * 
+		 * @param value
+		 *            the value
+		 */
+		void record(long value) {
+			value = Math.max(value, 0);
+			int bucket = getBucket(value);
+			buckets.lazySet(bucket, buckets.get(bucket) + 1);
+			sum.lazySet(sum.get() + value);
+			if (value > maximum.get())
+				maximum.lazySet(value);
+			count.lazySet(count.get() + 1);
+		}
+
+		/**
+		 * Returns the number of values recorded.
+		 * 
+		 * @return the count of this histogram
+		 */
+		public long getCount() {
+			return count.get();
+		}
+
+		/**
+		 * Returns the number of values recorded in the specified bucket.
+		 * 
+		 * @param bucket
+		 *            the index of the bucket
+		 * @return the count of the bucket
+		 * @throws IndexOutOfBoundsException
+		 *             if {@code bucket} is not in the range
+		 *             {@code [0, BUCKET_COUNT)}
+		 */
+		public long getBucketCount(int bucket) throws IndexOutOfBoundsException {
+			return buckets.get(bucket);
+		}
+
+		/**
+		 * Returns the mean of the values recorded.
+		 * 
+		 * @return the mean value, or 0 if none have been recorded
+		 */
+		public double getMean() {
+			long count = getCount();
+			return (count == 0) ? 0 : (double) sum.get() / count;
+		}
+
+		/**
+		 * Returns the largest value recorded.
+		 * 
+		 * @return the maximum value, or 0 if none have been recorded
+		 */
+		public long getMaximum() {
+			return maximum.get();
+		}
+
+		/**
+		 * Returns an upper bound of the specified quantile of the values
+		 * recorded: the upper bound of the bucket containing it.
+		 * 
+		 * @param quantile
+		 *            the quantile, such as 0.99 for the 99th percentile
+		 * @return an upper bound of the value at the quantile, or 0 if none
+		 *         have been recorded
+		 * @throws IllegalArgumentException
+		 *             if {@code quantile} is not in the range {@code [0, 1]}
+		 */
+		public long getQuantile(double quantile)
+				throws IllegalArgumentException {
+			if (!(quantile >= 0 && quantile <= 1))
+				throw new IllegalArgumentException();
+			long total = 0;
+			for (int bucket = 0; bucket < BUCKET_COUNT; bucket++)
+				total += buckets.get(bucket);
+			long rank = (long) Math.ceil(quantile * total);
+			long seen = 0;
+			for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+				seen += buckets.get(bucket);
+				if (seen >= rank && seen > 0)
+					return Math.min(getUpperBound(bucket), getMaximum());
+			}
+			return 0;
+		}
+
+		@Override
+		public String toString() {
+			return "count " + getCount() + " mean " + (long) getMean()
+					+ " p50 " + getQuantile(0.5) + " p90 " + getQuantile(0.9)
+					+ " p99 " + getQuantile(0.99) + " max " + getMaximum();
+		}
+
+		/**
+		 * Returns the bucket of the specified value.
+		 * 
+		 * @param value
+		 *            a non-negative value
+		 * @return the index of the bucket counting the value
+		 */
+		static int getBucket(long value) {
+			return Math.min(64 - Long.numberOfLeadingZeros(value),
+					BUCKET_COUNT - 1);
+		}
+
+		/**
+		 * Returns the largest value counted by the specified bucket.
+		 * 
+		 * @param bucket
+		 *            the index of the bucket
+		 * @return the upper bound of the bucket
+		 */
+		static long getUpperBound(int bucket) {
+			return (bucket == BUCKET_COUNT - 1) ? Long.MAX_VALUE
+					: (1L << bucket) - 1;
+		}
+	}
+}
@@ -0,0 +1,245 @@
+package caseengine.application.mind;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map.Entry;
+
+import caseengine.application.Actuator;
+import caseengine.application.Sensor;
+import caseengine.cognition.executive.Executive;
+
+/**
+ * The tracked sensors and actuators of a mind compiled into arrays indexed by
+ * channel and action ordinal, together with the buffers used to select
+ * actions, so that a tick neither looks up maps nor allocates. A plan is
+ * compiled whenever the tracked sensors, actuators, channels or actions
+ * change.
+ * 
+ * @author Charlie Morley
+ *
+ */
+final class TickPlan {
+
+	/**
+	 * The tracked sensors.
+	 */
+	final Sensor<?>[] sensors;
+
+	/**
+	 * The input index of each sensor's channels, by channel ordinal, or -1
+	 * for an untracked channel.
+	 */
+	final int[][] sensorInputs;
+
+	/**
+	 * The tracked actuators.
+	 */
+	final Actuator<?>[] actuators;
+
+	/**
+	 * Every action of each actuator, by ordinal.
+	 */
+	final Enum<?>[][] actions;
+
+	/**
+	 * The output index of each actuator's actions, by action ordinal, or
+	 * -1 for an untracked action.
+	 */
+	final int[][] actionOutputs;
+
+	/**
+	 * The ordinals of the actions currently available to each actuator.
+	 */
+	final int[][] availableActions;
+
+	/**
+	 * The number of actions currently available to each actuator.
+	 */
+	final int[] availableCounts;
+
+	/**
+	 * The action selected for each actuator in the current tick, or null
+	 * if the actuator has no actions available.
+	 */
+	final Enum<?>[] selectedActions;
+
+	/**
+	 * The buffer for the predicted reinforcements of an actuator's available
+	 * actions, large enough for the actuator with the most actions.
+	 */
+	final double[] predictedReinforcements;
+
+	/**
+	 * Buffers for the output indices of the actions performed in a tick, by
+	 * the number of actions performed; the last buffer collects them as
+	 * they are selected.
+	 */
+	final int[][] performedActions;
+
+	/**
+	 * Compiles a plan of the specified tracked sensors and actuators.
+	 * 
+	 * @param trackedSensors
+	 *            the tracked sensors, mapped to the input index of their
+	 *            tracked channels
+	 * @param trackedActuators
+	 *            the tracked actuators, mapped to the output index of their
+	 *            tracked actions
+	 */
+	TickPlan(
+			HashMap<Sensor<? extends Enum<?>>, HashMap<Enum<?>, Integer>> trackedSensors,
+			HashMap<Actuator<? extends Enum<?>>, HashMap<Enum<?>, Integer>> trackedActuators) {
+		sensors = new Sensor<?>[trackedSensors.size()];
+		sensorInputs = new int[sensors.length][];
+		int s = 0;
+		for (Entry<Sensor<? extends Enum<?>>, HashMap<Enum<?>, Integer>> sensorMap : trackedSensors
+				.entrySet()) {
+			sensors[s] = sensorMap.getKey();
+			sensorInputs[s++] = getIndices(sensorMap.getValue(),
+					getConstants(sensorMap.getValue()));
+		}
+
+		actuators = new Actuator<?>[trackedActuators.size()];
+		actions = new Enum<?>[actuators.length][];
+		actionOutputs = new int[actuators.length][];
+		availableActions = new int[actuators.length][];
+		availableCounts = new int[actuators.length];
+		selectedActions = new Enum<?>[actuators.length];
+		int maximumActionCount = 0;
+		int a = 0;
+		for (Entry<Actuator<? extends Enum<?>>, HashMap<Enum<?>, Integer>> actuatorMap : trackedActuators
+				.entrySet()) {
+			actuators[a] = actuatorMap.getKey();
+			actions[a] = getConstants(actuatorMap.getValue());
+			actionOutputs[a] = getIndices(actuatorMap.getValue(),
+					actions[a]);
+			availableActions[a] = new int[actions[a].length];
+			maximumActionCount = Math.max(maximumActionCount,
+					actions[a].length);
+			a++;
+		}
+		predictedReinforcements = new double[maximumActionCount];
+		performedActions = new int[actuators.length + 1][];
+		for (int i = 0; i < performedActions.length; i++)
+			performedActions[i] = new int[i];
+	}
+
+	/**
+	 * Zeroes the specified input buffer and writes the current sensations
+	 * of every sensor into it.
+	 * 
+	 * @param inputs
+	 *            the input buffer
+	 * @return {@code true} if every sensation was written, {@code false}
+	 *         if a sensor reported an untracked channel
+	 */
+	boolean fetchSensations(double[] inputs) {
+		Arrays.fill(inputs, 0);
+		for (int s = 0; s < sensors.length; s++)
+			if (!sensors[s].fetchSensations(inputs, sensorInputs[s]))
+				return false;
+		return true;
+	}
+
+	/**
+	 * Fetches the actions currently available to every actuator.
+	 * 
+	 * @return {@code true} if the available actions were fetched,
+	 *         {@code false} if an actuator reported an untracked action
+	 */
+	boolean fetchAvailableActions() {
+		for (int a = 0; a < actuators.length; a++) {
+			int count = actuators[a].fetchAvailableActions(availableActions[a]);
+			if (count < 0)
+				return false;
+			for (int i = 0; i < count; i++)
+				if (actionOutputs[a][availableActions[a][i]] < 0)
+					return false;
+			availableCounts[a] = count;
+		}
+		return true;
+	}
+
+	/**
+	 * Selects one of the available actions of every actuator that has actions
+	 * available, using the specified executive to choose between their
+	 * predicted reinforcements. The available actions must have been fetched
+	 * by {@link #fetchAvailableActions()}.
+	 * 
+	 * @param executive
+	 *            the executive selecting the actions
+	 * @param reinforcements
+	 *            the predicted reinforcement of every tracked action, by
+	 *            output index
+	 * @return the output indices of the selected actions, in one of this
+	 *         plan's buffers that is reused by later selections
+	 */
+	int[] selectActions(Executive executive, double[] reinforcements) {
+		int[] selected = performedActions[actuators.length];
+		int selectedCount = 0;
+		for (int a = 0; a < actuators.length; a++) {
+			int count = availableCounts[a];
+			if (count == 0) {
+				selectedActions[a] = null;
+				continue;
+			}
+			int[] available = availableActions[a];
+			int[] outputs = actionOutputs[a];
+			for (int i = 0; i < count; i++)
+				predictedReinforcements[i] = reinforcements[outputs[available[i]]];
+			int action = available[executive.selectAction(
+					predictedReinforcements, 0, count)];
+			selectedActions[a] = actions[a][action];
+			selected[selectedCount++] = outputs[action];
+		}
+		System.arraycopy(selected, 0, performedActions[selectedCount], 0,
+				selectedCount);
+		return performedActions[selectedCount];
+	}
+
+	/**
+	 * Performs the actions selected by the last call to
+	 * {@link #selectActions(Executive, double[])}.
+	 */
+	void performActions() {
+		for (int a = 0; a < actuators.length; a++)
+			if (selectedActions[a] != null)
+				actuators[a].performAction(selectedActions[a]);
+	}
+
+	/**
+	 * Returns every constant of the {@code enum} of the specified tracked
+	 * channels or actions, by ordinal.
+	 * 
+	 * @param tracked
+	 *            the tracked constants of an {@code enum}
+	 * @return the constants of the {@code enum}, or an empty array if none
+	 *         are tracked
+	 */
+	private static Enum<?>[] getConstants(HashMap<Enum<?>, Integer> tracked) {
+		for (Enum<?> constant : tracked.keySet())
+			return constant.getDeclaringClass().getEnumConstants();
+		return new Enum<?>[0];
+	}
+
+	/**
+	 * Returns the index of each of the specified tracked channels or
+	 * actions, by ordinal.
+	 * 
+	 * @param tracked
+	 *            the tracked constants of an {@code enum}, mapped to their
+	 *            indices
+	 * @param constants
+	 *            every constant of the {@code enum}, by ordinal
+	 * @return the index of each constant by ordinal, or -1 for an
+	 *         untracked constant
+	 */
+	private static int[] getIndices(HashMap<Enum<?>, Integer> tracked,
+			Enum<?>[] constants) {
+		int[] indices = new int[constants.length];
+		Arrays.fill(indices, -1);
+		for (Entry<Enum<?>, Integer> constant : tracked.entrySet())
+			indices[constant.getKey().ordinal()] = constant.getValue();
+		return indices;
+	}
+}
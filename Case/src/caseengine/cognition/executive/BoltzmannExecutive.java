@@ -11,8 +11,12 @@ package caseengine.cognition.executive;
  * controller returns an "impulse resistance" for use during action selection
  * (see {@link ImpulseController#getImpulseResistance() the method} for
  * information about impulse resistance). In fact, when the resistance returned
- * is less than or equal to 0, the executive generates a new instance of
- * {@link GreedyExecutive} and concedes to its selection protocol.
+ * is negligible, the executive selects greedily, as a {@link GreedyExecutive}
+ * does.
+ * <p>
+ * Exploratory selections are sampled by the current thread's {@link Sampler},
+ * whose softmax sampling cannot overflow however large the reinforcements or
+ * small the resistance.
  * <p>
  * The type is named after Ludwig Boltzmann of whose probability distribution
  * function the executive's selection protocol makes use.
@@ -28,6 +32,11 @@ public class BoltzmannExecutive extends Executive {
 	 */
 	private final ImpulseController impulseController;
 
+	/**
+	 * The impulse resistance at or below which selections are greedy.
+	 */
+	private static final double GREEDY_RESISTANCE = 0.001;
+
 	/**
 	 * Constructs a new executive with the specified impulse controller.
 	 * 
@@ -58,26 +67,55 @@ public class BoltzmannExecutive extends Executive {
 	 * resistances returned by this executive's {@link ImpulseController}.
 	 */
 	@Override
-	public int selectAction(double[] reinforcements) {
-		if (super.selectAction(reinforcements) == -1)
-			return -1;
+	public int selectAction(double[] reinforcements, int offset, int count)
+			throws IndexOutOfBoundsException {
+		return select(reinforcements, offset, count,
+				impulseController.getImpulseResistance(), Sampler.current());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * A {@code BoltzmannExecutive} reads the impulse resistance once for the
+	 * whole batch.
+	 */
+	@Override
+	public void selectActions(double[] reinforcements, int actionCount,
+			int agentCount, int[] selections) throws IndexOutOfBoundsException {
+		if (actionCount < 0 || agentCount < 0
+				|| (long) actionCount * agentCount > reinforcements.length
+				|| agentCount > selections.length)
+			throw new IndexOutOfBoundsException();
 		double impulseResistance = impulseController.getImpulseResistance();
-		if (impulseResistance <= 0.001)
-			return new GreedyExecutive().selectAction(reinforcements);
-		double[] boltzmannConstants = new double[reinforcements.length];
-		double total = 0.0;
-		for (int i = 0; i < reinforcements.length; i++) {
-			boltzmannConstants[i] = Math.pow(Math.E, reinforcements[i]
-					/ impulseResistance);
-			total += boltzmannConstants[i];
-		}
-		double choicePosition = Math.random() * total;
-		for (int i = 0; i < reinforcements.length; i++) {
-			choicePosition -= boltzmannConstants[i];
-			if (choicePosition < 0)
-				return i;
-		}
-		return reinforcements.length - 1;
+		Sampler sampler = Sampler.current();
+		for (int agent = 0; agent < agentCount; agent++)
+			selections[agent] = select(reinforcements, agent * actionCount,
+					actionCount, impulseResistance, sampler);
+	}
+
+	/**
+	 * Selects an index from the specified set of reinforcements at the
+	 * specified impulse resistance.
+	 * 
+	 * @param reinforcements
+	 *            the array holding the set of reinforcements
+	 * @param offset
+	 *            the index of the first reinforcement of the set
+	 * @param count
+	 *            the number of reinforcements in the set
+	 * @param impulseResistance
+	 *            the temperature of the Boltzmann distribution
+	 * @param sampler
+	 *            the sampler making the random choice
+	 * @return the selected index relative to {@code offset}, or -1 if the set
+	 *         is empty
+	 */
+	private static int select(double[] reinforcements, int offset, int count,
+			double impulseResistance, Sampler sampler) {
+		if (impulseResistance <= GREEDY_RESISTANCE)
+			return Sampler.argmax(reinforcements, offset, count);
+		return sampler.sampleSoftmax(reinforcements, offset, count,
+				impulseResistance);
 	}
 
 	/**
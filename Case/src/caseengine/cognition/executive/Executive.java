@@ -31,6 +31,10 @@ public abstract class Executive {
 	 * reinforcement of the specified set. <br>
 	 * An illegal set of reinforcements (for example, a set of length 0) results
 	 * in a return value of -1.
+	 * <p>
+	 * This method selects from the whole array with
+	 * {@link #selectAction(double[], int, int)}, which executives override to
+	 * define their selection protocols.
 	 * 
 	 * @param reinforcements
 	 *            the set of reinforcements corresponding to actions from which
@@ -40,6 +44,71 @@ public abstract class Executive {
 	 *         set of length 0), returns -1
 	 */
 	public int selectAction(double[] reinforcements) {
-		return (reinforcements.length == 0) ? -1 : 0;
+		return selectAction(reinforcements, 0, reinforcements.length);
+	}
+
+	/**
+	 * Selects an index (usually corresponding to an action) from the set of
+	 * predicted reinforcements held in the specified range of an array, based
+	 * on internal protocols. The index is relative to the start of the range,
+	 * so that a buffer larger than the set can be reused for sets of any
+	 * size.
+	 * <p>
+	 * The default selection protocol returns 0, corresponding to the first
+	 * reinforcement of the set, or -1 for a set of length 0.
+	 * 
+	 * @param reinforcements
+	 *            the array holding the set of reinforcements corresponding to
+	 *            actions from which the executive chooses
+	 * @param offset
+	 *            the index in {@code reinforcements} of the first
+	 *            reinforcement of the set
+	 * @param count
+	 *            the number of reinforcements in the set
+	 * @return the selected index relative to {@code offset} - if the set is
+	 *         illegal (for example, of length 0), returns -1
+	 * @throws IndexOutOfBoundsException
+	 *             if the set is out of the range of {@code reinforcements}
+	 */
+	public int selectAction(double[] reinforcements, int offset, int count)
+			throws IndexOutOfBoundsException {
+		if (offset < 0 || count < 0 || offset > reinforcements.length - count)
+			throw new IndexOutOfBoundsException();
+		return (count == 0) ? -1 : 0;
+	}
+
+	/**
+	 * Selects an index for each of a number of agents from their sets of
+	 * predicted reinforcements, which are held one after another in the
+	 * specified array: the set of agent {@code i} starts at index
+	 * {@code i * actionCount}. The selection for agent {@code i} is stored in
+	 * {@code selections[i]}.
+	 * <p>
+	 * The default implementation selects for each agent in turn with
+	 * {@link #selectAction(double[], int, int)}.
+	 * 
+	 * @param reinforcements
+	 *            the sets of reinforcements of the agents, in agent order
+	 * @param actionCount
+	 *            the number of reinforcements in each set
+	 * @param agentCount
+	 *            the number of agents
+	 * @param selections
+	 *            the array receiving the selected index of each agent
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code reinforcements} holds fewer than
+	 *             {@code actionCount * agentCount} values or
+	 *             {@code selections} fewer than {@code agentCount}, or if
+	 *             either count is negative
+	 */
+	public void selectActions(double[] reinforcements, int actionCount,
+			int agentCount, int[] selections) throws IndexOutOfBoundsException {
+		if (actionCount < 0 || agentCount < 0
+				|| (long) actionCount * agentCount > reinforcements.length
+				|| agentCount > selections.length)
+			throw new IndexOutOfBoundsException();
+		for (int agent = 0; agent < agentCount; agent++)
+			selections[agent] = selectAction(reinforcements, agent
+					* actionCount, actionCount);
 	}
 }
@@ -18,14 +18,9 @@ public class GreedyExecutive extends Executive {
 	 * with the maximum predicted reinforcement.
 	 */
 	@Override
-	public int selectAction(double[] reinforcements) {
-		if (super.selectAction(reinforcements) == -1)
-			return -1;
-		int selection = 0;
-		for (int i = 1; i < reinforcements.length; i++)
-			if (reinforcements[i] > reinforcements[selection])
-				selection = i;
-		return selection;
+	public int selectAction(double[] reinforcements, int offset, int count)
+			throws IndexOutOfBoundsException {
+		return Sampler.argmax(reinforcements, offset, count);
 	}
 
 }
@@ -9,12 +9,13 @@ public class InnovatorExecutive extends GreedyExecutive {
 	}
 	
 	@Override
-	public int selectAction(double[] reinforcements) {
-		int superSelection = super.selectAction(reinforcements);
+	public int selectAction(double[] reinforcements, int offset, int count) {
+		int superSelection = super.selectAction(reinforcements, offset, count);
 		if (superSelection == -1)
 			return -1;
-		if (Math.random() < nongreedyChance)
-			return (int) (Math.random() * reinforcements.length);
+		Sampler sampler = Sampler.current();
+		if (sampler.nextDouble() < nongreedyChance)
+			return sampler.nextInt(count);
 		else
 			return superSelection;
 	}
@@ -10,10 +10,10 @@ public class LearnFirstExecutive extends GreedyExecutive {
 	}
 	
 	@Override
-	public int selectAction(double[] reinforcements) {
-		if (reinforcementCheck >= reinforcements.length * eachCount)
-			return super.selectAction(reinforcements);
+	public int selectAction(double[] reinforcements, int offset, int count) {
+		if (reinforcementCheck >= count * eachCount)
+			return super.selectAction(reinforcements, offset, count);
 		reinforcementCheck++;
-		return (reinforcementCheck - 1) % reinforcements.length;
+		return (reinforcementCheck - 1) % count;
 	}
 }
@@ -44,25 +44,18 @@ public class ProbableExecutive extends Executive {
 	private static double NON_GREEDY_GIVES_ABSOLUTE_RANDOM_CHANCE = 1;
 
 	@Override
-	public int selectAction(double[] reinforcements) {
-		if (super.selectAction(reinforcements) == -1)
+	public int selectAction(double[] reinforcements, int offset, int count) {
+		if (super.selectAction(reinforcements, offset, count) == -1)
 			return -1;
 		nongreedyModifier *= 0.99999999;
-		if (Math.random() < getNonGreedyChance() * nongreedyModifier) {
-			if (Math.random() < NON_GREEDY_GIVES_ABSOLUTE_RANDOM_CHANCE)
-				return (int) (Math.random() * reinforcements.length);
-			double total = 0;
-			for (double reinforcement : reinforcements)
-				total += reinforcement;
-			double random = Math.random() * total;
-			for (int i = 0; i < reinforcements.length; i++) {
-				random -= reinforcements[i];
-				if (random < 0)
-					return i;
-			}
-			return reinforcements.length - 1;
+		Sampler sampler = Sampler.current();
+		if (sampler.nextDouble() < getNonGreedyChance() * nongreedyModifier) {
+			if (sampler.nextDouble() < NON_GREEDY_GIVES_ABSOLUTE_RANDOM_CHANCE)
+				return sampler.nextInt(count);
+			// Negative reinforcements are never chosen over positive ones
+			return sampler.sampleProportional(reinforcements, offset, count);
 		} else
-			return greedy.selectAction(reinforcements);
+			return greedy.selectAction(reinforcements, offset, count);
 	}
 
 }
@@ -0,0 +1,254 @@
+package caseengine.cognition.executive;
+
+import java.util.SplittableRandom;
+
+/**
+ * A source of the random choices made by executives. Each thread has its own
+ * {@link #current() sampler}, whose {@link SplittableRandom} stream is split
+ * from a common root stream, so threads selecting actions at once neither
+ * contend for a shared generator nor draw correlated numbers.
+ * <p>
+ * Softmax sampling subtracts the largest value from every value before
+ * exponentiating, so that each weight is at most 1 and their sum is at least
+ * 1: however large the values or small the temperature, no weight overflows to
+ * infinity and the sum never underflows to 0. The weights are held in a buffer
+ * reused by every sample, which only grows to fit a larger set of values.
+ * <p>
+ * A sampler is not thread-safe; it must only be used by the thread that
+ * obtained it from {@link #current()}, or by one thread at a time if it was
+ * constructed with a seed.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class Sampler {
+
+	/**
+	 * The stream the streams of each thread's sampler are split from.
+	 */
+	private static final SplittableRandom ROOT = new SplittableRandom();
+
+	/**
+	 * The sampler of each thread.
+	 */
+	private static final ThreadLocal<Sampler> CURRENT = new ThreadLocal<Sampler>() {
+
+		@Override
+		protected Sampler initialValue() {
+			synchronized (ROOT) {
+				return new Sampler(ROOT.split());
+			}
+		}
+	};
+
+	/**
+	 * The random stream of this sampler.
+	 */
+	private final SplittableRandom random;
+
+	/**
+	 * The buffer of softmax weights.
+	 */
+	private double[] weights = new double[0];
+
+	/**
+	 * Constructs a sampler whose choices are determined by the specified
+	 * seed.
+	 * 
+	 * @param seed
+	 *            the seed of the sampler's random stream
+	 */
+	public Sampler(long seed) {
+		this(new SplittableRandom(seed));
+	}
+
+	/**
+	 * Constructs a sampler that draws from the specified stream.
+	 * 
+	 * @param random
+	 *            the random stream of the sampler
+	 */
+	private Sampler(SplittableRandom random) {
+		this.random = random;
+	}
+
+	/**
+	 * Returns the sampler of the current thread.
+	 * 
+	 * @return the current thread's sampler
+	 */
+	public static Sampler current() {
+		return CURRENT.get();
+	}
+
+	/**
+	 * Returns a uniformly distributed value in the range {@code [0, 1)}.
+	 * 
+	 * @return the next random value
+	 */
+	public double nextDouble() {
+		return random.nextDouble();
+	}
+
+	/**
+	 * Returns a uniformly distributed integer in the range {@code [0, bound)}.
+	 * 
+	 * @param bound
+	 *            the exclusive upper bound
+	 * @return the next random integer
+	 * @throws IllegalArgumentException
+	 *             if {@code bound} is not positive
+	 */
+	public int nextInt(int bound) throws IllegalArgumentException {
+		return random.nextInt(bound);
+	}
+
+	/**
+	 * Returns the index of the largest of the specified values, relative to
+	 * {@code offset}. Of equal largest values, the first is chosen.
+	 * 
+	 * @param values
+	 *            the array holding the values
+	 * @param offset
+	 *            the index of the first value
+	 * @param count
+	 *            the number of values
+	 * @return the index of the largest value, or -1 if {@code count} is 0
+	 * @throws IndexOutOfBoundsException
+	 *             if the values are out of the range of {@code values}
+	 */
+	public static int argmax(double[] values, int offset, int count)
+			throws IndexOutOfBoundsException {
+		checkRange(values, offset, count);
+		if (count == 0)
+			return -1;
+		int selection = 0;
+		for (int i = 1; i < count; i++)
+			if (values[offset + i] > values[offset + selection])
+				selection = i;
+		return selection;
+	}
+
+	/**
+	 * Samples an index, relative to {@code offset}, from the Boltzmann
+	 * (softmax) distribution of the specified values at the specified
+	 * temperature: each index is chosen with probability proportional to
+	 * {@code e^(value / temperature)}.
+	 * 
+	 * @param values
+	 *            the array holding the values
+	 * @param offset
+	 *            the index of the first value
+	 * @param count
+	 *            the number of values
+	 * @param temperature
+	 *            the temperature of the distribution - higher temperatures
+	 *            make the choice more uniform, lower ones more greedy
+	 * @return the sampled index, or -1 if {@code count} is 0
+	 * @throws IndexOutOfBoundsException
+	 *             if the values are out of the range of {@code values}
+	 * @throws IllegalArgumentException
+	 *             if {@code temperature} is not positive
+	 */
+	public int sampleSoftmax(double[] values, int offset, int count,
+			double temperature) throws IndexOutOfBoundsException,
+			IllegalArgumentException {
+		if (!(temperature > 0))
+			throw new IllegalArgumentException();
+		int maximum = argmax(values, offset, count);
+		if (maximum == -1)
+			return -1;
+		if (weights.length < count)
+			weights = new double[count];
+		double largest = values[offset + maximum];
+		double total = 0;
+		for (int i = 0; i < count; i++) {
+			double weight = Math.exp((values[offset + i] - largest)
+					/ temperature);
+			weights[i] = weight;
+			total += weight;
+		}
+		return sample(weights, total, count, maximum);
+	}
+
+	/**
+	 * Samples an index, relative to {@code offset}, with probability
+	 * proportional to the specified weights. Negative weights are treated as
+	 * 0, so an index with a negative weight is only sampled if no weight is
+	 * positive.
+	 * 
+	 * @param values
+	 *            the array holding the weights
+	 * @param offset
+	 *            the index of the first weight
+	 * @param count
+	 *            the number of weights
+	 * @return the sampled index, or -1 if {@code count} is 0 - if no weight
+	 *         is positive, the index is chosen uniformly
+	 * @throws IndexOutOfBoundsException
+	 *             if the weights are out of the range of {@code values}
+	 */
+	public int sampleProportional(double[] values, int offset, int count)
+			throws IndexOutOfBoundsException {
+		checkRange(values, offset, count);
+		if (count == 0)
+			return -1;
+		double total = 0;
+		for (int i = 0; i < count; i++)
+			total += Math.max(values[offset + i], 0);
+		if (!(total > 0))
+			return random.nextInt(count);
+		double choicePosition = random.nextDouble() * total;
+		for (int i = 0; i < count; i++) {
+			choicePosition -= Math.max(values[offset + i], 0);
+			if (choicePosition < 0)
+				return i;
+		}
+		return count - 1;
+	}
+
+	/**
+	 * Samples an index with probability proportional to the specified
+	 * weights held at the start of a buffer.
+	 * 
+	 * @param buffer
+	 *            the weights
+	 * @param total
+	 *            the sum of the weights
+	 * @param count
+	 *            the number of weights
+	 * @param fallback
+	 *            the index chosen if the weights cannot be sampled, because
+	 *            their total is not a positive number
+	 * @return the sampled index
+	 */
+	private int sample(double[] buffer, double total, int count, int fallback) {
+		if (!(total > 0) || Double.isInfinite(total))
+			return fallback;
+		double choicePosition = random.nextDouble() * total;
+		for (int i = 0; i < count; i++) {
+			choicePosition -= buffer[i];
+			if (choicePosition < 0)
+				return i;
+		}
+		return count - 1;
+	}
+
+	/**
+	 * Checks that the specified range lies within the specified array.
+	 * 
+	 * @param values
+	 *            the array
+	 * @param offset
+	 *            the index of the first value of the range
+	 * @param count
+	 *            the number of values in the range
+	 * @throws IndexOutOfBoundsException
+	 *             if the range is out of the range of {@code values}
+	 */
+	private static void checkRange(double[] values, int offset, int count)
+			throws IndexOutOfBoundsException {
+		if (offset < 0 || count < 0 || offset > values.length - count)
+			throw new IndexOutOfBoundsException();
+	}
+}
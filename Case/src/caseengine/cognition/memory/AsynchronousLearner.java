@@ -0,0 +1,517 @@
+package caseengine.cognition.memory;
+
+import java.io.Closeable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A background thread that trains a {@link QNetwork} from replayed
+ * experience, so that the threads acting on the network's predictions never
+ * wait for training.
+ * <p>
+ * Acting threads {@link #offer(double[], int[], double, double[]) offer}
+ * transitions to the learner through a bounded, lock-free queue, and predict
+ * with the learner's {@link #acquirePolicy() policy}: a copy of the network,
+ * which the learner replaces every few training updates. The learner keeps two
+ * copies and publishes them in turn, copying the network's weights into the
+ * one that is not current once no thread is predicting with it, so publishing
+ * allocates nothing unless the network's structure has changed. Neither
+ * offering nor acquiring the policy blocks or allocates (besides the queue's
+ * buffers growing to fit wider transitions), so the latency of acting does not
+ * depend on the cost of training. If the queue is full, a transition is
+ * dropped rather than waited on.
+ * <p>
+ * The learner thread moves the queued transitions into its replay buffer and
+ * trains the network on one replayed batch for each transition received. While
+ * the learner is running, the network and replay buffer belong to it: the
+ * learner holds the network's monitor while training and copying it, so
+ * another thread may only modify the network (for example, add inputs or
+ * actions to it) while synchronized on the network, and should then
+ * {@link #publish()} a policy with the new structure. The replay buffer must
+ * not be used by other threads until the learner is {@link #close() closed}.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class AsynchronousLearner implements Closeable {
+
+	/**
+	 * The longest time, in nanoseconds, the learner thread waits for a
+	 * transition before checking the queue again.
+	 */
+	private static final long IDLE_WAIT = 1000000;
+
+	/**
+	 * The network being trained.
+	 */
+	private final QNetwork network;
+
+	/**
+	 * The buffer of transitions replayed in training.
+	 */
+	private final ReplayBuffer replay;
+
+	/**
+	 * The number of transitions replayed in each training update.
+	 */
+	private final int batchSize;
+
+	/**
+	 * The weight of the reinforcements predicted in next states.
+	 */
+	private final double discount;
+
+	/**
+	 * The learning rate of each training update.
+	 */
+	private final double learningRate;
+
+	/**
+	 * The number of training updates between publications of the policy.
+	 */
+	private final int publishInterval;
+
+	/**
+	 * The number of slots of the queue, a power of 2.
+	 */
+	private final int queueCapacity;
+
+	/**
+	 * The position whose transition each slot of the queue holds or awaits:
+	 * a slot awaiting the transition at position {@code p} holds {@code p},
+	 * and a slot holding it holds {@code p + 1}.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * The state, next state (or null), actions and reinforcement of the
+	 * transition held by each slot of the queue.
+	 */
+	private final double[][] states;
+	private final double[][] nextStates;
+	private final int[][] actions;
+	private final double[] reinforcements;
+
+	/**
+	 * The position of the next transition to be offered.
+	 */
+	private final AtomicLong tail = new AtomicLong();
+
+	/**
+	 * The position of the next transition to be taken by the learner thread.
+	 */
+	private long head;
+
+	/**
+	 * The number of transitions dropped because the queue was full.
+	 */
+	private final AtomicLong droppedCount = new AtomicLong();
+
+	/**
+	 * The learner thread.
+	 */
+	private final Thread thread;
+
+	/**
+	 * The two copies of the network that are published in turn: the current
+	 * policy, and the copy that the next publication overwrites.
+	 */
+	private final QNetwork[] policies = new QNetwork[2];
+
+	/**
+	 * The number of threads that have acquired each of {@link #policies}.
+	 */
+	private final AtomicIntegerArray readerCounts = new AtomicIntegerArray(2);
+
+	/**
+	 * The index in {@link #policies} of the current policy.
+	 */
+	private volatile int current;
+
+	/**
+	 * The number of policies published.
+	 */
+	private final AtomicLong publishedCount = new AtomicLong();
+
+	/**
+	 * The number of transitions trained on.
+	 */
+	private volatile long trainedCount;
+
+	/**
+	 * Whether the learner thread is waiting for transitions.
+	 */
+	private volatile boolean idle;
+
+	/**
+	 * Whether the learner has been closed.
+	 */
+	private volatile boolean closed;
+
+	/**
+	 * The error that stopped the learner thread, or null if none has.
+	 */
+	private volatile Throwable failure;
+
+	/**
+	 * Constructs a learner for the specified network and starts its thread.
+	 * The network's first policy is published before this constructor
+	 * returns.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param replay
+	 *            the buffer of transitions replayed in training
+	 * @param queueCapacity
+	 *            the least number of transitions that can wait to be taken by
+	 *            the learner thread, rounded up to a power of 2
+	 * @param batchSize
+	 *            the number of transitions replayed in each training update
+	 * @param discount
+	 *            the weight of the reinforcements predicted in next states
+	 * @param learningRate
+	 *            the learning rate of each training update
+	 * @param publishInterval
+	 *            the number of training updates between publications of the
+	 *            policy
+	 * @throws NullPointerException
+	 *             if {@code network} or {@code replay} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code queueCapacity} is less than 1 or greater than
+	 *             2<sup>30</sup>, if {@code batchSize} or
+	 *             {@code publishInterval} is less than 1, or if the network
+	 *             cannot be {@link QNetwork#snapshot() captured}
+	 * @see QNetwork#trainFromReplay(ReplayBuffer, int, double, double)
+	 */
+	public AsynchronousLearner(QNetwork network, ReplayBuffer replay,
+			int queueCapacity, int batchSize, double discount,
+			double learningRate, int publishInterval)
+			throws NullPointerException, IllegalArgumentException {
+		if (network == null || replay == null)
+			throw new NullPointerException();
+		if (queueCapacity < 1 || queueCapacity > (1 << 30) || batchSize < 1
+				|| publishInterval < 1)
+			throw new IllegalArgumentException();
+		this.network = network;
+		this.replay = replay;
+		this.batchSize = batchSize;
+		this.discount = discount;
+		this.learningRate = learningRate;
+		this.publishInterval = publishInterval;
+		int capacity = Integer.highestOneBit(queueCapacity);
+		this.queueCapacity = (capacity == queueCapacity) ? capacity
+				: capacity << 1;
+		sequences = new AtomicLongArray(this.queueCapacity);
+		for (int slot = 0; slot < this.queueCapacity; slot++)
+			sequences.set(slot, slot);
+		states = new double[this.queueCapacity][];
+		nextStates = new double[this.queueCapacity][];
+		actions = new int[this.queueCapacity][];
+		reinforcements = new double[this.queueCapacity];
+
+		publish();
+		thread = new Thread(new Runnable() {
+
+			@Override
+			public void run() {
+				learn();
+			}
+		}, "Asynchronous learner");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Returns the network trained by this learner. While this learner is
+	 * running, the network may only be used while synchronized on it.
+	 * 
+	 * @return the trained network
+	 */
+	public QNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Acquires the latest published copy of the network, with which acting
+	 * threads predict reinforcements. The copy is not modified until it is
+	 * {@link #releasePolicy(QNetwork) released}, so any number of threads may
+	 * predict with it at once, each using its own
+	 * {@link QNetwork#newInferenceContext() context}. The next publication
+	 * waits for the threads predicting with the previous policy to release it,
+	 * so a policy should be released as soon as the prediction is made, and a
+	 * thread must not {@link #publish()} while it holds one.
+	 * 
+	 * @return the current policy
+	 */
+	public QNetwork acquirePolicy() {
+		while (true) {
+			int index = current;
+			readerCounts.incrementAndGet(index);
+			// Checked again after acquiring, so that a policy being
+			// overwritten by a publication is never returned
+			if (current == index)
+				return policies[index];
+			readerCounts.decrementAndGet(index);
+		}
+	}
+
+	/**
+	 * Releases a policy acquired by {@link #acquirePolicy()}, allowing it to
+	 * be overwritten by a later publication.
+	 * 
+	 * @param policy
+	 *            the acquired policy
+	 * @throws IllegalArgumentException
+	 *             if {@code policy} is not a policy that has been acquired
+	 */
+	public void releasePolicy(QNetwork policy) throws IllegalArgumentException {
+		for (int index = 0; index < policies.length; index++)
+			if (policies[index] == policy && readerCounts.get(index) > 0) {
+				readerCounts.decrementAndGet(index);
+				return;
+			}
+		throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Returns the number of policies published by this learner.
+	 * 
+	 * @return the number of published copies of the network
+	 */
+	public long getPublishedCount() {
+		return publishedCount.get();
+	}
+
+	/**
+	 * Returns the number of transitions this learner has trained on.
+	 * 
+	 * @return the number of replayed transitions trained on
+	 */
+	public long getTrainedCount() {
+		return trainedCount;
+	}
+
+	/**
+	 * Returns the number of transitions dropped because the queue was full.
+	 * 
+	 * @return the number of dropped transitions
+	 */
+	public long getDroppedCount() {
+		return droppedCount.get();
+	}
+
+	/**
+	 * Returns the error that stopped the learner thread.
+	 * 
+	 * @return the exception or error thrown by training, or null if training
+	 *         has not failed
+	 */
+	public Throwable getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Offers a transition to be recorded in the replay buffer and trained on.
+	 * The transition is copied, so the arrays may be reused once this method
+	 * returns. Any number of threads may offer transitions at once.
+	 * 
+	 * @param state
+	 *            the state the transition started in
+	 * @param performedActions
+	 *            the actions taken in the state - no action may appear twice
+	 * @param reinforcement
+	 *            the reinforcement received for the actions
+	 * @param nextState
+	 *            the state the transition ended in, or null if the
+	 *            transition's reinforcement is final
+	 * @return {@code true} if the transition was queued, {@code false} if it
+	 *         was dropped because the queue is full
+	 * @throws NullPointerException
+	 *             if {@code state} or {@code performedActions} is null
+	 * @throws IllegalStateException
+	 *             if this learner has been closed or has failed
+	 * @see ReplayBuffer#record(double[], int[], double, double[])
+	 */
+	public boolean offer(double[] state, int[] performedActions,
+			double reinforcement, double[] nextState)
+			throws NullPointerException, IllegalStateException {
+		if (state == null || performedActions == null)
+			throw new NullPointerException();
+		if (closed || failure != null)
+			throw new IllegalStateException();
+		long position;
+		int slot;
+		while (true) {
+			position = tail.get();
+			slot = (int) position & (queueCapacity - 1);
+			long sequence = sequences.get(slot);
+			if (sequence == position) {
+				if (tail.compareAndSet(position, position + 1))
+					break;
+			} else if (sequence < position) {
+				droppedCount.incrementAndGet();
+				return false;
+			}
+		}
+
+		states[slot] = copy(state, states[slot]);
+		nextStates[slot] = (nextState == null) ? null : copy(nextState,
+				nextStates[slot]);
+		int[] slotActions = actions[slot];
+		if (slotActions == null
+				|| slotActions.length != performedActions.length)
+			slotActions = new int[performedActions.length];
+		System.arraycopy(performedActions, 0, slotActions, 0,
+				performedActions.length);
+		actions[slot] = slotActions;
+		reinforcements[slot] = reinforcement;
+		// A full fence, so that the learner thread either sees the transition
+		// before it parks or is seen to be idle and unparked
+		sequences.set(slot, position + 1);
+		if (idle)
+			LockSupport.unpark(thread);
+		return true;
+	}
+
+	/**
+	 * Publishes a copy of the network's current structure and weights as the
+	 * policy. The learner thread publishes a policy every few training
+	 * updates; other threads should publish one after modifying the network's
+	 * structure, so that the policy predicts for every input and action.
+	 * <p>
+	 * The network's weights are copied into the policy that is not current,
+	 * once every thread predicting with it has released it. A new copy is
+	 * only made if the network's structure differs from that policy's.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             if the network cannot be {@link QNetwork#snapshot()
+	 *             captured}
+	 */
+	public void publish() throws IllegalArgumentException {
+		// Published under the monitor, so that a copy of an older structure
+		// never replaces a newer one
+		synchronized (network) {
+			int spare = 1 - current;
+			// Threads still holding the spare acquired it while it was
+			// current, and release it once their prediction is made
+			while (readerCounts.get(spare) != 0)
+				Thread.yield();
+			QNetwork policy = policies[spare];
+			if (policy == null || !policy.copyWeights(network))
+				policies[spare] = QNetwork.restore(network.snapshot());
+			current = spare;
+			publishedCount.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Stops the learner thread, once it has finished its current training
+	 * update, and records any transitions still queued in the replay buffer
+	 * without training on them. The network and replay buffer may then be
+	 * used by other threads.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the learner thread was stopped by an error, which is
+	 *             the cause of the exception
+	 */
+	@Override
+	public void close() throws IllegalStateException {
+		closed = true;
+		LockSupport.unpark(thread);
+		boolean interrupted = false;
+		while (thread.isAlive())
+			try {
+				thread.join();
+			} catch (InterruptedException e) {
+				interrupted = true;
+			}
+		if (interrupted)
+			Thread.currentThread().interrupt();
+		if (failure != null)
+			throw new IllegalStateException(failure);
+	}
+
+	/**
+	 * Runs the learner thread until this learner is closed or training fails.
+	 */
+	private void learn() {
+		long pending = 0;
+		int updates = 0;
+		try {
+			while (!closed) {
+				pending = Math.min(pending + drain(), queueCapacity);
+				if (pending == 0) {
+					idle = true;
+					if (!isQueued() && !closed)
+						LockSupport.parkNanos(this, IDLE_WAIT);
+					idle = false;
+					continue;
+				}
+				int trained;
+				synchronized (network) {
+					trained = network.trainFromReplay(replay, batchSize,
+							discount, learningRate);
+				}
+				trainedCount += trained;
+				pending--;
+				if (++updates == publishInterval) {
+					publish();
+					updates = 0;
+				}
+			}
+			drain();
+		} catch (Throwable e) {
+			// Errors are recorded too, so that transitions are no longer
+			// offered to a thread that has stopped
+			failure = e;
+		}
+	}
+
+	/**
+	 * Records every queued transition in the replay buffer. Called on the
+	 * learner thread.
+	 * 
+	 * @return the number of transitions recorded
+	 */
+	private int drain() {
+		int count = 0;
+		while (isQueued()) {
+			int slot = (int) head & (queueCapacity - 1);
+			replay.record(states[slot], actions[slot], reinforcements[slot],
+					nextStates[slot]);
+			sequences.lazySet(slot, head + queueCapacity);
+			head++;
+			count++;
+		}
+		return count;
+	}
+
+	/**
+	 * Returns whether a transition is waiting to be taken by the learner
+	 * thread.
+	 * 
+	 * @return true if the queue is not empty
+	 */
+	private boolean isQueued() {
+		return sequences.get((int) head & (queueCapacity - 1)) == head + 1;
+	}
+
+	/**
+	 * Copies the specified values into the specified buffer, or into a new
+	 * buffer if it is not of the same length.
+	 * 
+	 * @param values
+	 *            the values copied
+	 * @param buffer
+	 *            the buffer of a queue slot, or null
+	 * @return the buffer holding the copy
+	 */
+	private static double[] copy(double[] values, double[] buffer) {
+		if (buffer == null || buffer.length != values.length)
+			buffer = new double[values.length];
+		System.arraycopy(values, 0, buffer, 0, values.length);
+		return buffer;
+	}
+}
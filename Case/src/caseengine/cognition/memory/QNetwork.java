@@ -1,10 +1,19 @@
 package caseengine.cognition.memory;
 
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
 import caseengine.function.DifferentiableFunction;
+import caseengine.neural.network.InferenceContext;
 import caseengine.neural.network.LayeredNetwork;
 import caseengine.neural.network.LayeredNetwork.ConnectionScheme;
+import caseengine.neural.network.NetworkSnapshot;
 import caseengine.neural.node.DifferentiableNode;
+import caseengine.neural.node.WeightMatrix;
 import caseengine.neural.train.ErrorBackpropagator;
+import caseengine.neural.train.Optimizer;
 
 /**
  * A Q-Learning memory system that uses a
@@ -48,6 +57,17 @@ public class QNetwork {
 	 */
 	private ErrorBackpropagator trainer = new ErrorBackpropagator();
 
+	/**
+	 * The source of randomness for sampling replayed transitions.
+	 */
+	private final Random replayRandom = new Random();
+
+	/**
+	 * The buffers of the latest batch of replayed transitions, or null if no
+	 * transitions have been replayed.
+	 */
+	private ReplayBatch replayBatch;
+
 	/**
 	 * The activation function used in the hidden nodes of this network.
 	 */
@@ -86,14 +106,194 @@ public class QNetwork {
 	 *            output nodes - if less than 1, this parameter is set to 1
 	 */
 	public QNetwork(int hiddenNodeCount) {
+		this(hiddenNodeCount, false);
+	}
+
+	/**
+	 * Constructs a new {@code QNetwork} with the given number of nodes (minimum
+	 * of 1) in the layer separating network inputs and outputs, whose weights
+	 * are stored and summed in the specified precision. Single precision halves
+	 * the memory occupied by the network's weights; reinforcement predictions
+	 * are generally unaffected beyond the sixth significant digit.
+	 * 
+	 * @param hiddenNodeCount
+	 *            the number of nodes separating this network's input nodes and
+	 *            output nodes - if less than 1, this parameter is set to 1
+	 * @param singlePrecision
+	 *            whether the network's weights are stored and summed in single
+	 *            precision rather than double precision
+	 * @see LayeredNetwork#isSinglePrecision()
+	 */
+	public QNetwork(int hiddenNodeCount, boolean singlePrecision) {
 		if (hiddenNodeCount < 1)
 			hiddenNodeCount = 1;
-		reinforcementNetwork = new LayeredNetwork(2);
+		reinforcementNetwork = new LayeredNetwork(2, singlePrecision);
 		for (; hiddenNodeCount > 0; hiddenNodeCount--)
 			reinforcementNetwork.addNode(new DifferentiableNode(
 					HIDDEN_ACTIVATION_FUNCTION), 0);
 	}
 
+	/**
+	 * Constructs a {@code QNetwork} around the specified reinforcement
+	 * network.
+	 * 
+	 * @param reinforcementNetwork
+	 *            a network with a hidden layer and an output layer
+	 */
+	private QNetwork(LayeredNetwork reinforcementNetwork) {
+		this.reinforcementNetwork = reinforcementNetwork;
+	}
+
+	/**
+	 * Loads a {@code QNetwork} from a file written by {@link #save(Path)}.
+	 * 
+	 * @param file
+	 *            the file containing the saved network
+	 * @return a new {@code QNetwork} with the saved structure and weights
+	 * @throws NullPointerException
+	 *             if {@code file} is null
+	 * @throws IOException
+	 *             if an I/O error occurs, or if the file does not contain a
+	 *             saved {@code QNetwork}
+	 * @see NetworkSnapshot#read(Path)
+	 */
+	public static QNetwork load(Path file) throws NullPointerException,
+			IOException {
+		NetworkSnapshot snapshot = NetworkSnapshot.read(file);
+		if (snapshot.getLayerCount() != 2)
+			throw new IOException("Not a QNetwork snapshot");
+		return new QNetwork(snapshot.toNetwork());
+	}
+
+	/**
+	 * Creates a {@code QNetwork} with the structure and weights of the
+	 * specified snapshot, such as one captured by {@link #snapshot()}. The new
+	 * network shares no state with the network the snapshot was captured
+	 * from, and is trained without an optimizer.
+	 * 
+	 * @param snapshot
+	 *            the snapshot of a {@code QNetwork}
+	 * @return a new {@code QNetwork} with the snapshot's structure and weights
+	 * @throws NullPointerException
+	 *             if {@code snapshot} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code snapshot} is not a snapshot of a {@code QNetwork}
+	 */
+	public static QNetwork restore(NetworkSnapshot snapshot)
+			throws NullPointerException, IllegalArgumentException {
+		if (snapshot.getLayerCount() != 2)
+			throw new IllegalArgumentException();
+		return new QNetwork(snapshot.toNetwork());
+	}
+
+	/**
+	 * Captures the current structure and weights of this network. The
+	 * snapshot can be written to a file on another thread while this network
+	 * continues to be trained.
+	 * 
+	 * @return a snapshot of this network
+	 */
+	public NetworkSnapshot snapshot() {
+		return NetworkSnapshot.capture(reinforcementNetwork);
+	}
+
+	/**
+	 * Copies the weights of the specified network into this network's
+	 * existing weight arrays, if both networks have the same numbers of
+	 * inputs, hidden nodes and actions and the same precision. Nothing is
+	 * allocated, so a copy made by {@link #restore(NetworkSnapshot) restore}
+	 * can be refreshed with the latest weights of the network it was made
+	 * from.
+	 * 
+	 * @param source
+	 *            the network whose weights are copied
+	 * @return true if the weights were copied, or false if the networks'
+	 *         structures differ, in which case this network is unchanged
+	 * @throws NullPointerException
+	 *             if {@code source} is null
+	 */
+	public boolean copyWeights(QNetwork source) throws NullPointerException {
+		LayeredNetwork from = source.reinforcementNetwork;
+		LayeredNetwork to = reinforcementNetwork;
+		if (from.isSinglePrecision() != to.isSinglePrecision())
+			return false;
+		for (int layer = 0; layer < 2; layer++) {
+			WeightMatrix fromMatrix = from.getWeightMatrix(layer);
+			WeightMatrix toMatrix = to.getWeightMatrix(layer);
+			if (fromMatrix.getRowCount() != toMatrix.getRowCount()
+					|| fromMatrix.getColumnCount() != toMatrix
+							.getColumnCount())
+				return false;
+		}
+		for (int layer = 0; layer < 2; layer++) {
+			WeightMatrix fromMatrix = from.getWeightMatrix(layer);
+			WeightMatrix toMatrix = to.getWeightMatrix(layer);
+			int columns = fromMatrix.getColumnCount();
+			int fromStride = fromMatrix.getStride();
+			int toStride = toMatrix.getStride();
+			Object fromWeights = to.isSinglePrecision() ? fromMatrix
+					.getSingleWeights() : fromMatrix.getWeights();
+			Object toWeights = to.isSinglePrecision() ? toMatrix
+					.getSingleWeights() : toMatrix.getWeights();
+			for (int row = 0; row < fromMatrix.getRowCount(); row++)
+				System.arraycopy(fromWeights, row * fromStride, toWeights, row
+						* toStride, columns);
+		}
+		return true;
+	}
+
+	/**
+	 * Saves the current structure and weights of this network to the
+	 * specified file, replacing its contents.
+	 * 
+	 * @param file
+	 *            the file this network is saved to
+	 * @throws NullPointerException
+	 *             if {@code file} is null
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 * @see #load(Path)
+	 */
+	public void save(Path file) throws NullPointerException, IOException {
+		snapshot().write(file);
+	}
+
+	/**
+	 * Returns whether the weights of this network are stored and summed in
+	 * single precision.
+	 * 
+	 * @return true if this network is single-precision
+	 */
+	public boolean isSinglePrecision() {
+		return reinforcementNetwork.isSinglePrecision();
+	}
+
+	/**
+	 * Returns the optimizer that turns this network's error gradients into
+	 * weight steps during training.
+	 * 
+	 * @return the optimizer used in training, or null if plain gradient
+	 *         descent is used
+	 */
+	public Optimizer getOptimizer() {
+		return trainer.getOptimizer();
+	}
+
+	/**
+	 * Sets the optimizer that turns this network's error gradients into weight
+	 * steps during training. Any state kept by the previous optimizer is
+	 * discarded.
+	 * 
+	 * @param optimizer
+	 *            the optimizer to be used in training, or null to use plain
+	 *            gradient descent
+	 * @see ErrorBackpropagator#ErrorBackpropagator(Optimizer)
+	 */
+	public void setOptimizer(Optimizer optimizer) {
+		trainer = (optimizer == null) ? new ErrorBackpropagator()
+				: new ErrorBackpropagator(optimizer);
+	}
+
 	/**
 	 * Returns the number of inputs currently in this network.
 	 * 
@@ -170,6 +370,73 @@ public class QNetwork {
 		return reinforcementNetwork.pullOutputs(stateInputs, 1);
 	}
 
+	/**
+	 * Creates a new context for predicting action reinforcements with
+	 * {@link #predictActionReinforcements(InferenceContext, double[], double[])}.
+	 * Each thread predicting with this network concurrently needs its own
+	 * context.
+	 * 
+	 * @return a new inference context for this network
+	 */
+	public InferenceContext newInferenceContext() {
+		return reinforcementNetwork.newInferenceContext();
+	}
+
+	/**
+	 * Uses the current state of this neural network to predict the outcome
+	 * reinforcements of taking each action that this network is tracking,
+	 * storing them in the specified array. Unlike
+	 * {@link #predictActionReinforcements(double[])}, this method does not
+	 * modify this network, so any number of threads may predict at once as long
+	 * as each uses its own context and this network is not being trained or
+	 * extended at the same time.
+	 * 
+	 * @param context
+	 *            the caller's context, created by
+	 *            {@link #newInferenceContext()}
+	 * @param stateInputs
+	 *            the data of the cognitive inputs that represent the current
+	 *            state of this network's environment
+	 * @param reinforcements
+	 *            the array in which the predicted reinforcements of taking each
+	 *            corresponding action are stored - must hold at least
+	 *            {@link #getActionCount()} values
+	 * @see caseengine.neural.network.LayeredNetwork#pullOutputs(InferenceContext,
+	 *      double[], int, double[])
+	 */
+	public void predictActionReinforcements(InferenceContext context,
+			double[] stateInputs, double[] reinforcements) {
+		reinforcementNetwork.pullOutputs(context, stateInputs, 1,
+				reinforcements);
+	}
+
+	/**
+	 * Predicts the outcome reinforcements of taking each action in each of the
+	 * specified states, as
+	 * {@link #predictActionReinforcements(InferenceContext, double[], double[])}
+	 * does for a single state. The states are pulled through the network as a
+	 * batch, so that each layer's weights are read once for a block of states
+	 * rather than once for every state.
+	 * 
+	 * @param context
+	 *            the caller's context, created by
+	 *            {@link #newInferenceContext()}
+	 * @param stateInputs
+	 *            the inputs of each state
+	 * @param reinforcements
+	 *            the arrays in which the predicted reinforcements of each state
+	 *            are stored - {@code reinforcements[i]} receives those of
+	 *            {@code stateInputs[i]}, and must hold at least
+	 *            {@link #getActionCount()} values
+	 * @see caseengine.neural.network.LayeredNetwork#pullOutputsBatch(InferenceContext,
+	 *      double[][], int, double[][])
+	 */
+	public void predictActionReinforcementsBatch(InferenceContext context,
+			double[][] stateInputs, double[][] reinforcements) {
+		reinforcementNetwork.pullOutputsBatch(context, stateInputs, 1,
+				reinforcements);
+	}
+
 	/**
 	 * Uses error backpropagation to train this network towards providing action
 	 * reinforcements nearer to those specified when given the specified inputs.
@@ -197,4 +464,226 @@ public class QNetwork {
 		trainer.trainNetwork(reinforcementNetwork, stateInputs, 1, actions,
 				targetReinforcements, learningRate);
 	}
+
+	/**
+	 * Uses error backpropagation to train this network towards providing the
+	 * specified action reinforcements for each of a batch of states, applying
+	 * the mean gradient of the batch in a single update.
+	 * 
+	 * @param stateInputs
+	 *            the data of the cognitive inputs that represent each state of
+	 *            this network's environment
+	 * @param actions
+	 *            the indices of the actions whose reinforcements are being
+	 *            trained in each state
+	 * @param targetReinforcements
+	 *            the target reinforcements corresponding to each state's
+	 *            actions
+	 * @param learningRate
+	 *            a modifier for error backpropagation, usually less than or
+	 *            equal to 1 - smaller values make learning over time more
+	 *            gradual
+	 * @see caseengine.neural.train.ErrorBackpropagator#trainNetworkBatch(LayeredNetwork,
+	 *      double[][], int, int[][], double[][], double)
+	 *      ErrorBackpropagator.trainNetworkBatch(LayeredNetwork, double[][],
+	 *      int, int[][], double[][], double)
+	 */
+	public void trainActionReinforcementsBatch(double[][] stateInputs,
+			int[][] actions, double[][] targetReinforcements,
+			double learningRate) {
+		trainer.trainNetworkBatch(reinforcementNetwork, stateInputs, 1,
+				actions, targetReinforcements, learningRate);
+	}
+
+	/**
+	 * Trains this network with a mini-batch of transitions sampled from the
+	 * specified replay buffer. The target reinforcement of each action of a
+	 * sampled transition is the transition's reinforcement plus, if the
+	 * transition has a next state, the discounted largest reinforcement
+	 * predicted in that state. The mean gradient of the batch is applied in a
+	 * single update.
+	 * <p>
+	 * If the buffer is prioritized, the priority of each sampled transition is
+	 * updated with the largest error between its predicted and target
+	 * reinforcements, and each transition's error is scaled by its
+	 * {@link ReplayBuffer#getImportanceWeights(int[], int, double[])
+	 * importance weight}.
+	 * <p>
+	 * The replayed states are truncated or padded with 0 to this network's
+	 * current input count.
+	 * 
+	 * @param replay
+	 *            the buffer of transitions
+	 * @param batchSize
+	 *            the number of transitions sampled
+	 * @param discount
+	 *            the weight of the reinforcements predicted in next states,
+	 *            usually less than 1 - 0 trains towards the reinforcements
+	 *            alone
+	 * @param learningRate
+	 *            a modifier for error backpropagation, usually less than or
+	 *            equal to 1 - smaller values make learning over time more
+	 *            gradual
+	 * @return the number of transitions trained, which is 0 if the buffer is
+	 *         empty
+	 * @throws NullPointerException
+	 *             if {@code replay} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code batchSize} is less than 1, or if a sampled
+	 *             transition's actions contain duplicates
+	 * @throws IndexOutOfBoundsException
+	 *             if a sampled transition's actions are out of range of this
+	 *             network's actions
+	 */
+	public int trainFromReplay(ReplayBuffer replay, int batchSize,
+			double discount, double learningRate) throws NullPointerException,
+			IllegalArgumentException, IndexOutOfBoundsException {
+		if (replay == null)
+			throw new NullPointerException();
+		if (batchSize < 1)
+			throw new IllegalArgumentException();
+		if (replay.size() == 0)
+			return 0;
+		int inputCount = getInputCount();
+		int actionCount = getActionCount();
+		// The buffers only grow, so they are sized once for the largest batch
+		if (replayBatch == null || replayBatch.slots.length < batchSize
+				|| replayBatch.states[0].length != inputCount
+				|| replayBatch.outputs[0].length != actionCount)
+			replayBatch = new ReplayBatch(Math.max(batchSize,
+					replayBatch == null ? 0 : replayBatch.slots.length),
+					inputCount, actionCount);
+		ReplayBatch batch = replayBatch;
+
+		replay.sample(replayRandom, batch.slots, batchSize);
+		// Only the next states that are used are gathered and pulled
+		int nextCount = 0;
+		for (int i = 0; i < batchSize; i++) {
+			int slot = batch.slots[i];
+			replay.getState(slot, batch.states[i]);
+			if (discount != 0
+					&& replay.getNextState(slot, batch.nextStates[nextCount]))
+				batch.nextRows[i] = nextCount++;
+			else
+				batch.nextRows[i] = -1;
+			int count = replay.getActionCount(slot);
+			if (batch.actions[i].length != count) {
+				batch.actions[i] = new int[count];
+				batch.targets[i] = new double[count];
+			}
+			for (int j = 0; j < count; j++)
+				batch.actions[i][j] = replay.getAction(slot, j);
+		}
+		if (nextCount > 0)
+			reinforcementNetwork.pullOutputsBatch(batch.nextStates, nextCount,
+					1, batch.nextOutputs);
+		for (int i = 0; i < batchSize; i++) {
+			double target = replay.getReinforcement(batch.slots[i]);
+			if (batch.nextRows[i] != -1) {
+				double best = Double.NEGATIVE_INFINITY;
+				for (double output : batch.nextOutputs[batch.nextRows[i]])
+					best = Math.max(best, output);
+				target += discount * best;
+			}
+			Arrays.fill(batch.targets[i], target);
+		}
+
+		if (replay.isPrioritized()) {
+			reinforcementNetwork.pullOutputsBatch(batch.states, batchSize, 1,
+					batch.outputs);
+			replay.getImportanceWeights(batch.slots, batchSize, batch.weights);
+			for (int i = 0; i < batchSize; i++) {
+				double largestError = 0;
+				for (int j = 0; j < batch.actions[i].length; j++) {
+					double predicted = batch.outputs[i][batch.actions[i][j]];
+					double error = batch.targets[i][j] - predicted;
+					largestError = Math.max(largestError, Math.abs(error));
+					// Scaling the error scales the sample's gradient
+					batch.targets[i][j] = predicted
+							+ (batch.weights[i] * error);
+				}
+				replay.updatePriority(batch.slots[i], largestError);
+			}
+		}
+		trainer.trainNetworkBatch(reinforcementNetwork, batch.states,
+				batchSize, 1, batch.actions, batch.targets, learningRate);
+		return batchSize;
+	}
+
+	/**
+	 * The reusable buffers of a batch of replayed transitions.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	private static final class ReplayBatch {
+
+		/**
+		 * The sampled slots.
+		 */
+		final int[] slots;
+
+		/**
+		 * The state of each sampled transition.
+		 */
+		final double[][] states;
+
+		/**
+		 * The next states that are used, in the order of their transitions.
+		 */
+		final double[][] nextStates;
+
+		/**
+		 * The index in {@link #nextStates} of each sampled transition's next
+		 * state, or -1 if it has none or it is not used.
+		 */
+		final int[] nextRows;
+
+		/**
+		 * The actions of each sampled transition.
+		 */
+		final int[][] actions;
+
+		/**
+		 * The target reinforcement of each action of each sampled transition.
+		 */
+		final double[][] targets;
+
+		/**
+		 * The predicted reinforcements in each sampled state.
+		 */
+		final double[][] outputs;
+
+		/**
+		 * The predicted reinforcements in each used next state.
+		 */
+		final double[][] nextOutputs;
+
+		/**
+		 * The importance weight of each sampled transition.
+		 */
+		final double[] weights;
+
+		/**
+		 * Allocates the buffers of batches of up to the specified size.
+		 * 
+		 * @param batchSize
+		 *            the greatest number of sampled transitions
+		 * @param inputCount
+		 *            the number of inputs of the network
+		 * @param actionCount
+		 *            the number of actions of the network
+		 */
+		ReplayBatch(int batchSize, int inputCount, int actionCount) {
+			slots = new int[batchSize];
+			states = new double[batchSize][inputCount];
+			nextStates = new double[batchSize][inputCount];
+			nextRows = new int[batchSize];
+			actions = new int[batchSize][0];
+			targets = new double[batchSize][0];
+			outputs = new double[batchSize][actionCount];
+			nextOutputs = new double[batchSize][actionCount];
+			weights = new double[batchSize];
+		}
+	}
 }
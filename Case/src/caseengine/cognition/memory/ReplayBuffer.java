@@ -0,0 +1,630 @@
+package caseengine.cognition.memory;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Random;
+
+/**
+ * An experience replay memory of the most recent transitions of an agent, from
+ * which mini-batches of past transitions are sampled to train a
+ * {@link QNetwork}. Reusing every transition in many randomly sampled batches
+ * breaks the correlation between consecutive training updates and gets more
+ * learning out of each experience.
+ * <p>
+ * Each transition holds the state the agent was in, the actions it took, the
+ * reinforcement it received, and optionally the state it arrived in. The
+ * transitions are stored in a ring of preallocated primitive buffers, either on
+ * the heap or in direct (off-heap) memory, so recording a transition does not
+ * allocate; once the buffer is full, each new transition replaces the oldest.
+ * States are stored as {@code float} values. If a state or action list longer
+ * than the buffer's current width is recorded, the buffer is widened, and the
+ * states of earlier transitions are padded with 0 - as they are when the
+ * inputs of a growing {@code QNetwork} are added.
+ * <p>
+ * Transitions are sampled either uniformly or, in a prioritized buffer, in
+ * proportion to a priority derived from the error of their last training
+ * update, so that surprising transitions are replayed more often. Prioritized
+ * sampling uses a sum tree over the transitions' priorities, so sampling and
+ * updating a priority take time logarithmic in the buffer's capacity. The bias
+ * of prioritized sampling is corrected by
+ * {@link #getImportanceWeights(int[], int, double[]) importance weights}.
+ * <p>
+ * A {@code ReplayBuffer} is not thread-safe.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class ReplayBuffer {
+
+	/**
+	 * The value added to the magnitude of each training error to form a
+	 * priority, so that no transition becomes impossible to sample.
+	 */
+	public static final double PRIORITY_OFFSET = 1.0E-3;
+
+	/**
+	 * The maximum number of transitions held.
+	 */
+	private final int capacity;
+
+	/**
+	 * Whether the buffers are allocated in direct memory.
+	 */
+	private final boolean offHeap;
+
+	/**
+	 * The exponent applied to errors to form priorities, or 0 for uniform
+	 * sampling.
+	 */
+	private final double priorityExponent;
+
+	/**
+	 * The exponent of the importance weights that correct the bias of
+	 * prioritized sampling.
+	 */
+	private final double correctionExponent;
+
+	/**
+	 * The number of state values held for each transition.
+	 */
+	private int stateWidth;
+
+	/**
+	 * The maximum number of actions held for each transition.
+	 */
+	private int actionWidth;
+
+	/**
+	 * The state of each transition.
+	 */
+	private FloatBuffer states;
+
+	/**
+	 * The next state of each transition.
+	 */
+	private FloatBuffer nextStates;
+
+	/**
+	 * The actions of each transition.
+	 */
+	private IntBuffer actions;
+
+	/**
+	 * The number of actions of each transition, negated and less one
+	 * ({@code -count - 1}) for transitions without a next state.
+	 */
+	private IntBuffer actionCounts;
+
+	/**
+	 * The reinforcement of each transition.
+	 */
+	private DoubleBuffer reinforcements;
+
+	/**
+	 * The sum tree of the priorities of a prioritized buffer - the priority of
+	 * slot {@code i} is at index {@code leafCount + i}, and each other node
+	 * holds the sum of its two children - or null for a uniform buffer.
+	 */
+	private final double[] priorityTree;
+
+	/**
+	 * The number of leaves of the sum tree, a power of two.
+	 */
+	private final int leafCount;
+
+	/**
+	 * The largest priority given to any transition, given to new transitions.
+	 */
+	private double maximumPriority = 1.0;
+
+	/**
+	 * The slot of the next transition to be recorded.
+	 */
+	private int next;
+
+	/**
+	 * The number of transitions held.
+	 */
+	private int size;
+
+	/**
+	 * Constructs a uniformly sampled replay buffer.
+	 * 
+	 * @param capacity
+	 *            the maximum number of transitions held
+	 * @param stateWidth
+	 *            the initial number of state values held for each transition
+	 * @param actionWidth
+	 *            the initial maximum number of actions held for each
+	 *            transition
+	 * @param offHeap
+	 *            whether the buffers are allocated in direct memory rather
+	 *            than on the heap
+	 * @throws IllegalArgumentException
+	 *             if {@code capacity} is less than 1, if either width is
+	 *             negative, or if the buffers would be too large
+	 */
+	public ReplayBuffer(int capacity, int stateWidth, int actionWidth,
+			boolean offHeap) throws IllegalArgumentException {
+		this(capacity, stateWidth, actionWidth, offHeap, 0, 0);
+	}
+
+	/**
+	 * Constructs a replay buffer whose transitions are sampled in proportion
+	 * to their priority, {@code (|error| + }{@value #PRIORITY_OFFSET}
+	 * {@code )^priorityExponent}, where {@code error} is the transition's
+	 * latest training error.
+	 * 
+	 * @param capacity
+	 *            the maximum number of transitions held
+	 * @param stateWidth
+	 *            the initial number of state values held for each transition
+	 * @param actionWidth
+	 *            the initial maximum number of actions held for each
+	 *            transition
+	 * @param offHeap
+	 *            whether the buffers are allocated in direct memory rather
+	 *            than on the heap
+	 * @param priorityExponent
+	 *            the exponent applied to errors to form priorities - 0 samples
+	 *            uniformly, 1 samples in direct proportion to the errors
+	 * @param correctionExponent
+	 *            the exponent of the importance weights - 0 leaves the bias of
+	 *            prioritized sampling uncorrected, 1 corrects it fully
+	 * @throws IllegalArgumentException
+	 *             if {@code capacity} is less than 1, if either width is
+	 *             negative, if the buffers would be too large, or if either
+	 *             exponent is not in the range {@code [0, 1]}
+	 */
+	public ReplayBuffer(int capacity, int stateWidth, int actionWidth,
+			boolean offHeap, double priorityExponent, double correctionExponent)
+			throws IllegalArgumentException {
+		if (capacity < 1 || stateWidth < 0 || actionWidth < 0
+				|| !(priorityExponent >= 0 && priorityExponent <= 1)
+				|| !(correctionExponent >= 0 && correctionExponent <= 1)
+				|| capacity > (1 << 30))
+			throw new IllegalArgumentException();
+		this.capacity = capacity;
+		this.offHeap = offHeap;
+		this.priorityExponent = priorityExponent;
+		this.correctionExponent = correctionExponent;
+		actionCounts = allocateInts(capacity);
+		reinforcements = offHeap ? ByteBuffer.allocateDirect(8 * capacity)
+				.order(ByteOrder.nativeOrder()).asDoubleBuffer() : DoubleBuffer
+				.allocate(capacity);
+		resize(stateWidth, actionWidth);
+		if (priorityExponent > 0) {
+			leafCount = Integer.highestOneBit(capacity) == capacity ? capacity
+					: Integer.highestOneBit(capacity) << 1;
+			priorityTree = new double[2 * leafCount];
+		} else {
+			leafCount = 0;
+			priorityTree = null;
+		}
+	}
+
+	/**
+	 * Returns the maximum number of transitions held by this buffer.
+	 * 
+	 * @return the capacity of this buffer
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Returns the number of transitions held by this buffer.
+	 * 
+	 * @return the number of transitions that can be sampled
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns whether this buffer's transitions are held in direct memory.
+	 * 
+	 * @return true if this buffer is off-heap
+	 */
+	public boolean isOffHeap() {
+		return offHeap;
+	}
+
+	/**
+	 * Returns whether this buffer samples transitions by priority.
+	 * 
+	 * @return true if sampling is prioritized, false if it is uniform
+	 */
+	public boolean isPrioritized() {
+		return priorityTree != null;
+	}
+
+	/**
+	 * Returns the number of state values currently held for each transition.
+	 * 
+	 * @return the state width of this buffer
+	 */
+	public int getStateWidth() {
+		return stateWidth;
+	}
+
+	/**
+	 * Records a transition, replacing the oldest transition if this buffer is
+	 * full. A new transition is given the largest priority yet seen, so it is
+	 * likely to be sampled soon.
+	 * 
+	 * @param state
+	 *            the state the transition started in
+	 * @param actions
+	 *            the actions taken in the state - no action may appear twice
+	 * @param reinforcement
+	 *            the reinforcement received for the actions
+	 * @param nextState
+	 *            the state the transition ended in, or null if the
+	 *            transition's reinforcement is final
+	 * @return the slot of the recorded transition
+	 * @throws NullPointerException
+	 *             if {@code state} or {@code actions} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code nextState} is longer than {@code state} or an
+	 *             action is negative
+	 */
+	public int record(double[] state, int[] actions, double reinforcement,
+			double[] nextState) throws NullPointerException,
+			IllegalArgumentException {
+		if (state == null || actions == null)
+			throw new NullPointerException();
+		if (nextState != null && nextState.length > state.length)
+			throw new IllegalArgumentException();
+		for (int action : actions)
+			if (action < 0)
+				throw new IllegalArgumentException();
+		if (state.length > stateWidth || actions.length > actionWidth)
+			resize(Math.max(state.length, stateWidth),
+					Math.max(actions.length, actionWidth));
+
+		int slot = next;
+		int stateOffset = slot * stateWidth;
+		for (int i = 0; i < stateWidth; i++)
+			states.put(stateOffset + i, (i < state.length) ? (float) state[i]
+					: 0);
+		if (nextState != null)
+			for (int i = 0; i < stateWidth; i++)
+				nextStates.put(stateOffset + i,
+						(i < nextState.length) ? (float) nextState[i] : 0);
+		int actionOffset = slot * actionWidth;
+		for (int i = 0; i < actions.length; i++)
+			this.actions.put(actionOffset + i, actions[i]);
+		actionCounts.put(slot, (nextState != null) ? actions.length
+				: -actions.length - 1);
+		reinforcements.put(slot, reinforcement);
+		if (priorityTree != null)
+			setPriority(slot, maximumPriority);
+
+		next = (next + 1 == capacity) ? 0 : next + 1;
+		if (size < capacity)
+			size++;
+		return slot;
+	}
+
+	/**
+	 * Samples slots of transitions held by this buffer, with replacement,
+	 * either uniformly or in proportion to their priorities. Prioritized
+	 * samples are stratified: the range of cumulative priority is divided
+	 * into equal segments and one slot is sampled from each.
+	 * 
+	 * @param random
+	 *            the source of randomness
+	 * @param slots
+	 *            the array receiving the sampled slots
+	 * @param count
+	 *            the number of slots to sample
+	 * @throws NullPointerException
+	 *             if {@code random} or {@code slots} is null
+	 * @throws IllegalStateException
+	 *             if this buffer is empty
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code count} is negative or greater than the length of
+	 *             {@code slots}
+	 */
+	public void sample(Random random, int[] slots, int count)
+			throws NullPointerException, IllegalStateException,
+			IndexOutOfBoundsException {
+		if (random == null || slots == null)
+			throw new NullPointerException();
+		if (count < 0 || count > slots.length)
+			throw new IndexOutOfBoundsException();
+		if (size == 0)
+			throw new IllegalStateException();
+		if (priorityTree == null) {
+			for (int i = 0; i < count; i++)
+				slots[i] = random.nextInt(size);
+			return;
+		}
+		double segment = priorityTree[1] / count;
+		for (int i = 0; i < count; i++) {
+			double value = (i + random.nextDouble()) * segment;
+			int node = 1;
+			while (node < leafCount) {
+				int left = node << 1;
+				if (value < priorityTree[left] || priorityTree[left + 1] == 0)
+					node = left;
+				else {
+					value -= priorityTree[left];
+					node = left + 1;
+				}
+			}
+			// Rounding may descend to an empty leaf past the held transitions
+			slots[i] = Math.min(node - leafCount, size - 1);
+		}
+	}
+
+	/**
+	 * Sets the priority of the specified transition from the error of its
+	 * latest training update. Has no effect on a uniform buffer.
+	 * 
+	 * @param slot
+	 *            the slot of the transition
+	 * @param error
+	 *            the error of the transition's latest training update
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code slot} does not hold a transition
+	 */
+	public void updatePriority(int slot, double error)
+			throws IndexOutOfBoundsException {
+		checkSlot(slot);
+		if (priorityTree == null)
+			return;
+		double priority = Math.pow(Math.abs(error) + PRIORITY_OFFSET,
+				priorityExponent);
+		if (!(priority < Double.POSITIVE_INFINITY))
+			priority = maximumPriority;
+		maximumPriority = Math.max(maximumPriority, priority);
+		setPriority(slot, priority);
+	}
+
+	/**
+	 * Calculates the importance weight of each of the specified sampled
+	 * transitions, {@code (size * P(slot))^-correctionExponent} normalized so
+	 * that the largest weight in the sample is 1, where {@code P(slot)} is the
+	 * probability of the transition being sampled. Scaling each transition's
+	 * training error by its weight removes the bias of prioritized sampling.
+	 * The weights of a uniform buffer are all 1.
+	 * 
+	 * @param slots
+	 *            the sampled slots
+	 * @param count
+	 *            the number of sampled slots
+	 * @param weights
+	 *            the array receiving the weight of each sampled transition
+	 * @throws IndexOutOfBoundsException
+	 *             if a slot does not hold a transition, or if either array is
+	 *             shorter than {@code count}
+	 */
+	public void getImportanceWeights(int[] slots, int count, double[] weights)
+			throws IndexOutOfBoundsException {
+		if (count > slots.length || count > weights.length)
+			throw new IndexOutOfBoundsException();
+		double largest = 0;
+		for (int i = 0; i < count; i++) {
+			checkSlot(slots[i]);
+			if (priorityTree == null || correctionExponent == 0)
+				weights[i] = 1;
+			else {
+				double probability = priorityTree[leafCount + slots[i]]
+						/ priorityTree[1];
+				weights[i] = Math.pow(size * probability, -correctionExponent);
+			}
+			largest = Math.max(largest, weights[i]);
+		}
+		for (int i = 0; i < count; i++)
+			weights[i] /= largest;
+	}
+
+	/**
+	 * Copies the state of the specified transition into the specified array.
+	 * Values beyond this buffer's state width are set to 0, and values beyond
+	 * the array's length are omitted.
+	 * 
+	 * @param slot
+	 *            the slot of the transition
+	 * @param state
+	 *            the array receiving the state
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code slot} does not hold a transition
+	 */
+	public void getState(int slot, double[] state)
+			throws IndexOutOfBoundsException {
+		checkSlot(slot);
+		copyState(states, slot, state);
+	}
+
+	/**
+	 * Copies the next state of the specified transition into the specified
+	 * array, as by {@link #getState(int, double[])}, if it has one.
+	 * 
+	 * @param slot
+	 *            the slot of the transition
+	 * @param state
+	 *            the array receiving the next state
+	 * @return true if the transition has a next state, false if its
+	 *         reinforcement is final and the array was not changed
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code slot} does not hold a transition
+	 */
+	public boolean getNextState(int slot, double[] state)
+			throws IndexOutOfBoundsException {
+		checkSlot(slot);
+		if (actionCounts.get(slot) < 0)
+			return false;
+		copyState(nextStates, slot, state);
+		return true;
+	}
+
+	/**
+	 * Returns the number of actions taken in the specified transition.
+	 * 
+	 * @param slot
+	 *            the slot of the transition
+	 * @return the transition's action count
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code slot} does not hold a transition
+	 */
+	public int getActionCount(int slot) throws IndexOutOfBoundsException {
+		checkSlot(slot);
+		int count = actionCounts.get(slot);
+		return (count < 0) ? -count - 1 : count;
+	}
+
+	/**
+	 * Returns an action taken in the specified transition.
+	 * 
+	 * @param slot
+	 *            the slot of the transition
+	 * @param index
+	 *            the index of the action among the transition's actions
+	 * @return the action
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code slot} does not hold a transition or {@code index}
+	 *             is out of range of its actions
+	 */
+	public int getAction(int slot, int index) throws IndexOutOfBoundsException {
+		if (index < 0 || index >= getActionCount(slot))
+			throw new IndexOutOfBoundsException();
+		return actions.get((slot * actionWidth) + index);
+	}
+
+	/**
+	 * Returns the reinforcement received in the specified transition.
+	 * 
+	 * @param slot
+	 *            the slot of the transition
+	 * @return the transition's reinforcement
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code slot} does not hold a transition
+	 */
+	public double getReinforcement(int slot) throws IndexOutOfBoundsException {
+		checkSlot(slot);
+		return reinforcements.get(slot);
+	}
+
+	/**
+	 * Copies a state held in the specified buffer into the specified array.
+	 * 
+	 * @param buffer
+	 *            the buffer holding the state
+	 * @param slot
+	 *            the slot of the state's transition
+	 * @param state
+	 *            the array receiving the state
+	 */
+	private void copyState(FloatBuffer buffer, int slot, double[] state) {
+		int offset = slot * stateWidth;
+		int length = Math.min(stateWidth, state.length);
+		for (int i = 0; i < length; i++)
+			state[i] = buffer.get(offset + i);
+		for (int i = length; i < state.length; i++)
+			state[i] = 0;
+	}
+
+	/**
+	 * Checks that the specified slot holds a transition.
+	 * 
+	 * @param slot
+	 *            the slot being accessed
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code slot} does not hold a transition
+	 */
+	private void checkSlot(int slot) throws IndexOutOfBoundsException {
+		if (slot < 0 || slot >= size)
+			throw new IndexOutOfBoundsException();
+	}
+
+	/**
+	 * Sets the priority of the specified slot and updates the sums above it.
+	 * 
+	 * @param slot
+	 *            the slot whose priority is set
+	 * @param priority
+	 *            the new priority
+	 */
+	private void setPriority(int slot, double priority) {
+		int node = leafCount + slot;
+		priorityTree[node] = priority;
+		// Parents are recalculated rather than adjusted, so rounding errors do
+		// not accumulate
+		for (node >>= 1; node > 0; node >>= 1)
+			priorityTree[node] = priorityTree[node << 1]
+					+ priorityTree[(node << 1) + 1];
+	}
+
+	/**
+	 * Reallocates the state and action buffers with the specified widths,
+	 * copying the held transitions.
+	 * 
+	 * @param newStateWidth
+	 *            the new number of state values of each transition
+	 * @param newActionWidth
+	 *            the new maximum number of actions of each transition
+	 * @throws IllegalArgumentException
+	 *             if the buffers would be too large
+	 */
+	private void resize(int newStateWidth, int newActionWidth)
+			throws IllegalArgumentException {
+		if ((long) capacity * newStateWidth > Integer.MAX_VALUE / 4
+				|| (long) capacity * newActionWidth > Integer.MAX_VALUE / 4)
+			throw new IllegalArgumentException();
+		FloatBuffer newStates = allocateFloats(capacity * newStateWidth);
+		FloatBuffer newNextStates = allocateFloats(capacity * newStateWidth);
+		IntBuffer newActions = allocateInts(capacity * newActionWidth);
+		for (int slot = 0; slot < size; slot++) {
+			for (int i = 0; i < stateWidth; i++) {
+				newStates.put((slot * newStateWidth) + i,
+						states.get((slot * stateWidth) + i));
+				newNextStates.put((slot * newStateWidth) + i,
+						nextStates.get((slot * stateWidth) + i));
+			}
+			for (int i = 0; i < actionWidth; i++)
+				newActions.put((slot * newActionWidth) + i,
+						actions.get((slot * actionWidth) + i));
+		}
+		states = newStates;
+		nextStates = newNextStates;
+		actions = newActions;
+		stateWidth = newStateWidth;
+		actionWidth = newActionWidth;
+	}
+
+	/**
+	 * Allocates a zeroed buffer of {@code float} values in this buffer's
+	 * memory.
+	 * 
+	 * @param length
+	 *            the number of values
+	 * @return the new buffer
+	 */
+	private FloatBuffer allocateFloats(int length) {
+		if (offHeap)
+			return ByteBuffer.allocateDirect(4 * length)
+					.order(ByteOrder.nativeOrder()).asFloatBuffer();
+		return FloatBuffer.allocate(length);
+	}
+
+	/**
+	 * Allocates a zeroed buffer of {@code int} values in this buffer's
+	 * memory.
+	 * 
+	 * @param length
+	 *            the number of values
+	 * @return the new buffer
+	 */
+	private IntBuffer allocateInts(int length) {
+		if (offHeap)
+			return ByteBuffer.allocateDirect(4 * length)
+					.order(ByteOrder.nativeOrder()).asIntBuffer();
+		return IntBuffer.allocate(length);
+	}
+}
@@ -19,4 +19,93 @@ public interface DifferentiableFunction extends Function {
 	 * @return the resultant derivative that corresponds to the specified input
 	 */
 	public double differentiate(double input);
+
+	/**
+	 * Returns the result of this function given the specified input, and
+	 * stores the derivative of this function at the same input in the
+	 * specified array. The result and derivative are those that
+	 * {@link #function(double)} and {@link #differentiate(double)} would
+	 * return for the input.
+	 * <p>
+	 * Training needs both values for every node it evaluates. Functions whose
+	 * derivative can be calculated from their result (or whose result and
+	 * derivative share an expensive intermediate value) should override this
+	 * method to evaluate the function only once. The default implementation
+	 * calls {@code function} and {@code differentiate} separately.
+	 * 
+	 * @param input
+	 *            the input for the function
+	 * @param derivative
+	 *            the array the derivative is stored in
+	 * @param index
+	 *            the index in {@code derivative} the derivative is stored at
+	 * @return the result that corresponds to the specified input
+	 * @throws NullPointerException
+	 *             if {@code derivative} is null
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code index} is out of range of {@code derivative}
+	 */
+	public default double functionAndDerivative(double input,
+			double[] derivative, int index) throws NullPointerException,
+			IndexOutOfBoundsException {
+		derivative[index] = differentiate(input);
+		return function(input);
+	}
+
+	/**
+	 * Differentiates this function at each of the specified range of inputs,
+	 * storing the derivative at {@code in[i]} in {@code out[i]} for every
+	 * index {@code i} from {@code from} (inclusive) to {@code to} (exclusive).
+	 * The arrays may be the same array. The derivatives are identical to those
+	 * returned by {@link #differentiate(double)}.
+	 * 
+	 * @param in
+	 *            the array containing the inputs being differentiated
+	 * @param out
+	 *            the array receiving the derivatives
+	 * @param from
+	 *            the index of the first input
+	 * @param to
+	 *            the index after the last input
+	 * @throws NullPointerException
+	 *             if {@code in} or {@code out} is null
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified range is out of range of either array
+	 */
+	public default void differentiate(double[] in, double[] out, int from,
+			int to) throws NullPointerException, IndexOutOfBoundsException {
+		for (int i = from; i < to; i++)
+			out[i] = differentiate(in[i]);
+	}
+
+	/**
+	 * Applies and differentiates this function at each of the specified range
+	 * of inputs, storing the result at {@code in[i]} in {@code out[i]} and
+	 * the derivative in {@code derivatives[i]} for every index {@code i} from
+	 * {@code from} (inclusive) to {@code to} (exclusive). {@code out} may be
+	 * the same array as {@code in}, but {@code derivatives} must be a
+	 * different array from both.
+	 * 
+	 * @param in
+	 *            the array containing the inputs for the function
+	 * @param out
+	 *            the array receiving the results
+	 * @param derivatives
+	 *            the array receiving the derivatives
+	 * @param from
+	 *            the index of the first input
+	 * @param to
+	 *            the index after the last input
+	 * @throws NullPointerException
+	 *             if {@code in}, {@code out}, or {@code derivatives} is null
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified range is out of range of any of the arrays
+	 * @see #functionAndDerivative(double, double[], int)
+	 */
+	public default void functionAndDerivative(double[] in, double[] out,
+			double[] derivatives, int from, int to)
+			throws NullPointerException, IndexOutOfBoundsException {
+		for (int i = from; i < to; i++)
+			out[i] = functionAndDerivative(in[i], derivatives, i);
+	}
 }
@@ -4,6 +4,12 @@ package caseengine.function;
  * A mathematical function. Implementing classes must override
  * {@link #function(double)}, the method that provides the result when given an
  * input.
+ * <p>
+ * Functions are usually applied to many inputs at once - for example, to the
+ * net inputs of every node in a network layer. Implementing classes may
+ * override {@link #function(double[], double[], int, int)} with a loop that
+ * does not dispatch on each input, but its results must be identical to those
+ * of {@code function(double)}.
  * 
  * @author Charlie Morley
  *
@@ -18,4 +24,30 @@ public interface Function {
 	 * @return the result that corresponds to the specified input
 	 */
 	public double function(double input);
+
+	/**
+	 * Applies this function to each of the specified range of inputs, storing
+	 * the result of {@code in[i]} in {@code out[i]} for every index {@code i}
+	 * from {@code from} (inclusive) to {@code to} (exclusive). The arrays may
+	 * be the same array, in which case the inputs are replaced by their
+	 * results.
+	 * 
+	 * @param in
+	 *            the array containing the inputs for the function
+	 * @param out
+	 *            the array receiving the results
+	 * @param from
+	 *            the index of the first input
+	 * @param to
+	 *            the index after the last input
+	 * @throws NullPointerException
+	 *             if {@code in} or {@code out} is null
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified range is out of range of either array
+	 */
+	public default void function(double[] in, double[] out, int from, int to)
+			throws NullPointerException, IndexOutOfBoundsException {
+		for (int i = from; i < to; i++)
+			out[i] = function(in[i]);
+	}
 }
@@ -50,6 +50,24 @@ public final class LinearFunction implements DifferentiableFunction {
 		this(slope, point.getY() - (slope * point.getX()));
 	}
 
+	/**
+	 * Returns the constant slope of this function.
+	 * 
+	 * @return the slope of this function, {@code m}
+	 */
+	public double getSlope() {
+		return slope;
+	}
+
+	/**
+	 * Returns the constant offset of this function.
+	 * 
+	 * @return the offset of this function, {@code b}
+	 */
+	public double getOffset() {
+		return offset;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p>
@@ -77,4 +95,35 @@ public final class LinearFunction implements DifferentiableFunction {
 		return slope;
 	}
 
+	@Override
+	public double functionAndDerivative(double input, double[] derivative,
+			int index) throws NullPointerException, IndexOutOfBoundsException {
+		derivative[index] = slope;
+		return (slope * input) + offset;
+	}
+
+	@Override
+	public void function(double[] in, double[] out, int from, int to)
+			throws NullPointerException, IndexOutOfBoundsException {
+		for (int i = from; i < to; i++)
+			out[i] = (slope * in[i]) + offset;
+	}
+
+	@Override
+	public void differentiate(double[] in, double[] out, int from, int to)
+			throws NullPointerException, IndexOutOfBoundsException {
+		for (int i = from; i < to; i++)
+			out[i] = slope;
+	}
+
+	@Override
+	public void functionAndDerivative(double[] in, double[] out,
+			double[] derivatives, int from, int to)
+			throws NullPointerException, IndexOutOfBoundsException {
+		for (int i = from; i < to; i++) {
+			out[i] = (slope * in[i]) + offset;
+			derivatives[i] = slope;
+		}
+	}
+
 }
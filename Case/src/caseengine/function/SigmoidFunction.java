@@ -3,12 +3,84 @@ package caseengine.function;
 /**
  * The sigmoid function - equal to the expression {@code 1 / (1 + }<span
  * style="font-style:italic;">e</span>{@code ^-x)}.
+ * <p>
+ * A sigmoid function may be constructed in an approximate "fast math" mode,
+ * in which results are interpolated from a precomputed table rather than
+ * calculated with an exponential. Approximate results are within
+ * {@value #APPROXIMATION_ERROR} of the exact results (and derivatives within
+ * the same bound of the exact derivatives), are monotonic, are symmetric about
+ * {@code (0, 0.5)}, and stay within {@code [0, 1]}. The exact mode is the
+ * default.
  * 
  * @author Charlie Morley
  *
  */
 public final class SigmoidFunction implements DifferentiableFunction {
 
+	/**
+	 * The maximum absolute difference between an approximate result (or
+	 * derivative) of a {@code SigmoidFunction} and the exact result (or
+	 * derivative) at the same input.
+	 */
+	public static final double APPROXIMATION_ERROR = 3.0E-6;
+
+	/**
+	 * The number of table entries per unit of input.
+	 */
+	private static final int TABLE_RESOLUTION = 64;
+
+	/**
+	 * The input beyond which approximate results are saturated. The exact
+	 * result at this input differs from 1 by less than 1.2E-7.
+	 */
+	private static final int TABLE_RANGE = 16;
+
+	/**
+	 * The exact results of the sigmoid function at the non-negative inputs
+	 * {@code i / TABLE_RESOLUTION}, up to and including {@code TABLE_RANGE}.
+	 */
+	private static final double[] TABLE = new double[(TABLE_RANGE * TABLE_RESOLUTION) + 1];
+
+	static {
+		for (int i = 0; i < TABLE.length; i++)
+			TABLE[i] = 1.0 / (1.0 + Math.exp(-((double) i / TABLE_RESOLUTION)));
+	}
+
+	/**
+	 * Whether this function's results are interpolated from the table.
+	 */
+	private final boolean approximate;
+
+	/**
+	 * Constructs a sigmoid function that calculates exact results.
+	 */
+	public SigmoidFunction() {
+		this(false);
+	}
+
+	/**
+	 * Constructs a sigmoid function that calculates either exact or
+	 * approximate results.
+	 * 
+	 * @param approximate
+	 *            whether the function interpolates its results from a table,
+	 *            which is faster but only accurate to within
+	 *            {@value #APPROXIMATION_ERROR}
+	 */
+	public SigmoidFunction(boolean approximate) {
+		this.approximate = approximate;
+	}
+
+	/**
+	 * Returns whether this function approximates its results.
+	 * 
+	 * @return true if this function's results are interpolated from a table,
+	 *         false if they are exact
+	 */
+	public boolean isApproximate() {
+		return approximate;
+	}
+
 	/**
 	 * {@inheritDoc}
 	 * <p>
@@ -23,7 +95,9 @@ public final class SigmoidFunction implements DifferentiableFunction {
 	 */
 	@Override
 	public double function(double input) {
-		return 1.0 / (1.0 + (Math.pow(Math.E, -input)));
+		if (approximate)
+			return approximate(input);
+		return 1.0 / (1.0 + Math.exp(-input));
 	}
 
 	/**
@@ -39,4 +113,71 @@ public final class SigmoidFunction implements DifferentiableFunction {
 		return function * (1.0 - function);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 * <p>
+	 * The {@code SigmoidFunction} calculates its derivative from its result,
+	 * so the function is only evaluated once.
+	 */
+	@Override
+	public double functionAndDerivative(double input, double[] derivative,
+			int index) throws NullPointerException, IndexOutOfBoundsException {
+		double function = function(input);
+		derivative[index] = function * (1.0 - function);
+		return function;
+	}
+
+	@Override
+	public void function(double[] in, double[] out, int from, int to)
+			throws NullPointerException, IndexOutOfBoundsException {
+		if (approximate)
+			for (int i = from; i < to; i++)
+				out[i] = approximate(in[i]);
+		else
+			for (int i = from; i < to; i++)
+				out[i] = 1.0 / (1.0 + Math.exp(-in[i]));
+	}
+
+	@Override
+	public void differentiate(double[] in, double[] out, int from, int to)
+			throws NullPointerException, IndexOutOfBoundsException {
+		function(in, out, from, to);
+		for (int i = from; i < to; i++)
+			out[i] = out[i] * (1.0 - out[i]);
+	}
+
+	@Override
+	public void functionAndDerivative(double[] in, double[] out,
+			double[] derivatives, int from, int to)
+			throws NullPointerException, IndexOutOfBoundsException {
+		function(in, out, from, to);
+		for (int i = from; i < to; i++)
+			derivatives[i] = out[i] * (1.0 - out[i]);
+	}
+
+	/**
+	 * Returns the result of the sigmoid function at the specified input,
+	 * linearly interpolated between the two nearest table entries.
+	 * 
+	 * @param input
+	 *            the input for the function
+	 * @return the approximate result that corresponds to the specified input
+	 */
+	private static double approximate(double input) {
+		double magnitude = Math.abs(input);
+		double result;
+		if (magnitude < TABLE_RANGE) {
+			double position = magnitude * TABLE_RESOLUTION;
+			int entry = (int) position;
+			double lower = TABLE[entry];
+			result = lower + ((position - entry) * (TABLE[entry + 1] - lower));
+		} else if (magnitude >= TABLE_RANGE)
+			result = TABLE[TABLE.length - 1];
+		else
+			// NaN
+			return input;
+		// The sigmoid function is symmetric: f(-x) = 1 - f(x)
+		return (input < 0) ? 1.0 - result : result;
+	}
+
 }
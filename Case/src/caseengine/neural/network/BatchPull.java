@@ -0,0 +1,214 @@
+package caseengine.neural.network;
+
+import java.util.concurrent.RecursiveAction;
+
+import caseengine.function.Function;
+import caseengine.neural.node.FunctionalNode;
+import caseengine.neural.node.WeightMatrix;
+
+/**
+ * A pull of a batch of input vectors through a {@link LayeredNetwork} whose
+ * layers are all dense and made of {@link caseengine.neural.node.FunctionalNode
+ * FunctionalNodes}. Each layer is evaluated for a block of samples at a time as
+ * a matrix-matrix product of the block's activations and the layer's weight
+ * matrix, followed by the layer's activation functions.
+ * <p>
+ * Large batches are split into sub-tasks to be evaluated in parallel by a
+ * {@link java.util.concurrent.ForkJoinPool ForkJoinPool}. Every product is
+ * calculated by the layer's {@link caseengine.neural.node.DotProductKernel
+ * DotProductKernel}, so the outputs are identical to those of a single-vector
+ * pull.
+ * <p>
+ * When the layers are single-precision, the activations fed into each layer
+ * are rounded to {@code float} values, as they are in a single-vector pull, so
+ * the activation buffers of a single-precision pull are {@code float[]}.
+ * 
+ * @author Charlie Morley
+ *
+ */
+@SuppressWarnings("serial")
+final class BatchPull extends RecursiveAction {
+
+	/**
+	 * The number of samples evaluated together through each layer.
+	 */
+	static final int BLOCK_SIZE = 64;
+
+	/**
+	 * The number of samples above which a batch is split into sub-tasks that
+	 * are evaluated in parallel.
+	 */
+	static final int PARALLEL_THRESHOLD = 256;
+
+	/**
+	 * The weight matrices of the layers being evaluated.
+	 */
+	private final WeightMatrix[] matrices;
+
+	/**
+	 * The number of nodes in each evaluated layer - index 0 is the input
+	 * layer, index {@code (i + 1)} is general layer {@code i}.
+	 */
+	private final int[] widths;
+
+	/**
+	 * The nodes of each evaluated general layer, whose activation functions
+	 * are applied to their net inputs.
+	 */
+	private final FunctionalNode[][] nodes;
+
+	/**
+	 * The activation function shared by the nodes of each evaluated general
+	 * layer, or null for layers whose nodes' functions differ.
+	 */
+	private final Function[] functions;
+
+	/**
+	 * The input vectors of the batch.
+	 */
+	private final double[][] inputs;
+
+	/**
+	 * The arrays receiving the outputs of the batch.
+	 */
+	private final double[][] outputs;
+
+	/**
+	 * The index of the first sample evaluated by this task.
+	 */
+	private final int from;
+
+	/**
+	 * The index after the last sample evaluated by this task.
+	 */
+	private final int to;
+
+	/**
+	 * Constructs a task that evaluates the specified range of samples.
+	 * 
+	 * @param matrices
+	 *            the weight matrices of the evaluated layers
+	 * @param widths
+	 *            the number of nodes in the input layer and each evaluated
+	 *            layer
+	 * @param nodes
+	 *            the nodes of each evaluated general layer
+	 * @param functions
+	 *            the activation function shared by the nodes of each
+	 *            evaluated general layer, or null for layers without one
+	 * @param inputs
+	 *            the input vectors of the batch
+	 * @param outputs
+	 *            the arrays receiving the outputs of the batch
+	 * @param from
+	 *            the index of the first sample to be evaluated
+	 * @param to
+	 *            the index after the last sample to be evaluated
+	 */
+	BatchPull(WeightMatrix[] matrices, int[] widths,
+			FunctionalNode[][] nodes, Function[] functions, double[][] inputs,
+			double[][] outputs, int from, int to) {
+		this.matrices = matrices;
+		this.widths = widths;
+		this.nodes = nodes;
+		this.functions = functions;
+		this.inputs = inputs;
+		this.outputs = outputs;
+		this.from = from;
+		this.to = to;
+	}
+
+	@Override
+	protected void compute() {
+		if (to - from > PARALLEL_THRESHOLD) {
+			int middle = (from + to) >>> 1;
+			invokeAll(new BatchPull(matrices, widths, nodes, functions,
+					inputs, outputs, from, middle), new BatchPull(matrices,
+					widths, nodes, functions, inputs, outputs, middle, to));
+		} else {
+			int size = BLOCK_SIZE * getMaximumWidth();
+			evaluate(new double[size], new double[size],
+					isSinglePrecision() ? new float[size] : null);
+		}
+	}
+
+	/**
+	 * Returns whether the evaluated layers are single-precision.
+	 * 
+	 * @return true if the weight matrices of the evaluated layers are
+	 *         single-precision
+	 */
+	boolean isSinglePrecision() {
+		return matrices.length > 0 && matrices[0].isSinglePrecision();
+	}
+
+	/**
+	 * Returns the number of nodes in the widest evaluated layer.
+	 * 
+	 * @return the maximum of {@link #widths}
+	 */
+	int getMaximumWidth() {
+		int maximum = 0;
+		for (int width : widths)
+			maximum = Math.max(maximum, width);
+		return maximum;
+	}
+
+	/**
+	 * Evaluates this task's samples block by block using the specified scratch
+	 * buffers, each of which must hold {@code BLOCK_SIZE * getMaximumWidth()}
+	 * values.
+	 * 
+	 * @param activations
+	 *            a scratch buffer for a block's layer activations
+	 * @param netInputs
+	 *            a scratch buffer for a block's layer net inputs
+	 * @param singleActivations
+	 *            a scratch buffer for a block's layer activations rounded to
+	 *            single precision - unused (and may be null) if the evaluated
+	 *            layers are double-precision
+	 */
+	void evaluate(double[] activations, double[] netInputs,
+			float[] singleActivations) {
+		int inputWidth = widths[0];
+		boolean single = isSinglePrecision();
+		for (int blockStart = from; blockStart < to; blockStart += BLOCK_SIZE) {
+			int samples = Math.min(BLOCK_SIZE, to - blockStart);
+			for (int s = 0; s < samples; s++) {
+				double[] input = inputs[blockStart + s];
+				int length = Math.min(input.length, inputWidth);
+				System.arraycopy(input, 0, activations, s * inputWidth, length);
+				for (int i = length; i < inputWidth; i++)
+					activations[(s * inputWidth) + i] = 0;
+			}
+			for (int layer = 0; layer < nodes.length; layer++) {
+				int rows = widths[layer + 1];
+				WeightMatrix matrix = matrices[layer];
+				if (single) {
+					for (int i = 0; i < samples * widths[layer]; i++)
+						singleActivations[i] = (float) activations[i];
+					matrix.getKernel().multiply(matrix.getSingleWeights(),
+							matrix.getStride(), rows, widths[layer],
+							singleActivations, netInputs, samples);
+				} else
+					matrix.getKernel().multiply(matrix.getWeights(),
+							matrix.getStride(), rows, widths[layer],
+							activations, netInputs, samples);
+				if (functions[layer] != null) {
+					functions[layer].function(netInputs, activations, 0,
+							samples * rows);
+					continue;
+				}
+				FunctionalNode[] layerNodes = nodes[layer];
+				for (int s = 0; s < samples; s++)
+					for (int r = 0; r < rows; r++)
+						activations[(s * rows) + r] = layerNodes[r]
+								.getOutput(netInputs[(s * rows) + r]);
+			}
+			int outputWidth = widths[widths.length - 1];
+			for (int s = 0; s < samples; s++)
+				System.arraycopy(activations, s * outputWidth,
+						outputs[blockStart + s], 0, outputWidth);
+		}
+	}
+}
@@ -0,0 +1,137 @@
+package caseengine.neural.network;
+
+import java.util.function.ToDoubleFunction;
+
+import caseengine.neural.node.Node;
+
+/**
+ * The evaluation buffers of a caller pulling values through a
+ * {@link LayeredNetwork}. A context holds the outputs and net inputs of every
+ * node in the network as evaluated during the latest pull made with it, along
+ * with the scratch buffers of batch pulls.
+ * <p>
+ * Pulls made with a context read the network's weights but never write to the
+ * network or its nodes - in particular, they do not set the outputs of the
+ * network's input nodes, so every node pulled must be a
+ * {@link caseengine.neural.node.FunctionalNode FunctionalNode}. Any number of
+ * threads may therefore pull through one network at the same time without
+ * locking, as long as each thread uses its own context and the network is not
+ * modified during the pulls. A context
+ * itself must not be used by more than one thread at a time.
+ * <p>
+ * Contexts are created by {@link LayeredNetwork#newInferenceContext()} and can
+ * only be used with the network that created them. A context adjusts its
+ * buffers automatically when the structure of its network changes.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class InferenceContext {
+
+	/**
+	 * The network this context pulls values through.
+	 */
+	private final LayeredNetwork network;
+
+	/**
+	 * The layout of the network that this context's buffers are sized for.
+	 */
+	private LayeredNetwork.Layout layout;
+
+	/**
+	 * The outputs of the network's nodes evaluated during the latest pull,
+	 * indexed by the layout's node indices.
+	 */
+	double[] outputs = new double[0];
+
+	/**
+	 * The net inputs of the network's general layer nodes evaluated during
+	 * the latest pull, indexed by the layout's node indices.
+	 */
+	double[] netInputs = new double[0];
+
+	/**
+	 * The scratch buffers of batch pulls evaluated on the calling thread.
+	 */
+	double[] batchActivations = new double[0], batchNetInputs = new double[0];
+
+	/**
+	 * The scratch buffer of the rounded activations of single-precision batch
+	 * pulls evaluated on the calling thread, or null if the network is
+	 * double-precision.
+	 */
+	float[] batchSingleActivations;
+
+	/**
+	 * The number of nodes at the start of {@link #outputs} that have been
+	 * evaluated during the current pull.
+	 */
+	int evaluatedCount;
+
+	/**
+	 * Supplies node outputs during a pull: the network's input nodes and the
+	 * nodes that have already been evaluated are read from {@link #outputs},
+	 * all other nodes are asked for their output.
+	 */
+	final ToDoubleFunction<Node> bufferedOutputs = new ToDoubleFunction<Node>() {
+		@Override
+		public double applyAsDouble(Node node) {
+			Integer index = layout.nodeIndices.get(node);
+			if (index != null && index < evaluatedCount)
+				return outputs[index];
+			return node.getOutput();
+		}
+	};
+
+	/**
+	 * Constructs a context for pulling values through the specified network.
+	 * 
+	 * @param network
+	 *            the network this context is used with
+	 */
+	InferenceContext(LayeredNetwork network) {
+		this.network = network;
+	}
+
+	/**
+	 * Returns the network this context pulls values through.
+	 * 
+	 * @return the network that created this context
+	 */
+	public LayeredNetwork getNetwork() {
+		return network;
+	}
+
+	/**
+	 * Sizes this context's evaluation buffers for the specified layout, if
+	 * they are not already.
+	 * 
+	 * @param layout
+	 *            the current layout of this context's network
+	 * @return the layout this context is now sized for
+	 */
+	LayeredNetwork.Layout prepare(LayeredNetwork.Layout layout) {
+		if (this.layout != layout) {
+			outputs = new double[layout.getNodeCount()];
+			netInputs = new double[layout.getNodeCount()];
+			this.layout = layout;
+		}
+		return layout;
+	}
+
+	/**
+	 * Ensures the batch scratch buffers of this context hold at least the
+	 * specified number of values.
+	 * 
+	 * @param size
+	 *            the required size of each scratch buffer
+	 */
+	void prepareBatch(int size) {
+		if (batchActivations.length < size) {
+			batchActivations = new double[size];
+			batchNetInputs = new double[size];
+			if (network.isSinglePrecision())
+				batchSingleActivations = new float[size];
+		}
+	}
+}
@@ -2,9 +2,15 @@ package caseengine.neural.network;
 
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.concurrent.ForkJoinPool;
 
+import caseengine.function.Function;
 import caseengine.neural.node.ConnectableNode;
+import caseengine.neural.node.DotProductKernel;
+import caseengine.neural.node.FunctionalNode;
 import caseengine.neural.node.Node;
+import caseengine.neural.node.WeightMatrix;
 
 /**
  * A feed-forward neural network consisting of ordered "layers" of
@@ -27,6 +33,27 @@ import caseengine.neural.node.Node;
  * Each network contains a minimum of one general layer. Only nodes specifically
  * added appear in each layer, connected to nodes in adjacent layers using
  * {@link ConnectionScheme ConnectionSchemes}.
+ * <p>
+ * A pull evaluates the network layer by layer: each node in the network is
+ * evaluated exactly once per pull, and nodes read the outputs of preceding
+ * network nodes from a buffer of the outputs already evaluated during the pull
+ * rather than re-evaluating them recursively. The values returned are the same
+ * as those returned by the nodes' own {@link ConnectableNode#getOutput()
+ * getOutput} during the pull.
+ * <p>
+ * The connections between each general layer and the layer preceding it are
+ * stored densely in a {@link caseengine.neural.node.WeightMatrix WeightMatrix}
+ * whose rows are the layer's nodes and whose columns are the preceding layer's
+ * nodes, so each node's net input is a dot product over contiguous arrays. A
+ * node that is already a row of another matrix (for example, a node shared
+ * with another network) keeps its connections from this network itself.
+ * <p>
+ * A network may be constructed in single precision, in which case its weight
+ * matrices store {@code float} weights and calculate their weighted sums in
+ * single precision. This halves the memory occupied by the weights (and the
+ * memory traffic of evaluating them) at the cost of roughly seven significant
+ * digits of precision. The precision of a network cannot be changed once it
+ * is constructed.
  * 
  * @author Charlie Morley
  *
@@ -45,6 +72,34 @@ public class LayeredNetwork {
 	 */
 	private ArrayList<InputNode> inputs = new ArrayList<InputNode>();
 
+	/**
+	 * The weight matrices of this network's general layers - the matrix at
+	 * index {@code i} holds the connections from the layer preceding general
+	 * layer {@code i} to the nodes of general layer {@code i}.
+	 */
+	private ArrayList<WeightMatrix> matrices = new ArrayList<WeightMatrix>();
+
+	/**
+	 * Whether the weight matrices of this network are single-precision.
+	 */
+	private final boolean singlePrecision;
+
+	/**
+	 * The kernel used by the weight matrices of this network.
+	 */
+	private DotProductKernel kernel = DotProductKernel.SEQUENTIAL;
+
+	/**
+	 * The layout of this network's nodes in evaluation buffers, or null if the
+	 * structure of this network changed since it was last built.
+	 */
+	private volatile Layout layout;
+
+	/**
+	 * The context used by the pulls that do not specify one.
+	 */
+	private final InferenceContext defaultContext = new InferenceContext(this);
+
 	/**
 	 * Constructs a {@code LayeredNetwork} with one input layer and one general
 	 * layer.
@@ -63,10 +118,38 @@ public class LayeredNetwork {
 	 *            less than one
 	 */
 	public LayeredNetwork(int layerCount) {
+		this(layerCount, false);
+	}
+
+	/**
+	 * Constructs a {@code LayeredNetwork} with one input layer, the specified
+	 * number of general layers, and the specified precision. If a number of
+	 * general layers less than one is specified, the network is constructed
+	 * with one general layer.
+	 * 
+	 * @param layerCount
+	 *            the number of general layers in this network - set to one if
+	 *            less than one
+	 * @param singlePrecision
+	 *            whether the network's connection weights are stored and
+	 *            summed in single precision rather than double precision
+	 */
+	public LayeredNetwork(int layerCount, boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
 		if (layerCount < 1)
 			layerCount = 1;
 		for (; layerCount > 0; layerCount--)
-			network.add(new ArrayList<ConnectableNode>());
+			addLayer();
+	}
+
+	/**
+	 * Returns whether the connection weights of this network are stored and
+	 * summed in single precision.
+	 * 
+	 * @return true if this network's weight matrices are single-precision
+	 */
+	public boolean isSinglePrecision() {
+		return singlePrecision;
 	}
 
 	/**
@@ -84,7 +167,14 @@ public class LayeredNetwork {
 	 * network's set of general layers.
 	 */
 	public void addLayer() {
+		WeightMatrix matrix = new WeightMatrix(singlePrecision);
+		matrix.setKernel(kernel);
+		if (network.size() > 0)
+			for (ConnectableNode node : network.get(network.size() - 1))
+				matrix.addSource(node);
 		network.add(new ArrayList<ConnectableNode>());
+		matrices.add(matrix);
+		layout = null;
 	}
 
 	/**
@@ -111,6 +201,90 @@ public class LayeredNetwork {
 		}
 	}
 
+	/**
+	 * Returns the weight matrix holding the connections from the layer
+	 * preceding the specified general layer to the nodes of the specified
+	 * general layer. The matrix's columns are the nodes of the preceding layer
+	 * (the input layer for general layer 0) in order, and its rows are the
+	 * nodes of the specified layer in order - except for nodes that were
+	 * already a row of another matrix when added to this network, which do not
+	 * appear in the matrix.
+	 * <p>
+	 * The matrix should only be used to read and write connection weights -
+	 * its structure is managed by this network.
+	 * 
+	 * @param index
+	 *            the index of the general layer whose input connections are
+	 *            returned
+	 * @return the weight matrix of the specified general layer
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified index is out of the range of general layers
+	 *             {@code (index < 0 || index >= getLayerCount())}
+	 */
+	public WeightMatrix getWeightMatrix(int index)
+			throws IndexOutOfBoundsException {
+		if (index < 0 || index >= network.size())
+			throw new IndexOutOfBoundsException();
+		return matrices.get(index);
+	}
+
+	/**
+	 * Returns the kernel used to calculate the weighted sums of this network's
+	 * weight matrices.
+	 * 
+	 * @return this network's dot product kernel
+	 */
+	public DotProductKernel getKernel() {
+		return kernel;
+	}
+
+	/**
+	 * Sets the kernel used to calculate the weighted sums of this network's
+	 * weight matrices, including those of layers added later. By default,
+	 * networks use {@link DotProductKernel#SEQUENTIAL}. Kernels with more
+	 * lanes are faster for wide layers, but sum the weighted inputs of each
+	 * node in a different order, so results may differ in the last bits from
+	 * those of the sequential kernel (see {@link DotProductKernel}).
+	 * 
+	 * @param kernel
+	 *            the new dot product kernel of this network
+	 * @throws NullPointerException
+	 *             if {@code kernel} is null
+	 */
+	public void setKernel(DotProductKernel kernel) throws NullPointerException {
+		if (kernel == null)
+			throw new NullPointerException();
+		this.kernel = kernel;
+		for (WeightMatrix matrix : matrices)
+			matrix.setKernel(kernel);
+	}
+
+	/**
+	 * Returns whether every node in the specified general layer is stored, in
+	 * layer order, as the rows of the layer's
+	 * {@link #getWeightMatrix(int) weight matrix}. The connections of a dense
+	 * layer from its preceding layer can be accessed entirely through the
+	 * matrix by node index.
+	 * 
+	 * @param index
+	 *            the index of the general layer being checked
+	 * @return {@code true} if the matrix of the specified layer contains every
+	 *         node in the layer as its rows in order
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified index is out of the range of general layers
+	 *             {@code (index < 0 || index >= getLayerCount())}
+	 */
+	public boolean isDense(int index) throws IndexOutOfBoundsException {
+		WeightMatrix matrix = getWeightMatrix(index);
+		ArrayList<ConnectableNode> layer = network.get(index);
+		if (matrix.getRowCount() != layer.size())
+			return false;
+		for (int i = 0; i < layer.size(); i++)
+			if (matrix.getRow(i) != layer.get(i))
+				return false;
+		return true;
+	}
+
 	/**
 	 * Adds a new node to this network's input layer and connects it to the
 	 * nodes currently in general layer of index 0 using the specified
@@ -126,10 +300,12 @@ public class LayeredNetwork {
 		if (scheme == null)
 			throw new NullPointerException();
 		InputNode newNode = new InputNode();
+		matrices.get(0).addSource(newNode);
 		for (ConnectableNode output : network.get(0))
 			output.setConnection(newNode,
 					scheme.generateWeight(newNode, output));
 		inputs.add(newNode);
+		layout = null;
 	}
 
 	/**
@@ -183,6 +359,9 @@ public class LayeredNetwork {
 			throw new NullPointerException();
 		if (layerIndex < 0 || layerIndex >= network.size())
 			throw new IndexOutOfBoundsException();
+		matrices.get(layerIndex).addRow(node);
+		if (layerIndex < network.size() - 1)
+			matrices.get(layerIndex + 1).addSource(node);
 		for (Node input : (layerIndex == 0) ? inputs : network
 				.get(layerIndex - 1))
 			node.setConnection(input, inputScheme.generateWeight(input, node));
@@ -191,6 +370,7 @@ public class LayeredNetwork {
 				output.setConnection(node,
 						outputScheme.generateWeight(node, output));
 		network.get(layerIndex).add(node);
+		layout = null;
 	}
 
 	/**
@@ -286,18 +466,12 @@ public class LayeredNetwork {
 			throws IndexOutOfBoundsException, NullPointerException {
 		if (inputs == null)
 			throw new NullPointerException();
-		if (outputLayer >= network.size())
+		if (outputLayer < 0 || outputLayer >= network.size())
 			throw new IndexOutOfBoundsException();
-		inputs = Arrays.copyOf(inputs, this.inputs.size());
-		for (int i = 0; i < this.inputs.size(); i++)
-			this.inputs.get(i).setOutput(inputs[i]);
-		ArrayList<ConnectableNode> outputs = network.get(outputLayer);
-		double[] values = new double[outputs.size()];
-		for (int i = 0; i < outputs.size(); i++)
-			values[i] = outputs.get(i).getOutput();
-		for (InputNode node : this.inputs)
-			node.resetOutput();
-		return values;
+		Layout layout = evaluate(defaultContext, inputs, outputLayer, true);
+		return Arrays.copyOfRange(defaultContext.outputs,
+				layout.layerOffsets[outputLayer + 1],
+				layout.layerOffsets[outputLayer + 2]);
 	}
 
 	/**
@@ -320,6 +494,257 @@ public class LayeredNetwork {
 		return pullOutputs(inputs, network.size() - 1);
 	}
 
+	/**
+	 * Pulls each of the specified input vectors through this network, storing
+	 * the outputs of the nodes in the specified general layer for each input
+	 * vector in the corresponding array of {@code outputs}. The values stored
+	 * are the same as those returned by {@link #pullOutputs(double[], int)}
+	 * for each input vector.
+	 * <p>
+	 * If every layer up to the specified layer is {@link #isDense(int) dense},
+	 * contains only {@link caseengine.neural.node.FunctionalNode
+	 * FunctionalNodes} and has no connections from outside this network, the
+	 * batch is evaluated without touching this network's input nodes: each
+	 * layer is evaluated for a block of input vectors at a time as a
+	 * matrix-matrix product, and batches larger than a few hundred input
+	 * vectors are split across the
+	 * {@link java.util.concurrent.ForkJoinPool#commonPool() common pool}.
+	 * Otherwise each input vector is pulled in turn.
+	 * 
+	 * @param inputs
+	 *            the input vectors to be "pulled" through this network - as in
+	 *            {@code pullOutputs}, missing values are 0 and extra values are
+	 *            ignored
+	 * @param outputLayer
+	 *            the index of the general layer of this network whose nodes'
+	 *            outputs are stored
+	 * @param outputs
+	 *            the arrays in which the outputs for each input vector are
+	 *            stored - {@code outputs[i]} receives the outputs for
+	 *            {@code inputs[i]}
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified output layer index is out of the range of
+	 *             general layers
+	 *             {@code (index < 0 || index >= getLayerCount())}
+	 * @throws NullPointerException
+	 *             if {@code inputs}, {@code outputs}, or any of their arrays
+	 *             are null
+	 * @throws IllegalArgumentException
+	 *             if there are fewer output arrays than input vectors, or if
+	 *             an output array is shorter than the specified layer
+	 */
+	public void pullOutputsBatch(double[][] inputs, int outputLayer,
+			double[][] outputs) throws IndexOutOfBoundsException,
+			NullPointerException, IllegalArgumentException {
+		if (inputs == null)
+			throw new NullPointerException();
+		pullOutputsBatch(defaultContext, inputs, inputs.length, outputLayer,
+				outputs, true);
+	}
+
+	/**
+	 * Pulls the first {@code count} of the specified input vectors through
+	 * this network, storing the outputs of the nodes in the specified general
+	 * layer for each input vector in the corresponding array of
+	 * {@code outputs}, as described in
+	 * {@link #pullOutputsBatch(double[][], int, double[][])}. The remaining
+	 * arrays are ignored, so buffers sized for the largest batch can be reused
+	 * for smaller ones.
+	 * 
+	 * @param inputs
+	 *            the input vectors to be "pulled" through this network
+	 * @param count
+	 *            the number of input vectors to be pulled
+	 * @param outputLayer
+	 *            the index of the general layer of this network whose nodes'
+	 *            outputs are stored
+	 * @param outputs
+	 *            the arrays in which the outputs for each input vector are
+	 *            stored - {@code outputs[i]} receives the outputs for
+	 *            {@code inputs[i]}
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified output layer index is out of the range of
+	 *             general layers
+	 *             {@code (index < 0 || index >= getLayerCount())}, or if
+	 *             {@code count} is negative or greater than the number of
+	 *             input vectors
+	 * @throws NullPointerException
+	 *             if {@code inputs}, {@code outputs}, or any of their first
+	 *             {@code count} arrays are null
+	 * @throws IllegalArgumentException
+	 *             if there are fewer than {@code count} output arrays, or if
+	 *             an output array is shorter than the specified layer
+	 */
+	public void pullOutputsBatch(double[][] inputs, int count,
+			int outputLayer, double[][] outputs)
+			throws IndexOutOfBoundsException, NullPointerException,
+			IllegalArgumentException {
+		pullOutputsBatch(defaultContext, inputs, count, outputLayer, outputs,
+				true);
+	}
+
+	/**
+	 * Pulls each of the specified input vectors through this network using
+	 * the specified context, storing the outputs of the nodes in the specified
+	 * general layer for each input vector in the corresponding array of
+	 * {@code outputs}. The batch is evaluated as described in
+	 * {@link #pullOutputsBatch(double[][], int, double[][])}, except that this
+	 * network's input nodes are never set, so every node evaluated must be a
+	 * {@link caseengine.neural.node.FunctionalNode FunctionalNode} (see
+	 * {@link #pullOutputs(InferenceContext, double[], int, double[])}).
+	 * 
+	 * @param context
+	 *            the context holding the caller's evaluation buffers
+	 * @param inputs
+	 *            the input vectors to be "pulled" through this network
+	 * @param outputLayer
+	 *            the index of the general layer of this network whose nodes'
+	 *            outputs are stored
+	 * @param outputs
+	 *            the arrays in which the outputs for each input vector are
+	 *            stored - {@code outputs[i]} receives the outputs for
+	 *            {@code inputs[i]}
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified output layer index is out of the range of
+	 *             general layers
+	 *             {@code (index < 0 || index >= getLayerCount())}
+	 * @throws NullPointerException
+	 *             if {@code context}, {@code inputs}, {@code outputs}, or any
+	 *             of their arrays are null
+	 * @throws IllegalArgumentException
+	 *             if {@code context} was not created by this network, if there
+	 *             are fewer output arrays than input vectors, if an output
+	 *             array is shorter than the specified layer, or if a node in or
+	 *             preceding the specified layer is not a
+	 *             {@code FunctionalNode}
+	 */
+	public void pullOutputsBatch(InferenceContext context, double[][] inputs,
+			int outputLayer, double[][] outputs)
+			throws IndexOutOfBoundsException, NullPointerException,
+			IllegalArgumentException {
+		checkContext(context);
+		if (inputs == null)
+			throw new NullPointerException();
+		pullOutputsBatch(context, inputs, inputs.length, outputLayer, outputs,
+				false);
+	}
+
+	/**
+	 * Pulls each of the specified input vectors through this network using
+	 * the specified context.
+	 * 
+	 * @param context
+	 *            the context holding the evaluation buffers
+	 * @param inputs
+	 *            the input vectors to be "pulled" through this network
+	 * @param count
+	 *            the number of input vectors to be pulled
+	 * @param outputLayer
+	 *            the index of the general layer whose outputs are stored
+	 * @param outputs
+	 *            the arrays in which the outputs for each input vector are
+	 *            stored
+	 * @param setInputNodes
+	 *            whether this network's input nodes output the values being
+	 *            pulled during the pull
+	 * @see #pullOutputsBatch(double[][], int, double[][])
+	 */
+	private void pullOutputsBatch(InferenceContext context,
+			double[][] inputs, int count, int outputLayer, double[][] outputs,
+			boolean setInputNodes) {
+		if (inputs == null || outputs == null)
+			throw new NullPointerException();
+		if (outputLayer < 0 || outputLayer >= network.size() || count < 0
+				|| count > inputs.length)
+			throw new IndexOutOfBoundsException();
+		if (outputs.length < count)
+			throw new IllegalArgumentException();
+		int outputCount = network.get(outputLayer).size();
+		for (int i = 0; i < count; i++) {
+			if (inputs[i] == null || outputs[i] == null)
+				throw new NullPointerException();
+			if (outputs[i].length < outputCount)
+				throw new IllegalArgumentException();
+		}
+
+		FunctionalNode[][] nodes = getBatchNodes(outputLayer);
+		if (nodes == null) {
+			for (int i = 0; i < count; i++) {
+				Layout layout = evaluate(context, inputs[i], outputLayer,
+						setInputNodes);
+				System.arraycopy(context.outputs,
+						layout.layerOffsets[outputLayer + 1], outputs[i], 0,
+						outputCount);
+			}
+			return;
+		}
+		WeightMatrix[] layerMatrices = matrices.subList(0, outputLayer + 1)
+				.toArray(new WeightMatrix[outputLayer + 1]);
+		int[] widths = new int[outputLayer + 2];
+		widths[0] = this.inputs.size();
+		for (int i = 0; i <= outputLayer; i++)
+			widths[i + 1] = nodes[i].length;
+		Function[] functions = Arrays.copyOf(getLayout().layerFunctions,
+				outputLayer + 1);
+		BatchPull pull = new BatchPull(layerMatrices, widths, nodes,
+				functions, inputs, outputs, 0, count);
+		if (count > BatchPull.PARALLEL_THRESHOLD)
+			ForkJoinPool.commonPool().invoke(pull);
+		else {
+			context.prepareBatch(BatchPull.BLOCK_SIZE
+					* pull.getMaximumWidth());
+			pull.evaluate(context.batchActivations, context.batchNetInputs,
+					context.batchSingleActivations);
+		}
+	}
+
+	/**
+	 * Pulls each of the specified input vectors through this network, storing
+	 * the outputs of the nodes in the last general layer for each input vector
+	 * in the corresponding array of {@code outputs}.
+	 * 
+	 * @param inputs
+	 *            the input vectors to be "pulled" through this network
+	 * @param outputs
+	 *            the arrays in which the outputs for each input vector are
+	 *            stored - {@code outputs[i]} receives the outputs for
+	 *            {@code inputs[i]}
+	 * @see #pullOutputsBatch(double[][], int, double[][])
+	 */
+	public void pullOutputsBatch(double[][] inputs, double[][] outputs) {
+		pullOutputsBatch(inputs, network.size() - 1, outputs);
+	}
+
+	/**
+	 * Returns the nodes of each general layer through the specified layer as
+	 * {@code FunctionalNodes}, if those layers can be evaluated as a batch
+	 * without touching this network's input nodes: every layer is dense,
+	 * every node is a {@code FunctionalNode}, and no node has connections from
+	 * outside its weight matrix.
+	 * 
+	 * @param outputLayer
+	 *            the index of the last general layer to be evaluated
+	 * @return the nodes of each general layer through the specified layer, or
+	 *         null if those layers cannot be evaluated as a batch
+	 */
+	FunctionalNode[][] getBatchNodes(int outputLayer) {
+		FunctionalNode[][] nodes = new FunctionalNode[outputLayer + 1][];
+		for (int layerIndex = 0; layerIndex <= outputLayer; layerIndex++) {
+			if (!isDense(layerIndex))
+				return null;
+			ArrayList<ConnectableNode> layer = network.get(layerIndex);
+			nodes[layerIndex] = new FunctionalNode[layer.size()];
+			for (int i = 0; i < layer.size(); i++) {
+				ConnectableNode node = layer.get(i);
+				if (!(node instanceof FunctionalNode)
+						|| node.getStoredConnectionCount() > 0)
+					return null;
+				nodes[layerIndex][i] = (FunctionalNode) node;
+			}
+		}
+		return nodes;
+	}
+
 	/**
 	 * Returns an array containing the
 	 * {@link caseengine.neural.node.ConnectableNode#getNetInput() net inputs}
@@ -353,18 +778,355 @@ public class LayeredNetwork {
 	public double[] pullNetInputs(double[] inputs, int outputLayer) {
 		if (inputs == null)
 			throw new NullPointerException();
-		if (outputLayer >= network.size())
+		if (outputLayer < 0 || outputLayer >= network.size())
+			throw new IndexOutOfBoundsException();
+		Layout layout = evaluate(defaultContext, inputs, outputLayer, true);
+		return Arrays.copyOfRange(defaultContext.netInputs,
+				layout.layerOffsets[outputLayer + 1],
+				layout.layerOffsets[outputLayer + 2]);
+	}
+
+	/**
+	 * Creates a new context for pulling values through this network. Each
+	 * thread pulling through this network concurrently needs its own context.
+	 * 
+	 * @return a new context for use with this network's context-based pulls
+	 * @see InferenceContext
+	 */
+	public InferenceContext newInferenceContext() {
+		return new InferenceContext(this);
+	}
+
+	/**
+	 * Stores in the specified array the
+	 * {@link caseengine.neural.node.ConnectableNode#getOutput() outputs} of the
+	 * nodes in the specified general layer given that the nodes in this
+	 * network's input layer output the specified values, using the specified
+	 * context's buffers.
+	 * <p>
+	 * Unlike {@link #pullOutputs(double[], int)}, this method does not set the
+	 * outputs of this network's input nodes, so it can be called by any number
+	 * of threads at once as long as each uses its own context. Every node of
+	 * the evaluated layers must therefore be a
+	 * {@link caseengine.neural.node.FunctionalNode FunctionalNode}, whose
+	 * output is found from the buffered net input. Connections from the input
+	 * nodes and from nodes in preceding layers read the buffered values, so
+	 * the values stored are the same as those returned by {@code pullOutputs}
+	 * unless a node is connected to a node outside this network, or in the
+	 * same or a following layer, that itself depends on this network's input
+	 * nodes - such a node sees the input nodes output their previous values
+	 * (0 unless they are being pulled by another thread).
+	 * 
+	 * @param context
+	 *            the context holding the caller's evaluation buffers
+	 * @param inputs
+	 *            the values to be "pulled" through this network's input nodes
+	 *            and through the network structure to the specified layer -
+	 *            missing values are 0 and extra values are ignored
+	 * @param outputLayer
+	 *            the index of the general layer of this network whose nodes'
+	 *            outputs are stored
+	 * @param outputs
+	 *            the array in which the outputs of the specified general
+	 *            layer's nodes are stored
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified output layer index is out of the range of
+	 *             general layers
+	 *             {@code (index < 0 || index >= getLayerCount())}
+	 * @throws NullPointerException
+	 *             if {@code context}, {@code inputs}, or {@code outputs} is
+	 *             null
+	 * @throws IllegalArgumentException
+	 *             if {@code context} was not created by this network, if
+	 *             {@code outputs} is shorter than the specified layer, or if a
+	 *             node in or preceding the specified layer is not a
+	 *             {@code FunctionalNode}
+	 */
+	public void pullOutputs(InferenceContext context, double[] inputs,
+			int outputLayer, double[] outputs)
+			throws IndexOutOfBoundsException, NullPointerException,
+			IllegalArgumentException {
+		pull(context, inputs, outputLayer, outputs, false);
+	}
+
+	/**
+	 * Stores in the specified array the
+	 * {@link caseengine.neural.node.ConnectableNode#getNetInput() net inputs}
+	 * of the nodes in the specified general layer given that the nodes in this
+	 * network's input layer output the specified values, using the specified
+	 * context's buffers. As with
+	 * {@link #pullOutputs(InferenceContext, double[], int, double[])}, this
+	 * network's input nodes are not set.
+	 * 
+	 * @param context
+	 *            the context holding the caller's evaluation buffers
+	 * @param inputs
+	 *            the values to be "pulled" through this network's input nodes
+	 *            and through the network structure to the specified layer
+	 * @param outputLayer
+	 *            the index of the general layer of this network whose nodes'
+	 *            net inputs are stored
+	 * @param netInputs
+	 *            the array in which the net inputs of the specified general
+	 *            layer's nodes are stored
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified output layer index is out of the range of
+	 *             general layers
+	 *             {@code (index < 0 || index >= getLayerCount())}
+	 * @throws NullPointerException
+	 *             if {@code context}, {@code inputs}, or {@code netInputs} is
+	 *             null
+	 * @throws IllegalArgumentException
+	 *             if {@code context} was not created by this network, if
+	 *             {@code netInputs} is shorter than the specified layer, or if
+	 *             a node in or preceding the specified layer is not a
+	 *             {@code FunctionalNode}
+	 */
+	public void pullNetInputs(InferenceContext context, double[] inputs,
+			int outputLayer, double[] netInputs)
+			throws IndexOutOfBoundsException, NullPointerException,
+			IllegalArgumentException {
+		pull(context, inputs, outputLayer, netInputs, true);
+	}
+
+	/**
+	 * Pulls the specified values through this network using the specified
+	 * context and stores the outputs or net inputs of the specified layer.
+	 * 
+	 * @param context
+	 *            the context holding the caller's evaluation buffers
+	 * @param inputs
+	 *            the values to be "pulled" through this network
+	 * @param outputLayer
+	 *            the index of the general layer whose values are stored
+	 * @param values
+	 *            the array in which the values are stored
+	 * @param netInputs
+	 *            whether the net inputs rather than the outputs are stored
+	 */
+	private void pull(InferenceContext context, double[] inputs,
+			int outputLayer, double[] values, boolean netInputs) {
+		checkContext(context);
+		if (inputs == null || values == null)
+			throw new NullPointerException();
+		if (outputLayer < 0 || outputLayer >= network.size())
 			throw new IndexOutOfBoundsException();
-		inputs = Arrays.copyOf(inputs, this.inputs.size());
-		for (int i = 0; i < this.inputs.size(); i++)
-			this.inputs.get(i).setOutput(inputs[i]);
-		ArrayList<ConnectableNode> outputs = network.get(outputLayer);
-		double[] values = new double[outputs.size()];
-		for (int i = 0; i < outputs.size(); i++)
-			values[i] = outputs.get(i).getNetInput();
-		for (InputNode node : this.inputs)
-			node.resetOutput();
-		return values;
+		Layout layout = evaluate(context, inputs, outputLayer, false);
+		int offset = layout.layerOffsets[outputLayer + 1];
+		int count = layout.layerOffsets[outputLayer + 2] - offset;
+		if (values.length < count)
+			throw new IllegalArgumentException();
+		System.arraycopy(netInputs ? context.netInputs : context.outputs,
+				offset, values, 0, count);
+	}
+
+	/**
+	 * Checks that the specified context can be used with this network.
+	 * 
+	 * @param context
+	 *            the context being checked
+	 * @throws NullPointerException
+	 *             if {@code context} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code context} was not created by this network
+	 */
+	private void checkContext(InferenceContext context)
+			throws NullPointerException, IllegalArgumentException {
+		if (context.getNetwork() != this)
+			throw new IllegalArgumentException();
+	}
+
+	/**
+	 * Returns the current layout of this network's nodes in evaluation
+	 * buffers, building it if the structure of this network has changed.
+	 * 
+	 * @return the current layout of this network
+	 */
+	Layout getLayout() {
+		Layout current = layout;
+		if (current == null) {
+			current = new Layout(inputs, network);
+			layout = current;
+		}
+		return current;
+	}
+
+	/**
+	 * Evaluates the nodes of this network from the input layer through the
+	 * specified general layer, storing their outputs and net inputs in the
+	 * specified context's buffers. Each node is evaluated once: the outputs of
+	 * the input nodes and of nodes in preceding layers are read from the
+	 * buffers, while nodes outside this network (or in the same or a following
+	 * layer) are asked for their output directly.
+	 * 
+	 * @param context
+	 *            the context whose buffers receive the evaluated values
+	 * @param inputs
+	 *            the values to be output by this network's input nodes -
+	 *            missing values are 0 and extra values are ignored
+	 * @param outputLayer
+	 *            the index of the last general layer to be evaluated
+	 * @param setInputNodes
+	 *            whether this network's input nodes output the specified
+	 *            values for the duration of the evaluation, so that nodes
+	 *            outside this network see the same inputs as the nodes in it
+	 * @return the layout of the evaluated values in the context's buffers
+	 * @throws IllegalArgumentException
+	 *             if {@code setInputNodes} is false and an evaluated node is
+	 *             not a {@code FunctionalNode}
+	 */
+	private Layout evaluate(InferenceContext context, double[] inputs,
+			int outputLayer, boolean setInputNodes)
+			throws IllegalArgumentException {
+		Layout layout = context.prepare(getLayout());
+		double[] outputs = context.outputs;
+		int inputCount = layout.layerOffsets[1];
+		for (int i = 0; i < inputCount; i++) {
+			double input = (i < inputs.length) ? inputs[i] : 0;
+			if (setInputNodes)
+				this.inputs.get(i).setOutput(input);
+			outputs[i] = input;
+		}
+		for (int layerIndex = 0; layerIndex <= outputLayer; layerIndex++) {
+			ArrayList<ConnectableNode> layer = network.get(layerIndex);
+			WeightMatrix matrix = matrices.get(layerIndex);
+			int sourceOffset = layout.layerOffsets[layerIndex];
+			int offset = layout.layerOffsets[layerIndex + 1];
+			Function function = layout.layerFunctions[layerIndex];
+			context.evaluatedCount = offset;
+			for (int i = 0; i < layer.size(); i++) {
+				ConnectableNode node = layer.get(i);
+				// The matrix columns are the preceding layer in buffer order
+				double netInput = (node.getWeightMatrix() == matrix) ? node
+						.getNetInput(outputs, sourceOffset,
+								context.bufferedOutputs) : node
+						.getNetInput(context.bufferedOutputs);
+				context.netInputs[offset + i] = netInput;
+				if (function != null)
+					continue;
+				if (node instanceof FunctionalNode)
+					outputs[offset + i] = ((FunctionalNode) node)
+							.getOutput(netInput);
+				else if (setInputNodes)
+					outputs[offset + i] = node.getOutput();
+				else
+					// The node's output can only be found by the node itself,
+					// which may read the unset input nodes or change its state
+					throw new IllegalArgumentException();
+			}
+			// Nodes never read the outputs of their own layer from the buffer,
+			// so a shared function can be applied once all net inputs are known
+			if (function != null)
+				function.function(context.netInputs, outputs, offset, offset
+						+ layer.size());
+		}
+		if (setInputNodes)
+			for (int i = 0; i < inputCount; i++)
+				this.inputs.get(i).resetOutput();
+		return layout;
+	}
+
+	/**
+	 * The positions of a network's nodes in evaluation buffers: the input
+	 * layer's nodes first, followed by the nodes of each general layer in
+	 * order. A layout is immutable - a new one is built whenever the structure
+	 * of the network changes.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	static final class Layout {
+
+		/**
+		 * Maps each node in the network to its index in evaluation buffers. A
+		 * node that appears more than once in the network keeps its first
+		 * index.
+		 */
+		final IdentityHashMap<Node, Integer> nodeIndices;
+
+		/**
+		 * The index of the first node of each layer - index 0 is the input
+		 * layer, index {@code (i + 1)} is the general layer {@code i}, and the
+		 * last index is the total number of nodes.
+		 */
+		final int[] layerOffsets;
+
+		/**
+		 * The activation function shared by every node of each general layer,
+		 * or null for layers whose nodes are not all {@code FunctionalNodes}
+		 * with the same function. The outputs of a layer with a shared
+		 * function are calculated by applying the function to all of the
+		 * layer's net inputs at once.
+		 */
+		final Function[] layerFunctions;
+
+		/**
+		 * Constructs the layout of a network with the specified layers.
+		 * 
+		 * @param inputs
+		 *            the nodes of the network's input layer
+		 * @param network
+		 *            the network's general layers
+		 */
+		private Layout(ArrayList<InputNode> inputs,
+				ArrayList<ArrayList<ConnectableNode>> network) {
+			layerOffsets = new int[network.size() + 2];
+			layerOffsets[1] = inputs.size();
+			for (int i = 0; i < network.size(); i++)
+				layerOffsets[i + 2] = layerOffsets[i + 1]
+						+ network.get(i).size();
+			nodeIndices = new IdentityHashMap<Node, Integer>(getNodeCount());
+			// Connections from the input nodes that are not stored in a
+			// matrix read the pulled inputs from the buffers too
+			for (int i = 0; i < inputs.size(); i++)
+				nodeIndices.put(inputs.get(i), i);
+			for (int layerIndex = 0; layerIndex < network.size(); layerIndex++) {
+				ArrayList<ConnectableNode> layer = network.get(layerIndex);
+				for (int i = 0; i < layer.size(); i++)
+					if (!nodeIndices.containsKey(layer.get(i)))
+						nodeIndices.put(layer.get(i),
+								layerOffsets[layerIndex + 1] + i);
+			}
+			layerFunctions = new Function[network.size()];
+			for (int layerIndex = 0; layerIndex < network.size(); layerIndex++)
+				layerFunctions[layerIndex] = getSharedFunction(network
+						.get(layerIndex));
+		}
+
+		/**
+		 * Returns the activation function shared by every node in the
+		 * specified layer.
+		 * 
+		 * @param layer
+		 *            the nodes of a general layer
+		 * @return the activation function of the layer's nodes, or null if the
+		 *         layer is empty or its nodes are not all
+		 *         {@code FunctionalNodes} with the same function
+		 */
+		private static Function getSharedFunction(
+				ArrayList<ConnectableNode> layer) {
+			Function function = null;
+			for (ConnectableNode node : layer) {
+				if (!(node instanceof FunctionalNode))
+					return null;
+				Function nodeFunction = ((FunctionalNode) node)
+						.getActivationFunction();
+				if (function == null)
+					function = nodeFunction;
+				else if (function != nodeFunction)
+					return null;
+			}
+			return function;
+		}
+
+		/**
+		 * Returns the total number of nodes in the network.
+		 * 
+		 * @return the number of values in an evaluation buffer
+		 */
+		int getNodeCount() {
+			return layerOffsets[layerOffsets.length - 1];
+		}
 	}
 
 	/**
@@ -0,0 +1,552 @@
+package caseengine.neural.network;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+
+import caseengine.function.DifferentiableFunction;
+import caseengine.function.Function;
+import caseengine.function.LinearFunction;
+import caseengine.function.SigmoidFunction;
+import caseengine.neural.node.ConnectableNode;
+import caseengine.neural.node.DifferentiableNode;
+import caseengine.neural.node.DotProductKernel;
+import caseengine.neural.node.FunctionalNode;
+import caseengine.neural.node.WeightMatrix;
+
+/**
+ * An immutable copy of the structure and weights of a {@link LayeredNetwork},
+ * which can be written to and read from a compact binary file.
+ * <p>
+ * Capturing a snapshot copies the network's weight arrays, which is fast
+ * enough to do between training steps; the snapshot can then be written to a
+ * file on any thread while training continues. Files are read by mapping them
+ * into memory with {@link FileChannel#map(FileChannel.MapMode, long, long)
+ * FileChannel.map} and transferring each weight matrix into its array in a
+ * single bulk copy, without parsing individual values.
+ * <p>
+ * Only networks whose general layers are all
+ * {@link LayeredNetwork#isDense(int) dense} and consist of
+ * {@link caseengine.neural.node.FunctionalNode FunctionalNodes} or
+ * {@link caseengine.neural.node.DifferentiableNode DifferentiableNodes}
+ * without connections from outside the network, using
+ * {@link caseengine.function.SigmoidFunction SigmoidFunctions} and
+ * {@link caseengine.function.LinearFunction LinearFunctions}, can be captured.
+ * <p>
+ * The file format (version {@value #VERSION}) is little-endian:
+ * <ul>
+ * <li>the magic number {@value #MAGIC}, the format version, and flags (bit 0
+ * set for single-precision weights), as {@code int} values</li>
+ * <li>the kernel lane count, the input count, and the general layer count</li>
+ * <li>the function table: the number of functions, then for each function a
+ * type {@code int} - 1 for a sigmoid function followed by an {@code int} of 1
+ * if it is approximate, or 2 for a linear function followed by its slope and
+ * offset as {@code double} values</li>
+ * <li>for each general layer, its node count followed by each node's function
+ * table index, negated and less one ({@code -index - 1}) for nodes that are
+ * not {@code DifferentiableNodes}</li>
+ * <li>zero padding to a multiple of 8 bytes, then the row-major weights of
+ * each layer's matrix as {@code double} or {@code float} values</li>
+ * </ul>
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class NetworkSnapshot {
+
+	/**
+	 * The magic number at the start of every snapshot file - "CASN".
+	 */
+	public static final int MAGIC = 0x4E534143;
+
+	/**
+	 * The version of the file format written by this class.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The function table type of a {@code SigmoidFunction}.
+	 */
+	private static final int SIGMOID = 1;
+
+	/**
+	 * The function table type of a {@code LinearFunction}.
+	 */
+	private static final int LINEAR = 2;
+
+	/**
+	 * The size in bytes of the buffer through which weights are written.
+	 */
+	private static final int BUFFER_SIZE = 1 << 16;
+
+	/**
+	 * Whether the weights of the network are single-precision.
+	 */
+	private final boolean singlePrecision;
+
+	/**
+	 * The lane count of the network's kernel.
+	 */
+	private final int laneCount;
+
+	/**
+	 * The number of nodes in the network's input layer.
+	 */
+	private final int inputCount;
+
+	/**
+	 * The distinct activation functions of the network's nodes.
+	 */
+	private final Function[] functions;
+
+	/**
+	 * The function table index of each node in each general layer, encoded
+	 * as {@code -index - 1} for nodes that are not
+	 * {@code DifferentiableNodes}.
+	 */
+	private final int[][] nodes;
+
+	/**
+	 * The row-major weights of each general layer's matrix - a
+	 * {@code double[]} or, for single-precision networks, a {@code float[]}.
+	 */
+	private final Object[] weights;
+
+	/**
+	 * Constructs a snapshot from its parts.
+	 * 
+	 * @param singlePrecision
+	 *            whether the weights are single-precision
+	 * @param laneCount
+	 *            the lane count of the network's kernel
+	 * @param inputCount
+	 *            the number of nodes in the input layer
+	 * @param functions
+	 *            the distinct activation functions of the nodes
+	 * @param nodes
+	 *            the encoded function table index of each node
+	 * @param weights
+	 *            the weights of each layer's matrix
+	 */
+	private NetworkSnapshot(boolean singlePrecision, int laneCount,
+			int inputCount, Function[] functions, int[][] nodes,
+			Object[] weights) {
+		this.singlePrecision = singlePrecision;
+		this.laneCount = laneCount;
+		this.inputCount = inputCount;
+		this.functions = functions;
+		this.nodes = nodes;
+		this.weights = weights;
+	}
+
+	/**
+	 * Captures the current structure and weights of the specified network.
+	 * Later changes to the network do not affect the snapshot.
+	 * <p>
+	 * The network must not be modified by another thread while it is being
+	 * captured.
+	 * 
+	 * @param network
+	 *            the network being captured
+	 * @return a snapshot of the specified network
+	 * @throws NullPointerException
+	 *             if {@code network} is null
+	 * @throws IllegalArgumentException
+	 *             if the network has layers, nodes, or functions that cannot
+	 *             be captured
+	 */
+	public static NetworkSnapshot capture(LayeredNetwork network)
+			throws NullPointerException, IllegalArgumentException {
+		if (network == null)
+			throw new NullPointerException();
+		FunctionalNode[][] layers = network.getBatchNodes(network
+				.getLayerCount() - 1);
+		if (layers == null)
+			throw new IllegalArgumentException();
+		IdentityHashMap<Function, Integer> functionIndices = new IdentityHashMap<Function, Integer>();
+		ArrayList<Function> functions = new ArrayList<Function>();
+		int[][] nodes = new int[layers.length][];
+		Object[] weights = new Object[layers.length];
+		for (int layer = 0; layer < layers.length; layer++) {
+			nodes[layer] = new int[layers[layer].length];
+			for (int i = 0; i < layers[layer].length; i++) {
+				FunctionalNode node = layers[layer][i];
+				if (node.getClass() != FunctionalNode.class
+						&& node.getClass() != DifferentiableNode.class)
+					throw new IllegalArgumentException();
+				Function function = node.getActivationFunction();
+				if (!(function instanceof SigmoidFunction || function instanceof LinearFunction))
+					throw new IllegalArgumentException();
+				Integer index = functionIndices.get(function);
+				if (index == null) {
+					index = functions.size();
+					functionIndices.put(function, index);
+					functions.add(function);
+				}
+				nodes[layer][i] = (node instanceof DifferentiableNode) ? index
+						: -index - 1;
+			}
+			WeightMatrix matrix = network.getWeightMatrix(layer);
+			int columns = matrix.getColumnCount();
+			int size = matrix.getRowCount() * columns;
+			if (network.isSinglePrecision()) {
+				float[] layerWeights = new float[size];
+				for (int row = 0; row < matrix.getRowCount(); row++)
+					System.arraycopy(matrix.getSingleWeights(), row
+							* matrix.getStride(), layerWeights, row * columns,
+							columns);
+				weights[layer] = layerWeights;
+			} else {
+				double[] layerWeights = new double[size];
+				for (int row = 0; row < matrix.getRowCount(); row++)
+					System.arraycopy(matrix.getWeights(),
+							row * matrix.getStride(), layerWeights, row
+									* columns, columns);
+				weights[layer] = layerWeights;
+			}
+		}
+		return new NetworkSnapshot(network.isSinglePrecision(), network
+				.getKernel().getLaneCount(), network.getInputs().size(),
+				functions.toArray(new Function[functions.size()]), nodes,
+				weights);
+	}
+
+	/**
+	 * Returns whether the captured network's weights are single-precision.
+	 * 
+	 * @return true if the captured network is single-precision
+	 */
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+
+	/**
+	 * Returns the number of nodes in the captured network's input layer.
+	 * 
+	 * @return the captured network's input count
+	 */
+	public int getInputCount() {
+		return inputCount;
+	}
+
+	/**
+	 * Returns the number of general layers in the captured network.
+	 * 
+	 * @return the captured network's layer count
+	 */
+	public int getLayerCount() {
+		return nodes.length;
+	}
+
+	/**
+	 * Returns the number of nodes in the specified general layer of the
+	 * captured network.
+	 * 
+	 * @param index
+	 *            the index of the general layer
+	 * @return the number of nodes in the specified layer
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified index is out of the range of general layers
+	 */
+	public int getLayerSize(int index) throws IndexOutOfBoundsException {
+		return nodes[index].length;
+	}
+
+	/**
+	 * Builds a new network with the structure and weights of this snapshot.
+	 * Nodes that shared an activation function in the captured network share
+	 * one in the new network.
+	 * 
+	 * @return a new network equal to the captured network
+	 */
+	public LayeredNetwork toNetwork() {
+		LayeredNetwork network = new LayeredNetwork(nodes.length,
+				singlePrecision);
+		network.setKernel(DotProductKernel.getKernel(laneCount));
+		LayeredNetwork.ConnectionScheme scheme = new LayeredNetwork.ConstantWeightScheme(
+				0);
+		for (int i = 0; i < inputCount; i++)
+			network.addInput(scheme);
+		// Layers are filled in order, so each node is added while the
+		// following layer is still empty
+		for (int layer = 0; layer < nodes.length; layer++)
+			for (int node : nodes[layer]) {
+				ConnectableNode newNode;
+				if (node >= 0)
+					newNode = new DifferentiableNode(
+							(DifferentiableFunction) functions[node]);
+				else
+					newNode = new FunctionalNode(functions[-node - 1]);
+				network.addNode(newNode, layer, scheme);
+			}
+		for (int layer = 0; layer < nodes.length; layer++) {
+			WeightMatrix matrix = network.getWeightMatrix(layer);
+			int columns = matrix.getColumnCount();
+			for (int row = 0; row < matrix.getRowCount(); row++)
+				System.arraycopy(weights[layer], row * columns,
+						singlePrecision ? matrix.getSingleWeights() : matrix
+								.getWeights(), row * matrix.getStride(),
+						columns);
+		}
+		return network;
+	}
+
+	/**
+	 * Writes this snapshot to the specified file. The snapshot is written to
+	 * a temporary file in the same directory, which then replaces the
+	 * specified file, so the specified file always holds either its previous
+	 * contents or the complete snapshot.
+	 * 
+	 * @param file
+	 *            the file the snapshot is written to
+	 * @throws NullPointerException
+	 *             if {@code file} is null
+	 * @throws IOException
+	 *             if an I/O error occurs, or if the snapshot is too large to
+	 *             be read by mapping it into memory
+	 */
+	public void write(Path file) throws NullPointerException, IOException {
+		if (file == null)
+			throw new NullPointerException();
+		Path absolute = file.toAbsolutePath();
+		Path temporary = Files.createTempFile(absolute.getParent(), absolute
+				.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temporary,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING)) {
+				encode(channel);
+				channel.force(false);
+			}
+			try {
+				Files.move(temporary, absolute,
+						StandardCopyOption.REPLACE_EXISTING,
+						StandardCopyOption.ATOMIC_MOVE);
+			} catch (IOException e) {
+				Files.move(temporary, absolute,
+						StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temporary);
+		}
+	}
+
+	/**
+	 * Reads a snapshot from the specified file by mapping it into memory.
+	 * 
+	 * @param file
+	 *            the file containing the snapshot
+	 * @return the snapshot stored in the specified file
+	 * @throws NullPointerException
+	 *             if {@code file} is null
+	 * @throws IOException
+	 *             if an I/O error occurs, or if the file does not contain a
+	 *             snapshot of a supported version
+	 */
+	public static NetworkSnapshot read(Path file) throws NullPointerException,
+			IOException {
+		if (file == null)
+			throw new NullPointerException();
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			MappedByteBuffer buffer = channel.map(
+					FileChannel.MapMode.READ_ONLY, 0, channel.size());
+			return decode(buffer);
+		}
+	}
+
+	/**
+	 * Encodes this snapshot in the file format to the specified channel. The
+	 * weights are written through a buffer of {@value #BUFFER_SIZE} bytes, so
+	 * the encoded snapshot is never held in memory at once.
+	 * 
+	 * @param channel
+	 *            the channel the snapshot is written to
+	 * @throws IOException
+	 *             if an I/O error occurs, or if the encoded snapshot would be
+	 *             too large to be {@link #read(Path) read} by mapping it
+	 */
+	private void encode(FileChannel channel) throws IOException {
+		long headerSize = 6 * 4 + 4;
+		for (Function function : functions)
+			headerSize += (function instanceof SigmoidFunction) ? 8 : 20;
+		for (int[] layer : nodes)
+			headerSize += 4 + (layer.length * 4L);
+		headerSize = align(headerSize);
+		long size = headerSize;
+		for (int layer = 0; layer < nodes.length; layer++)
+			size += singlePrecision ? ((float[]) weights[layer]).length * 4L
+					: ((double[]) weights[layer]).length * 8L;
+		if (size > Integer.MAX_VALUE)
+			throw new IOException();
+
+		ByteBuffer buffer = ByteBuffer.allocate((int) headerSize).order(
+				ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(singlePrecision ? 1 : 0);
+		buffer.putInt(laneCount).putInt(inputCount).putInt(nodes.length);
+		buffer.putInt(functions.length);
+		for (Function function : functions)
+			if (function instanceof SigmoidFunction)
+				buffer.putInt(SIGMOID).putInt(
+						((SigmoidFunction) function).isApproximate() ? 1 : 0);
+			else
+				buffer.putInt(LINEAR)
+						.putDouble(((LinearFunction) function).getSlope())
+						.putDouble(((LinearFunction) function).getOffset());
+		for (int[] layer : nodes) {
+			buffer.putInt(layer.length);
+			for (int node : layer)
+				buffer.putInt(node);
+		}
+		buffer.position(0);
+		write(channel, buffer);
+
+		buffer = ByteBuffer.allocate(BUFFER_SIZE).order(
+				ByteOrder.LITTLE_ENDIAN);
+		for (int layer = 0; layer < nodes.length; layer++)
+			if (singlePrecision) {
+				float[] layerWeights = (float[]) weights[layer];
+				for (int i = 0; i < layerWeights.length; i += BUFFER_SIZE / 4) {
+					int count = Math.min(BUFFER_SIZE / 4, layerWeights.length
+							- i);
+					buffer.clear();
+					buffer.asFloatBuffer().put(layerWeights, i, count);
+					buffer.limit(count * 4);
+					write(channel, buffer);
+				}
+			} else {
+				double[] layerWeights = (double[]) weights[layer];
+				for (int i = 0; i < layerWeights.length; i += BUFFER_SIZE / 8) {
+					int count = Math.min(BUFFER_SIZE / 8, layerWeights.length
+							- i);
+					buffer.clear();
+					buffer.asDoubleBuffer().put(layerWeights, i, count);
+					buffer.limit(count * 8);
+					write(channel, buffer);
+				}
+			}
+	}
+
+	/**
+	 * Writes the remaining bytes of the specified buffer to the specified
+	 * channel.
+	 * 
+	 * @param channel
+	 *            the channel the bytes are written to
+	 * @param buffer
+	 *            the buffer holding the bytes
+	 * @throws IOException
+	 *             if an I/O error occurs
+	 */
+	private static void write(FileChannel channel, ByteBuffer buffer)
+			throws IOException {
+		while (buffer.hasRemaining())
+			channel.write(buffer);
+	}
+
+	/**
+	 * Decodes a snapshot from the specified buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer containing an encoded snapshot, positioned at its
+	 *            start
+	 * @return the decoded snapshot
+	 * @throws IOException
+	 *             if the buffer does not contain a valid snapshot of a
+	 *             supported version
+	 */
+	private static NetworkSnapshot decode(ByteBuffer buffer)
+			throws IOException {
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		try {
+			if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION)
+				throw new IOException("Not a version " + VERSION
+						+ " network snapshot");
+			boolean singlePrecision = (buffer.getInt() & 1) != 0;
+			int laneCount = buffer.getInt();
+			int inputCount = buffer.getInt();
+			int layerCount = buffer.getInt();
+			if (laneCount < 1 || inputCount < 0 || layerCount < 1)
+				throw new IOException("Corrupt network snapshot");
+
+			Function[] functions = new Function[buffer.getInt()];
+			for (int i = 0; i < functions.length; i++) {
+				int type = buffer.getInt();
+				if (type == SIGMOID)
+					functions[i] = new SigmoidFunction(buffer.getInt() != 0);
+				else if (type == LINEAR)
+					functions[i] = new LinearFunction(buffer.getDouble(),
+							buffer.getDouble());
+				else
+					throw new IOException("Unknown function type " + type);
+			}
+
+			int[][] nodes = new int[layerCount][];
+			for (int layer = 0; layer < layerCount; layer++) {
+				nodes[layer] = new int[buffer.getInt()];
+				for (int i = 0; i < nodes[layer].length; i++) {
+					int node = buffer.getInt();
+					int function = (node >= 0) ? node : -node - 1;
+					if (function >= functions.length)
+						throw new IOException("Corrupt network snapshot");
+					nodes[layer][i] = node;
+				}
+			}
+
+			buffer.position(align(buffer.position()));
+			Object[] weights = new Object[layerCount];
+			int columns = inputCount;
+			for (int layer = 0; layer < layerCount; layer++) {
+				int size = nodes[layer].length * columns;
+				if (singlePrecision) {
+					float[] layerWeights = new float[size];
+					buffer.asFloatBuffer().get(layerWeights);
+					buffer.position(buffer.position() + (size * 4));
+					weights[layer] = layerWeights;
+				} else {
+					double[] layerWeights = new double[size];
+					buffer.asDoubleBuffer().get(layerWeights);
+					buffer.position(buffer.position() + (size * 8));
+					weights[layer] = layerWeights;
+				}
+				columns = nodes[layer].length;
+			}
+			return new NetworkSnapshot(singlePrecision, laneCount,
+					inputCount, functions, nodes, weights);
+		} catch (RuntimeException e) {
+			// Buffer underflows, negative sizes, and the like
+			throw new IOException("Corrupt network snapshot", e);
+		}
+	}
+
+	/**
+	 * Returns the specified position rounded up to a multiple of 8 bytes.
+	 * 
+	 * @param position
+	 *            a position in an encoded snapshot
+	 * @return the next position at which weights may start
+	 */
+	private static int align(int position) {
+		return (position + 7) & ~7;
+	}
+
+	/**
+	 * Returns the specified size rounded up to a multiple of 8 bytes.
+	 * 
+	 * @param size
+	 *            the size of part of an encoded snapshot
+	 * @return the size rounded up to the next position at which weights may
+	 *         start
+	 */
+	private static long align(long size) {
+		return (size + 7) & ~7L;
+	}
+}
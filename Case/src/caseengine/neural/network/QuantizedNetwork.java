@@ -0,0 +1,384 @@
+package caseengine.neural.network;
+
+import java.util.Arrays;
+
+import caseengine.function.Function;
+import caseengine.neural.node.FunctionalNode;
+import caseengine.neural.node.WeightMatrix;
+
+/**
+ * A frozen, 8-bit quantized copy of a trained {@link LayeredNetwork}, for
+ * inference only. Each general layer's weights are stored as signed bytes with
+ * a per-layer scale, and the activations fed into each layer are quantized to
+ * signed bytes with a per-layer scale before every weighted sum. The weighted
+ * sums are accumulated exactly in 32-bit integers and then scaled back into
+ * net inputs, which are fed through the source nodes' activation functions.
+ * <p>
+ * The weights of a quantized network occupy a quarter of the memory of a
+ * single-precision network's weights (an eighth of a double-precision
+ * network's), at the cost of accuracy: every weight is rounded to one of 255
+ * levels spanning its layer's largest weight, and every activation to one of
+ * 255 levels spanning the largest activation seen during quantization.
+ * Activations beyond that range are clamped. The largest difference between
+ * the outputs of the quantized network and its source over the calibration
+ * inputs is measured when the network is quantized and is reported by
+ * {@link #getMaximumDeviation()}.
+ * <p>
+ * A quantized network is immutable - later changes to its source network do
+ * not affect it - and its pulls allocate their own buffers, so any number of
+ * threads may pull through it at once.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class QuantizedNetwork {
+
+	/**
+	 * The largest magnitude of a quantized weight or activation.
+	 */
+	private static final int LEVELS = 127;
+
+	/**
+	 * The number of nodes in the input layer and each general layer - index 0
+	 * is the input layer, index {@code (i + 1)} is general layer {@code i}.
+	 */
+	private final int[] widths;
+
+	/**
+	 * The row-major quantized weights of each general layer.
+	 */
+	private final byte[][] weights;
+
+	/**
+	 * The value of one unit of each general layer's quantized weights.
+	 */
+	private final double[] weightScales;
+
+	/**
+	 * The value of one unit of the quantized activations fed into each
+	 * general layer.
+	 */
+	private final double[] activationScales;
+
+	/**
+	 * The nodes of each general layer, whose activation functions are applied
+	 * to their net inputs.
+	 */
+	private final FunctionalNode[][] nodes;
+
+	/**
+	 * The activation function shared by the nodes of each general layer, or
+	 * null for layers whose nodes' functions differ.
+	 */
+	private final Function[] functions;
+
+	/**
+	 * The largest absolute difference between an output of this network and
+	 * the corresponding output of its source over the calibration inputs.
+	 */
+	private double maximumDeviation;
+
+	/**
+	 * Constructs a quantized copy of the specified network's current weights,
+	 * with activation scales fitted to the specified inputs.
+	 * 
+	 * @param network
+	 *            the network being quantized
+	 * @param nodes
+	 *            the nodes of each of the network's general layers
+	 * @param calibrationInputs
+	 *            the input vectors whose activations determine the activation
+	 *            scales
+	 */
+	private QuantizedNetwork(LayeredNetwork network, FunctionalNode[][] nodes,
+			double[][] calibrationInputs) {
+		int layerCount = nodes.length;
+		this.nodes = nodes;
+		functions = Arrays.copyOf(network.getLayout().layerFunctions,
+				layerCount);
+		widths = new int[layerCount + 1];
+		widths[0] = network.getInputs().size();
+		weights = new byte[layerCount][];
+		weightScales = new double[layerCount];
+		for (int layer = 0; layer < layerCount; layer++) {
+			WeightMatrix matrix = network.getWeightMatrix(layer);
+			widths[layer + 1] = nodes[layer].length;
+			int size = matrix.getRowCount() * matrix.getColumnCount();
+			double maximum = 0;
+			for (int i = 0; i < size; i++)
+				maximum = Math.max(maximum, Math.abs(getWeight(matrix, i)));
+			weightScales[layer] = getScale(maximum);
+			weights[layer] = new byte[size];
+			for (int i = 0; i < size; i++)
+				weights[layer][i] = (byte) quantize(getWeight(matrix, i),
+						weightScales[layer]);
+		}
+
+		// Fit each layer's activation scale to the largest activation fed
+		// into it by the calibration inputs
+		InferenceContext context = network.newInferenceContext();
+		double[] maximums = new double[layerCount];
+		double[][] expected = new double[calibrationInputs.length][widths[layerCount]];
+		for (int i = 0; i < calibrationInputs.length; i++) {
+			network.pullOutputs(context, calibrationInputs[i], layerCount - 1,
+					expected[i]);
+			for (int layer = 0; layer < layerCount; layer++) {
+				int offset = network.getLayout().layerOffsets[layer];
+				for (int j = 0; j < widths[layer]; j++)
+					maximums[layer] = Math.max(maximums[layer],
+							Math.abs(context.outputs[offset + j]));
+			}
+		}
+		activationScales = new double[layerCount];
+		for (int layer = 0; layer < layerCount; layer++)
+			activationScales[layer] = getScale(maximums[layer]);
+
+		double[][] actual = new double[calibrationInputs.length][widths[layerCount]];
+		pullOutputsBatch(calibrationInputs, actual);
+		for (int i = 0; i < calibrationInputs.length; i++)
+			for (int j = 0; j < widths[layerCount]; j++)
+				maximumDeviation = Math.max(maximumDeviation,
+						Math.abs(actual[i][j] - expected[i][j]));
+	}
+
+	/**
+	 * Creates a quantized copy of the specified network, fitting the
+	 * quantization of each layer's activations to the range of activations
+	 * produced by the specified calibration inputs. The calibration inputs
+	 * should be representative of the inputs the quantized network will be
+	 * used with; the maximum deviation of the quantized network is measured
+	 * over them.
+	 * <p>
+	 * Every general layer of the network must be
+	 * {@link LayeredNetwork#isDense(int) dense} and contain only
+	 * {@link caseengine.neural.node.FunctionalNode FunctionalNodes} without
+	 * connections from outside the network.
+	 * 
+	 * @param network
+	 *            the trained network being quantized
+	 * @param calibrationInputs
+	 *            representative input vectors for the network - missing
+	 *            values are 0 and extra values are ignored
+	 * @return a quantized copy of the specified network
+	 * @throws NullPointerException
+	 *             if {@code network}, {@code calibrationInputs}, or any of
+	 *             its vectors is null
+	 * @throws IllegalArgumentException
+	 *             if no calibration inputs are specified or if the network
+	 *             has layers that cannot be quantized
+	 */
+	public static QuantizedNetwork quantize(LayeredNetwork network,
+			double[][] calibrationInputs) throws NullPointerException,
+			IllegalArgumentException {
+		if (network == null || calibrationInputs == null)
+			throw new NullPointerException();
+		for (double[] inputs : calibrationInputs)
+			if (inputs == null)
+				throw new NullPointerException();
+		if (calibrationInputs.length == 0)
+			throw new IllegalArgumentException();
+		FunctionalNode[][] nodes = network.getBatchNodes(network
+				.getLayerCount() - 1);
+		if (nodes == null)
+			throw new IllegalArgumentException();
+		return new QuantizedNetwork(network, nodes, calibrationInputs);
+	}
+
+	/**
+	 * Returns the largest absolute difference between an output of this
+	 * network and the corresponding output of its source network, over the
+	 * calibration inputs this network was quantized with.
+	 * 
+	 * @return the maximum output deviation caused by quantization
+	 */
+	public double getMaximumDeviation() {
+		return maximumDeviation;
+	}
+
+	/**
+	 * Returns the number of values this network takes as input.
+	 * 
+	 * @return the number of nodes in the source network's input layer
+	 */
+	public int getInputCount() {
+		return widths[0];
+	}
+
+	/**
+	 * Returns the number of values this network outputs.
+	 * 
+	 * @return the number of nodes in the source network's last general layer
+	 */
+	public int getOutputCount() {
+		return widths[widths.length - 1];
+	}
+
+	/**
+	 * Returns the number of bytes occupied by this network's quantized
+	 * weights.
+	 * 
+	 * @return the total number of weights in this network
+	 */
+	public int getWeightByteCount() {
+		int count = 0;
+		for (byte[] layerWeights : weights)
+			count += layerWeights.length;
+		return count;
+	}
+
+	/**
+	 * Returns the outputs of this network's last layer given the specified
+	 * input values.
+	 * 
+	 * @param inputs
+	 *            the values input to this network - missing values are 0 and
+	 *            extra values are ignored
+	 * @return a new array containing this network's outputs
+	 * @throws NullPointerException
+	 *             if {@code inputs} is null
+	 */
+	public double[] pullOutputs(double[] inputs) throws NullPointerException {
+		double[] outputs = new double[getOutputCount()];
+		pullOutputsBatch(new double[][] { inputs }, new double[][] { outputs });
+		return outputs;
+	}
+
+	/**
+	 * Pulls each of the specified input vectors through this network, storing
+	 * the outputs of its last layer for each input vector in the corresponding
+	 * array of {@code outputs}.
+	 * 
+	 * @param inputs
+	 *            the input vectors to be pulled through this network - missing
+	 *            values are 0 and extra values are ignored
+	 * @param outputs
+	 *            the arrays in which the outputs for each input vector are
+	 *            stored - {@code outputs[i]} receives the outputs for
+	 *            {@code inputs[i]}
+	 * @throws NullPointerException
+	 *             if {@code inputs}, {@code outputs}, or any of the arrays
+	 *             they contain for the input vectors is null
+	 * @throws IllegalArgumentException
+	 *             if {@code outputs} has fewer arrays than {@code inputs} or
+	 *             any of them is shorter than this network's output count
+	 */
+	public void pullOutputsBatch(double[][] inputs, double[][] outputs)
+			throws NullPointerException, IllegalArgumentException {
+		if (inputs == null || outputs == null)
+			throw new NullPointerException();
+		if (outputs.length < inputs.length)
+			throw new IllegalArgumentException();
+		int maximumWidth = 0;
+		for (int width : widths)
+			maximumWidth = Math.max(maximumWidth, width);
+		double[] activations = new double[maximumWidth];
+		double[] netInputs = new double[maximumWidth];
+		byte[] quantized = new byte[maximumWidth];
+		for (int i = 0; i < inputs.length; i++) {
+			if (inputs[i] == null || outputs[i] == null)
+				throw new NullPointerException();
+			if (outputs[i].length < getOutputCount())
+				throw new IllegalArgumentException();
+			int length = Math.min(inputs[i].length, widths[0]);
+			System.arraycopy(inputs[i], 0, activations, 0, length);
+			Arrays.fill(activations, length, widths[0], 0);
+			for (int layer = 0; layer < nodes.length; layer++) {
+				int columns = widths[layer];
+				int rows = widths[layer + 1];
+				double activationScale = activationScales[layer];
+				for (int c = 0; c < columns; c++)
+					quantized[c] = (byte) quantize(activations[c],
+							activationScale);
+				double scale = activationScale * weightScales[layer];
+				byte[] layerWeights = weights[layer];
+				for (int r = 0; r < rows; r++)
+					netInputs[r] = dot(quantized, layerWeights, r * columns,
+							columns) * scale;
+				if (functions[layer] != null)
+					functions[layer].function(netInputs, activations, 0, rows);
+				else
+					for (int r = 0; r < rows; r++)
+						activations[r] = nodes[layer][r]
+								.getOutput(netInputs[r]);
+			}
+			System.arraycopy(activations, 0, outputs[i], 0, getOutputCount());
+		}
+	}
+
+	/**
+	 * Returns the integer dot product of the specified quantized activations
+	 * and the specified row of quantized weights. Integer addition is exact,
+	 * so the products may be summed in any order.
+	 * 
+	 * @param activations
+	 *            the quantized activations, starting at index 0
+	 * @param weights
+	 *            the row-major quantized weights
+	 * @param offset
+	 *            the index of the row's first weight
+	 * @param length
+	 *            the number of values in the row
+	 * @return the sum of the products of the activations and weights
+	 */
+	private static int dot(byte[] activations, byte[] weights, int offset,
+			int length) {
+		int sum0 = 0, sum1 = 0, sum2 = 0, sum3 = 0;
+		int i = 0;
+		for (; i + 4 <= length; i += 4) {
+			sum0 += activations[i] * weights[offset + i];
+			sum1 += activations[i + 1] * weights[offset + i + 1];
+			sum2 += activations[i + 2] * weights[offset + i + 2];
+			sum3 += activations[i + 3] * weights[offset + i + 3];
+		}
+		for (; i < length; i++)
+			sum0 += activations[i] * weights[offset + i];
+		return sum0 + sum1 + sum2 + sum3;
+	}
+
+	/**
+	 * Returns the weight at the specified index of the specified matrix's
+	 * weights, packed in row-major order without room for more columns, in
+	 * either precision.
+	 * 
+	 * @param matrix
+	 *            the matrix containing the weight
+	 * @param index
+	 *            the packed row-major index of the weight
+	 * @return the weight at the specified index
+	 */
+	private static double getWeight(WeightMatrix matrix, int index) {
+		int columns = matrix.getColumnCount();
+		index = ((index / columns) * matrix.getStride()) + (index % columns);
+		if (matrix.isSinglePrecision())
+			return matrix.getSingleWeights()[index];
+		return matrix.getWeights()[index];
+	}
+
+	/**
+	 * Returns the scale that maps the specified maximum magnitude onto the
+	 * largest quantized level.
+	 * 
+	 * @param maximum
+	 *            the largest magnitude being quantized
+	 * @return the value of one quantized unit
+	 */
+	private static double getScale(double maximum) {
+		return (maximum > 0) ? maximum / LEVELS : 1.0;
+	}
+
+	/**
+	 * Returns the quantized level nearest to the specified value, clamped to
+	 * the range of a signed byte's symmetric levels.
+	 * 
+	 * @param value
+	 *            the value being quantized
+	 * @param scale
+	 *            the value of one quantized unit
+	 * @return the quantized level of the value, from {@code -LEVELS} to
+	 *         {@code LEVELS}
+	 */
+	private static int quantize(double value, double scale) {
+		long level = Math.round(value / scale);
+		return (int) Math.max(-LEVELS, Math.min(LEVELS, level));
+	}
+}
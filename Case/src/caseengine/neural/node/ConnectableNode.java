@@ -1,8 +1,10 @@
 package caseengine.neural.node;
 
+import java.util.AbstractMap.SimpleEntry;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map.Entry;
+import java.util.function.ToDoubleFunction;
 
 /**
  * A neural network node that accepts weighted input from other nodes to
@@ -12,6 +14,10 @@ import java.util.Map.Entry;
  * Connections from other nodes cannot be removed. Rather, the weight of the
  * connection from a node should simply be set to 0 using
  * {@link #setConnection(Node, double) setConnection}.
+ * <p>
+ * A node may be a row of a {@link WeightMatrix}, in which case its connections
+ * from the matrix's source nodes are stored densely in the matrix. Connections
+ * from any other nodes are stored by the node itself.
  * 
  * @author Charlie Morley
  *
@@ -19,11 +25,34 @@ import java.util.Map.Entry;
 public abstract class ConnectableNode extends Node {
 
 	/**
-	 * The set of input connections to this node. Maps the node sending input to
-	 * a weight by which the input is multiplied.
+	 * Supplies the current output of each node, as used by
+	 * {@link #getNetInput()}.
+	 */
+	private static final ToDoubleFunction<Node> OUTPUTS = new ToDoubleFunction<Node>() {
+		@Override
+		public double applyAsDouble(Node node) {
+			return node.getOutput();
+		}
+	};
+
+	/**
+	 * The set of input connections to this node that are not stored in its
+	 * weight matrix. Maps the node sending input to a weight by which the
+	 * input is multiplied.
 	 */
 	private HashMap<Node, Double> connections = new HashMap<Node, Double>();
 
+	/**
+	 * The matrix storing this node's connections from the matrix's sources,
+	 * or null if this node is not a row of a matrix.
+	 */
+	private WeightMatrix matrix;
+
+	/**
+	 * The row of this node in its weight matrix.
+	 */
+	private int row;
+
 	/**
 	 * Sets the weight of the connection from the specified node's output to
 	 * this node's input. If the connection does not yet exist,
@@ -35,7 +64,11 @@ public abstract class ConnectableNode extends Node {
 	 *            node
 	 */
 	public final void setConnection(Node input, double weight) {
-		connections.put(input, weight);
+		int column = (matrix == null) ? -1 : matrix.getColumn(input);
+		if (column != -1)
+			matrix.setWeight(row, column, weight);
+		else
+			connections.put(input, weight);
 	}
 
 	/**
@@ -48,6 +81,9 @@ public abstract class ConnectableNode extends Node {
 	 *         this node's input
 	 */
 	public final double getConnection(Node input) {
+		int column = (matrix == null) ? -1 : matrix.getColumn(input);
+		if (column != -1)
+			return matrix.getWeight(row, column);
 		Double weight = connections.get(input);
 		if (weight == null)
 			return 0;
@@ -57,7 +93,8 @@ public abstract class ConnectableNode extends Node {
 	/**
 	 * Returns a new {@code ArrayList} containing the sets of
 	 * {@code <Node, Double>} pairs that represent the input connections of this
-	 * node.
+	 * node. Connections stored in this node's weight matrix appear first, in
+	 * column order.
 	 * 
 	 * @return a new {@code ArrayList} containing {@code <Node, Double>} pairs
 	 *         where the {@code Nodes} are the inputs and the {@code Doubles}
@@ -65,10 +102,78 @@ public abstract class ConnectableNode extends Node {
 	 */
 	public ArrayList<Entry<Node, Double>> getConnections() {
 		ArrayList<Entry<Node, Double>> returnSet = new ArrayList<Entry<Node, Double>>();
+		if (matrix != null)
+			for (int column = 0; column < matrix.getColumnCount(); column++) {
+				Node source = matrix.getSource(column);
+				if (matrix.getColumn(source) == column)
+					returnSet.add(new SimpleEntry<Node, Double>(source, matrix
+							.getWeight(row, column)));
+			}
 		returnSet.addAll(connections.entrySet());
 		return returnSet;
 	}
 
+	/**
+	 * Returns the number of input connections stored by this node itself
+	 * rather than in its weight matrix - connections from nodes that are not
+	 * sources of the matrix.
+	 * 
+	 * @return the number of this node's connections that are not stored in its
+	 *         weight matrix
+	 */
+	public final int getStoredConnectionCount() {
+		return connections.size();
+	}
+
+	/**
+	 * Returns the weight matrix in which this node's connections from the
+	 * matrix's sources are stored.
+	 * 
+	 * @return the matrix this node is a row of, or null if it is not a row of
+	 *         a matrix
+	 */
+	public final WeightMatrix getWeightMatrix() {
+		return matrix;
+	}
+
+	/**
+	 * Returns the row of this node in its weight matrix.
+	 * 
+	 * @return the index of this node's row in the matrix returned by
+	 *         {@link #getWeightMatrix()} - undefined if that matrix is null
+	 */
+	public final int getWeightRow() {
+		return row;
+	}
+
+	/**
+	 * Makes this node the specified row of the specified matrix. Called by the
+	 * matrix when this node is added to it.
+	 * 
+	 * @param matrix
+	 *            the matrix this node is a row of
+	 * @param row
+	 *            the index of this node's row in the matrix
+	 */
+	final void bind(WeightMatrix matrix, int row) {
+		this.matrix = matrix;
+		this.row = row;
+	}
+
+	/**
+	 * Removes the connection from the specified node from the connections
+	 * stored by this node itself, so that it can be moved into a weight
+	 * matrix.
+	 * 
+	 * @param input
+	 *            the node sending input to this node
+	 * @return the weight of the removed connection, or null if no such
+	 *         connection was stored by this node
+	 */
+	final Double removeStoredConnection(Node input) {
+		return connections.remove(input);
+	}
+
 	/**
 	 * Retrieves and calculates the sum of all the weighted inputs to this node.
 	 * 
@@ -76,9 +181,75 @@ public abstract class ConnectableNode extends Node {
 	 *         by their respective weights
 	 */
 	public double getNetInput() {
-		double netInput = 0.0;
+		return getNetInput(OUTPUTS);
+	}
+
+	/**
+	 * Calculates the sum of all the weighted inputs to this node, retrieving
+	 * the output of each input node through the specified function rather than
+	 * through the input node itself. The weighted inputs are summed in the same
+	 * order as {@link #getNetInput()}, so a function that returns each node's
+	 * current output produces the same result.
+	 * 
+	 * @param outputs
+	 *            the function that supplies the output of each node sending
+	 *            input to this node
+	 * @return the sum of the supplied outputs of this node's inputs, multiplied
+	 *         by their respective weights
+	 */
+	public double getNetInput(ToDoubleFunction<Node> outputs) {
+		double netInput = (matrix == null) ? 0.0 : matrix.getWeightedSum(row,
+				outputs);
+		return getStoredNetInput(netInput, outputs);
+	}
+
+	/**
+	 * Calculates the sum of all the weighted inputs to this node, given that
+	 * the outputs of the sources of this node's weight matrix are stored in
+	 * column order in the specified array starting at the specified offset.
+	 * The outputs of all other input nodes are retrieved through the specified
+	 * function. The weighted inputs are summed in the same order as
+	 * {@link #getNetInput()}.
+	 * <p>
+	 * This lets the connections stored in the weight matrix be summed as a
+	 * single dot product over contiguous arrays by the matrix's
+	 * {@link DotProductKernel}.
+	 * 
+	 * @param sourceOutputs
+	 *            the array containing the outputs of this node's weight matrix
+	 *            sources - unused if this node is not a row of a matrix
+	 * @param offset
+	 *            the index in {@code sourceOutputs} of the output of the
+	 *            matrix's first source
+	 * @param outputs
+	 *            the function that supplies the output of each other node
+	 *            sending input to this node
+	 * @return the sum of this node's inputs' outputs, multiplied by their
+	 *         respective weights
+	 */
+	public double getNetInput(double[] sourceOutputs, int offset,
+			ToDoubleFunction<Node> outputs) {
+		double netInput = (matrix == null) ? 0.0 : matrix.getWeightedSum(row,
+				sourceOutputs, offset);
+		return getStoredNetInput(netInput, outputs);
+	}
+
+	/**
+	 * Adds the weighted inputs of the connections stored by this node itself
+	 * (those not in its weight matrix) to the specified partial sum.
+	 * 
+	 * @param netInput
+	 *            the sum of the weighted inputs from the weight matrix
+	 * @param outputs
+	 *            the function that supplies the output of each node sending
+	 *            input to this node
+	 * @return the sum of all of this node's weighted inputs
+	 */
+	private double getStoredNetInput(double netInput,
+			ToDoubleFunction<Node> outputs) {
 		for (Entry<Node, Double> entry : connections.entrySet())
-			netInput += entry.getKey().getOutput() * entry.getValue();
+			netInput += outputs.applyAsDouble(entry.getKey())
+					* entry.getValue();
 		return netInput;
 	}
 }
@@ -0,0 +1,421 @@
+package caseengine.neural.node;
+
+/**
+ * A strategy for calculating the weighted sums of dense
+ * {@link WeightMatrix WeightMatrices} - the dot products at the core of every
+ * evaluation and training pass.
+ * <p>
+ * Floating-point addition is not associative, so the order in which a dot
+ * product is summed determines its exact result. Every kernel sums in the
+ * order defined by its lane count {@code L}: the products at indices
+ * {@code c} with {@code c % L == j} are accumulated in ascending order into
+ * lane {@code j}, starting from 0, and the lanes are then added together from
+ * lane 0 to lane {@code L - 1}. A kernel with one lane sums strictly in index
+ * order. All kernels with the same lane count therefore produce bit-identical
+ * results - a vectorised backend with {@code L} lanes (which must multiply and
+ * then add, rather than use fused multiply-adds) can replace the scalar kernel
+ * with {@code L} lanes without changing any result.
+ * <p>
+ * Kernels with more lanes break the dependency between consecutive additions,
+ * which lets the processor (or a SIMD unit) work on several products at once.
+ * <p>
+ * The weights of single-precision matrices are {@code float} values, and
+ * their dot products are calculated entirely in single precision: each input
+ * value is rounded to a {@code float}, and products and sums are
+ * {@code float} operations in the same lane order.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public abstract class DotProductKernel {
+
+	/**
+	 * The name of the system property that may specify the class of an
+	 * alternative kernel backend, such as one built on a SIMD library. The
+	 * class must extend {@code DotProductKernel} and have a public constructor
+	 * that takes the lane count as an {@code int}.
+	 */
+	public static final String BACKEND_PROPERTY = "caseengine.neural.node.kernel";
+
+	/**
+	 * The kernel that sums strictly in index order - the default kernel of
+	 * every {@link WeightMatrix}.
+	 */
+	public static final DotProductKernel SEQUENTIAL = new ScalarKernel(1);
+
+	/**
+	 * The number of lanes in which this kernel accumulates products.
+	 */
+	private final int laneCount;
+
+	/**
+	 * Constructs a kernel with the specified number of lanes.
+	 * 
+	 * @param laneCount
+	 *            the number of lanes in which the kernel accumulates products
+	 * @throws IllegalArgumentException
+	 *             if {@code laneCount} is less than 1
+	 */
+	protected DotProductKernel(int laneCount) throws IllegalArgumentException {
+		if (laneCount < 1)
+			throw new IllegalArgumentException();
+		this.laneCount = laneCount;
+	}
+
+	/**
+	 * Returns the number of lanes in which this kernel accumulates products,
+	 * which determines the order of its sums.
+	 * 
+	 * @return this kernel's lane count
+	 */
+	public final int getLaneCount() {
+		return laneCount;
+	}
+
+	/**
+	 * Returns the dot product of the specified ranges of the specified arrays,
+	 * summed in the order defined by this kernel's lane count.
+	 * 
+	 * @param a
+	 *            the array containing the first vector
+	 * @param aOffset
+	 *            the index of the first vector's first value
+	 * @param b
+	 *            the array containing the second vector
+	 * @param bOffset
+	 *            the index of the second vector's first value
+	 * @param length
+	 *            the number of values in each vector
+	 * @return the sum of the products {@code a[aOffset + i] * b[bOffset + i]}
+	 */
+	public abstract double dot(double[] a, int aOffset, double[] b,
+			int bOffset, int length);
+
+	/**
+	 * Returns the single-precision dot product of the specified ranges of the
+	 * specified arrays, summed in the order defined by this kernel's lane
+	 * count. Each value of {@code a} is rounded to a {@code float} before it
+	 * is multiplied.
+	 * <p>
+	 * The default implementation accumulates each lane in turn.
+	 * 
+	 * @param a
+	 *            the array containing the first vector
+	 * @param aOffset
+	 *            the index of the first vector's first value
+	 * @param b
+	 *            the array containing the second vector
+	 * @param bOffset
+	 *            the index of the second vector's first value
+	 * @param length
+	 *            the number of values in each vector
+	 * @return the sum of the products {@code (float) a[aOffset + i] *
+	 *         b[bOffset + i]}
+	 */
+	public float dot(double[] a, int aOffset, float[] b, int bOffset,
+			int length) {
+		float total = 0.0f;
+		for (int lane = 0; lane < laneCount; lane++) {
+			float laneSum = 0.0f;
+			for (int i = lane; i < length; i += laneCount)
+				laneSum += (float) a[aOffset + i] * b[bOffset + i];
+			total += laneSum;
+		}
+		return total;
+	}
+
+	/**
+	 * Returns the single-precision dot product of the specified ranges of the
+	 * specified arrays, summed in the order defined by this kernel's lane
+	 * count. The result is identical to that of
+	 * {@link #dot(double[], int, float[], int, int)} given the same values.
+	 * <p>
+	 * The default implementation accumulates each lane in turn.
+	 * 
+	 * @param a
+	 *            the array containing the first vector
+	 * @param aOffset
+	 *            the index of the first vector's first value
+	 * @param b
+	 *            the array containing the second vector
+	 * @param bOffset
+	 *            the index of the second vector's first value
+	 * @param length
+	 *            the number of values in each vector
+	 * @return the sum of the products {@code a[aOffset + i] * b[bOffset + i]}
+	 */
+	public float dot(float[] a, int aOffset, float[] b, int bOffset,
+			int length) {
+		float total = 0.0f;
+		for (int lane = 0; lane < laneCount; lane++) {
+			float laneSum = 0.0f;
+			for (int i = lane; i < length; i += laneCount)
+				laneSum += a[aOffset + i] * b[bOffset + i];
+			total += laneSum;
+		}
+		return total;
+	}
+
+	/**
+	 * Multiplies a block of sample vectors by the transpose of a row-major
+	 * weight matrix: {@code out[s][r]} is the dot product of {@code in[s]} and
+	 * row {@code r} of the matrix, summed as by
+	 * {@link #dot(double[], int, double[], int, int) dot}.
+	 * <p>
+	 * The default implementation calculates each dot product separately.
+	 * 
+	 * @param weights
+	 *            the row-major weight matrix
+	 * @param stride
+	 *            the distance between the starts of consecutive rows in
+	 *            {@code weights}, at least {@code columns}
+	 * @param rows
+	 *            the number of rows in the weight matrix
+	 * @param columns
+	 *            the number of columns in the weight matrix
+	 * @param in
+	 *            the sample-major input vectors, {@code columns} per sample
+	 * @param out
+	 *            the sample-major results, {@code rows} per sample
+	 * @param samples
+	 *            the number of samples in the block
+	 */
+	public void multiply(double[] weights, int stride, int rows, int columns,
+			double[] in, double[] out, int samples) {
+		for (int s = 0; s < samples; s++)
+			for (int r = 0; r < rows; r++)
+				out[(s * rows) + r] = dot(in, s * columns, weights,
+						r * stride, columns);
+	}
+
+	/**
+	 * Multiplies a block of single-precision sample vectors by the transpose
+	 * of a single-precision, row-major weight matrix: {@code out[s][r]} is the
+	 * dot product of {@code in[s]} and row {@code r} of the matrix, summed as
+	 * by {@link #dot(float[], int, float[], int, int) dot}.
+	 * <p>
+	 * The default implementation calculates each dot product separately.
+	 * 
+	 * @param weights
+	 *            the row-major weight matrix
+	 * @param stride
+	 *            the distance between the starts of consecutive rows in
+	 *            {@code weights}, at least {@code columns}
+	 * @param rows
+	 *            the number of rows in the weight matrix
+	 * @param columns
+	 *            the number of columns in the weight matrix
+	 * @param in
+	 *            the sample-major input vectors, {@code columns} per sample
+	 * @param out
+	 *            the sample-major results, {@code rows} per sample
+	 * @param samples
+	 *            the number of samples in the block
+	 */
+	public void multiply(float[] weights, int stride, int rows, int columns,
+			float[] in, double[] out, int samples) {
+		for (int s = 0; s < samples; s++)
+			for (int r = 0; r < rows; r++)
+				out[(s * rows) + r] = dot(in, s * columns, weights,
+						r * stride, columns);
+	}
+
+	/**
+	 * Returns a kernel with the specified number of lanes, using the backend
+	 * named by the {@value #BACKEND_PROPERTY} system property if it is set and
+	 * can be loaded, or the scalar kernel otherwise. As kernels with the same
+	 * lane count produce identical results, the choice of backend only affects
+	 * speed.
+	 * 
+	 * @param laneCount
+	 *            the number of lanes in which the kernel accumulates products
+	 * @return a kernel with the specified lane count
+	 * @throws IllegalArgumentException
+	 *             if {@code laneCount} is less than 1
+	 */
+	public static DotProductKernel getKernel(int laneCount)
+			throws IllegalArgumentException {
+		if (laneCount < 1)
+			throw new IllegalArgumentException();
+		String backend = System.getProperty(BACKEND_PROPERTY);
+		if (backend != null)
+			try {
+				DotProductKernel kernel = Class.forName(backend)
+						.asSubclass(DotProductKernel.class)
+						.getConstructor(int.class).newInstance(laneCount);
+				if (kernel.getLaneCount() == laneCount)
+					return kernel;
+			} catch (ReflectiveOperationException | ClassCastException
+					| LinkageError e) {
+				// The backend is unavailable (for example, its module is not
+				// present) - fall back to the scalar kernel
+			}
+		return (laneCount == 1) ? SEQUENTIAL : new ScalarKernel(laneCount);
+	}
+
+	/**
+	 * The portable kernel, which accumulates each lane in a separate scalar
+	 * variable. Kernels of 1, 2, 4, and 8 lanes are unrolled by hand; other
+	 * lane counts use a general loop.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class ScalarKernel extends DotProductKernel {
+
+		/**
+		 * Constructs a scalar kernel with the specified number of lanes.
+		 * 
+		 * @param laneCount
+		 *            the number of lanes in which the kernel accumulates
+		 *            products
+		 * @throws IllegalArgumentException
+		 *             if {@code laneCount} is less than 1
+		 */
+		public ScalarKernel(int laneCount) throws IllegalArgumentException {
+			super(laneCount);
+		}
+
+		@Override
+		public double dot(double[] a, int aOffset, double[] b, int bOffset,
+				int length) {
+			switch (getLaneCount()) {
+			case 1:
+				double sum = 0.0;
+				for (int i = 0; i < length; i++)
+					sum += a[aOffset + i] * b[bOffset + i];
+				return sum;
+			case 2:
+				return dot2(a, aOffset, b, bOffset, length);
+			case 4:
+				return dot4(a, aOffset, b, bOffset, length);
+			case 8:
+				return dot8(a, aOffset, b, bOffset, length);
+			default:
+				double total = 0.0;
+				for (int lane = 0; lane < getLaneCount(); lane++) {
+					double laneSum = 0.0;
+					for (int i = lane; i < length; i += getLaneCount())
+						laneSum += a[aOffset + i] * b[bOffset + i];
+					total += laneSum;
+				}
+				return total;
+			}
+		}
+
+		/**
+		 * Returns the dot product of the specified vectors summed in two
+		 * lanes.
+		 */
+		private static double dot2(double[] a, int aOffset, double[] b,
+				int bOffset, int length) {
+			double sum0 = 0.0, sum1 = 0.0;
+			int i = 0;
+			for (; i + 2 <= length; i += 2) {
+				sum0 += a[aOffset + i] * b[bOffset + i];
+				sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			}
+			if (i < length)
+				sum0 += a[aOffset + i] * b[bOffset + i];
+			return sum0 + sum1;
+		}
+
+		/**
+		 * Returns the dot product of the specified vectors summed in four
+		 * lanes.
+		 */
+		private static double dot4(double[] a, int aOffset, double[] b,
+				int bOffset, int length) {
+			double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+			int i = 0;
+			for (; i + 4 <= length; i += 4) {
+				sum0 += a[aOffset + i] * b[bOffset + i];
+				sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+				sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+				sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+			}
+			if (i < length)
+				sum0 += a[aOffset + i] * b[bOffset + i];
+			if (i + 1 < length)
+				sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			if (i + 2 < length)
+				sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+			return ((sum0 + sum1) + sum2) + sum3;
+		}
+
+		/**
+		 * Returns the dot product of the specified vectors summed in eight
+		 * lanes.
+		 */
+		private static double dot8(double[] a, int aOffset, double[] b,
+				int bOffset, int length) {
+			double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+			double sum4 = 0.0, sum5 = 0.0, sum6 = 0.0, sum7 = 0.0;
+			int i = 0;
+			for (; i + 8 <= length; i += 8) {
+				sum0 += a[aOffset + i] * b[bOffset + i];
+				sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+				sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+				sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+				sum4 += a[aOffset + i + 4] * b[bOffset + i + 4];
+				sum5 += a[aOffset + i + 5] * b[bOffset + i + 5];
+				sum6 += a[aOffset + i + 6] * b[bOffset + i + 6];
+				sum7 += a[aOffset + i + 7] * b[bOffset + i + 7];
+			}
+			if (i < length)
+				sum0 += a[aOffset + i] * b[bOffset + i];
+			if (i + 1 < length)
+				sum1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+			if (i + 2 < length)
+				sum2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+			if (i + 3 < length)
+				sum3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+			if (i + 4 < length)
+				sum4 += a[aOffset + i + 4] * b[bOffset + i + 4];
+			if (i + 5 < length)
+				sum5 += a[aOffset + i + 5] * b[bOffset + i + 5];
+			if (i + 6 < length)
+				sum6 += a[aOffset + i + 6] * b[bOffset + i + 6];
+			return ((((((sum0 + sum1) + sum2) + sum3) + sum4) + sum5) + sum6)
+					+ sum7;
+		}
+
+		@Override
+		public void multiply(double[] weights, int stride, int rows,
+				int columns, double[] in, double[] out, int samples) {
+			if (getLaneCount() != 1) {
+				super.multiply(weights, stride, rows, columns, in, out,
+						samples);
+				return;
+			}
+			// Four samples are accumulated together so that each weight is
+			// loaded once per four products
+			int s = 0;
+			for (; s + 4 <= samples; s += 4) {
+				int in0 = s * columns;
+				int in1 = in0 + columns;
+				int in2 = in1 + columns;
+				int in3 = in2 + columns;
+				for (int r = 0; r < rows; r++) {
+					int w = r * stride;
+					double sum0 = 0.0, sum1 = 0.0, sum2 = 0.0, sum3 = 0.0;
+					for (int c = 0; c < columns; c++) {
+						double weight = weights[w + c];
+						sum0 += in[in0 + c] * weight;
+						sum1 += in[in1 + c] * weight;
+						sum2 += in[in2 + c] * weight;
+						sum3 += in[in3 + c] * weight;
+					}
+					out[(s * rows) + r] = sum0;
+					out[((s + 1) * rows) + r] = sum1;
+					out[((s + 2) * rows) + r] = sum2;
+					out[((s + 3) * rows) + r] = sum3;
+				}
+			}
+			for (; s < samples; s++)
+				for (int r = 0; r < rows; r++)
+					out[(s * rows) + r] = dot(in, s * columns, weights, r
+							* stride, columns);
+		}
+	}
+}
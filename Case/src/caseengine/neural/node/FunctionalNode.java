@@ -47,7 +47,24 @@ public class FunctionalNode extends ConnectableNode {
 	 */
 	@Override
 	public double getOutput() {
-		return activationFunction.function(getNetInput());
+		return getOutput(getNetInput());
+	}
+
+	/**
+	 * Returns the output of this node given that its net input is the
+	 * specified value - the specified value fed through this node's activation
+	 * function.
+	 * <p>
+	 * This method is final so that networks may evaluate a layer of nodes that
+	 * share an activation function by applying the function to all of their
+	 * net inputs at once.
+	 * 
+	 * @param netInput
+	 *            the net input of this node
+	 * @return this node's output when its net input is the specified value
+	 */
+	public final double getOutput(double netInput) {
+		return activationFunction.function(netInput);
 	}
 
 }
@@ -0,0 +1,428 @@
+package caseengine.neural.node;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * A dense, row-major matrix of connection weights from an ordered set of
+ * source {@link Node Nodes} (the columns) to an ordered set of
+ * {@link ConnectableNode ConnectableNodes} (the rows). The weights are stored
+ * in a single {@code double[]}, in which the weight of the connection from the
+ * source at column {@code c} to the node at row {@code r} is stored at index
+ * {@code (r * getStride() + c)}. Each row is followed by room for more
+ * columns, so that the stride - the distance between the starts of
+ * consecutive rows - is at least the number of columns.
+ * <p>
+ * A matrix may instead be constructed with single precision, in which case
+ * its weights are stored in a {@code float[]} - half the memory of a
+ * double-precision matrix - and weighted sums through it are calculated in
+ * single precision (see {@link DotProductKernel}). Weights set on a
+ * single-precision matrix are rounded to the nearest {@code float}.
+ * <p>
+ * A node can be the row of at most one matrix. Once a node is added as a row,
+ * its connections from the matrix's sources are stored in the matrix rather
+ * than in the node itself - {@link ConnectableNode#setConnection(Node, double)
+ * setConnection} and {@link ConnectableNode#getConnection(Node) getConnection}
+ * act as views onto the matrix for those sources. Connections from nodes that
+ * are not sources of the matrix are kept by the node as usual.
+ * <p>
+ * Rows and columns cannot be removed. As with a node's connections, a
+ * connection in the matrix is "removed" by setting its weight to 0.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class WeightMatrix {
+
+	/**
+	 * The source nodes of this matrix, in column order.
+	 */
+	private final ArrayList<Node> sources = new ArrayList<Node>();
+
+	/**
+	 * Maps each source node to its column. A node added as a source more than
+	 * once maps to its first column.
+	 */
+	private final IdentityHashMap<Node, Integer> sourceColumns = new IdentityHashMap<Node, Integer>();
+
+	/**
+	 * The nodes receiving input through this matrix, in row order.
+	 */
+	private final ArrayList<ConnectableNode> rows = new ArrayList<ConnectableNode>();
+
+	/**
+	 * Whether the weights of this matrix are stored in single precision.
+	 */
+	private final boolean singlePrecision;
+
+	/**
+	 * The row-major connection weights of this matrix, or null if this matrix
+	 * is single-precision.
+	 */
+	private double[] weights;
+
+	/**
+	 * The row-major connection weights of this matrix, or null if this matrix
+	 * is double-precision.
+	 */
+	private float[] singleWeights;
+
+	/**
+	 * The distance between the starts of consecutive rows in the weights of
+	 * this matrix - the number of columns there is room for.
+	 */
+	private int stride = 0;
+
+	/**
+	 * The kernel used to calculate the weighted sums of this matrix's rows.
+	 */
+	private DotProductKernel kernel = DotProductKernel.SEQUENTIAL;
+
+	/**
+	 * Constructs an empty, double-precision matrix.
+	 */
+	public WeightMatrix() {
+		this(false);
+	}
+
+	/**
+	 * Constructs an empty matrix with the specified precision.
+	 * 
+	 * @param singlePrecision
+	 *            whether the weights of the matrix are stored in a
+	 *            {@code float[]} rather than a {@code double[]}
+	 */
+	public WeightMatrix(boolean singlePrecision) {
+		this.singlePrecision = singlePrecision;
+		if (singlePrecision)
+			singleWeights = new float[0];
+		else
+			weights = new double[0];
+	}
+
+	/**
+	 * Returns whether the weights of this matrix are stored in single
+	 * precision.
+	 * 
+	 * @return true if this matrix's weights are stored in a {@code float[]},
+	 *         false if they are stored in a {@code double[]}
+	 */
+	public boolean isSinglePrecision() {
+		return singlePrecision;
+	}
+
+	/**
+	 * Returns the number of rows - receiving nodes - in this matrix.
+	 * 
+	 * @return the number of rows in this matrix
+	 */
+	public int getRowCount() {
+		return rows.size();
+	}
+
+	/**
+	 * Returns the number of columns - source nodes - in this matrix.
+	 * 
+	 * @return the number of columns in this matrix
+	 */
+	public int getColumnCount() {
+		return sources.size();
+	}
+
+	/**
+	 * Returns the node at the specified row of this matrix.
+	 * 
+	 * @param row
+	 *            the index of the row
+	 * @return the node receiving input through the specified row
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified row is out of range
+	 */
+	public ConnectableNode getRow(int row) throws IndexOutOfBoundsException {
+		return rows.get(row);
+	}
+
+	/**
+	 * Returns the source node at the specified column of this matrix.
+	 * 
+	 * @param column
+	 *            the index of the column
+	 * @return the node sending input through the specified column
+	 * @throws IndexOutOfBoundsException
+	 *             if the specified column is out of range
+	 */
+	public Node getSource(int column) throws IndexOutOfBoundsException {
+		return sources.get(column);
+	}
+
+	/**
+	 * Returns the column of the specified source node, or -1 if the node is
+	 * not a source of this matrix.
+	 * 
+	 * @param source
+	 *            the node whose column is returned
+	 * @return the column of the specified node in this matrix, or -1 if it is
+	 *         not a source of this matrix
+	 */
+	public int getColumn(Node source) {
+		Integer column = sourceColumns.get(source);
+		return (column == null) ? -1 : column;
+	}
+
+	/**
+	 * Returns the distance between the starts of consecutive rows in the
+	 * arrays returned by {@link #getWeights()} and {@link #getSingleWeights()}.
+	 * The stride is at least the number of columns, and may change whenever a
+	 * column is added.
+	 * 
+	 * @return the row stride of this matrix's weights
+	 */
+	public int getStride() {
+		return stride;
+	}
+
+	/**
+	 * Returns the array in which the weights of this matrix are stored, in
+	 * row-major order with rows {@link #getStride()} apart. The array may be
+	 * replaced whenever a row or column is added, so it should not be retained
+	 * across structural changes to this matrix, and it may be longer than
+	 * {@code getRowCount() * getStride()} to leave room for new rows. The
+	 * weights between the end of a row and the start of the next are 0, and
+	 * must be left so. Writes to the array are writes to the weights of this
+	 * matrix.
+	 * 
+	 * @return the backing array of this matrix's weights, or null if this
+	 *         matrix is single-precision
+	 * @see #getSingleWeights()
+	 */
+	public double[] getWeights() {
+		return weights;
+	}
+
+	/**
+	 * Returns the array in which the weights of a single-precision matrix are
+	 * stored, in row-major order. As with {@link #getWeights()}, the array may
+	 * be replaced whenever a row or column is added and may be longer than the
+	 * matrix.
+	 * 
+	 * @return the backing array of this matrix's weights, or null if this
+	 *         matrix is double-precision
+	 */
+	public float[] getSingleWeights() {
+		return singleWeights;
+	}
+
+	/**
+	 * Returns the kernel used to calculate the weighted sums of this matrix's
+	 * rows.
+	 * 
+	 * @return this matrix's dot product kernel
+	 */
+	public DotProductKernel getKernel() {
+		return kernel;
+	}
+
+	/**
+	 * Sets the kernel used to calculate the weighted sums of this matrix's
+	 * rows. The kernel's lane count determines the order in which the
+	 * weighted inputs of the rows' nodes are summed (see
+	 * {@link DotProductKernel}), and therefore the exact net inputs of the
+	 * nodes.
+	 * 
+	 * @param kernel
+	 *            the new dot product kernel of this matrix
+	 * @throws NullPointerException
+	 *             if {@code kernel} is null
+	 */
+	public void setKernel(DotProductKernel kernel) throws NullPointerException {
+		if (kernel == null)
+			throw new NullPointerException();
+		this.kernel = kernel;
+	}
+
+	/**
+	 * Returns the weight of the connection from the source at the specified
+	 * column to the node at the specified row.
+	 * 
+	 * @param row
+	 *            the row of the receiving node
+	 * @param column
+	 *            the column of the source node
+	 * @return the weight of the specified connection
+	 */
+	public double getWeight(int row, int column) {
+		if (singlePrecision)
+			return singleWeights[(row * stride) + column];
+		return weights[(row * stride) + column];
+	}
+
+	/**
+	 * Sets the weight of the connection from the source at the specified
+	 * column to the node at the specified row. The weights of single-precision
+	 * matrices are rounded to the nearest {@code float}.
+	 * 
+	 * @param row
+	 *            the row of the receiving node
+	 * @param column
+	 *            the column of the source node
+	 * @param weight
+	 *            the new weight of the specified connection
+	 */
+	public void setWeight(int row, int column, double weight) {
+		if (singlePrecision)
+			singleWeights[(row * stride) + column] = (float) weight;
+		else
+			weights[(row * stride) + column] = weight;
+	}
+
+	/**
+	 * Returns the weighted sum of the outputs of this matrix's sources through
+	 * the specified row, in the precision and order of this matrix's kernel.
+	 * 
+	 * @param row
+	 *            the row of the receiving node
+	 * @param outputs
+	 *            supplies the output of each source node
+	 * @return the sum of the products of each source's output and its weight
+	 *         in the specified row
+	 */
+	public double getWeightedSum(int row, ToDoubleFunction<Node> outputs) {
+		int columns = sources.size();
+		int offset = row * stride;
+		int lanes = kernel.getLaneCount();
+		if (singlePrecision) {
+			float sum = 0.0f;
+			for (int lane = 0; lane < lanes; lane++) {
+				float laneSum = 0.0f;
+				for (int column = lane; column < columns; column += lanes)
+					laneSum += (float) outputs.applyAsDouble(sources
+							.get(column)) * singleWeights[offset + column];
+				sum += laneSum;
+			}
+			return sum;
+		}
+		double sum = 0.0;
+		for (int lane = 0; lane < lanes; lane++) {
+			double laneSum = 0.0;
+			for (int column = lane; column < columns; column += lanes)
+				laneSum += outputs.applyAsDouble(sources.get(column))
+						* weights[offset + column];
+			sum += laneSum;
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the weighted sum of the specified source outputs through the
+	 * specified row, calculated by this matrix's kernel.
+	 * 
+	 * @param row
+	 *            the row of the receiving node
+	 * @param sourceOutputs
+	 *            the array containing the outputs of this matrix's sources in
+	 *            column order
+	 * @param offset
+	 *            the index in {@code sourceOutputs} of the output of the
+	 *            source at column 0
+	 * @return the sum of the products of each source's output and its weight
+	 *         in the specified row
+	 */
+	public double getWeightedSum(int row, double[] sourceOutputs, int offset) {
+		int columns = sources.size();
+		if (singlePrecision)
+			return kernel.dot(sourceOutputs, offset, singleWeights, row
+					* stride, columns);
+		return kernel.dot(sourceOutputs, offset, weights, row * stride,
+				columns);
+	}
+
+	/**
+	 * Appends a column for the specified source node to this matrix. Existing
+	 * connections from the source to the nodes in this matrix are moved into
+	 * the new column, other weights in the column are 0.
+	 * <p>
+	 * A node may be added as a source more than once (for example, if it
+	 * appears more than once in a network layer). Its connections are always
+	 * stored in its first column - the weights of its later columns remain 0.
+	 * 
+	 * @param source
+	 *            the node sending input through the new column
+	 * @return the index of the new column
+	 * @throws NullPointerException
+	 *             if {@code source} is null
+	 */
+	public int addSource(Node source) throws NullPointerException {
+		if (source == null)
+			throw new NullPointerException();
+		int columns = sources.size();
+		// Each row is followed by room for more columns, which grows
+		// geometrically to keep building a matrix column by column linear
+		if (columns == stride) {
+			int newStride = Math.max(stride * 2, 1);
+			if (singlePrecision) {
+				float[] newWeights = new float[rows.size() * newStride];
+				for (int row = 0; row < rows.size(); row++)
+					System.arraycopy(singleWeights, row * stride, newWeights,
+							row * newStride, columns);
+				singleWeights = newWeights;
+			} else {
+				double[] newWeights = new double[rows.size() * newStride];
+				for (int row = 0; row < rows.size(); row++)
+					System.arraycopy(weights, row * stride, newWeights, row
+							* newStride, columns);
+				weights = newWeights;
+			}
+			stride = newStride;
+		}
+		sources.add(source);
+		if (!sourceColumns.containsKey(source)) {
+			sourceColumns.put(source, columns);
+			for (int row = 0; row < rows.size(); row++) {
+				Double weight = rows.get(row).removeStoredConnection(source);
+				if (weight != null)
+					setWeight(row, columns, weight);
+			}
+		}
+		return columns;
+	}
+
+	/**
+	 * Appends a row for the specified node to this matrix, if the node is not
+	 * already a row of a matrix. The node's existing connections from the
+	 * sources of this matrix are moved into the new row, other weights in the
+	 * row are 0.
+	 * 
+	 * @param node
+	 *            the node receiving input through the new row
+	 * @return the index of the new row, or -1 if the node is already a row of
+	 *         a matrix (in which case this matrix is unchanged)
+	 * @throws NullPointerException
+	 *             if {@code node} is null
+	 */
+	public int addRow(ConnectableNode node) throws NullPointerException {
+		if (node == null)
+			throw new NullPointerException();
+		if (node.getWeightMatrix() != null)
+			return -1;
+		int row = rows.size();
+		// Rows are appended to the end of the array, so the array grows
+		// geometrically to keep building a matrix row by row linear
+		int size = (row + 1) * stride;
+		if (singlePrecision) {
+			if (singleWeights.length < size)
+				singleWeights = Arrays.copyOf(singleWeights,
+						Math.max(size, singleWeights.length * 2));
+		} else if (weights.length < size)
+			weights = Arrays.copyOf(weights, Math.max(size, weights.length * 2));
+		rows.add(node);
+		for (int column = 0; column < sources.size(); column++) {
+			Double weight = node.removeStoredConnection(sources.get(column));
+			if (weight != null)
+				setWeight(row, column, weight);
+		}
+		node.bind(this, row);
+		return row;
+	}
+}
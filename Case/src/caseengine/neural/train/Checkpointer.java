@@ -0,0 +1,443 @@
+package caseengine.neural.train;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+import caseengine.neural.network.LayeredNetwork;
+import caseengine.neural.network.NetworkSnapshot;
+
+/**
+ * A writer of periodic checkpoints of a network being trained. Checkpoints are
+ * taken on the training thread by {@link NetworkSnapshot#capture(LayeredNetwork)
+ * capturing} a snapshot, which copies the network's weight arrays, and are
+ * written to files on a background thread while training continues.
+ * <p>
+ * Checkpoint files are named after a prefix and a sequence number that
+ * continues from the checkpoints already in the directory. Once a checkpoint
+ * has been written, the oldest files are deleted so that only a fixed number
+ * of the most recent checkpoints are retained. Since each file is written
+ * atomically, the most recent file is always a complete checkpoint.
+ * <p>
+ * The training thread never waits on a file being written for longer than the
+ * checkpointer's maximum pause. If the previous checkpoint is still being
+ * written when the next is due, the training thread waits for at most the
+ * maximum pause; if the write has not finished by then, the checkpoint is
+ * deferred to the next step. The capture itself cannot be interrupted, so a
+ * capture that takes longer than the maximum pause is counted as an
+ * {@link #getOverrunCount() overrun}.
+ * <p>
+ * A checkpointer must only be used by one training thread, and must be
+ * {@link #close() closed} to finish its last write and stop its background
+ * thread.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class Checkpointer implements Closeable {
+
+	/**
+	 * The file name extension of checkpoint files.
+	 */
+	public static final String EXTENSION = ".snapshot";
+
+	/**
+	 * The directory the checkpoints are written to.
+	 */
+	private final Path directory;
+
+	/**
+	 * The prefix of the checkpoint file names.
+	 */
+	private final String prefix;
+
+	/**
+	 * The number of most recent checkpoint files kept.
+	 */
+	private final int retainedCount;
+
+	/**
+	 * The number of steps between checkpoints.
+	 */
+	private final int interval;
+
+	/**
+	 * The longest time, in microseconds, the training thread waits for a
+	 * previous checkpoint to be written.
+	 */
+	private final long maximumPause;
+
+	/**
+	 * The thread that writes checkpoint files.
+	 */
+	private final ExecutorService writer;
+
+	/**
+	 * The checkpoint files retained, oldest first. Only accessed by the writer
+	 * thread after construction.
+	 */
+	private final ArrayDeque<Path> retained = new ArrayDeque<Path>();
+
+	/**
+	 * The sequence number of the next checkpoint.
+	 */
+	private long sequence;
+
+	/**
+	 * The number of steps since the last checkpoint.
+	 */
+	private int steps;
+
+	/**
+	 * The write of the latest checkpoint, or null if none has been taken.
+	 */
+	private Future<?> pending;
+
+	/**
+	 * The duration, in microseconds, of the latest pause of the training
+	 * thread for a checkpoint.
+	 */
+	private long lastPause;
+
+	/**
+	 * The longest pause, in microseconds, of the training thread for a
+	 * checkpoint.
+	 */
+	private long longestPause;
+
+	/**
+	 * The number of checkpoints whose pause exceeded the maximum pause.
+	 */
+	private int overrunCount;
+
+	/**
+	 * The most recent checkpoint file written, or null if none has been
+	 * written.
+	 */
+	private volatile Path latest;
+
+	/**
+	 * The error of the first write that failed, or null if none has failed.
+	 * Later writes never clear it, so {@link #close()} reports it even if the
+	 * checkpoints that followed were written.
+	 */
+	private volatile IOException failure;
+
+	/**
+	 * Constructs a checkpointer that writes to the specified directory. The
+	 * directory is created if necessary, and the checkpoints already in it
+	 * with the specified prefix count towards those retained.
+	 * 
+	 * @param directory
+	 *            the directory the checkpoints are written to
+	 * @param prefix
+	 *            the prefix of the checkpoint file names
+	 * @param retainedCount
+	 *            the number of most recent checkpoint files kept
+	 * @param interval
+	 *            the number of {@link #step(LayeredNetwork) steps} between
+	 *            checkpoints
+	 * @param maximumPause
+	 *            the longest time, in microseconds, the training thread waits
+	 *            for a previous checkpoint to be written
+	 * @throws NullPointerException
+	 *             if {@code directory} or {@code prefix} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code retainedCount} or {@code interval} is less than 1
+	 *             or {@code maximumPause} is negative
+	 * @throws IOException
+	 *             if an I/O error occurs while listing the directory
+	 */
+	public Checkpointer(Path directory, String prefix, int retainedCount,
+			int interval, long maximumPause) throws NullPointerException,
+			IllegalArgumentException, IOException {
+		if (directory == null || prefix == null)
+			throw new NullPointerException();
+		if (retainedCount < 1 || interval < 1 || maximumPause < 0)
+			throw new IllegalArgumentException();
+		this.directory = directory;
+		this.prefix = prefix;
+		this.retainedCount = retainedCount;
+		this.interval = interval;
+		this.maximumPause = maximumPause;
+
+		Files.createDirectories(directory);
+		long[] sequences = new long[0];
+		try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+			for (Path file : files) {
+				long fileSequence = getSequence(file);
+				if (fileSequence >= 0) {
+					sequences = Arrays.copyOf(sequences, sequences.length + 1);
+					sequences[sequences.length - 1] = fileSequence;
+				}
+			}
+		}
+		Arrays.sort(sequences);
+		for (long fileSequence : sequences)
+			retained.add(getFile(fileSequence));
+		if (sequences.length > 0) {
+			sequence = sequences[sequences.length - 1] + 1;
+			latest = retained.peekLast();
+		}
+
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Checkpointer writer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Records a training step of the specified network, taking a checkpoint
+	 * if one is due.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @return true if a checkpoint was taken
+	 * @throws NullPointerException
+	 *             if {@code network} is null
+	 * @throws IllegalArgumentException
+	 *             if the network cannot be captured in a snapshot
+	 * @throws IllegalStateException
+	 *             if this checkpointer is closed
+	 */
+	public boolean step(LayeredNetwork network) throws NullPointerException,
+			IllegalArgumentException, IllegalStateException {
+		if (network == null)
+			throw new NullPointerException();
+		if (++steps < interval)
+			return false;
+		if (!checkpoint(network))
+			return false;
+		steps = 0;
+		return true;
+	}
+
+	/**
+	 * Takes a checkpoint of the specified network now, unless the previous
+	 * checkpoint is still being written after the maximum pause.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @return true if a checkpoint was taken, false if it was deferred
+	 * @throws NullPointerException
+	 *             if {@code network} is null
+	 * @throws IllegalArgumentException
+	 *             if the network cannot be captured in a snapshot
+	 * @throws IllegalStateException
+	 *             if this checkpointer is closed
+	 */
+	public boolean checkpoint(LayeredNetwork network)
+			throws NullPointerException, IllegalArgumentException,
+			IllegalStateException {
+		if (network == null)
+			throw new NullPointerException();
+		if (writer.isShutdown())
+			throw new IllegalStateException();
+		long start = System.nanoTime();
+		if (pending != null && !pending.isDone())
+			try {
+				pending.get(maximumPause, TimeUnit.MICROSECONDS);
+			} catch (TimeoutException e) {
+				return false;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} catch (ExecutionException e) {
+				// Recorded as the failure by the write
+			}
+		final NetworkSnapshot snapshot = NetworkSnapshot.capture(network);
+		final Path file = getFile(sequence++);
+		pending = writer.submit(new Runnable() {
+
+			@Override
+			public void run() {
+				write(snapshot, file);
+			}
+		});
+		lastPause = (System.nanoTime() - start) / 1000;
+		longestPause = Math.max(longestPause, lastPause);
+		if (lastPause > maximumPause)
+			overrunCount++;
+		return true;
+	}
+
+	/**
+	 * Returns the most recent complete checkpoint file.
+	 * 
+	 * @return the latest checkpoint written, or null if there is none
+	 */
+	public Path getLatest() {
+		return latest;
+	}
+
+	/**
+	 * Returns the error of the first checkpoint write that failed.
+	 * 
+	 * @return the first write error, or null if no write has failed
+	 */
+	public IOException getFailure() {
+		return failure;
+	}
+
+	/**
+	 * Returns the maximum pause of this checkpointer.
+	 * 
+	 * @return the longest time, in microseconds, the training thread waits for
+	 *         a previous checkpoint to be written
+	 */
+	public long getMaximumPause() {
+		return maximumPause;
+	}
+
+	/**
+	 * Returns the duration of the latest pause of the training thread for a
+	 * checkpoint, including the capture of the snapshot.
+	 * 
+	 * @return the latest pause in microseconds
+	 */
+	public long getLastPause() {
+		return lastPause;
+	}
+
+	/**
+	 * Returns the duration of the longest pause of the training thread for a
+	 * checkpoint, including the capture of the snapshot.
+	 * 
+	 * @return the longest pause in microseconds
+	 */
+	public long getLongestPause() {
+		return longestPause;
+	}
+
+	/**
+	 * Returns the number of checkpoints whose pause exceeded the maximum
+	 * pause.
+	 * 
+	 * @return the number of overrunning checkpoints
+	 */
+	public int getOverrunCount() {
+		return overrunCount;
+	}
+
+	/**
+	 * Waits for the latest checkpoint to be written and stops the background
+	 * thread.
+	 * 
+	 * @throws IOException
+	 *             the error of the first checkpoint write that failed, if
+	 *             any did
+	 */
+	@Override
+	public void close() throws IOException {
+		writer.shutdown();
+		boolean interrupted = false;
+		try {
+			while (true)
+				try {
+					writer.awaitTermination(Long.MAX_VALUE, TimeUnit.NANOSECONDS);
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+		} finally {
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+		if (failure != null)
+			throw failure;
+	}
+
+	/**
+	 * Writes the specified snapshot and deletes the checkpoints no longer
+	 * retained. Called on the writer thread.
+	 * 
+	 * @param snapshot
+	 *            the snapshot being written
+	 * @param file
+	 *            the checkpoint file
+	 */
+	private void write(NetworkSnapshot snapshot, Path file) {
+		try {
+			snapshot.write(file);
+		} catch (IOException e) {
+			recordFailure(e);
+			return;
+		}
+		latest = file;
+		retained.add(file);
+		while (retained.size() > retainedCount)
+			try {
+				Files.deleteIfExists(retained.peekFirst());
+				retained.removeFirst();
+			} catch (IOException e) {
+				recordFailure(e);
+				return;
+			}
+	}
+
+	/**
+	 * Records the specified write error unless an earlier one has been
+	 * recorded. Called on the writer thread.
+	 * 
+	 * @param e
+	 *            the error of a write
+	 */
+	private void recordFailure(IOException e) {
+		if (failure == null)
+			failure = e;
+	}
+
+	/**
+	 * Returns the checkpoint file with the specified sequence number.
+	 * 
+	 * @param fileSequence
+	 *            the sequence number of the checkpoint
+	 * @return the path of the checkpoint file
+	 */
+	private Path getFile(long fileSequence) {
+		return directory.resolve(String.format("%s-%019d%s", prefix,
+				fileSequence, EXTENSION));
+	}
+
+	/**
+	 * Returns the sequence number of the specified checkpoint file.
+	 * 
+	 * @param file
+	 *            a file in the checkpoint directory
+	 * @return the sequence number of the file, or -1 if it is not named like a
+	 *         checkpoint of this checkpointer
+	 */
+	private long getSequence(Path file) {
+		String name = file.getFileName().toString();
+		if (!name.startsWith(prefix + "-") || !name.endsWith(EXTENSION))
+			return -1;
+		String number = name.substring(prefix.length() + 1, name.length()
+				- EXTENSION.length());
+		if (number.isEmpty())
+			return -1;
+		for (int i = 0; i < number.length(); i++)
+			if (!Character.isDigit(number.charAt(i)))
+				return -1;
+		try {
+			return Long.parseLong(number);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+}
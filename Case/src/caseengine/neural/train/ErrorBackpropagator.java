@@ -1,7 +1,6 @@
 package caseengine.neural.train;
 
 import java.util.ArrayList;
-import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map.Entry;
 
@@ -14,6 +13,64 @@ import caseengine.neural.node.Node;
 
 public class ErrorBackpropagator {
 
+	/**
+	 * The buffers of dense training passes, reused from sample to sample.
+	 */
+	private final TrainingPass pass = new TrainingPass();
+
+	/**
+	 * The gradients accumulated during batch training, reused from batch to
+	 * batch.
+	 */
+	private final GradientBuffer gradients = new GradientBuffer();
+
+	/**
+	 * The checker of the samples being trained, reused from sample to sample.
+	 */
+	private final SampleChecker checker = new SampleChecker();
+
+	/**
+	 * The update rule applied to densely trained networks, or null for plain
+	 * gradient descent.
+	 */
+	private final Optimizer optimizer;
+
+	/**
+	 * Constructs an {@code ErrorBackpropagator} that trains with plain
+	 * gradient descent.
+	 */
+	public ErrorBackpropagator() {
+		optimizer = null;
+	}
+
+	/**
+	 * Constructs an {@code ErrorBackpropagator} that turns the gradients of
+	 * densely trained networks into weight steps with the specified optimizer.
+	 * Networks that cannot be trained densely are trained with plain gradient
+	 * descent.
+	 * 
+	 * @param optimizer
+	 *            the update rule applied to the gradients of dense networks
+	 * @throws NullPointerException
+	 *             if {@code optimizer} is null
+	 */
+	public ErrorBackpropagator(Optimizer optimizer)
+			throws NullPointerException {
+		if (optimizer == null)
+			throw new NullPointerException();
+		this.optimizer = optimizer;
+	}
+
+	/**
+	 * Returns the optimizer used by this {@code ErrorBackpropagator}.
+	 * 
+	 * @return the update rule applied to the gradients of dense networks, or
+	 *         null if plain gradient descent is used
+	 */
+	public Optimizer getOptimizer() {
+		return optimizer;
+	}
+
 	@SuppressWarnings("unused")
 	private static boolean isEligible(LayeredNetwork network, int outputLayer) {
 		if (outputLayer >= network.getLayerCount())
@@ -255,6 +312,16 @@ public class ErrorBackpropagator {
 	 * FunctionalNodes} whose functions are
 	 * {@link caseengine.function.DifferentiableFunction
 	 * DifferentiableFunctions}.
+	 * <p>
+	 * If the layers being trained are {@link LayeredNetwork#isDense(int)
+	 * dense} and have no connections from outside the network, the network is
+	 * evaluated once and the error is propagated back through its weight
+	 * matrices in a single pass over preallocated buffers, so training costs
+	 * time linear in the number of trained connections. Otherwise each
+	 * connection is trained individually. Both produce the same weights. The
+	 * {@link #getOptimizer() optimizer}, if any, is only used by the former. An
+	 * {@code ErrorBackpropagator} reuses its buffers between calls, so it must
+	 * not train on more than one thread at a time.
 	 * 
 	 * @param network
 	 *            the network being trained
@@ -307,35 +374,28 @@ public class ErrorBackpropagator {
 		if (trainingNodes.length == 0 || learningRate == 0)
 			return;
 
-		if (inputs.length != network.getInputs().size())
-			throw new IllegalArgumentException();
-		if (trainingLayer < 0 || trainingLayer >= network.getLayerCount())
-			throw new IndexOutOfBoundsException();
-		ArrayList<ConnectableNode> trainingLayerNodes = network
-				.getLayer(trainingLayer);
-		// Check for duplicates in trainingNodes - two different values can't be
-		// trained for one node
-		int[] trainingNodesDuplicates = {};
-		for (int trainingNode : trainingNodes) {
-			if (trainingNode < 0 || trainingNode >= trainingLayerNodes.size())
-				throw new IndexOutOfBoundsException();
-			for (int trainingNodesDuplicate : trainingNodesDuplicates)
-				if (trainingNode == trainingNodesDuplicate)
-					throw new IllegalArgumentException();
-			trainingNodesDuplicates = Arrays.copyOf(trainingNodesDuplicates,
-					trainingNodesDuplicates.length + 1);
-			trainingNodesDuplicates[trainingNodesDuplicates.length - 1] = trainingNode;
-		}
-		trainingNodesDuplicates = null;
-
-		if (trainingNodes.length != targetOutputs.length)
-			throw new IllegalArgumentException();
+		checker.checkSample(network, inputs, trainingLayer, trainingNodes,
+				targetOutputs);
 
 		/*
 		 * Training
 		 */
+		if (pass.prepare(network, trainingLayer)) {
+			pass.forward(inputs);
+			pass.backward(trainingNodes, targetOutputs);
+			if (optimizer == null)
+				pass.update(learningRate);
+			else {
+				gradients.prepare(pass);
+				gradients.accumulate(pass);
+				gradients.apply(pass, optimizer, learningRate);
+			}
+			return;
+		}
+
 		// Cached materials
-		ArrayList<? extends Node> nextLayerNodes = trainingLayerNodes;
+		ArrayList<? extends Node> nextLayerNodes = network
+				.getLayer(trainingLayer);
 		double[] nextLayerOutputs = network.pullOutputs(inputs, trainingLayer);
 		double[] previousLayerHeadGradients = null;
 		// Accessed as previousLayerConnections[receivingNode][sendingNode]
@@ -347,7 +407,7 @@ public class ErrorBackpropagator {
 			double[] layerNetInputs = network.pullNetInputs(inputs, layerIndex);
 
 			if (layerIndex > 0) {
-				nextLayerNodes = network.getLayer(trainingLayer - 1);
+				nextLayerNodes = network.getLayer(layerIndex - 1);
 				nextLayerOutputs = network.pullOutputs(inputs, layerIndex - 1);
 			} else {
 				nextLayerNodes = network.getInputs();
@@ -420,4 +480,148 @@ public class ErrorBackpropagator {
 			previousLayerConnectionWeights = layerConnectionWeights;
 		}
 	}
+
+	/**
+	 * Backpropagates the errors of a batch of samples through the preceding
+	 * structure of the specified network and applies their mean gradient to
+	 * the network's weights in a single update, through the
+	 * {@link #getOptimizer() optimizer} if there is one. Sample {@code i}
+	 * consists of {@code inputs[i]}, {@code trainingNodes[i]}, and
+	 * {@code targetOutputs[i]}, as described in
+	 * {@link #trainNetwork(LayeredNetwork, double[], int, int[], double[], double)
+	 * trainNetwork}. Every sample's error is calculated with the weights as
+	 * they were before the batch, and the gradients are accumulated into
+	 * buffers that are reused from batch to batch, so a batch of one sample has
+	 * the same effect as {@code trainNetwork}.
+	 * <p>
+	 * Batch training requires every layer being trained to be
+	 * {@link LayeredNetwork#isDense(int) dense}, with no connections from
+	 * outside the network.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param inputs
+	 *            the input values of each sample
+	 * @param trainingLayer
+	 *            the index of the general layer of the nodes whose error is
+	 *            being backpropagated
+	 * @param trainingNodes
+	 *            the indices of the nodes in the specified layer whose error is
+	 *            being backpropagated for each sample
+	 * @param targetOutputs
+	 *            the expected outputs of each sample's training nodes
+	 * @param learningRate
+	 *            the effect of the batch's mean gradient on the specified
+	 *            network
+	 * @throws NullPointerException
+	 *             if {@code network}, {@code inputs}, {@code trainingNodes},
+	 *             {@code targetOutputs}, or any of their samples are null
+	 * @throws IllegalArgumentException
+	 *             if the arrays do not hold the same number of samples, if any
+	 *             sample is invalid as described in {@code trainNetwork}, or if
+	 *             the network cannot be trained in batches
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code trainingLayer} is out of range of the specified
+	 *             network's general layers or if a member of a sample's
+	 *             training nodes is out of range of the training layer's nodes
+	 */
+	public void trainNetworkBatch(LayeredNetwork network, double[][] inputs,
+			int trainingLayer, int[][] trainingNodes, double[][] targetOutputs,
+			double learningRate) throws NullPointerException,
+			IllegalArgumentException, IndexOutOfBoundsException {
+		checker.checkBatch(network, inputs, trainingLayer, trainingNodes,
+				targetOutputs);
+		trainCheckedBatch(network, inputs, inputs.length, trainingLayer,
+				trainingNodes, targetOutputs, learningRate);
+	}
+
+	/**
+	 * Backpropagates the errors of the first {@code count} samples of the
+	 * specified batch and applies their mean gradient to the network's weights
+	 * in a single update, as described in
+	 * {@link #trainNetworkBatch(LayeredNetwork, double[][], int, int[][], double[][], double)
+	 * trainNetworkBatch}. The remaining samples are ignored, so buffers sized
+	 * for the largest batch can be reused for smaller ones.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param inputs
+	 *            the input values of each sample
+	 * @param count
+	 *            the number of samples being trained
+	 * @param trainingLayer
+	 *            the index of the general layer of the nodes whose error is
+	 *            being backpropagated
+	 * @param trainingNodes
+	 *            the indices of the nodes in the specified layer whose error is
+	 *            being backpropagated for each sample
+	 * @param targetOutputs
+	 *            the expected outputs of each sample's training nodes
+	 * @param learningRate
+	 *            the effect of the batch's mean gradient on the specified
+	 *            network
+	 * @throws NullPointerException
+	 *             if {@code network}, {@code inputs}, {@code trainingNodes},
+	 *             {@code targetOutputs}, or any of their first {@code count}
+	 *             samples are null
+	 * @throws IllegalArgumentException
+	 *             if any trained sample is invalid as described in
+	 *             {@code trainNetwork}, or if the network cannot be trained in
+	 *             batches
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code count} is negative or greater than the number of
+	 *             samples in any of the arrays, if {@code trainingLayer} is
+	 *             out of range of the specified network's general layers, or
+	 *             if a member of a sample's training nodes is out of range of
+	 *             the training layer's nodes
+	 */
+	public void trainNetworkBatch(LayeredNetwork network, double[][] inputs,
+			int count, int trainingLayer, int[][] trainingNodes,
+			double[][] targetOutputs, double learningRate)
+			throws NullPointerException, IllegalArgumentException,
+			IndexOutOfBoundsException {
+		checker.checkBatch(network, inputs, count, trainingLayer,
+				trainingNodes, targetOutputs);
+		trainCheckedBatch(network, inputs, count, trainingLayer,
+				trainingNodes, targetOutputs, learningRate);
+	}
+
+	/**
+	 * Trains the first {@code count} samples of a batch that has been
+	 * checked.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param inputs
+	 *            the input values of each sample
+	 * @param count
+	 *            the number of samples being trained
+	 * @param trainingLayer
+	 *            the index of the general layer being trained
+	 * @param trainingNodes
+	 *            the indices of the nodes being trained for each sample
+	 * @param targetOutputs
+	 *            the expected outputs of each sample's training nodes
+	 * @param learningRate
+	 *            the effect of the batch's mean gradient on the network
+	 * @throws IllegalArgumentException
+	 *             if the network cannot be trained in batches
+	 */
+	private void trainCheckedBatch(LayeredNetwork network, double[][] inputs,
+			int count, int trainingLayer, int[][] trainingNodes,
+			double[][] targetOutputs, double learningRate)
+			throws IllegalArgumentException {
+		if (!pass.prepare(network, trainingLayer))
+			throw new IllegalArgumentException();
+		if (count == 0 || learningRate == 0)
+			return;
+
+		gradients.prepare(pass);
+		for (int i = 0; i < count; i++) {
+			pass.forward(inputs[i]);
+			pass.backward(trainingNodes[i], targetOutputs[i]);
+			gradients.accumulate(pass);
+		}
+		gradients.apply(pass, optimizer, learningRate);
+	}
 }
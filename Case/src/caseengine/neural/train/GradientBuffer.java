@@ -0,0 +1,184 @@
+package caseengine.neural.train;
+
+import caseengine.neural.node.WeightMatrix;
+
+/**
+ * A dense accumulator of error gradients for the weights of the layers
+ * prepared by a {@link TrainingPass}. The gradients of many samples are summed
+ * into one buffer per layer, laid out like the layer's row-major weights, and
+ * then applied to the weights in a single update.
+ * <p>
+ * Like a training pass, a buffer reuses its arrays between batches and must
+ * not be used by more than one thread at a time.
+ * 
+ * @author Charlie Morley
+ *
+ */
+final class GradientBuffer {
+
+	/**
+	 * The summed weight gradients of each layer, in row-major order.
+	 */
+	private double[][] gradients = new double[0][];
+
+	/**
+	 * The number of layers whose gradients are accumulated.
+	 */
+	private int layerCount;
+
+	/**
+	 * The number of samples whose gradients have been accumulated since the
+	 * buffer was last cleared.
+	 */
+	private int sampleCount;
+
+	/**
+	 * Sizes this buffer for the layers prepared by the specified pass and
+	 * clears it.
+	 * 
+	 * @param pass
+	 *            a prepared training pass
+	 */
+	void prepare(TrainingPass pass) {
+		layerCount = pass.getLayerCount();
+		if (gradients.length < layerCount)
+			gradients = new double[layerCount][0];
+		for (int layer = 0; layer < layerCount; layer++) {
+			WeightMatrix matrix = pass.getMatrix(layer);
+			int size = matrix.getRowCount() * matrix.getColumnCount();
+			if (gradients[layer].length != size)
+				gradients[layer] = new double[size];
+		}
+		clear();
+	}
+
+	/**
+	 * Resets the accumulated gradients to 0.
+	 */
+	void clear() {
+		for (int layer = 0; layer < layerCount; layer++) {
+			double[] layerGradients = gradients[layer];
+			for (int i = 0; i < layerGradients.length; i++)
+				layerGradients[i] = 0;
+		}
+		sampleCount = 0;
+	}
+
+	/**
+	 * Returns the number of samples accumulated since this buffer was last
+	 * cleared.
+	 * 
+	 * @return the number of accumulated samples
+	 */
+	int getSampleCount() {
+		return sampleCount;
+	}
+
+	/**
+	 * Adds the weight gradients of the latest backward pass of the specified
+	 * training pass to this buffer: the gradient of the weight from source
+	 * {@code c} to node {@code r} is the head gradient of {@code r} multiplied
+	 * by the output of {@code c}.
+	 * 
+	 * @param pass
+	 *            the training pass this buffer was prepared for, after a
+	 *            backward pass
+	 */
+	void accumulate(TrainingPass pass) {
+		for (int layer = 0; layer < layerCount; layer++) {
+			double[] headGradients = pass.getHeadGradients(layer);
+			double[] sourceOutputs = pass.getOutputs(layer);
+			double[] layerGradients = gradients[layer];
+			int columns = sourceOutputs.length;
+			for (int row = 0; row < headGradients.length; row++) {
+				double headGradient = headGradients[row];
+				if (headGradient == 0)
+					continue;
+				int offset = row * columns;
+				for (int column = 0; column < columns; column++)
+					layerGradients[offset + column] += headGradient
+							* sourceOutputs[column];
+			}
+		}
+		sampleCount++;
+	}
+
+	/**
+	 * Adds the gradients accumulated in the specified buffer, which must be
+	 * sized for the same layers, to this buffer.
+	 * 
+	 * @param other
+	 *            the buffer whose gradients are added
+	 */
+	void add(GradientBuffer other) {
+		for (int layer = 0; layer < layerCount; layer++) {
+			double[] layerGradients = gradients[layer];
+			double[] otherGradients = other.gradients[layer];
+			for (int i = 0; i < layerGradients.length; i++)
+				layerGradients[i] += otherGradients[i];
+		}
+		sampleCount += other.sampleCount;
+	}
+
+	/**
+	 * Applies one step of gradient descent down the mean of the accumulated
+	 * gradients to the weights of the specified pass's layers. Nothing is
+	 * applied if no samples have been accumulated.
+	 * 
+	 * @param pass
+	 *            the training pass this buffer was prepared for
+	 * @param learningRate
+	 *            the step size of the update
+	 */
+	void apply(TrainingPass pass, double learningRate) {
+		apply(pass, null, learningRate);
+	}
+
+	/**
+	 * Applies one step of the specified optimizer, given the mean of the
+	 * accumulated gradients, to the weights of the specified pass's layers.
+	 * Nothing is applied if no samples have been accumulated. An optimizer
+	 * overwrites the accumulated gradients, so the buffer must be prepared or
+	 * cleared before it is used again.
+	 * 
+	 * @param pass
+	 *            the training pass this buffer was prepared for
+	 * @param optimizer
+	 *            the update rule applied to the gradients, or null for plain
+	 *            gradient descent
+	 * @param learningRate
+	 *            the step size of the update
+	 */
+	void apply(TrainingPass pass, Optimizer optimizer, double learningRate) {
+		if (sampleCount == 0)
+			return;
+		if (optimizer != null) {
+			for (int layer = 0; layer < layerCount; layer++)
+				optimizer.update(pass.getMatrix(layer), gradients[layer],
+						sampleCount, learningRate);
+			return;
+		}
+		double rate = learningRate / sampleCount;
+		for (int layer = 0; layer < layerCount; layer++) {
+			WeightMatrix matrix = pass.getMatrix(layer);
+			double[] layerGradients = gradients[layer];
+			double[] weights = matrix.getWeights();
+			float[] singleWeights = matrix.getSingleWeights();
+			int columns = matrix.getColumnCount();
+			int stride = matrix.getStride();
+			for (int row = 0; row < matrix.getRowCount(); row++) {
+				int offset = row * stride;
+				int gradientOffset = row * columns;
+				if (weights != null)
+					for (int column = 0; column < columns; column++)
+						weights[offset + column] -= rate
+								* layerGradients[gradientOffset + column];
+				else
+					for (int column = 0; column < columns; column++)
+						singleWeights[offset + column] = (float) (singleWeights[offset
+								+ column] - (rate * layerGradients[gradientOffset
+								+ column]));
+			}
+		}
+	}
+}
@@ -0,0 +1,413 @@
+package caseengine.neural.train;
+
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import caseengine.neural.node.WeightMatrix;
+
+/**
+ * An update rule that turns the error gradients of a layer's weights into the
+ * steps taken by those weights during training.
+ * <p>
+ * An optimizer may keep state for each weight it updates, such as a running
+ * average of its past gradients. The state of each weight matrix is held in
+ * {@code double[]} arrays laid out like the matrix's row-major weights, created
+ * the first time the matrix is updated. If a matrix's dimensions have changed
+ * since its last update (because nodes were added to the network), its state
+ * no longer corresponds to its weights and is started afresh. The state of a
+ * matrix is discarded when the matrix is no longer referenced elsewhere.
+ * <p>
+ * The learning rate is not part of an optimizer - it is specified with each
+ * update, as it is for plain gradient descent. An optimizer is not thread-safe,
+ * and its state is only meaningful for the networks trained by a single
+ * trainer.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public abstract class Optimizer {
+
+	/**
+	 * The optimization state of each updated weight matrix.
+	 */
+	private final Map<WeightMatrix, State> states = new WeakHashMap<WeightMatrix, State>();
+
+	/**
+	 * Returns the number of values of state this optimizer keeps for each
+	 * weight.
+	 * 
+	 * @return the number of state arrays of each weight matrix
+	 */
+	protected abstract int getStateSize();
+
+	/**
+	 * Replaces the specified mean gradients of a weight matrix's weights with
+	 * the steps to be subtracted from those weights, updating the weights'
+	 * state.
+	 * 
+	 * @param gradients
+	 *            the mean error gradient of each weight, to be replaced with
+	 *            the weight's step
+	 * @param length
+	 *            the number of weights being updated
+	 * @param learningRate
+	 *            the step size of the update
+	 * @param state
+	 *            the {@link #getStateSize()} state arrays of the weight matrix,
+	 *            each holding one value per weight
+	 * @param time
+	 *            the number of updates of the weight matrix, including this
+	 *            one, since its state was created
+	 */
+	protected abstract void step(double[] gradients, int length,
+			double learningRate, double[][] state, long time);
+
+	/**
+	 * Discards the state of every weight matrix updated by this optimizer.
+	 */
+	public void reset() {
+		states.clear();
+	}
+
+	/**
+	 * Applies one step of this optimizer to the weights of the specified
+	 * matrix given the summed gradients of a number of samples. The gradients
+	 * are overwritten.
+	 * 
+	 * @param matrix
+	 *            the weight matrix being updated
+	 * @param gradients
+	 *            the summed error gradient of each of the matrix's weights, in
+	 *            row-major order
+	 * @param samples
+	 *            the number of samples whose gradients were summed
+	 * @param learningRate
+	 *            the step size of the update
+	 */
+	final void update(WeightMatrix matrix, double[] gradients, int samples,
+			double learningRate) {
+		int rows = matrix.getRowCount();
+		int columns = matrix.getColumnCount();
+		int length = rows * columns;
+		State state = states.get(matrix);
+		if (state == null || state.rows != rows || state.columns != columns) {
+			state = new State(rows, columns, getStateSize());
+			states.put(matrix, state);
+		}
+		if (samples != 1)
+			for (int i = 0; i < length; i++)
+				gradients[i] /= samples;
+		step(gradients, length, learningRate, state.values, ++state.time);
+
+		double[] weights = matrix.getWeights();
+		float[] singleWeights = matrix.getSingleWeights();
+		int stride = matrix.getStride();
+		for (int row = 0; row < rows; row++) {
+			int offset = row * stride;
+			int gradientOffset = row * columns;
+			if (weights != null)
+				for (int column = 0; column < columns; column++)
+					weights[offset + column] -= gradients[gradientOffset
+							+ column];
+			else
+				for (int column = 0; column < columns; column++)
+					singleWeights[offset + column] = (float) (singleWeights[offset
+							+ column] - gradients[gradientOffset + column]);
+		}
+	}
+
+	/**
+	 * The optimization state of a weight matrix.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	private static final class State {
+
+		/**
+		 * The number of rows of the matrix when the state was created.
+		 */
+		final int rows;
+
+		/**
+		 * The number of columns of the matrix when the state was created.
+		 */
+		final int columns;
+
+		/**
+		 * The state arrays, each holding one value per weight.
+		 */
+		final double[][] values;
+
+		/**
+		 * The number of updates applied since the state was created.
+		 */
+		long time;
+
+		/**
+		 * Constructs zeroed state for a matrix of the specified dimensions.
+		 * 
+		 * @param rows
+		 *            the number of rows of the matrix
+		 * @param columns
+		 *            the number of columns of the matrix
+		 * @param size
+		 *            the number of state arrays
+		 */
+		State(int rows, int columns, int size) {
+			this.rows = rows;
+			this.columns = columns;
+			values = new double[size][rows * columns];
+		}
+	}
+
+	/**
+	 * Plain stochastic gradient descent: each weight steps by the learning
+	 * rate multiplied by its gradient. No state is kept.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class SGD extends Optimizer {
+
+		@Override
+		protected int getStateSize() {
+			return 0;
+		}
+
+		@Override
+		protected void step(double[] gradients, int length,
+				double learningRate, double[][] state, long time) {
+			for (int i = 0; i < length; i++)
+				gradients[i] *= learningRate;
+		}
+	}
+
+	/**
+	 * Gradient descent with momentum: each weight keeps a velocity, which
+	 * decays by the momentum coefficient and accumulates the weight's
+	 * gradients, and steps by the learning rate multiplied by its velocity.
+	 * Steps in consistent directions are thereby amplified, and oscillating
+	 * ones damped.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class Momentum extends Optimizer {
+
+		/**
+		 * The fraction of each weight's velocity retained from one update to
+		 * the next.
+		 */
+		private final double momentum;
+
+		/**
+		 * Constructs a momentum optimizer with a momentum coefficient of 0.9.
+		 */
+		public Momentum() {
+			this(0.9);
+		}
+
+		/**
+		 * Constructs a momentum optimizer with the specified coefficient.
+		 * 
+		 * @param momentum
+		 *            the fraction of each weight's velocity retained from one
+		 *            update to the next
+		 * @throws IllegalArgumentException
+		 *             if {@code momentum} is not in the range {@code [0, 1)}
+		 */
+		public Momentum(double momentum) throws IllegalArgumentException {
+			if (!(momentum >= 0 && momentum < 1))
+				throw new IllegalArgumentException();
+			this.momentum = momentum;
+		}
+
+		/**
+		 * Returns the momentum coefficient of this optimizer.
+		 * 
+		 * @return the fraction of each weight's velocity retained from one
+		 *         update to the next
+		 */
+		public double getMomentum() {
+			return momentum;
+		}
+
+		@Override
+		protected int getStateSize() {
+			return 1;
+		}
+
+		@Override
+		protected void step(double[] gradients, int length,
+				double learningRate, double[][] state, long time) {
+			double[] velocities = state[0];
+			for (int i = 0; i < length; i++) {
+				double velocity = (momentum * velocities[i]) + gradients[i];
+				velocities[i] = velocity;
+				gradients[i] = learningRate * velocity;
+			}
+		}
+	}
+
+	/**
+	 * RMSProp: each weight keeps an exponentially decaying average of its
+	 * squared gradients, and steps by the learning rate multiplied by its
+	 * gradient divided by the root of that average. Every weight thereby
+	 * learns at a similar rate, however large its gradients.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class RMSProp extends Optimizer {
+
+		/**
+		 * The fraction of each weight's mean squared gradient retained from one
+		 * update to the next.
+		 */
+		private final double decay;
+
+		/**
+		 * The term added to each root mean squared gradient to avoid division
+		 * by 0.
+		 */
+		private final double epsilon;
+
+		/**
+		 * Constructs an RMSProp optimizer with a decay of 0.9 and an epsilon of
+		 * 1.0E-8.
+		 */
+		public RMSProp() {
+			this(0.9, 1.0E-8);
+		}
+
+		/**
+		 * Constructs an RMSProp optimizer with the specified parameters.
+		 * 
+		 * @param decay
+		 *            the fraction of each weight's mean squared gradient
+		 *            retained from one update to the next
+		 * @param epsilon
+		 *            the term added to each root mean squared gradient to avoid
+		 *            division by 0
+		 * @throws IllegalArgumentException
+		 *             if {@code decay} is not in the range {@code [0, 1)} or
+		 *             {@code epsilon} is not positive
+		 */
+		public RMSProp(double decay, double epsilon)
+				throws IllegalArgumentException {
+			if (!(decay >= 0 && decay < 1) || !(epsilon > 0))
+				throw new IllegalArgumentException();
+			this.decay = decay;
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		protected int getStateSize() {
+			return 1;
+		}
+
+		@Override
+		protected void step(double[] gradients, int length,
+				double learningRate, double[][] state, long time) {
+			double[] squares = state[0];
+			for (int i = 0; i < length; i++) {
+				double gradient = gradients[i];
+				double square = (decay * squares[i])
+						+ ((1.0 - decay) * gradient * gradient);
+				squares[i] = square;
+				gradients[i] = learningRate * gradient
+						/ (Math.sqrt(square) + epsilon);
+			}
+		}
+	}
+
+	/**
+	 * Adam: each weight keeps exponentially decaying averages of its gradients
+	 * and of its squared gradients, corrected for their initial bias towards
+	 * 0, and steps by the learning rate multiplied by the former divided by the
+	 * root of the latter. This combines the effects of {@link Momentum} and
+	 * {@link RMSProp}.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class Adam extends Optimizer {
+
+		/**
+		 * The fraction of each weight's mean gradient retained from one update
+		 * to the next.
+		 */
+		private final double beta1;
+
+		/**
+		 * The fraction of each weight's mean squared gradient retained from one
+		 * update to the next.
+		 */
+		private final double beta2;
+
+		/**
+		 * The term added to each root mean squared gradient to avoid division
+		 * by 0.
+		 */
+		private final double epsilon;
+
+		/**
+		 * Constructs an Adam optimizer with the conventional parameters: betas
+		 * of 0.9 and 0.999 and an epsilon of 1.0E-8.
+		 */
+		public Adam() {
+			this(0.9, 0.999, 1.0E-8);
+		}
+
+		/**
+		 * Constructs an Adam optimizer with the specified parameters.
+		 * 
+		 * @param beta1
+		 *            the fraction of each weight's mean gradient retained from
+		 *            one update to the next
+		 * @param beta2
+		 *            the fraction of each weight's mean squared gradient
+		 *            retained from one update to the next
+		 * @param epsilon
+		 *            the term added to each root mean squared gradient to avoid
+		 *            division by 0
+		 * @throws IllegalArgumentException
+		 *             if either beta is not in the range {@code [0, 1)} or
+		 *             {@code epsilon} is not positive
+		 */
+		public Adam(double beta1, double beta2, double epsilon)
+				throws IllegalArgumentException {
+			if (!(beta1 >= 0 && beta1 < 1) || !(beta2 >= 0 && beta2 < 1)
+					|| !(epsilon > 0))
+				throw new IllegalArgumentException();
+			this.beta1 = beta1;
+			this.beta2 = beta2;
+			this.epsilon = epsilon;
+		}
+
+		@Override
+		protected int getStateSize() {
+			return 2;
+		}
+
+		@Override
+		protected void step(double[] gradients, int length,
+				double learningRate, double[][] state, long time) {
+			double[] means = state[0];
+			double[] squares = state[1];
+			double meanCorrection = 1.0 / (1.0 - Math.pow(beta1, time));
+			double squareCorrection = 1.0 / (1.0 - Math.pow(beta2, time));
+			for (int i = 0; i < length; i++) {
+				double gradient = gradients[i];
+				double mean = (beta1 * means[i]) + ((1.0 - beta1) * gradient);
+				double square = (beta2 * squares[i])
+						+ ((1.0 - beta2) * gradient * gradient);
+				means[i] = mean;
+				squares[i] = square;
+				gradients[i] = learningRate * (mean * meanCorrection)
+						/ (Math.sqrt(square * squareCorrection) + epsilon);
+			}
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package caseengine.neural.train;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import caseengine.neural.network.LayeredNetwork;
+
+/**
+ * A data-parallel trainer of dense {@link LayeredNetwork LayeredNetworks}.
+ * Each batch of samples is split into shards that are trained in parallel by a
+ * {@link ForkJoinPool}, each shard with its own {@link TrainingPass} and
+ * {@link GradientBuffer}.
+ * <p>
+ * In the default synchronous mode, the shards' gradients are summed by a
+ * pairwise tree reduction and the mean gradient of the batch is applied to the
+ * weights in a single update once every shard has finished, exactly as by
+ * {@link ErrorBackpropagator#trainNetworkBatch(LayeredNetwork, double[][], int, int[][], double[][], double)
+ * ErrorBackpropagator.trainNetworkBatch}. The shards and the order of the
+ * reduction depend only on the number of samples and the pool's parallelism,
+ * so the result of training a batch is the same from run to run.
+ * <p>
+ * In the asynchronous ("Hogwild") mode, every shard applies each of its
+ * samples' gradients to the shared weights as soon as it is calculated, as by
+ * {@link ErrorBackpropagator#trainNetwork(LayeredNetwork, double[], int, int[], double[], double)
+ * ErrorBackpropagator.trainNetwork}, without any locking. Concurrent updates of
+ * the same weight may overwrite one another and a sample may be evaluated with
+ * weights that are partially updated by other shards; both are tolerated by
+ * stochastic gradient descent, and are rare when each sample only trains a few
+ * nodes of the training layer, since the weights of nodes without error are
+ * not written. The result of an asynchronous batch is not reproducible.
+ * <p>
+ * In both modes, the network must not be changed or evaluated by other threads
+ * while a batch is being trained. A trainer reuses its buffers from batch to
+ * batch, so it must not train more than one batch at a time.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class ParallelTrainer {
+
+	/**
+	 * The minimum number of samples trained by each shard of a batch. Smaller
+	 * shards would not repay the cost of reducing their gradients.
+	 */
+	public static final int MINIMUM_SHARD_SIZE = 16;
+
+	/**
+	 * The pool that trains the shards of each batch.
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Whether shards apply their gradients without waiting for the rest of the
+	 * batch.
+	 */
+	private final boolean asynchronous;
+
+	/**
+	 * The update rule applied to the mean gradient of each synchronous batch,
+	 * or null for plain gradient descent.
+	 */
+	private final Optimizer optimizer;
+
+	/**
+	 * The training pass of each shard.
+	 */
+	private TrainingPass[] passes = new TrainingPass[0];
+
+	/**
+	 * The gradient buffer of each shard.
+	 */
+	private GradientBuffer[] gradients = new GradientBuffer[0];
+
+	/**
+	 * The checker of the samples of each batch.
+	 */
+	private final SampleChecker checker = new SampleChecker();
+
+	/**
+	 * Constructs a synchronous trainer that uses the
+	 * {@link ForkJoinPool#commonPool() common pool}.
+	 */
+	public ParallelTrainer() {
+		this(ForkJoinPool.commonPool(), false);
+	}
+
+	/**
+	 * Constructs a trainer that uses the specified pool.
+	 * 
+	 * @param pool
+	 *            the pool that trains the shards of each batch
+	 * @param asynchronous
+	 *            true if shards apply their samples' gradients as they are
+	 *            calculated, without locking, false if the mean gradient of
+	 *            each batch is applied in a single update
+	 * @throws NullPointerException
+	 *             if {@code pool} is null
+	 */
+	public ParallelTrainer(ForkJoinPool pool, boolean asynchronous)
+			throws NullPointerException {
+		if (pool == null)
+			throw new NullPointerException();
+		this.pool = pool;
+		this.asynchronous = asynchronous;
+		optimizer = null;
+	}
+
+	/**
+	 * Constructs a synchronous trainer that uses the specified pool and
+	 * applies the mean gradient of each batch with the specified optimizer.
+	 * 
+	 * @param pool
+	 *            the pool that trains the shards of each batch
+	 * @param optimizer
+	 *            the update rule applied to the mean gradient of each batch
+	 * @throws NullPointerException
+	 *             if {@code pool} or {@code optimizer} is null
+	 */
+	public ParallelTrainer(ForkJoinPool pool, Optimizer optimizer)
+			throws NullPointerException {
+		if (pool == null || optimizer == null)
+			throw new NullPointerException();
+		this.pool = pool;
+		this.optimizer = optimizer;
+		asynchronous = false;
+	}
+
+	/**
+	 * Returns whether this trainer applies gradients asynchronously.
+	 * 
+	 * @return true if shards apply their samples' gradients as they are
+	 *         calculated, false if the mean gradient of each batch is applied
+	 *         in a single update
+	 */
+	public boolean isAsynchronous() {
+		return asynchronous;
+	}
+
+	/**
+	 * Returns the optimizer used by this trainer.
+	 * 
+	 * @return the update rule applied to the mean gradient of each batch, or
+	 *         null if plain gradient descent is used
+	 */
+	public Optimizer getOptimizer() {
+		return optimizer;
+	}
+
+	/**
+	 * Returns the number of shards a batch of the specified size is split
+	 * into.
+	 * 
+	 * @param samples
+	 *            the number of samples in a batch
+	 * @return the number of shards the batch is trained in
+	 */
+	public int getShardCount(int samples) {
+		return Math.max(1,
+				Math.min(pool.getParallelism(), samples / MINIMUM_SHARD_SIZE));
+	}
+
+	/**
+	 * Backpropagates the errors of a batch of samples through the preceding
+	 * structure of the specified network and trains its weights, splitting the
+	 * batch across this trainer's pool. The arguments are as described in
+	 * {@link ErrorBackpropagator#trainNetworkBatch(LayeredNetwork, double[][], int, int[][], double[][], double)
+	 * ErrorBackpropagator.trainNetworkBatch}, except that an asynchronous
+	 * trainer applies the learning rate to each sample's gradient rather than
+	 * to the batch's mean gradient.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param inputs
+	 *            the input values of each sample
+	 * @param trainingLayer
+	 *            the index of the general layer of the nodes whose error is
+	 *            being backpropagated
+	 * @param trainingNodes
+	 *            the indices of the nodes in the specified layer whose error is
+	 *            being backpropagated for each sample
+	 * @param targetOutputs
+	 *            the expected outputs of each sample's training nodes
+	 * @param learningRate
+	 *            the effect of the batch's gradients on the specified network
+	 * @throws NullPointerException
+	 *             if {@code network}, {@code inputs}, {@code trainingNodes},
+	 *             {@code targetOutputs}, or any of their samples are null
+	 * @throws IllegalArgumentException
+	 *             if the arrays do not hold the same number of samples, if any
+	 *             sample is invalid, or if the network cannot be trained in
+	 *             batches
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code trainingLayer} is out of range of the specified
+	 *             network's general layers or if a member of a sample's
+	 *             training nodes is out of range of the training layer's nodes
+	 */
+	public void trainNetworkBatch(LayeredNetwork network, double[][] inputs,
+			int trainingLayer, int[][] trainingNodes, double[][] targetOutputs,
+			double learningRate) throws NullPointerException,
+			IllegalArgumentException, IndexOutOfBoundsException {
+		checker.checkBatch(network, inputs, trainingLayer, trainingNodes,
+				targetOutputs);
+		int shards = getShardCount(inputs.length);
+		if (passes.length < shards) {
+			TrainingPass[] newPasses = new TrainingPass[shards];
+			GradientBuffer[] newGradients = new GradientBuffer[shards];
+			System.arraycopy(passes, 0, newPasses, 0, passes.length);
+			System.arraycopy(gradients, 0, newGradients, 0, gradients.length);
+			for (int i = passes.length; i < shards; i++) {
+				newPasses[i] = new TrainingPass();
+				newGradients[i] = new GradientBuffer();
+			}
+			passes = newPasses;
+			gradients = newGradients;
+		}
+		for (int i = 0; i < shards; i++) {
+			if (!passes[i].prepare(network, trainingLayer))
+				throw new IllegalArgumentException();
+			if (!asynchronous)
+				gradients[i].prepare(passes[i]);
+		}
+		if (inputs.length == 0 || learningRate == 0)
+			return;
+
+		Shard task = new Shard(inputs, trainingNodes, targetOutputs,
+				learningRate, shards, 0, shards);
+		if (shards > 1)
+			pool.invoke(task);
+		else
+			task.compute();
+		if (!asynchronous)
+			gradients[0].apply(passes[0], optimizer, learningRate);
+	}
+
+	/**
+	 * A task that trains a range of a batch's shards and, in synchronous mode,
+	 * sums their gradients into the buffer of the range's first shard.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	@SuppressWarnings("serial")
+	private final class Shard extends RecursiveAction {
+
+		/**
+		 * The input values of each sample of the batch.
+		 */
+		private final double[][] inputs;
+
+		/**
+		 * The indices of the nodes trained for each sample of the batch.
+		 */
+		private final int[][] trainingNodes;
+
+		/**
+		 * The target outputs of each sample's training nodes.
+		 */
+		private final double[][] targetOutputs;
+
+		/**
+		 * The learning rate applied to each sample in asynchronous mode.
+		 */
+		private final double learningRate;
+
+		/**
+		 * The number of shards the batch is split into.
+		 */
+		private final int shards;
+
+		/**
+		 * The index of the first shard trained by this task.
+		 */
+		private final int from;
+
+		/**
+		 * The index after the last shard trained by this task.
+		 */
+		private final int to;
+
+		/**
+		 * Constructs a task that trains the specified range of shards.
+		 * 
+		 * @param inputs
+		 *            the input values of each sample
+		 * @param trainingNodes
+		 *            the indices of the nodes trained for each sample
+		 * @param targetOutputs
+		 *            the target outputs of each sample's training nodes
+		 * @param learningRate
+		 *            the learning rate applied to each sample in asynchronous
+		 *            mode
+		 * @param shards
+		 *            the number of shards the batch is split into
+		 * @param from
+		 *            the index of the first shard to be trained
+		 * @param to
+		 *            the index after the last shard to be trained
+		 */
+		Shard(double[][] inputs, int[][] trainingNodes,
+				double[][] targetOutputs, double learningRate, int shards,
+				int from, int to) {
+			this.inputs = inputs;
+			this.trainingNodes = trainingNodes;
+			this.targetOutputs = targetOutputs;
+			this.learningRate = learningRate;
+			this.shards = shards;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) >>> 1;
+				invokeAll(new Shard(inputs, trainingNodes, targetOutputs,
+						learningRate, shards, from, mid), new Shard(inputs,
+						trainingNodes, targetOutputs, learningRate, shards,
+						mid, to));
+				if (!asynchronous)
+					gradients[from].add(gradients[mid]);
+				return;
+			}
+
+			TrainingPass pass = passes[from];
+			GradientBuffer buffer = gradients[from];
+			int first = (int) ((long) inputs.length * from / shards);
+			int last = (int) ((long) inputs.length * (from + 1) / shards);
+			for (int i = first; i < last; i++) {
+				pass.forward(inputs[i]);
+				pass.backward(trainingNodes[i], targetOutputs[i]);
+				if (asynchronous)
+					pass.update(learningRate);
+				else
+					buffer.accumulate(pass);
+			}
+		}
+	}
+}
@@ -0,0 +1,224 @@
+package caseengine.neural.train;
+
+import java.util.Arrays;
+
+import caseengine.neural.network.LayeredNetwork;
+
+/**
+ * A checker of the samples trained into a {@link LayeredNetwork}. The network's
+ * dimensions are looked up once per batch, and duplicate training nodes are
+ * found by stamping each node of the training layer with the number of the
+ * sample that trains it, so checking a sample allocates nothing.
+ * <p>
+ * A checker reuses its stamps from sample to sample, so it must not be used by
+ * more than one thread at a time.
+ * 
+ * @author Charlie Morley
+ *
+ */
+final class SampleChecker {
+
+	/**
+	 * The number of the last sample that trained each node of the training
+	 * layer.
+	 */
+	private int[] stamps = new int[0];
+
+	/**
+	 * The number of the sample being checked.
+	 */
+	private int stamp;
+
+	/**
+	 * Checks that the specified batch of samples can be trained into the
+	 * specified network.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param inputs
+	 *            the input values of each sample
+	 * @param trainingLayer
+	 *            the index of the general layer being trained
+	 * @param trainingNodes
+	 *            the indices of the nodes being trained for each sample
+	 * @param targetOutputs
+	 *            the expected outputs of each sample's training nodes
+	 * @throws NullPointerException
+	 *             if any of the arguments or any of their samples are null
+	 * @throws IllegalArgumentException
+	 *             if the arrays do not hold the same number of samples or if
+	 *             any sample is invalid
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code trainingLayer} is out of range of the network's
+	 *             general layers or if a member of a sample's training nodes is
+	 *             out of range of the training layer's nodes
+	 */
+	void checkBatch(LayeredNetwork network, double[][] inputs,
+			int trainingLayer, int[][] trainingNodes, double[][] targetOutputs)
+			throws NullPointerException, IllegalArgumentException,
+			IndexOutOfBoundsException {
+		if (network == null || inputs == null || trainingNodes == null
+				|| targetOutputs == null)
+			throw new NullPointerException();
+		if (inputs.length != trainingNodes.length
+				|| inputs.length != targetOutputs.length)
+			throw new IllegalArgumentException();
+		checkBatch(network, inputs, inputs.length, trainingLayer,
+				trainingNodes, targetOutputs);
+	}
+
+	/**
+	 * Checks that the first {@code count} samples of the specified batch can
+	 * be trained into the specified network.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param inputs
+	 *            the input values of each sample
+	 * @param count
+	 *            the number of samples being trained
+	 * @param trainingLayer
+	 *            the index of the general layer being trained
+	 * @param trainingNodes
+	 *            the indices of the nodes being trained for each sample
+	 * @param targetOutputs
+	 *            the expected outputs of each sample's training nodes
+	 * @throws NullPointerException
+	 *             if any of the arguments or any of their first {@code count}
+	 *             samples are null
+	 * @throws IllegalArgumentException
+	 *             if any sample is invalid
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code count} is negative or greater than the number of
+	 *             samples in any of the arrays, if {@code trainingLayer} is
+	 *             out of range of the network's general layers, or if a member
+	 *             of a sample's training nodes is out of range of the training
+	 *             layer's nodes
+	 */
+	void checkBatch(LayeredNetwork network, double[][] inputs, int count,
+			int trainingLayer, int[][] trainingNodes, double[][] targetOutputs)
+			throws NullPointerException, IllegalArgumentException,
+			IndexOutOfBoundsException {
+		if (network == null || inputs == null || trainingNodes == null
+				|| targetOutputs == null)
+			throw new NullPointerException();
+		if (count < 0 || count > inputs.length
+				|| count > trainingNodes.length
+				|| count > targetOutputs.length)
+			throw new IndexOutOfBoundsException();
+		if (count == 0)
+			return;
+		int inputCount = network.getInputs().size();
+		int trainingLayerSize = getTrainingLayerSize(network, trainingLayer);
+		for (int i = 0; i < count; i++) {
+			if (inputs[i] == null || trainingNodes[i] == null
+					|| targetOutputs[i] == null)
+				throw new NullPointerException();
+			checkSample(inputCount, trainingLayerSize, inputs[i],
+					trainingNodes[i], targetOutputs[i]);
+		}
+	}
+
+	/**
+	 * Checks that the specified sample can be trained into the specified
+	 * network.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param inputs
+	 *            the input values of the sample
+	 * @param trainingLayer
+	 *            the index of the general layer being trained
+	 * @param trainingNodes
+	 *            the indices of the nodes being trained
+	 * @param targetOutputs
+	 *            the expected outputs of the nodes being trained
+	 * @throws IllegalArgumentException
+	 *             if not enough or too many input values were specified, if
+	 *             {@code trainingNodes} contains duplicates, or if not enough
+	 *             or too many target output values were specified
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code trainingLayer} is out of range of the network's
+	 *             general layers or if a member of {@code trainingNodes} is out
+	 *             of range of the training layer's nodes
+	 */
+	void checkSample(LayeredNetwork network, double[] inputs,
+			int trainingLayer, int[] trainingNodes, double[] targetOutputs)
+			throws IllegalArgumentException, IndexOutOfBoundsException {
+		int inputCount = network.getInputs().size();
+		checkSample(inputCount, getTrainingLayerSize(network, trainingLayer),
+				inputs, trainingNodes, targetOutputs);
+	}
+
+	/**
+	 * Returns the number of nodes in the specified general layer of the
+	 * specified network, and makes sure there is a stamp for each of them.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param trainingLayer
+	 *            the index of the general layer being trained
+	 * @return the number of nodes in the training layer
+	 * @throws IndexOutOfBoundsException
+	 *             if {@code trainingLayer} is out of range of the network's
+	 *             general layers
+	 */
+	private int getTrainingLayerSize(LayeredNetwork network, int trainingLayer)
+			throws IndexOutOfBoundsException {
+		if (trainingLayer < 0 || trainingLayer >= network.getLayerCount())
+			throw new IndexOutOfBoundsException();
+		int trainingLayerSize = network.getLayer(trainingLayer).size();
+		if (stamps.length < trainingLayerSize) {
+			stamps = new int[trainingLayerSize];
+			stamp = 0;
+		}
+		return trainingLayerSize;
+	}
+
+	/**
+	 * Checks that the specified sample can be trained into a network of the
+	 * specified dimensions.
+	 * 
+	 * @param inputCount
+	 *            the number of inputs of the network
+	 * @param trainingLayerSize
+	 *            the number of nodes in the training layer
+	 * @param inputs
+	 *            the input values of the sample
+	 * @param trainingNodes
+	 *            the indices of the nodes being trained
+	 * @param targetOutputs
+	 *            the expected outputs of the nodes being trained
+	 * @throws IllegalArgumentException
+	 *             if not enough or too many input values were specified, if
+	 *             {@code trainingNodes} contains duplicates, or if not enough
+	 *             or too many target output values were specified
+	 * @throws IndexOutOfBoundsException
+	 *             if a member of {@code trainingNodes} is out of range of the
+	 *             training layer's nodes
+	 */
+	private void checkSample(int inputCount, int trainingLayerSize,
+			double[] inputs, int[] trainingNodes, double[] targetOutputs)
+			throws IllegalArgumentException, IndexOutOfBoundsException {
+		if (inputs.length != inputCount)
+			throw new IllegalArgumentException();
+		// Stamps left by earlier samples are never equal to a new stamp, until
+		// the stamp wraps around
+		if (++stamp == 0) {
+			Arrays.fill(stamps, 0);
+			stamp = 1;
+		}
+		// Check for duplicates in trainingNodes - two different values can't be
+		// trained for one node
+		for (int trainingNode : trainingNodes) {
+			if (trainingNode < 0 || trainingNode >= trainingLayerSize)
+				throw new IndexOutOfBoundsException();
+			if (stamps[trainingNode] == stamp)
+				throw new IllegalArgumentException();
+			stamps[trainingNode] = stamp;
+		}
+
+		if (trainingNodes.length != targetOutputs.length)
+			throw new IllegalArgumentException();
+	}
+}
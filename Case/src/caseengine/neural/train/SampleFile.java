@@ -0,0 +1,424 @@
+package caseengine.neural.train;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * A file of training samples with fixed-width records, read through memory
+ * mappings so that sample sets larger than the heap (or the physical memory)
+ * can be trained from.
+ * <p>
+ * Every record holds the input values of one sample followed by the target
+ * outputs of a fixed set of training nodes, all as {@code float} values, so a
+ * record can be located from its index alone. Files are written sequentially
+ * by a {@link Writer} and read by {@link SampleStream SampleStreams}, which copy
+ * a block of records at a time out of the mapping.
+ * <p>
+ * The file format (version {@value #VERSION}) is little-endian:
+ * <ul>
+ * <li>the magic number {@value #MAGIC}, the format version, the input count,
+ * and the training node count, as {@code int} values</li>
+ * <li>the record count, as a {@code long} value</li>
+ * <li>the index of each training node in the trained layer, as {@code int}
+ * values</li>
+ * <li>the records, each holding the inputs and then the target outputs of a
+ * sample as {@code float} values</li>
+ * </ul>
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class SampleFile {
+
+	/**
+	 * The first four bytes of every sample file.
+	 */
+	public static final int MAGIC = 0x53534143;
+
+	/**
+	 * The version of the file format written by this class.
+	 */
+	public static final int VERSION = 1;
+
+	/**
+	 * The size of the fixed part of the header, in bytes.
+	 */
+	private static final int HEADER_SIZE = 24;
+
+	/**
+	 * The maximum size of each mapped window of the file, in bytes. A single
+	 * mapping cannot exceed 2GB, so larger files are mapped in several
+	 * windows.
+	 */
+	private static final long WINDOW_SIZE = 1L << 30;
+
+	/**
+	 * The number of inputs of each sample.
+	 */
+	private final int inputCount;
+
+	/**
+	 * The indices of the nodes in the trained layer whose targets each sample
+	 * holds.
+	 */
+	private final int[] trainingNodes;
+
+	/**
+	 * The number of records in the file.
+	 */
+	private final long recordCount;
+
+	/**
+	 * The number of records in each mapped window.
+	 */
+	private final long windowRecords;
+
+	/**
+	 * The mapped windows of the records, in file order.
+	 */
+	private final MappedByteBuffer[] windows;
+
+	/**
+	 * Constructs a sample file from its mapped windows.
+	 * 
+	 * @param inputCount
+	 *            the number of inputs of each sample
+	 * @param trainingNodes
+	 *            the indices of the training nodes
+	 * @param recordCount
+	 *            the number of records
+	 * @param windowRecords
+	 *            the number of records in each window
+	 * @param windows
+	 *            the mapped windows of the records
+	 */
+	private SampleFile(int inputCount, int[] trainingNodes, long recordCount,
+			long windowRecords, MappedByteBuffer[] windows) {
+		this.inputCount = inputCount;
+		this.trainingNodes = trainingNodes;
+		this.recordCount = recordCount;
+		this.windowRecords = windowRecords;
+		this.windows = windows;
+	}
+
+	/**
+	 * Opens the specified sample file for reading, mapping its records into
+	 * memory. No records are read until they are streamed.
+	 * 
+	 * @param file
+	 *            the file written by a {@link Writer}
+	 * @return the opened sample file
+	 * @throws NullPointerException
+	 *             if {@code file} is null
+	 * @throws IOException
+	 *             if an I/O error occurs, or if the file is not a complete
+	 *             sample file
+	 */
+	public static SampleFile open(Path file) throws NullPointerException,
+			IOException {
+		if (file == null)
+			throw new NullPointerException();
+		try (FileChannel channel = FileChannel.open(file,
+				StandardOpenOption.READ)) {
+			long size = channel.size();
+			ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(
+					ByteOrder.LITTLE_ENDIAN);
+			if (size < HEADER_SIZE || channel.read(header, 0) != HEADER_SIZE)
+				throw new IOException("Not a sample file");
+			header.flip();
+			if (header.getInt() != MAGIC || header.getInt() != VERSION)
+				throw new IOException("Not a version " + VERSION
+						+ " sample file");
+			int inputCount = header.getInt();
+			int targetCount = header.getInt();
+			long recordCount = header.getLong();
+			long recordSize = 4L * ((long) inputCount + targetCount);
+			long dataOffset = HEADER_SIZE + (4L * targetCount);
+			if (inputCount < 0 || targetCount < 0 || recordCount < 0
+					|| recordSize == 0 || recordSize > WINDOW_SIZE
+					|| size < dataOffset
+					|| (size - dataOffset) / recordSize < recordCount)
+				throw new IOException("Corrupt sample file");
+
+			ByteBuffer nodes = ByteBuffer.allocate(4 * targetCount).order(
+					ByteOrder.LITTLE_ENDIAN);
+			channel.read(nodes, HEADER_SIZE);
+			nodes.flip();
+			int[] trainingNodes = new int[targetCount];
+			nodes.asIntBuffer().get(trainingNodes);
+
+			long windowRecords = WINDOW_SIZE / recordSize;
+			MappedByteBuffer[] windows = new MappedByteBuffer[(int) ((recordCount
+					+ windowRecords - 1) / windowRecords)];
+			for (int i = 0; i < windows.length; i++) {
+				long first = i * windowRecords;
+				long records = Math.min(windowRecords, recordCount - first);
+				windows[i] = channel.map(FileChannel.MapMode.READ_ONLY,
+						dataOffset + (first * recordSize), records
+								* recordSize);
+				windows[i].order(ByteOrder.LITTLE_ENDIAN);
+			}
+			return new SampleFile(inputCount, trainingNodes, recordCount,
+					windowRecords, windows);
+		}
+	}
+
+	/**
+	 * Returns the number of inputs of each sample in this file.
+	 * 
+	 * @return the input count of each record
+	 */
+	public int getInputCount() {
+		return inputCount;
+	}
+
+	/**
+	 * Returns the indices of the nodes in the trained layer whose target
+	 * outputs each sample holds.
+	 * 
+	 * @return a copy of the training node indices
+	 */
+	public int[] getTrainingNodes() {
+		return trainingNodes.clone();
+	}
+
+	/**
+	 * Returns the number of samples in this file.
+	 * 
+	 * @return the record count
+	 */
+	public long getRecordCount() {
+		return recordCount;
+	}
+
+	/**
+	 * Opens a stream over the samples of this file.
+	 * 
+	 * @param blockSize
+	 *            the number of consecutive records read and shuffled together
+	 * @param shuffle
+	 *            whether the order of blocks and of the records within each
+	 *            block is shuffled every epoch
+	 * @param seed
+	 *            the seed of the shuffle
+	 * @return a new stream, positioned at the start of its first epoch
+	 * @throws IllegalArgumentException
+	 *             if {@code blockSize} is less than 1
+	 * @see SampleStream
+	 */
+	public SampleStream stream(int blockSize, boolean shuffle, long seed)
+			throws IllegalArgumentException {
+		return new SampleStream(this, blockSize, shuffle, seed);
+	}
+
+	/**
+	 * Returns the number of training nodes of each sample.
+	 * 
+	 * @return the target count of each record
+	 */
+	int getTargetCount() {
+		return trainingNodes.length;
+	}
+
+	/**
+	 * Returns the training node indices without copying them.
+	 * 
+	 * @return the training node indices, which must not be modified
+	 */
+	int[] getSharedTrainingNodes() {
+		return trainingNodes;
+	}
+
+	/**
+	 * Copies the values of a range of consecutive records into the specified
+	 * array, in record order.
+	 * 
+	 * @param first
+	 *            the index of the first record
+	 * @param count
+	 *            the number of records
+	 * @param values
+	 *            the array receiving the records' values
+	 */
+	void read(long first, int count, float[] values) {
+		int recordValues = inputCount + trainingNodes.length;
+		int offset = 0;
+		while (count > 0) {
+			int window = (int) (first / windowRecords);
+			int start = (int) (first - (window * windowRecords));
+			int records = (int) Math.min(count, windowRecords - start);
+			ByteBuffer buffer = windows[window].duplicate().order(
+					ByteOrder.LITTLE_ENDIAN);
+			buffer.position(start * recordValues * 4);
+			buffer.asFloatBuffer().get(values, offset, records * recordValues);
+			offset += records * recordValues;
+			first += records;
+			count -= records;
+		}
+	}
+
+	/**
+	 * A writer that appends samples to a new sample file. The record count in
+	 * the file's header is written when the writer is closed, so a file that
+	 * was not closed is read as having no samples.
+	 * 
+	 * @author Charlie Morley
+	 *
+	 */
+	public static final class Writer implements Closeable {
+
+		/**
+		 * The size of the write buffer, in bytes.
+		 */
+		private static final int BUFFER_SIZE = 1 << 16;
+
+		/**
+		 * The channel of the file being written.
+		 */
+		private final FileChannel channel;
+
+		/**
+		 * The records not yet written to the channel.
+		 */
+		private final ByteBuffer buffer;
+
+		/**
+		 * The number of inputs of each sample.
+		 */
+		private final int inputCount;
+
+		/**
+		 * The number of target outputs of each sample.
+		 */
+		private final int targetCount;
+
+		/**
+		 * The number of records appended.
+		 */
+		private long recordCount;
+
+		/**
+		 * Creates the specified file, replacing its contents, and writes the
+		 * header of a sample file with the specified record layout.
+		 * 
+		 * @param file
+		 *            the file being written
+		 * @param inputCount
+		 *            the number of inputs of each sample
+		 * @param trainingNodes
+		 *            the indices of the nodes in the trained layer whose
+		 *            target outputs each sample holds
+		 * @throws NullPointerException
+		 *             if {@code file} or {@code trainingNodes} is null
+		 * @throws IllegalArgumentException
+		 *             if {@code inputCount} is negative, or if the record
+		 *             layout is empty
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		public Writer(Path file, int inputCount, int[] trainingNodes)
+				throws NullPointerException, IllegalArgumentException,
+				IOException {
+			if (file == null || trainingNodes == null)
+				throw new NullPointerException();
+			if (inputCount < 0 || inputCount + trainingNodes.length == 0)
+				throw new IllegalArgumentException();
+			this.inputCount = inputCount;
+			targetCount = trainingNodes.length;
+			buffer = ByteBuffer.allocate(
+					Math.max(BUFFER_SIZE, Math.max(HEADER_SIZE
+							+ (4 * targetCount), 4 * (inputCount + targetCount))))
+					.order(ByteOrder.LITTLE_ENDIAN);
+			channel = FileChannel.open(file, StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE,
+					StandardOpenOption.TRUNCATE_EXISTING);
+			buffer.putInt(MAGIC).putInt(VERSION).putInt(inputCount)
+					.putInt(targetCount).putLong(0);
+			for (int node : trainingNodes)
+				buffer.putInt(node);
+		}
+
+		/**
+		 * Appends a sample to the file. Its values are rounded to
+		 * {@code float} values.
+		 * 
+		 * @param inputs
+		 *            the input values of the sample
+		 * @param targetOutputs
+		 *            the target output of each training node
+		 * @throws NullPointerException
+		 *             if {@code inputs} or {@code targetOutputs} is null
+		 * @throws IllegalArgumentException
+		 *             if either array has the wrong length
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		public void append(double[] inputs, double[] targetOutputs)
+				throws NullPointerException, IllegalArgumentException,
+				IOException {
+			if (inputs == null || targetOutputs == null)
+				throw new NullPointerException();
+			if (inputs.length != inputCount
+					|| targetOutputs.length != targetCount)
+				throw new IllegalArgumentException();
+			if (buffer.remaining() < 4 * (inputCount + targetCount))
+				flush();
+			for (double input : inputs)
+				buffer.putFloat((float) input);
+			for (double target : targetOutputs)
+				buffer.putFloat((float) target);
+			recordCount++;
+		}
+
+		/**
+		 * Returns the number of samples appended so far.
+		 * 
+		 * @return the number of records written
+		 */
+		public long getRecordCount() {
+			return recordCount;
+		}
+
+		/**
+		 * Writes any buffered records and the record count, and closes the
+		 * file.
+		 * 
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		@Override
+		public void close() throws IOException {
+			if (!channel.isOpen())
+				return;
+			try {
+				flush();
+				ByteBuffer count = ByteBuffer.allocate(8).order(
+						ByteOrder.LITTLE_ENDIAN);
+				count.putLong(recordCount).flip();
+				while (count.hasRemaining())
+					channel.write(count, 16 + count.position());
+			} finally {
+				channel.close();
+			}
+		}
+
+		/**
+		 * Writes the buffered bytes to the channel.
+		 * 
+		 * @throws IOException
+		 *             if an I/O error occurs
+		 */
+		private void flush() throws IOException {
+			buffer.flip();
+			while (buffer.hasRemaining())
+				channel.write(buffer);
+			buffer.clear();
+		}
+	}
+}
@@ -0,0 +1,491 @@
+package caseengine.neural.train;
+
+import java.io.Closeable;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import caseengine.neural.network.LayeredNetwork;
+
+/**
+ * A stream of the samples of a {@link SampleFile}, read one block of
+ * consecutive records at a time. Only two blocks are held on the heap: the one
+ * being consumed and the one being prefetched. While the samples of a block
+ * are consumed, a background thread copies the next block out of the file's
+ * mapping, so reading from the disk overlaps with training.
+ * <p>
+ * Each pass over the file is an epoch. A shuffled stream visits the blocks of
+ * each epoch in a random order and the records of each block in a random
+ * order, which decorrelates consecutive samples at the cost of only block-sized
+ * sequential reads. Samples are converted back to {@code double} values as they
+ * are consumed.
+ * <p>
+ * A stream must be {@link #close() closed} to stop its prefetching thread, and
+ * must not be used by more than one thread at a time.
+ * 
+ * @author Charlie Morley
+ *
+ */
+public final class SampleStream implements Closeable {
+
+	/**
+	 * The file being streamed.
+	 */
+	private final SampleFile file;
+
+	/**
+	 * The number of records in each block.
+	 */
+	private final int blockSize;
+
+	/**
+	 * The number of values in each record.
+	 */
+	private final int recordValues;
+
+	/**
+	 * The shuffler of blocks and records, or null if the stream is not
+	 * shuffled.
+	 */
+	private final Random random;
+
+	/**
+	 * The thread that prefetches blocks.
+	 */
+	private final ExecutorService prefetcher;
+
+	/**
+	 * The order in which the blocks of the current epoch are visited.
+	 */
+	private final int[] blockOrder;
+
+	/**
+	 * The order in which the records of the current block are visited.
+	 */
+	private final int[] recordOrder;
+
+	/**
+	 * The index in {@link #blockOrder} of the next block to be prefetched.
+	 */
+	private int nextBlock;
+
+	/**
+	 * The values of the block being consumed.
+	 */
+	private float[] current;
+
+	/**
+	 * The array into which the next block is prefetched.
+	 */
+	private float[] spare;
+
+	/**
+	 * The number of records in the block being consumed.
+	 */
+	private int currentRecords;
+
+	/**
+	 * The index in {@link #recordOrder} of the next record to be consumed.
+	 */
+	private int position;
+
+	/**
+	 * The prefetch of the next block, which returns its record count, or null
+	 * if the epoch has no more blocks.
+	 */
+	private Future<Integer> pending;
+
+	/**
+	 * The arrays receiving the inputs of each batch passed to a trainer.
+	 */
+	private double[][] batchInputs = new double[0][];
+
+	/**
+	 * The arrays receiving the target outputs of each batch passed to a
+	 * trainer.
+	 */
+	private double[][] batchTargets = new double[0][];
+
+	/**
+	 * The training nodes of each sample of a batch, which are all the file's
+	 * shared training nodes.
+	 */
+	private int[][] batchNodes = new int[0][];
+
+	/**
+	 * The checkpointer stepped after each trained batch, or null if training
+	 * is not checkpointed.
+	 */
+	private Checkpointer checkpointer;
+
+	/**
+	 * Constructs a stream over the specified file.
+	 * 
+	 * @param file
+	 *            the file being streamed
+	 * @param blockSize
+	 *            the number of consecutive records read and shuffled together
+	 * @param shuffle
+	 *            whether blocks and records are shuffled every epoch
+	 * @param seed
+	 *            the seed of the shuffle
+	 * @throws IllegalArgumentException
+	 *             if {@code blockSize} is less than 1 or the file has too
+	 *             many blocks of that size
+	 */
+	SampleStream(SampleFile file, int blockSize, boolean shuffle, long seed)
+			throws IllegalArgumentException {
+		if (blockSize < 1)
+			throw new IllegalArgumentException();
+		recordValues = file.getInputCount() + file.getTargetCount();
+		long blocks = (file.getRecordCount() + blockSize - 1) / blockSize;
+		if (blocks > Integer.MAX_VALUE
+				|| (long) blockSize * recordValues > Integer.MAX_VALUE)
+			throw new IllegalArgumentException();
+		this.file = file;
+		this.blockSize = blockSize;
+		random = shuffle ? new Random(seed) : null;
+		blockOrder = new int[(int) blocks];
+		recordOrder = new int[blockSize];
+		current = new float[blockSize * recordValues];
+		spare = new float[blockSize * recordValues];
+		prefetcher = Executors.newSingleThreadExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "SampleStream prefetcher");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		rewind();
+	}
+
+	/**
+	 * Returns the file this stream reads.
+	 * 
+	 * @return the streamed file
+	 */
+	public SampleFile getFile() {
+		return file;
+	}
+
+	/**
+	 * Returns the checkpointer of the network trained by this stream.
+	 * 
+	 * @return the checkpointer stepped after each trained batch, or null if
+	 *         training is not checkpointed
+	 */
+	public Checkpointer getCheckpointer() {
+		return checkpointer;
+	}
+
+	/**
+	 * Sets the checkpointer of the network trained by this stream, which is
+	 * {@link Checkpointer#step(LayeredNetwork) stepped} after each batch
+	 * trained by {@code trainEpoch}.
+	 * 
+	 * @param checkpointer
+	 *            the checkpointer stepped after each trained batch, or null if
+	 *            training is not checkpointed
+	 */
+	public void setCheckpointer(Checkpointer checkpointer) {
+		this.checkpointer = checkpointer;
+	}
+
+	/**
+	 * Starts a new epoch, discarding the rest of the current one. A shuffled
+	 * stream chooses a new order of blocks.
+	 */
+	public void rewind() {
+		if (pending != null)
+			await();
+		for (int i = 0; i < blockOrder.length; i++)
+			blockOrder[i] = i;
+		if (random != null)
+			for (int i = blockOrder.length - 1; i > 0; i--) {
+				int j = random.nextInt(i + 1);
+				int block = blockOrder[i];
+				blockOrder[i] = blockOrder[j];
+				blockOrder[j] = block;
+			}
+		nextBlock = 0;
+		currentRecords = 0;
+		position = 0;
+		prefetch();
+	}
+
+	/**
+	 * Reads the next samples of the current epoch into the specified arrays.
+	 * 
+	 * @param inputs
+	 *            the arrays receiving the inputs of each sample, each holding
+	 *            at least {@link SampleFile#getInputCount()} values
+	 * @param targetOutputs
+	 *            the arrays receiving the target outputs of each sample, each
+	 *            holding at least as many values as there are training nodes -
+	 *            must be at least as long as {@code inputs}
+	 * @return the number of samples read, which is less than the length of
+	 *         {@code inputs} only at the end of the epoch
+	 * @throws NullPointerException
+	 *             if any of the arrays are null
+	 * @throws IndexOutOfBoundsException
+	 *             if any of the arrays are too short
+	 * @throws IllegalStateException
+	 *             if the stream is closed
+	 */
+	public int next(double[][] inputs, double[][] targetOutputs)
+			throws NullPointerException, IndexOutOfBoundsException,
+			IllegalStateException {
+		int inputCount = file.getInputCount();
+		int targetCount = file.getTargetCount();
+		int samples = 0;
+		while (samples < inputs.length) {
+			if (position == currentRecords) {
+				if (pending == null)
+					break;
+				currentRecords = await();
+				float[] block = spare;
+				spare = current;
+				current = block;
+				position = 0;
+				prefetch();
+				for (int i = 0; i < currentRecords; i++)
+					recordOrder[i] = i;
+				if (random != null)
+					for (int i = currentRecords - 1; i > 0; i--) {
+						int j = random.nextInt(i + 1);
+						int record = recordOrder[i];
+						recordOrder[i] = recordOrder[j];
+						recordOrder[j] = record;
+					}
+				continue;
+			}
+			int offset = recordOrder[position++] * recordValues;
+			double[] sampleInputs = inputs[samples];
+			double[] sampleTargets = targetOutputs[samples];
+			if (sampleInputs.length < inputCount
+					|| sampleTargets.length < targetCount)
+				throw new IndexOutOfBoundsException();
+			for (int i = 0; i < inputCount; i++)
+				sampleInputs[i] = current[offset + i];
+			offset += inputCount;
+			for (int i = 0; i < targetCount; i++)
+				sampleTargets[i] = current[offset + i];
+			samples++;
+		}
+		return samples;
+	}
+
+	/**
+	 * Trains the specified network with the remaining samples of the current
+	 * epoch, in batches of the specified size, and then starts a new epoch.
+	 * The {@link #getCheckpointer() checkpointer}, if any, is stepped after
+	 * each batch.
+	 * 
+	 * @param trainer
+	 *            the trainer of each batch
+	 * @param network
+	 *            the network being trained
+	 * @param trainingLayer
+	 *            the index of the general layer holding the file's training
+	 *            nodes
+	 * @param batchSize
+	 *            the number of samples in each batch
+	 * @param learningRate
+	 *            the learning rate of each batch
+	 * @return the number of samples trained
+	 * @throws NullPointerException
+	 *             if {@code trainer} or {@code network} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code batchSize} is less than 1, or as described in
+	 *             {@link ErrorBackpropagator#trainNetworkBatch(LayeredNetwork, double[][], int, int[][], double[][], double)
+	 *             ErrorBackpropagator.trainNetworkBatch}
+	 * @throws IndexOutOfBoundsException
+	 *             as described in {@code trainNetworkBatch}
+	 */
+	public long trainEpoch(ErrorBackpropagator trainer, LayeredNetwork network,
+			int trainingLayer, int batchSize, double learningRate)
+			throws NullPointerException, IllegalArgumentException,
+			IndexOutOfBoundsException {
+		if (trainer == null)
+			throw new NullPointerException();
+		return trainEpoch(trainer, null, network, trainingLayer, batchSize,
+				learningRate);
+	}
+
+	/**
+	 * Trains the specified network with the remaining samples of the current
+	 * epoch, in batches of the specified size split across the trainer's
+	 * pool, and then starts a new epoch. The {@link #getCheckpointer()
+	 * checkpointer}, if any, is stepped after each batch.
+	 * 
+	 * @param trainer
+	 *            the trainer of each batch
+	 * @param network
+	 *            the network being trained
+	 * @param trainingLayer
+	 *            the index of the general layer holding the file's training
+	 *            nodes
+	 * @param batchSize
+	 *            the number of samples in each batch
+	 * @param learningRate
+	 *            the learning rate of each batch
+	 * @return the number of samples trained
+	 * @throws NullPointerException
+	 *             if {@code trainer} or {@code network} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code batchSize} is less than 1, or as described in
+	 *             {@link ParallelTrainer#trainNetworkBatch(LayeredNetwork, double[][], int, int[][], double[][], double)
+	 *             ParallelTrainer.trainNetworkBatch}
+	 * @throws IndexOutOfBoundsException
+	 *             as described in {@code trainNetworkBatch}
+	 */
+	public long trainEpoch(ParallelTrainer trainer, LayeredNetwork network,
+			int trainingLayer, int batchSize, double learningRate)
+			throws NullPointerException, IllegalArgumentException,
+			IndexOutOfBoundsException {
+		if (trainer == null)
+			throw new NullPointerException();
+		return trainEpoch(null, trainer, network, trainingLayer, batchSize,
+				learningRate);
+	}
+
+	/**
+	 * Stops the prefetching thread. The stream cannot be read afterwards.
+	 */
+	@Override
+	public void close() {
+		prefetcher.shutdownNow();
+	}
+
+	/**
+	 * Trains the specified network with the remaining samples of the current
+	 * epoch with whichever of the specified trainers is not null, and then
+	 * starts a new epoch.
+	 * 
+	 * @param serialTrainer
+	 *            the trainer of each batch, or null if {@code parallelTrainer}
+	 *            is used
+	 * @param parallelTrainer
+	 *            the trainer of each batch, or null if {@code serialTrainer}
+	 *            is used
+	 * @param network
+	 *            the network being trained
+	 * @param trainingLayer
+	 *            the index of the general layer holding the file's training
+	 *            nodes
+	 * @param batchSize
+	 *            the number of samples in each batch
+	 * @param learningRate
+	 *            the learning rate of each batch
+	 * @return the number of samples trained
+	 * @throws NullPointerException
+	 *             if {@code network} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code batchSize} is less than 1, or as described in
+	 *             {@code trainNetworkBatch}
+	 * @throws IndexOutOfBoundsException
+	 *             as described in {@code trainNetworkBatch}
+	 */
+	private long trainEpoch(ErrorBackpropagator serialTrainer,
+			ParallelTrainer parallelTrainer, LayeredNetwork network,
+			int trainingLayer, int batchSize, double learningRate)
+			throws NullPointerException, IllegalArgumentException,
+			IndexOutOfBoundsException {
+		if (batchSize < 1)
+			throw new IllegalArgumentException();
+		if (batchInputs.length != batchSize) {
+			batchInputs = new double[batchSize][file.getInputCount()];
+			batchTargets = new double[batchSize][file.getTargetCount()];
+			batchNodes = new int[batchSize][];
+			Arrays.fill(batchNodes, file.getSharedTrainingNodes());
+		}
+		long trained = 0;
+		int samples = next(batchInputs, batchTargets);
+		while (samples > 0) {
+			double[][] inputs = batchInputs;
+			double[][] targets = batchTargets;
+			int[][] nodes = batchNodes;
+			// The final, partial batch of an epoch is passed in shorter arrays
+			if (samples < batchSize) {
+				inputs = Arrays.copyOf(inputs, samples);
+				targets = Arrays.copyOf(targets, samples);
+				nodes = Arrays.copyOf(nodes, samples);
+			}
+			if (serialTrainer != null)
+				serialTrainer.trainNetworkBatch(network, inputs,
+						trainingLayer, nodes, targets, learningRate);
+			else
+				parallelTrainer.trainNetworkBatch(network, inputs,
+						trainingLayer, nodes, targets, learningRate);
+			trained += samples;
+			if (checkpointer != null)
+				checkpointer.step(network);
+			samples = next(batchInputs, batchTargets);
+		}
+		rewind();
+		return trained;
+	}
+
+	/**
+	 * Starts prefetching the next block of the epoch into {@link #spare}, if
+	 * there is one.
+	 * 
+	 * @throws IllegalStateException
+	 *             if the stream is closed
+	 */
+	private void prefetch() throws IllegalStateException {
+		if (nextBlock == blockOrder.length) {
+			pending = null;
+			return;
+		}
+		final long first = (long) blockOrder[nextBlock++] * blockSize;
+		final int records = (int) Math.min(blockSize, file.getRecordCount()
+				- first);
+		final float[] target = spare;
+		if (prefetcher.isShutdown())
+			throw new IllegalStateException();
+		pending = prefetcher.submit(new Callable<Integer>() {
+
+			@Override
+			public Integer call() {
+				file.read(first, records, target);
+				return records;
+			}
+		});
+	}
+
+	/**
+	 * Waits for the pending prefetch to finish.
+	 * 
+	 * @return the number of records prefetched
+	 * @throws IllegalStateException
+	 *             if the stream was closed during the prefetch
+	 */
+	private int await() throws IllegalStateException {
+		boolean interrupted = false;
+		try {
+			while (true)
+				try {
+					return pending.get();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				} catch (ExecutionException e) {
+					throw new IllegalStateException(e.getCause());
+				} catch (CancellationException e) {
+					throw new IllegalStateException(e);
+				}
+		} finally {
+			pending = null;
+			if (interrupted)
+				Thread.currentThread().interrupt();
+		}
+	}
+}
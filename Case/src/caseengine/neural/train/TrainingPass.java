@@ -0,0 +1,298 @@
+package caseengine.neural.train;
+
+import caseengine.function.DifferentiableFunction;
+import caseengine.function.Function;
+import caseengine.neural.network.LayeredNetwork;
+import caseengine.neural.node.ConnectableNode;
+import caseengine.neural.node.FunctionalNode;
+import caseengine.neural.node.WeightMatrix;
+
+/**
+ * The buffers of a single forward and backward pass of a training sample
+ * through a dense {@link LayeredNetwork}. The forward pass evaluates every
+ * layer once, caching each node's output and activation derivative; the
+ * backward pass then propagates the output error through the cached values and
+ * the layers' weight matrices into a dense array of head gradients (the error
+ * gradient of each node's net input) per layer. Both passes, and the weight
+ * update that follows them, are linear in the number of connections.
+ * <p>
+ * A pass can only be used with networks whose trained layers are
+ * {@link LayeredNetwork#isDense(int) dense}, contain only
+ * {@link caseengine.neural.node.FunctionalNode FunctionalNodes} with
+ * {@link caseengine.function.DifferentiableFunction DifferentiableFunctions}
+ * and no connections from outside the network, and have no node appearing more
+ * than once. The buffers are reused from sample to sample, so a pass must not
+ * be used by more than one thread at a time.
+ * 
+ * @author Charlie Morley
+ *
+ */
+final class TrainingPass {
+
+	/**
+	 * The weight matrices of the trained layers.
+	 */
+	private WeightMatrix[] matrices = new WeightMatrix[0];
+
+	/**
+	 * The number of trained layers, all of whose matrices are at the start of
+	 * {@link #matrices}.
+	 */
+	private int layerCount;
+
+	/**
+	 * The outputs of each layer - index 0 is the input layer, index
+	 * {@code (i + 1)} is general layer {@code i}.
+	 */
+	private double[][] outputs = new double[0][];
+
+	/**
+	 * The net inputs of each trained general layer's nodes.
+	 */
+	private double[][] netInputs = new double[0][];
+
+	/**
+	 * The derivative of each trained general layer's node activation
+	 * functions at their net inputs.
+	 */
+	private double[][] derivatives = new double[0][];
+
+	/**
+	 * The head gradient - the error gradient of the net input - of each
+	 * trained general layer's nodes.
+	 */
+	private double[][] headGradients = new double[0][];
+
+	/**
+	 * Prepares this pass for training the specified network through the
+	 * specified layer, if the network can be trained densely.
+	 * 
+	 * @param network
+	 *            the network being trained
+	 * @param trainingLayer
+	 *            the index of the last general layer being trained
+	 * @return true if this pass is prepared, false if the network cannot be
+	 *         trained densely
+	 */
+	boolean prepare(LayeredNetwork network, int trainingLayer) {
+		if (matrices.length < trainingLayer + 1) {
+			matrices = new WeightMatrix[trainingLayer + 1];
+			outputs = new double[trainingLayer + 2][0];
+			netInputs = new double[trainingLayer + 1][0];
+			derivatives = new double[trainingLayer + 1][0];
+			headGradients = new double[trainingLayer + 1][0];
+		}
+		for (int layer = 0; layer <= trainingLayer; layer++) {
+			if (!network.isDense(layer))
+				return false;
+			WeightMatrix matrix = network.getWeightMatrix(layer);
+			for (int row = 0; row < matrix.getRowCount(); row++) {
+				ConnectableNode node = matrix.getRow(row);
+				if (!(node instanceof FunctionalNode)
+						|| !(((FunctionalNode) node).getActivationFunction() instanceof DifferentiableFunction)
+						|| node.getStoredConnectionCount() > 0)
+					return false;
+			}
+			// A node appearing twice in the preceding layer has a column that
+			// is never trained
+			for (int column = 0; column < matrix.getColumnCount(); column++)
+				if (matrix.getColumn(matrix.getSource(column)) != column)
+					return false;
+			matrices[layer] = matrix;
+			if (outputs[layer].length != matrix.getColumnCount())
+				outputs[layer] = new double[matrix.getColumnCount()];
+			int rows = matrix.getRowCount();
+			if (netInputs[layer].length != rows) {
+				outputs[layer + 1] = new double[rows];
+				netInputs[layer] = new double[rows];
+				derivatives[layer] = new double[rows];
+				headGradients[layer] = new double[rows];
+			}
+		}
+		layerCount = trainingLayer + 1;
+		return true;
+	}
+
+	/**
+	 * Returns the number of layers this pass is prepared for.
+	 * 
+	 * @return the number of prepared general layers
+	 */
+	int getLayerCount() {
+		return layerCount;
+	}
+
+	/**
+	 * Returns the weight matrix of the specified prepared layer.
+	 * 
+	 * @param layer
+	 *            the index of the general layer
+	 * @return the weight matrix of the specified layer
+	 */
+	WeightMatrix getMatrix(int layer) {
+		return matrices[layer];
+	}
+
+	/**
+	 * Returns the buffer of the outputs feeding the specified prepared layer,
+	 * as evaluated by the latest forward pass.
+	 * 
+	 * @param layer
+	 *            the index of the general layer
+	 * @return the outputs of the layer preceding the specified layer
+	 */
+	double[] getOutputs(int layer) {
+		return outputs[layer];
+	}
+
+	/**
+	 * Returns the buffer of the head gradients of the specified prepared
+	 * layer's nodes, as calculated by the latest backward pass.
+	 * 
+	 * @param layer
+	 *            the index of the general layer
+	 * @return the head gradients of the specified layer
+	 */
+	double[] getHeadGradients(int layer) {
+		return headGradients[layer];
+	}
+
+	/**
+	 * Evaluates the prepared layers given the specified input values, caching
+	 * each node's net input, output, and activation derivative. The net
+	 * inputs and outputs are identical to those of
+	 * {@link LayeredNetwork#pullOutputs(double[], int)}.
+	 * 
+	 * @param inputs
+	 *            the values output by the network's input nodes
+	 */
+	void forward(double[] inputs) {
+		double[] layerInputs = outputs[0];
+		int length = Math.min(inputs.length, layerInputs.length);
+		System.arraycopy(inputs, 0, layerInputs, 0, length);
+		for (int i = length; i < layerInputs.length; i++)
+			layerInputs[i] = 0;
+		for (int layer = 0; layer < layerCount; layer++) {
+			WeightMatrix matrix = matrices[layer];
+			double[] layerNetInputs = netInputs[layer];
+			double[] layerOutputs = outputs[layer + 1];
+			double[] layerDerivatives = derivatives[layer];
+			int rows = layerNetInputs.length;
+			for (int row = 0; row < rows; row++)
+				layerNetInputs[row] = matrix.getWeightedSum(row,
+						outputs[layer], 0);
+			DifferentiableFunction function = getSharedFunction(matrix);
+			if (function != null)
+				function.functionAndDerivative(layerNetInputs, layerOutputs,
+						layerDerivatives, 0, rows);
+			else
+				for (int row = 0; row < rows; row++)
+					layerOutputs[row] = ((DifferentiableFunction) ((FunctionalNode) matrix
+							.getRow(row)).getActivationFunction())
+							.functionAndDerivative(layerNetInputs[row],
+									layerDerivatives, row);
+		}
+	}
+
+	/**
+	 * Propagates the error between the evaluated outputs of the specified
+	 * nodes in the last prepared layer and the specified targets back through
+	 * the prepared layers, calculating the head gradient of every node. The
+	 * nodes of the last layer not specified have no error. The weights are
+	 * not changed.
+	 * 
+	 * @param trainingNodes
+	 *            the indices of the nodes in the last layer being trained
+	 * @param targetOutputs
+	 *            the target output of each node in {@code trainingNodes}
+	 */
+	void backward(int[] trainingNodes, double[] targetOutputs) {
+		int last = layerCount - 1;
+		double[] lastHeadGradients = headGradients[last];
+		for (int i = 0; i < lastHeadGradients.length; i++)
+			lastHeadGradients[i] = 0;
+		for (int i = 0; i < trainingNodes.length; i++) {
+			int node = trainingNodes[i];
+			lastHeadGradients[node] = (outputs[last + 1][node] - targetOutputs[i])
+					* derivatives[last][node];
+		}
+		for (int layer = last; layer > 0; layer--) {
+			WeightMatrix matrix = matrices[layer];
+			double[] layerHeadGradients = headGradients[layer];
+			double[] sourceHeadGradients = headGradients[layer - 1];
+			int columns = sourceHeadGradients.length;
+			// Destination gradients are accumulated row by row, so each
+			// source's sum is still taken in row order
+			for (int column = 0; column < columns; column++)
+				sourceHeadGradients[column] = 0;
+			for (int row = 0; row < layerHeadGradients.length; row++) {
+				double headGradient = layerHeadGradients[row];
+				if (headGradient == 0)
+					continue;
+				for (int column = 0; column < columns; column++)
+					sourceHeadGradients[column] += headGradient
+							* matrix.getWeight(row, column);
+			}
+			double[] sourceDerivatives = derivatives[layer - 1];
+			for (int column = 0; column < columns; column++)
+				sourceHeadGradients[column] *= sourceDerivatives[column];
+		}
+	}
+
+	/**
+	 * Applies one step of gradient descent with the specified learning rate to
+	 * the weights of the prepared layers, using the head gradients of the
+	 * latest backward pass.
+	 * 
+	 * @param learningRate
+	 *            the step size of the update
+	 */
+	void update(double learningRate) {
+		for (int layer = 0; layer < layerCount; layer++) {
+			WeightMatrix matrix = matrices[layer];
+			double[] layerHeadGradients = headGradients[layer];
+			double[] sourceOutputs = outputs[layer];
+			int columns = sourceOutputs.length;
+			double[] weights = matrix.getWeights();
+			float[] singleWeights = matrix.getSingleWeights();
+			for (int row = 0; row < layerHeadGradients.length; row++) {
+				double headGradient = layerHeadGradients[row];
+				// A node without error keeps its weights
+				if (headGradient == 0)
+					continue;
+				int offset = row * matrix.getStride();
+				if (weights != null)
+					for (int column = 0; column < columns; column++)
+						weights[offset + column] -= learningRate
+								* (headGradient * sourceOutputs[column]);
+				else
+					for (int column = 0; column < columns; column++)
+						singleWeights[offset + column] = (float) (singleWeights[offset
+								+ column] - (learningRate * (headGradient * sourceOutputs[column])));
+			}
+		}
+	}
+
+	/**
+	 * Returns the activation function shared by every row of the specified
+	 * matrix.
+	 * 
+	 * @param matrix
+	 *            a prepared weight matrix
+	 * @return the function of every node in the matrix, or null if their
+	 *         functions differ
+	 */
+	private static DifferentiableFunction getSharedFunction(
+			WeightMatrix matrix) {
+		Function function = null;
+		for (int row = 0; row < matrix.getRowCount(); row++) {
+			Function rowFunction = ((FunctionalNode) matrix.getRow(row))
+					.getActivationFunction();
+			if (function == null)
+				function = rowFunction;
+			else if (function != rowFunction)
+				return null;
+		}
+		return (DifferentiableFunction) function;
+	}
+}
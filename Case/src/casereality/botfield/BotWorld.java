@@ -0,0 +1,484 @@
+package casereality.botfield;
+
+import java.awt.Dimension;
+import java.awt.geom.Line2D;
+import java.awt.geom.Point2D;
+import java.awt.geom.Rectangle2D;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.EnumSet;
+
+import caseengine.application.Actuator;
+import caseengine.application.Sensor;
+import caseengine.application.mind.CaseMind;
+import casereality.util.Math2D;
+import casereality.util.UniformGrid;
+
+/**
+ * A field of rectangular obstacles, in which a bot steered by its own
+ * {@link CaseMind} learns to drive without colliding. The world holds all of
+ * its state, so any number of worlds may exist at once, and it has no user
+ * interface: each {@link #step()} runs one tick of the mind as soon as it is
+ * called. A view, such as {@link BotField}, may follow the world by attaching
+ * itself as an {@link Observer}.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class BotWorld {
+
+	public static final Dimension FIELD_SIZE = new Dimension(800, 600);
+
+	/**
+	 * The number of most recent steps over which
+	 * {@link #getRecentCollisions() recent collisions} are counted.
+	 */
+	public static final int COLLISION_WINDOW = 1000;
+
+	static final double BOT_SIZE = 20;
+	static final double LINEAR_BOT_SPEED = 5;
+	static final double ANGULAR_BOT_SPEED = Math.PI / 30.0;
+	static final double SENSOR_RANGE = 80;
+	static final double[] SENSOR_ANGLES = { Math2D.degreeToRadian(20),
+			Math2D.degreeToRadian(40), Math2D.degreeToRadian(60),
+			Math2D.degreeToRadian(-20), Math2D.degreeToRadian(-40),
+			Math2D.degreeToRadian(-60), Math2D.degreeToRadian(160),
+			Math2D.degreeToRadian(-160) };
+
+	/**
+	 * The size of the cells of the grid indexing the obstacles.
+	 */
+	static final double GRID_CELL_SIZE = 40;
+
+	static final double REINFORCEMENT_FORWARD = 0.02;
+	static final double REINFORCEMENT_REVERSE = -0.005;
+	static final double REINFORCEMENT_COLLISION = // -bot.width
+	// / linearBotSpeed;
+	-10.0;
+	@SuppressWarnings("unused")
+	private static final double REINFORCEMENT_IDLE = 0.0;
+	static final double REINFORCEMENT_ROTATION = -0.01;
+
+	private final CaseMind mind = new CaseMind();
+	private final Rectangle2D.Double[] obstacles;
+	private final UniformGrid obstacleGrid;
+	private final ObstacleSensor[] sensors;
+	private final Motor motor = new Motor();
+
+	private double botX = 50;
+	private double botY = 400;
+	private double botRotation = 5.0 * Math.PI / 3.0;
+
+	private long stepCount = 0;
+	private long collisionCount = 0;
+
+	/**
+	 * Whether the bot collided in each of the most recent steps, indexed by
+	 * step modulo {@link #COLLISION_WINDOW}.
+	 */
+	private final boolean[] collisionHistory = new boolean[COLLISION_WINDOW];
+	private int recentCollisions = 0;
+
+	private final ArrayList<Observer> observers = new ArrayList<Observer>();
+
+	/**
+	 * Constructs a world with the default layout of obstacles.
+	 */
+	public BotWorld() {
+		this(createObstacles());
+	}
+
+	/**
+	 * Constructs a world with the specified obstacles.
+	 *
+	 * @param obstacles
+	 *            the obstacles of the field
+	 * @throws NullPointerException
+	 *             if {@code obstacles} or any of its elements is null
+	 */
+	public BotWorld(Rectangle2D.Double[] obstacles)
+			throws NullPointerException {
+		this.obstacles = new Rectangle2D.Double[obstacles.length];
+		for (int i = 0; i < obstacles.length; i++)
+			this.obstacles[i] = (Rectangle2D.Double) obstacles[i].clone();
+		obstacleGrid = new UniformGrid(this.obstacles, GRID_CELL_SIZE);
+		sensors = new ObstacleSensor[SENSOR_ANGLES.length];
+		for (int i = 0; i < sensors.length; i++) {
+			sensors[i] = new ObstacleSensor(SENSOR_RANGE, SENSOR_ANGLES[i]);
+			mind.addSensor(sensors[i]);
+		}
+		mind.addActuator(motor);
+	}
+
+	/**
+	 * Creates the default layout of obstacles: the walls of the field and a
+	 * rectangular block in its middle, around which the bot can drive.
+	 *
+	 * @return the default obstacles
+	 */
+	public static Rectangle2D.Double[] createObstacles() {
+		return new Rectangle2D.Double[] {
+				new Rectangle2D.Double(0, 0, 30, FIELD_SIZE.getHeight()),
+				new Rectangle2D.Double(0, 0, FIELD_SIZE.getWidth(), 30),
+				new Rectangle2D.Double(0, FIELD_SIZE.getHeight() - 70,
+						FIELD_SIZE.getWidth(), 30),
+				new Rectangle2D.Double(FIELD_SIZE.getWidth() - 40, 0, 30,
+						FIELD_SIZE.getHeight()),
+				new Rectangle2D.Double(100, 100, 60, 360),
+				new Rectangle2D.Double(100, 100, 580, 60),
+				new Rectangle2D.Double(620, 100, 60, 360),
+				new Rectangle2D.Double(100, 400, 580, 60) };
+	}
+
+	/**
+	 * Runs one tick of the bot's mind, in which the bot senses the field and
+	 * performs one motor action, then notifies the observers of this world.
+	 */
+	public void step() {
+		mind.act();
+		stepCount++;
+		for (int i = 0; i < observers.size(); i++)
+			observers.get(i).stepped(this);
+	}
+
+	public CaseMind getMind() {
+		return mind;
+	}
+
+	public long getStepCount() {
+		return stepCount;
+	}
+
+	public long getCollisionCount() {
+		return collisionCount;
+	}
+
+	/**
+	 * Returns the number of collisions in the most recent
+	 * {@link #COLLISION_WINDOW} steps.
+	 *
+	 * @return the number of recent collisions
+	 */
+	public int getRecentCollisions() {
+		return recentCollisions;
+	}
+
+	public Rectangle2D.Double getBot() {
+		return new Rectangle2D.Double(botX, botY, BOT_SIZE, BOT_SIZE);
+	}
+
+	public double getBotRotation() {
+		return botRotation;
+	}
+
+	public Rectangle2D.Double[] getObstacles() {
+		return Arrays.copyOf(obstacles, obstacles.length);
+	}
+
+	public int getSensorCount() {
+		return sensors.length;
+	}
+
+	/**
+	 * Returns the beam of the sensor at the specified index.
+	 *
+	 * @param index
+	 *            the index of the sensor
+	 * @return the sensor's beam, from the centre of the bot to the limit of
+	 *         the sensor's range
+	 * @throws IndexOutOfBoundsException
+	 *             if there is no sensor at {@code index}
+	 */
+	public Line2D.Double getSensorBeam(int index)
+			throws IndexOutOfBoundsException {
+		return sensors[index].getBeam();
+	}
+
+	/**
+	 * Returns a beam from the centre of the bot at the specified angle to its
+	 * direction.
+	 *
+	 * @param range
+	 *            the length of the beam
+	 * @param angle
+	 *            the angle of the beam relative to the bot's direction
+	 * @return the beam
+	 */
+	public Line2D.Double getBeam(double range, double angle) {
+		return getBeam(botX, botY, botRotation, range, angle);
+	}
+
+	public void addObserver(Observer observer) throws NullPointerException {
+		if (observer == null)
+			throw new NullPointerException();
+		observers.add(observer);
+	}
+
+	public boolean removeObserver(Observer observer) {
+		return observers.remove(observer);
+	}
+
+	/**
+	 * Moves the bot by the specified distance in the specified heading, then
+	 * turns it by the specified angle, unless the move would make it collide
+	 * with an obstacle, in which case it stays where it is.
+	 *
+	 * @param distance
+	 *            the distance to move, negative to reverse
+	 * @param heading
+	 *            the direction to move in
+	 * @param turn
+	 *            the angle to turn by after moving
+	 * @param reinforcement
+	 *            the reinforcement of a move without collision
+	 * @param overlapCollision
+	 *            whether the reinforcement of a collision is scaled by the
+	 *            fraction of the bot that would overlap the obstacle
+	 * @return the reinforcement of the move
+	 */
+	private double move(double distance, double heading, double turn,
+			double reinforcement, boolean overlapCollision) {
+		double x = botX + distance * Math.cos(heading);
+		double y = botY + distance * Math.sin(heading);
+		int obstacle = findCollision(obstacleGrid, x, y);
+		recordCollision(obstacle != -1);
+		if (obstacle == -1) {
+			botX = x;
+			botY = y;
+			botRotation += turn;
+			return reinforcement;
+		}
+		return getCollisionReinforcement(obstacles[obstacle], x, y,
+				overlapCollision);
+	}
+
+	/**
+	 * Returns the index of the first of the indexed obstacles that a bot at
+	 * the specified position would overlap.
+	 *
+	 * @param obstacleGrid
+	 *            the index of the obstacles
+	 * @param x
+	 *            the left of the bot
+	 * @param y
+	 *            the top of the bot
+	 * @return the index of the overlapped obstacle, or -1 if there is none
+	 */
+	static int findCollision(UniformGrid obstacleGrid, double x, double y) {
+		return obstacleGrid.findOverlap(x, y, BOT_SIZE, BOT_SIZE);
+	}
+
+	/**
+	 * Returns the reinforcement of a bot at the specified position colliding
+	 * with the specified obstacle.
+	 *
+	 * @param obstacle
+	 *            the obstacle collided with
+	 * @param x
+	 *            the left of the bot
+	 * @param y
+	 *            the top of the bot
+	 * @param overlapCollision
+	 *            whether the reinforcement is scaled by the fraction of the
+	 *            bot that overlaps the obstacle
+	 * @return the reinforcement of the collision
+	 */
+	static double getCollisionReinforcement(Rectangle2D.Double obstacle,
+			double x, double y, boolean overlapCollision) {
+		if (!overlapCollision)
+			return REINFORCEMENT_COLLISION;
+		double overlapWidth = Math.min(x + BOT_SIZE, obstacle.x
+				+ obstacle.width)
+				- Math.max(x, obstacle.x);
+		double overlapHeight = Math.min(y + BOT_SIZE, obstacle.y
+				+ obstacle.height)
+				- Math.max(y, obstacle.y);
+		return REINFORCEMENT_COLLISION * overlapWidth * overlapHeight
+				/ (BOT_SIZE * BOT_SIZE);
+	}
+
+	/**
+	 * Returns the distance from the centre of a bot at the specified position
+	 * at which a sensor beam detects the nearest of the indexed obstacles.
+	 *
+	 * @param obstacleGrid
+	 *            the index of the obstacles
+	 * @param botX
+	 *            the left of the bot
+	 * @param botY
+	 *            the top of the bot
+	 * @param botRotation
+	 *            the direction of the bot
+	 * @param range
+	 *            the range of the sensor
+	 * @param angle
+	 *            the angle of the sensor relative to the bot's direction
+	 * @return the distance to the nearest obstacle, or {@code range} if no
+	 *         obstacle is in range
+	 */
+	static double senseObstacle(UniformGrid obstacleGrid, double botX,
+			double botY, double botRotation, double range, double angle) {
+		double heading = angle + botRotation;
+		return obstacleGrid.castRay(botX + (BOT_SIZE / 2.0), botY
+				+ (BOT_SIZE / 2.0), Math.cos(heading), Math.sin(heading),
+				range);
+	}
+
+	static Line2D.Double getBeam(double botX, double botY,
+			double botRotation, double range, double angle) {
+		double botx = botX + (BOT_SIZE / 2.0);
+		double boty = botY + (BOT_SIZE / 2.0);
+		Point2D.Double rangePoint = Math2D.polarToRect(range, angle
+				+ botRotation);
+		return new Line2D.Double(botx, boty, botx + rangePoint.x, boty
+				+ rangePoint.y);
+	}
+
+	private void recordCollision(boolean collision) {
+		int index = (int) (stepCount % COLLISION_WINDOW);
+		if (collisionHistory[index])
+			recentCollisions--;
+		collisionHistory[index] = collision;
+		if (collision) {
+			recentCollisions++;
+			collisionCount++;
+		}
+	}
+
+	/**
+	 * An observer of a world, notified after each of its steps.
+	 */
+	public static interface Observer {
+
+		/**
+		 * Called by the specified world after each of its steps, on the
+		 * thread that stepped it.
+		 *
+		 * @param world
+		 *            the world that stepped
+		 */
+		public void stepped(BotWorld world);
+	}
+
+	private enum ObstacleSensorChannel {
+		channel;
+	}
+
+	private class ObstacleSensor implements Sensor<ObstacleSensorChannel> {
+
+		private final double angle;
+		private final double range;
+
+		public ObstacleSensor(double range, double angle) {
+			this.angle = angle;
+			this.range = range;
+		}
+
+		public Line2D.Double getBeam() {
+			return BotWorld.this.getBeam(range, angle);
+		}
+
+		private double getData() {
+			return senseObstacle(obstacleGrid, botX, botY, botRotation,
+					range, angle);
+		}
+
+		@Override
+		public EnumMap<ObstacleSensorChannel, Double> fetchSensations() {
+			EnumMap<ObstacleSensorChannel, Double> sensations = new EnumMap<ObstacleSensorChannel, Double>(
+					ObstacleSensorChannel.class);
+			sensations.put(ObstacleSensorChannel.channel, getData() / range);
+			return sensations;
+		}
+
+		@Override
+		public boolean fetchSensations(double[] inputs, int[] indices) {
+			int ordinal = ObstacleSensorChannel.channel.ordinal();
+			if (ordinal >= indices.length || indices[ordinal] < 0)
+				return false;
+			inputs[indices[ordinal]] = getData() / range;
+			return true;
+		}
+	}
+
+	private enum MotorActions {
+		Forward, Reverse, RotateRight, RotateLeft, ForwardRight, ForwardLeft;
+	}
+
+	private class Motor implements Actuator<MotorActions> {
+
+		/**
+		 * The ordinals of the actions in the set returned by
+		 * {@link #getActionSet()}.
+		 */
+		private final int[] availableActions;
+
+		private Motor() {
+			EnumSet<MotorActions> actionSet = getActionSet();
+			availableActions = new int[actionSet.size()];
+			int i = 0;
+			for (MotorActions action : actionSet)
+				availableActions[i++] = action.ordinal();
+		}
+
+		@Override
+		public EnumSet<MotorActions> getActionSet() {
+			EnumSet<MotorActions> returnSet = EnumSet
+					.noneOf(MotorActions.class);
+			returnSet.add(MotorActions.Forward);
+			returnSet.add(MotorActions.Reverse);
+			// returnSet.add(MotorActions.RotateRight);
+			// returnSet.add(MotorActions.RotateLeft);
+			returnSet.add(MotorActions.ForwardRight);
+			returnSet.add(MotorActions.ForwardLeft);
+			return returnSet;
+		}
+
+		@Override
+		public int fetchAvailableActions(int[] ordinals) {
+			if (availableActions.length > ordinals.length)
+				return -1;
+			System.arraycopy(availableActions, 0, ordinals, 0,
+					availableActions.length);
+			return availableActions.length;
+		}
+
+		@Override
+		public boolean performAction(Enum<?> a) {
+			if (!(a instanceof MotorActions))
+				return false;
+			switch ((MotorActions) a) {
+			case Forward:
+				mind.reinforce(move(LINEAR_BOT_SPEED, botRotation, 0,
+						REINFORCEMENT_FORWARD, true));
+				return true;
+			case Reverse:
+				mind.reinforce(move(-LINEAR_BOT_SPEED, botRotation, 0,
+						REINFORCEMENT_REVERSE, false));
+				return true;
+			case RotateRight:
+				botRotation += ANGULAR_BOT_SPEED;
+				recordCollision(false);
+				mind.reinforce(REINFORCEMENT_ROTATION);
+				return true;
+			case RotateLeft:
+				botRotation -= ANGULAR_BOT_SPEED;
+				recordCollision(false);
+				mind.reinforce(REINFORCEMENT_ROTATION);
+				return true;
+			case ForwardRight:
+				mind.reinforce(move(LINEAR_BOT_SPEED, botRotation
+						+ ANGULAR_BOT_SPEED, ANGULAR_BOT_SPEED,
+						REINFORCEMENT_FORWARD + REINFORCEMENT_ROTATION, false));
+				return true;
+			case ForwardLeft:
+				mind.reinforce(move(LINEAR_BOT_SPEED, botRotation
+						- ANGULAR_BOT_SPEED, -ANGULAR_BOT_SPEED,
+						REINFORCEMENT_FORWARD + REINFORCEMENT_ROTATION, false));
+				return true;
+			}
+			return true;
+		}
+	}
+}
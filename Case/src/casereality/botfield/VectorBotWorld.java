@@ -0,0 +1,394 @@
+package casereality.botfield;
+
+import java.awt.geom.Rectangle2D;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import caseengine.cognition.executive.BoltzmannExecutive;
+import caseengine.cognition.executive.BoltzmannExecutive.DynamicImpulseController;
+import caseengine.cognition.memory.QNetwork;
+import caseengine.cognition.memory.ReplayBuffer;
+import caseengine.neural.network.InferenceContext;
+import casereality.util.UniformGrid;
+
+/**
+ * A number of independent bots, each driving in its own copy of one field of
+ * obstacles, stepped together as a batch for reinforcement learning. Unlike a
+ * {@link BotWorld}, a vector world has no mind: in each {@link #step(int[])}
+ * the caller chooses an action for every bot, and reads back the batch of
+ * observations, rewards and done flags that follow, in the layout expected by
+ * {@link QNetwork#predictActionReinforcementsBatch(InferenceContext, double[][], double[][])}.
+ * <p>
+ * The state of the bots is held in parallel arrays indexed by bot, and the
+ * bots are stepped in parallel on a {@link ForkJoinPool}, each task stepping
+ * a contiguous range of bots. The bots move, collide and sense exactly as the
+ * bot of a {@code BotWorld} does, with its four motor actions. An episode of
+ * a bot ends when it collides or has run for the episode length; the bot is
+ * then marked done and returned to the start, so the observation reported
+ * with it is the first of its next episode.
+ *
+ * @author Charlie Morley
+ *
+ */
+public class VectorBotWorld {
+
+	public static final int ACTION_FORWARD = 0;
+	public static final int ACTION_REVERSE = 1;
+	public static final int ACTION_FORWARD_RIGHT = 2;
+	public static final int ACTION_FORWARD_LEFT = 3;
+	public static final int ACTION_COUNT = 4;
+
+	private static final double[] ACTION_DISTANCES = {
+			BotWorld.LINEAR_BOT_SPEED, -BotWorld.LINEAR_BOT_SPEED,
+			BotWorld.LINEAR_BOT_SPEED, BotWorld.LINEAR_BOT_SPEED };
+	private static final double[] ACTION_TURNS = { 0, 0,
+			BotWorld.ANGULAR_BOT_SPEED, -BotWorld.ANGULAR_BOT_SPEED };
+	private static final double[] ACTION_REINFORCEMENTS = {
+			BotWorld.REINFORCEMENT_FORWARD,
+			BotWorld.REINFORCEMENT_REVERSE,
+			BotWorld.REINFORCEMENT_FORWARD + BotWorld.REINFORCEMENT_ROTATION,
+			BotWorld.REINFORCEMENT_FORWARD + BotWorld.REINFORCEMENT_ROTATION };
+	private static final boolean[] ACTION_OVERLAP_COLLISIONS = { true,
+			false, false, false };
+
+	private static final double START_X = 50;
+	private static final double START_Y = 400;
+	private static final double START_ROTATION = 5.0 * Math.PI / 3.0;
+
+	/**
+	 * The greatest number of bots stepped by one task.
+	 */
+	private static final int TASK_BOT_COUNT = 16;
+
+	private final Rectangle2D.Double[] obstacles;
+	private final UniformGrid obstacleGrid;
+	private final int botCount;
+	private final int episodeLength;
+	private final ForkJoinPool pool;
+
+	private final double[] botX;
+	private final double[] botY;
+	private final double[] botRotation;
+	private final int[] episodeSteps;
+	private final long[] collisionCounts;
+
+	private final double[][] observations;
+	private final double[] rewards;
+	private final boolean[] done;
+
+	private long stepCount = 0;
+
+	/**
+	 * Constructs a vector world of the specified number of bots in the
+	 * default field of obstacles, stepped on the common pool.
+	 *
+	 * @param botCount
+	 *            the number of bots
+	 * @param episodeLength
+	 *            the greatest number of steps in an episode of a bot
+	 * @throws IllegalArgumentException
+	 *             if {@code botCount} or {@code episodeLength} is less than 1
+	 */
+	public VectorBotWorld(int botCount, int episodeLength)
+			throws IllegalArgumentException {
+		this(BotWorld.createObstacles(), botCount, episodeLength, ForkJoinPool
+				.commonPool());
+	}
+
+	/**
+	 * Constructs a vector world of the specified number of bots in a field of
+	 * the specified obstacles, stepped on the specified pool.
+	 *
+	 * @param obstacles
+	 *            the obstacles of the field
+	 * @param botCount
+	 *            the number of bots
+	 * @param episodeLength
+	 *            the greatest number of steps in an episode of a bot
+	 * @param pool
+	 *            the pool the bots are stepped on
+	 * @throws NullPointerException
+	 *             if {@code obstacles}, any of its elements or {@code pool} is
+	 *             null
+	 * @throws IllegalArgumentException
+	 *             if {@code botCount} or {@code episodeLength} is less than 1
+	 */
+	public VectorBotWorld(Rectangle2D.Double[] obstacles, int botCount,
+			int episodeLength, ForkJoinPool pool) throws NullPointerException,
+			IllegalArgumentException {
+		if (pool == null)
+			throw new NullPointerException();
+		if (botCount < 1 || episodeLength < 1)
+			throw new IllegalArgumentException();
+		this.obstacles = new Rectangle2D.Double[obstacles.length];
+		for (int i = 0; i < obstacles.length; i++)
+			this.obstacles[i] = (Rectangle2D.Double) obstacles[i].clone();
+		obstacleGrid = new UniformGrid(this.obstacles,
+				BotWorld.GRID_CELL_SIZE);
+		this.botCount = botCount;
+		this.episodeLength = episodeLength;
+		this.pool = pool;
+		botX = new double[botCount];
+		botY = new double[botCount];
+		botRotation = new double[botCount];
+		episodeSteps = new int[botCount];
+		collisionCounts = new long[botCount];
+		observations = new double[botCount][BotWorld.SENSOR_ANGLES.length];
+		rewards = new double[botCount];
+		done = new boolean[botCount];
+		reset();
+	}
+
+	public int getBotCount() {
+		return botCount;
+	}
+
+	public int getEpisodeLength() {
+		return episodeLength;
+	}
+
+	public int getObservationWidth() {
+		return BotWorld.SENSOR_ANGLES.length;
+	}
+
+	/**
+	 * Returns the number of steps taken by every bot together.
+	 *
+	 * @return the number of bot steps
+	 */
+	public long getStepCount() {
+		return stepCount * botCount;
+	}
+
+	/**
+	 * Returns the number of collisions of every bot together.
+	 *
+	 * @return the number of collisions
+	 */
+	public long getCollisionCount() {
+		long collisionCount = 0;
+		for (long count : collisionCounts)
+			collisionCount += count;
+		return collisionCount;
+	}
+
+	/**
+	 * Returns the observation of each bot, after the last step or reset. An
+	 * observation holds the reading of each of the bot's sensors, from 0
+	 * when an obstacle touches the bot to 1 when none is in range. The arrays
+	 * are overwritten by each step.
+	 *
+	 * @return the observations, indexed by bot then sensor
+	 */
+	public double[][] getObservations() {
+		return observations;
+	}
+
+	/**
+	 * Returns the reward of each bot's action in the last step. The array is
+	 * overwritten by each step.
+	 *
+	 * @return the rewards, indexed by bot
+	 */
+	public double[] getRewards() {
+		return rewards;
+	}
+
+	/**
+	 * Returns whether the episode of each bot ended in the last step. The
+	 * array is overwritten by each step.
+	 *
+	 * @return the done flags, indexed by bot
+	 */
+	public boolean[] getDone() {
+		return done;
+	}
+
+	/**
+	 * Returns every bot to the start of a new episode and observes it.
+	 */
+	public void reset() {
+		for (int bot = 0; bot < botCount; bot++) {
+			restart(bot);
+			rewards[bot] = 0;
+			done[bot] = false;
+			observe(bot);
+		}
+	}
+
+	/**
+	 * Performs the specified action of every bot in parallel, then observes
+	 * every bot.
+	 *
+	 * @param actions
+	 *            the action of each bot, indexed by bot - one of
+	 *            {@link #ACTION_FORWARD}, {@link #ACTION_REVERSE},
+	 *            {@link #ACTION_FORWARD_RIGHT} and {@link #ACTION_FORWARD_LEFT}
+	 * @throws NullPointerException
+	 *             if {@code actions} is null
+	 * @throws IllegalArgumentException
+	 *             if {@code actions} is shorter than the number of bots, or
+	 *             if an action is not one of the above
+	 */
+	public void step(int[] actions) throws NullPointerException,
+			IllegalArgumentException {
+		if (actions.length < botCount)
+			throw new IllegalArgumentException();
+		for (int bot = 0; bot < botCount; bot++)
+			if (actions[bot] < 0 || actions[bot] >= ACTION_COUNT)
+				throw new IllegalArgumentException();
+		pool.invoke(new StepTask(actions, 0, botCount));
+		stepCount++;
+	}
+
+	/**
+	 * Performs the specified action of the specified bot and observes the
+	 * bot, starting a new episode if its episode has ended.
+	 *
+	 * @param bot
+	 *            the index of the bot
+	 * @param action
+	 *            the action of the bot
+	 */
+	private void step(int bot, int action) {
+		double heading = botRotation[bot] + ACTION_TURNS[action];
+		double x = botX[bot] + ACTION_DISTANCES[action] * Math.cos(heading);
+		double y = botY[bot] + ACTION_DISTANCES[action] * Math.sin(heading);
+		int obstacle = BotWorld.findCollision(obstacleGrid, x, y);
+		episodeSteps[bot]++;
+		if (obstacle == -1) {
+			botX[bot] = x;
+			botY[bot] = y;
+			botRotation[bot] = heading;
+			rewards[bot] = ACTION_REINFORCEMENTS[action];
+			done[bot] = episodeSteps[bot] >= episodeLength;
+		} else {
+			collisionCounts[bot]++;
+			rewards[bot] = BotWorld.getCollisionReinforcement(
+					obstacles[obstacle], x, y,
+					ACTION_OVERLAP_COLLISIONS[action]);
+			done[bot] = true;
+		}
+		if (done[bot])
+			restart(bot);
+		observe(bot);
+	}
+
+	private void restart(int bot) {
+		botX[bot] = START_X;
+		botY[bot] = START_Y;
+		botRotation[bot] = START_ROTATION;
+		episodeSteps[bot] = 0;
+	}
+
+	private void observe(int bot) {
+		double[] observation = observations[bot];
+		for (int i = 0; i < observation.length; i++)
+			observation[i] = BotWorld.senseObstacle(obstacleGrid, botX[bot],
+					botY[bot], botRotation[bot], BotWorld.SENSOR_RANGE,
+					BotWorld.SENSOR_ANGLES[i])
+					/ BotWorld.SENSOR_RANGE;
+	}
+
+	/**
+	 * Trains a network to drive a vector world, reporting the bot steps per
+	 * second and collisions per 1k bot steps every second. The arguments are
+	 * the number of bots, and optionally the number of steps to run.
+	 */
+	public static void main(String[] args) {
+		int botCount = args.length > 0 ? Integer.parseInt(args[0]) : 256;
+		long stepCount = args.length > 1 ? Long.parseLong(args[1])
+				: Long.MAX_VALUE;
+		VectorBotWorld world = new VectorBotWorld(botCount, 1000);
+
+		QNetwork memory = new QNetwork(1);
+		for (int i = 0; i < world.getObservationWidth(); i++) {
+			memory.addInput();
+			memory.addHiddenNode();
+		}
+		for (int i = 0; i < ACTION_COUNT; i++) {
+			memory.addAction();
+			memory.addHiddenNode();
+		}
+		ReplayBuffer experience = new ReplayBuffer(100000,
+				world.getObservationWidth(), 1, false, 0.6, 0.4);
+		DynamicImpulseController impulseController = new DynamicImpulseController(
+				1);
+		BoltzmannExecutive executive = new BoltzmannExecutive(
+				impulseController);
+		InferenceContext context = memory.newInferenceContext();
+
+		double[][] states = new double[botCount][world.getObservationWidth()];
+		double[][] reinforcements = new double[botCount][ACTION_COUNT];
+		int[] actions = new int[botCount];
+		int[] performed = new int[1];
+		long reportTime = System.nanoTime();
+		long reportSteps = 0;
+		long reportCollisions = 0;
+		for (long step = 1; step <= stepCount; step++) {
+			double[][] observations = world.getObservations();
+			for (int bot = 0; bot < botCount; bot++)
+				System.arraycopy(observations[bot], 0, states[bot], 0,
+						states[bot].length);
+			memory.predictActionReinforcementsBatch(context, states,
+					reinforcements);
+			for (int bot = 0; bot < botCount; bot++)
+				actions[bot] = executive.selectAction(reinforcements[bot], 0,
+						ACTION_COUNT);
+			world.step(actions);
+			for (int bot = 0; bot < botCount; bot++) {
+				performed[0] = actions[bot];
+				experience.record(states[bot], performed,
+						world.getRewards()[bot], world.getDone()[bot] ? null
+								: observations[bot]);
+			}
+			memory.trainFromReplay(experience, Math.min(32 * botCount, 1024),
+					0, 0.01);
+			impulseController.setImpulseResistance(impulseController
+					.getImpulseResistance() * (1.0 - 0.0001));
+
+			long time = System.nanoTime();
+			if (time - reportTime < 1000000000L && step != stepCount)
+				continue;
+			long steps = world.getStepCount() - reportSteps;
+			long collisions = world.getCollisionCount() - reportCollisions;
+			System.out.println("Bot steps: " + world.getStepCount()
+					+ " - Bot steps/second: " + steps * 1000000000L
+					/ (time - reportTime) + " - Collisions/1k bot steps: "
+					+ collisions * 1000 / Math.max(steps, 1));
+			reportTime = time;
+			reportSteps = world.getStepCount();
+			reportCollisions = world.getCollisionCount();
+		}
+	}
+
+	/**
+	 * A task stepping a range of bots, split into subtasks while the range
+	 * holds more than {@link VectorBotWorld#TASK_BOT_COUNT} bots.
+	 */
+	@SuppressWarnings("serial")
+	private class StepTask extends RecursiveAction {
+
+		private final int[] actions;
+		private final int from;
+		private final int to;
+
+		private StepTask(int[] actions, int from, int to) {
+			this.actions = actions;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+			if (to - from > TASK_BOT_COUNT) {
+				int middle = (from + to) >>> 1;
+				invokeAll(new StepTask(actions, from, middle), new StepTask(
+						actions, middle, to));
+				return;
+			}
+			for (int bot = from; bot < to; bot++)
+				step(bot, actions[bot]);
+		}
+	}
+}
@@ -0,0 +1,362 @@
+package casereality.util;
+
+import java.awt.geom.Rectangle2D;
+import java.util.Arrays;
+
+/**
+ * A static spatial index of axis-aligned boxes, dividing their bounds into a
+ * uniform grid of square cells that each list the boxes overlapping them.
+ * Queries only test the boxes in the cells they pass through, so their cost
+ * grows with the number of nearby boxes rather than the total.
+ * <p>
+ * The boxes are held in primitive arrays, with the boxes of every cell packed
+ * into one array, and queries allocate nothing and modify nothing, so a grid
+ * may be queried by any number of threads at once. Boxes with no area are
+ * never hit nor overlapped, as with {@link Rectangle2D#intersects(double,
+ * double, double, double)}.
+ *
+ * @author Charlie Morley
+ *
+ */
+public final class UniformGrid {
+
+	/**
+	 * The greatest number of cells in a grid.
+	 */
+	private static final long MAXIMUM_CELL_COUNT = 1 << 24;
+
+	private final double[] minX;
+	private final double[] minY;
+	private final double[] maxX;
+	private final double[] maxY;
+
+	private final double cellSize;
+	private final double gridX;
+	private final double gridY;
+	private final int columnCount;
+	private final int rowCount;
+
+	/**
+	 * The index in {@link #cellBoxes} of the first box of each cell, by row
+	 * then column, followed by the total number of cell entries.
+	 */
+	private final int[] cellStarts;
+
+	/**
+	 * The indices of the boxes overlapping each cell, in ascending order
+	 * within each cell.
+	 */
+	private final int[] cellBoxes;
+
+	/**
+	 * Constructs a grid of the specified boxes. Later changes to the boxes do
+	 * not affect the grid.
+	 *
+	 * @param boxes
+	 *            the boxes to index - their indices in this array are those
+	 *            returned by queries
+	 * @param cellSize
+	 *            the width and height of each cell
+	 * @throws NullPointerException
+	 *             if {@code boxes} or any of its elements is null
+	 * @throws IllegalArgumentException
+	 *             if {@code cellSize} is not a positive finite number, if a
+	 *             box is not finite, or if the grid would have too many cells
+	 */
+	public UniformGrid(Rectangle2D.Double[] boxes, double cellSize)
+			throws NullPointerException, IllegalArgumentException {
+		if (!(cellSize > 0) || Double.isInfinite(cellSize))
+			throw new IllegalArgumentException();
+		int boxCount = boxes.length;
+		minX = new double[boxCount];
+		minY = new double[boxCount];
+		maxX = new double[boxCount];
+		maxY = new double[boxCount];
+		double left = Double.POSITIVE_INFINITY;
+		double top = Double.POSITIVE_INFINITY;
+		double right = Double.NEGATIVE_INFINITY;
+		double bottom = Double.NEGATIVE_INFINITY;
+		for (int i = 0; i < boxCount; i++) {
+			Rectangle2D.Double box = boxes[i];
+			if (Double.isNaN(box.x + box.y + box.width + box.height)
+					|| Double.isInfinite(box.x + box.y + box.width
+							+ box.height))
+				throw new IllegalArgumentException();
+			minX[i] = box.x;
+			minY[i] = box.y;
+			maxX[i] = box.x + box.width;
+			maxY[i] = box.y + box.height;
+			if (isEmpty(i))
+				continue;
+			left = Math.min(left, minX[i]);
+			top = Math.min(top, minY[i]);
+			right = Math.max(right, maxX[i]);
+			bottom = Math.max(bottom, maxY[i]);
+		}
+		if (left > right)
+			left = top = right = bottom = 0;
+		this.cellSize = cellSize;
+		gridX = left;
+		gridY = top;
+		long columns = Math.max((long) Math.ceil((right - left) / cellSize),
+				1);
+		long rows = Math.max((long) Math.ceil((bottom - top) / cellSize), 1);
+		if (columns * rows > MAXIMUM_CELL_COUNT)
+			throw new IllegalArgumentException();
+		columnCount = (int) columns;
+		rowCount = (int) rows;
+
+		int cellCount = columnCount * rowCount;
+		cellStarts = new int[cellCount + 1];
+		for (int i = 0; i < boxCount; i++) {
+			if (isEmpty(i))
+				continue;
+			int lastColumn = getColumn(maxX[i]);
+			int lastRow = getRow(maxY[i]);
+			for (int row = getRow(minY[i]); row <= lastRow; row++)
+				for (int column = getColumn(minX[i]); column <= lastColumn; column++)
+					cellStarts[row * columnCount + column + 1]++;
+		}
+		for (int cell = 0; cell < cellCount; cell++)
+			cellStarts[cell + 1] += cellStarts[cell];
+		cellBoxes = new int[cellStarts[cellCount]];
+		int[] cellEnds = Arrays.copyOf(cellStarts, cellCount);
+		for (int i = 0; i < boxCount; i++) {
+			if (isEmpty(i))
+				continue;
+			int lastColumn = getColumn(maxX[i]);
+			int lastRow = getRow(maxY[i]);
+			for (int row = getRow(minY[i]); row <= lastRow; row++)
+				for (int column = getColumn(minX[i]); column <= lastColumn; column++)
+					cellBoxes[cellEnds[row * columnCount + column]++] = i;
+		}
+	}
+
+	public int getBoxCount() {
+		return minX.length;
+	}
+
+	public double getCellSize() {
+		return cellSize;
+	}
+
+	public int getColumnCount() {
+		return columnCount;
+	}
+
+	public int getRowCount() {
+		return rowCount;
+	}
+
+	/**
+	 * Casts a ray from the specified origin in the specified direction and
+	 * returns the distance along it to the nearest box it hits. A ray whose
+	 * origin lies within a box hits it at distance 0.
+	 * <p>
+	 * The ray walks the cells it passes through in order, and stops at the
+	 * first cell beyond which no hit could be nearer than one already found.
+	 *
+	 * @param originX
+	 *            the x coordinate of the ray's origin
+	 * @param originY
+	 *            the y coordinate of the ray's origin
+	 * @param directionX
+	 *            the x component of the ray's direction
+	 * @param directionY
+	 *            the y component of the ray's direction
+	 * @param range
+	 *            the greatest distance to search along the ray
+	 * @return the distance to the nearest hit, in multiples of the direction's
+	 *         length, or {@code range} if no box is hit within it
+	 */
+	public double castRay(double originX, double originY, double directionX,
+			double directionY, double range) {
+		if (!(range > 0) || (directionX == 0 && directionY == 0))
+			return range > 0 ? nearestAt(originX, originY, range) : range;
+		double enter = 0;
+		double exit = range;
+		if (directionX == 0) {
+			if (originX < gridX || originX > gridX + columnCount * cellSize)
+				return range;
+		} else {
+			double t1 = (gridX - originX) / directionX;
+			double t2 = (gridX + columnCount * cellSize - originX)
+					/ directionX;
+			enter = Math.max(enter, Math.min(t1, t2));
+			exit = Math.min(exit, Math.max(t1, t2));
+		}
+		if (directionY == 0) {
+			if (originY < gridY || originY > gridY + rowCount * cellSize)
+				return range;
+		} else {
+			double t1 = (gridY - originY) / directionY;
+			double t2 = (gridY + rowCount * cellSize - originY) / directionY;
+			enter = Math.max(enter, Math.min(t1, t2));
+			exit = Math.min(exit, Math.max(t1, t2));
+		}
+		if (enter > exit)
+			return range;
+
+		int column = getColumn(originX + directionX * enter);
+		int row = getRow(originY + directionY * enter);
+		int columnStep = directionX > 0 ? 1 : directionX < 0 ? -1 : 0;
+		int rowStep = directionY > 0 ? 1 : directionY < 0 ? -1 : 0;
+		double columnDelta = columnStep == 0 ? Double.POSITIVE_INFINITY
+				: cellSize / Math.abs(directionX);
+		double rowDelta = rowStep == 0 ? Double.POSITIVE_INFINITY : cellSize
+				/ Math.abs(directionY);
+		double nextColumn = columnStep == 0 ? Double.POSITIVE_INFINITY
+				: (gridX + (column + (columnStep > 0 ? 1 : 0)) * cellSize - originX)
+						/ directionX;
+		double nextRow = rowStep == 0 ? Double.POSITIVE_INFINITY : (gridY
+				+ (row + (rowStep > 0 ? 1 : 0)) * cellSize - originY)
+				/ directionY;
+
+		double nearest = range;
+		while (true) {
+			int cell = row * columnCount + column;
+			for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+				double distance = castRay(cellBoxes[i], originX, originY,
+						directionX, directionY, nearest);
+				if (distance < nearest)
+					nearest = distance;
+			}
+			double next = Math.min(nextColumn, nextRow);
+			if (nearest <= next || next > exit)
+				return nearest;
+			if (nextColumn < nextRow) {
+				column += columnStep;
+				if (column < 0 || column >= columnCount)
+					return nearest;
+				nextColumn += columnDelta;
+			} else {
+				row += rowStep;
+				if (row < 0 || row >= rowCount)
+					return nearest;
+				nextRow += rowDelta;
+			}
+		}
+	}
+
+	/**
+	 * Returns the index of the first of the boxes, by index, that overlaps
+	 * the specified rectangle, as decided by
+	 * {@link Rectangle2D#intersects(double, double, double, double)}.
+	 *
+	 * @param x
+	 *            the left of the rectangle
+	 * @param y
+	 *            the top of the rectangle
+	 * @param width
+	 *            the width of the rectangle
+	 * @param height
+	 *            the height of the rectangle
+	 * @return the index of the first overlapping box, or -1 if there is none
+	 */
+	public int findOverlap(double x, double y, double width, double height) {
+		if (!(width > 0 && height > 0) || x >= gridX + columnCount * cellSize
+				|| y >= gridY + rowCount * cellSize || x + width <= gridX
+				|| y + height <= gridY)
+			return -1;
+		int first = -1;
+		int lastRow = getRow(y + height);
+		int lastColumn = getColumn(x + width);
+		for (int row = getRow(y); row <= lastRow; row++)
+			for (int column = getColumn(x); column <= lastColumn; column++) {
+				int cell = row * columnCount + column;
+				for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+					int box = cellBoxes[i];
+					if (first != -1 && box >= first)
+						break;
+					if (x + width > minX[box] && y + height > minY[box]
+							&& x < maxX[box] && y < maxY[box])
+						first = box;
+				}
+			}
+		return first;
+	}
+
+	/**
+	 * Returns the distance along a ray to the specified box, if it is less
+	 * than the specified distance.
+	 *
+	 * @param box
+	 *            the index of the box
+	 * @param originX
+	 *            the x coordinate of the ray's origin
+	 * @param originY
+	 *            the y coordinate of the ray's origin
+	 * @param directionX
+	 *            the x component of the ray's direction
+	 * @param directionY
+	 *            the y component of the ray's direction
+	 * @param nearest
+	 *            the distance to the nearest hit found so far
+	 * @return the distance to the box, or {@code nearest} if the ray misses
+	 *         it or hits it no nearer
+	 */
+	private double castRay(int box, double originX, double originY,
+			double directionX, double directionY, double nearest) {
+		double enter = 0;
+		double exit = nearest;
+		if (directionX == 0) {
+			if (originX < minX[box] || originX > maxX[box])
+				return nearest;
+		} else {
+			double t1 = (minX[box] - originX) / directionX;
+			double t2 = (maxX[box] - originX) / directionX;
+			enter = Math.max(enter, Math.min(t1, t2));
+			exit = Math.min(exit, Math.max(t1, t2));
+		}
+		if (directionY == 0) {
+			if (originY < minY[box] || originY > maxY[box])
+				return nearest;
+		} else {
+			double t1 = (minY[box] - originY) / directionY;
+			double t2 = (maxY[box] - originY) / directionY;
+			enter = Math.max(enter, Math.min(t1, t2));
+			exit = Math.min(exit, Math.max(t1, t2));
+		}
+		return enter <= exit ? enter : nearest;
+	}
+
+	/**
+	 * Returns 0 if the specified point lies within a box, or the specified
+	 * range otherwise.
+	 *
+	 * @param x
+	 *            the x coordinate of the point
+	 * @param y
+	 *            the y coordinate of the point
+	 * @param range
+	 *            the value returned if the point lies within no box
+	 * @return 0 if the point lies within a box, or {@code range}
+	 */
+	private double nearestAt(double x, double y, double range) {
+		if (x < gridX || x > gridX + columnCount * cellSize || y < gridY
+				|| y > gridY + rowCount * cellSize)
+			return range;
+		int cell = getRow(y) * columnCount + getColumn(x);
+		for (int i = cellStarts[cell]; i < cellStarts[cell + 1]; i++) {
+			int box = cellBoxes[i];
+			if (x >= minX[box] && x <= maxX[box] && y >= minY[box]
+					&& y <= maxY[box])
+				return 0;
+		}
+		return range;
+	}
+
+	private boolean isEmpty(int box) {
+		return !(maxX[box] > minX[box] && maxY[box] > minY[box]);
+	}
+
+	private int getColumn(double x) {
+		return Math.min(Math.max((int) Math.floor((x - gridX) / cellSize), 0),
+				columnCount - 1);
+	}
+
+	private int getRow(double y) {
+		return Math.min(Math.max((int) Math.floor((y - gridY) / cellSize), 0),
+				rowCount - 1);
+	}
+}